@@ -0,0 +1,74 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.benchmark;
+
+import java.io.File;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks once for each thread count from 1 up to the number
+ * of processors, doubling each time.<br>
+ * <br>
+ * The arguments are passed to JMH, so a regular expression selects the
+ * benchmarks to run. The GC profiler is always enabled, so the results
+ * include the allocation rate of each benchmark. The results for each thread
+ * count are written to target/jmh/result-&lt;threads&gt;t.json.<br>
+ * <br>
+ * The maximum thread count can be changed with the jmh.maxThreads system
+ * property.
+ */
+public class BenchmarkRunner {
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		Options parent = new CommandLineOptions(args);
+		int maxThreads = Integer.getInteger("jmh.maxThreads", Runtime.getRuntime().availableProcessors());
+		File results = new File("target", "jmh");
+		results.mkdirs();
+		int threads = 1;
+		while (true) {
+			Options options = new OptionsBuilder()
+					.parent(parent)
+					.threads(threads)
+					.addProfiler(GCProfiler.class)
+					.result(new File(results, "result-" + threads + "t.json").getPath())
+					.resultFormat(ResultFormatType.JSON)
+					.build();
+			new Runner(options).run();
+			if (threads >= maxThreads) {
+				break;
+			}
+			threads = Math.min(threads << 1, maxThreads);
+		}
+	}
+}
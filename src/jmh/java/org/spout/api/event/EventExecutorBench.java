@@ -0,0 +1,206 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.event;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spout.api.exception.EventException;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Compares generated and reflective event executors.<br>
+ * <br>
+ * Each benchmark passes one event to every one of the listeners, the same
+ * way that SimpleEventManager.callEvent does. With more than one listener,
+ * the generated executors are different classes, so the call to execute is
+ * megamorphic.<br>
+ * <br>
+ * The unobserved benchmarks fire an event that has no listeners, with and
+ * without the lazy callEvent. The dispatch benchmarks call an event with one
+ * listener, with the event profiler off, sampling, and timing every call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventExecutorBench {
+	@Param({"1", "100"})
+	public int listeners;
+
+	private EventExecutor[] generated;
+	private EventExecutor[] reflective;
+	private final BenchEvent event = new BenchEvent();
+
+	@Setup
+	public void setup() throws NoSuchMethodException {
+		Method method = BenchListener.class.getMethod("onEvent", BenchEvent.class);
+		generated = new EventExecutor[listeners];
+		reflective = new EventExecutor[listeners];
+		for (int i = 0; i < listeners; i++) {
+			BenchListener listener = new BenchListener();
+			generated[i] = EventExecutorFactory.createGenerated(listener, method);
+			reflective[i] = EventExecutorFactory.createReflective(listener, method);
+		}
+	}
+
+	@Benchmark
+	public int generated() throws EventException {
+		return execute(generated);
+	}
+
+	@Benchmark
+	public int reflective() throws EventException {
+		return execute(reflective);
+	}
+
+	@Benchmark
+	public BenchEvent unobservedEager(Unobserved state) {
+		return state.manager.callEvent(new BenchEvent());
+	}
+
+	@Benchmark
+	public BenchEvent unobservedLazy(Unobserved state) {
+		return state.manager.callEvent(BenchEvent.class, state.supplier);
+	}
+
+	@Benchmark
+	public DispatchEvent dispatch(Dispatch state) {
+		return state.manager.callEvent(new DispatchEvent());
+	}
+
+	@Benchmark
+	public DispatchEvent dispatchProfiled(ProfiledDispatch state) {
+		return state.manager.callEvent(new DispatchEvent());
+	}
+
+	@Benchmark
+	public DispatchEvent dispatchProfiledEveryCall(EveryCallProfiledDispatch state) {
+		return state.manager.callEvent(new DispatchEvent());
+	}
+
+	private int execute(EventExecutor[] executors) throws EventException {
+		event.count = 0;
+		for (EventExecutor executor : executors) {
+			executor.execute(event);
+		}
+		return event.count;
+	}
+
+	@State(Scope.Benchmark)
+	public static class Unobserved {
+		final EventManager manager = new SimpleEventManager();
+		final Supplier<BenchEvent> supplier = new Supplier<BenchEvent>() {
+			@Override
+			public BenchEvent get() {
+				return new BenchEvent();
+			}
+		};
+	}
+
+	@State(Scope.Benchmark)
+	public static class Dispatch {
+		final EventManager manager = new SimpleEventManager();
+
+		@Setup
+		public void setup() throws NoSuchMethodException {
+			Method method = BenchListener.class.getMethod("onDispatch", DispatchEvent.class);
+			HandlerList.unregisterAll(this);
+			manager.registerEvent(DispatchEvent.class, Order.DEFAULT, EventExecutorFactory.create(new BenchListener(), method), this);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class ProfiledDispatch extends Dispatch {
+		@Setup
+		public void enable() {
+			manager.getProfiler().setEnabled(true);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class EveryCallProfiledDispatch extends ProfiledDispatch {
+		@Setup
+		public void timeEveryCall() {
+			manager.getProfiler().setSampleInterval(1);
+		}
+	}
+
+	public static class BenchListener implements Listener {
+		@EventHandler
+		public void onEvent(BenchEvent event) {
+			event.count++;
+		}
+
+		@EventHandler
+		public void onDispatch(DispatchEvent event) {
+			event.count++;
+		}
+	}
+
+	public static class BenchEvent extends Event {
+		private static final HandlerList handlers = new HandlerList();
+		private int count;
+
+		@Override
+		public HandlerList getHandlers() {
+			return handlers;
+		}
+
+		public static HandlerList getHandlerList() {
+			return handlers;
+		}
+	}
+
+	public static class DispatchEvent extends Event {
+		private static final HandlerList handlers = new HandlerList();
+		private int count;
+
+		@Override
+		public HandlerList getHandlers() {
+			return handlers;
+		}
+
+		public static HandlerList getHandlerList() {
+			return handlers;
+		}
+	}
+}
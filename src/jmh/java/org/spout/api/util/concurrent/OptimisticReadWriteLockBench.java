@@ -0,0 +1,133 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures contention on a single OptimisticReadWriteLock.<br>
+ * <br>
+ * The readers read two elements of an atomic array under the lock and then
+ * confirm the read, either with readUnlock, which is a CAS, or with
+ * validate, which is a volatile read. The mixed groups add a writer for every
+ * three readers.<br>
+ * <br>
+ * The lock is shared by every thread, so the interesting results are at high
+ * thread counts. Run with -Djmh.maxThreads=64 and compare the 4, 16 and 64
+ * thread results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OptimisticReadWriteLockBench {
+	private final OptimisticReadWriteLock lock = new OptimisticReadWriteLock();
+	private final AtomicIntegerArray data = new AtomicIntegerArray(16);
+
+	@Setup
+	public void setup() {
+		for (int i = 0; i < data.length(); i++) {
+			data.set(i, i);
+		}
+	}
+
+	@Benchmark
+	public int readUnlock() {
+		while (true) {
+			int seq = lock.readLock();
+			int value = data.get(0) + data.get(15);
+			if (lock.readUnlock(seq)) {
+				return value;
+			}
+		}
+	}
+
+	@Benchmark
+	public int readValidate() {
+		while (true) {
+			int seq = lock.readLock();
+			int value = data.get(0) + data.get(15);
+			if (lock.validate(seq)) {
+				return value;
+			}
+		}
+	}
+
+	@Benchmark
+	public int write() {
+		int seq = lock.writeLock();
+		try {
+			return data.incrementAndGet(0) + data.decrementAndGet(15);
+		} finally {
+			lock.writeUnlock(seq);
+		}
+	}
+
+	@Benchmark
+	@Group("mixedReadUnlock")
+	@GroupThreads(3)
+	public int mixedReadUnlockRead() {
+		return readUnlock();
+	}
+
+	@Benchmark
+	@Group("mixedReadUnlock")
+	@GroupThreads(1)
+	public int mixedReadUnlockWrite() {
+		return write();
+	}
+
+	@Benchmark
+	@Group("mixedValidate")
+	@GroupThreads(3)
+	public int mixedValidateRead() {
+		return readValidate();
+	}
+
+	@Benchmark
+	@Group("mixedValidate")
+	@GroupThreads(1)
+	public int mixedValidateWrite() {
+		return write();
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.spout.api.datatable.DatatableSequenceNumber;
+
+/**
+ * Measures block reads and writes on the AtomicBlockStore implementations.<br>
+ * <br>
+ * Each store starts with a terrain like chunk, with stone, ores, dirt and
+ * grass below the surface and air above it. About one block in eight below
+ * the surface has data. The writes mostly set blocks without data, with some
+ * blocks with data, so the auxiliary store of AtomicBlockStoreImpl is also
+ * exercised.<br>
+ * <br>
+ * The access patterns are described in BenchmarkAccess.getBlockIndexes.
+ * AtomicSliceStore ignores the y coordinate, so it only holds one layer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AtomicBlockStoreBench {
+	private final static int SHIFT = 4;
+	private final static int SIDE = 1 << SHIFT;
+	private final static int MASK = SIDE - 1;
+	private final static int SURFACE = 10;
+
+	@Param({"impl", "slice", "palette", "offheap"})
+	public String store;
+
+	@Param({"random", "scan", "neighbour", "hot"})
+	public String access;
+
+	private AtomicBlockStore blocks;
+
+	@Setup
+	public void setup() {
+		if (store.equals("impl")) {
+			blocks = new AtomicBlockStoreImpl(SHIFT);
+		} else if (store.equals("slice")) {
+			blocks = new AtomicSliceStore(SIDE);
+		} else if (store.equals("palette")) {
+			blocks = new AtomicPaletteBlockStore(SHIFT);
+		} else if (store.equals("offheap")) {
+			blocks = new AtomicOffHeapBlockStore(SHIFT);
+		} else {
+			throw new IllegalArgumentException("Unknown store " + store);
+		}
+		Random r = new Random(1);
+		for (int y = 0; y < SURFACE; y++) {
+			for (int z = 0; z < SIDE; z++) {
+				for (int x = 0; x < SIDE; x++) {
+					short id;
+					if (y < SURFACE - 4) {
+						id = (short) (r.nextInt(50) == 0 ? 14 + r.nextInt(3) : 1);
+					} else if (y < SURFACE - 1) {
+						id = 3;
+					} else {
+						id = 2;
+					}
+					short data = (short) (r.nextInt(8) == 0 ? 1 + r.nextInt(15) : 0);
+					blocks.setBlock(x, y, z, id, data);
+				}
+			}
+		}
+		blocks.resetDirtyArrays();
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (blocks instanceof AtomicOffHeapBlockStore) {
+			((AtomicOffHeapBlockStore) blocks).free();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Blocks {
+		private int[] stream;
+		private int next;
+		private int writes;
+
+		@Setup
+		public void setup(AtomicBlockStoreBench bench, ThreadParams params) {
+			stream = BenchmarkAccess.getBlockIndexes(bench.access, SHIFT, params.getThreadIndex(), params.getThreadCount());
+		}
+
+		public int next() {
+			int index = stream[next];
+			next = (next + 1) & (BenchmarkAccess.STREAM_LENGTH - 1);
+			return index;
+		}
+
+		public int nextWrite() {
+			return writes++;
+		}
+	}
+
+	@Benchmark
+	public int read(Blocks blocks) {
+		int index = blocks.next();
+		return this.blocks.getFullData(index & MASK, index >> (SHIFT << 1), (index >> SHIFT) & MASK);
+	}
+
+	@Benchmark
+	public int readChecked(Blocks blocks) {
+		return readBlock(blocks.next());
+	}
+
+	@Benchmark
+	public void write(Blocks blocks) {
+		writeBlock(blocks.next(), blocks.nextWrite());
+	}
+
+	@Benchmark
+	public boolean compareAndSet(Blocks blocks) {
+		int index = blocks.next();
+		int x = index & MASK;
+		int y = index >> (SHIFT << 1);
+		int z = (index >> SHIFT) & MASK;
+		int state = this.blocks.getFullData(x, y, z);
+		short id = (short) (state >> 16);
+		short data = (short) state;
+		return this.blocks.compareAndSetBlock(x, y, z, id, data, (short) (id ^ 1), data);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public int mixedRead(Blocks blocks) {
+		return readBlock(blocks.next());
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public void mixedWrite(Blocks blocks) {
+		writeBlock(blocks.next(), blocks.nextWrite());
+	}
+
+	/**
+	 * Reads the id and data of a block using the block's sequence number to
+	 * confirm that they were read together
+	 *
+	 * @param index the index of the block
+	 * @return the id and data
+	 */
+	private int readBlock(int index) {
+		int x = index & MASK;
+		int y = index >> (SHIFT << 1);
+		int z = (index >> SHIFT) & MASK;
+		while (true) {
+			int sequence = blocks.getSequence(x, y, z);
+			if (sequence == DatatableSequenceNumber.ATOMIC) {
+				return blocks.getBlockId(x, y, z) << 16;
+			}
+			int id = blocks.getBlockId(x, y, z);
+			int data = blocks.getData(x, y, z);
+			if (blocks.testSequence(x, y, z, sequence)) {
+				return id << 16 | data;
+			}
+		}
+	}
+
+	/**
+	 * Sets a block to a new state. One write in eight sets a block with data.
+	 *
+	 * @param index the index of the block
+	 * @param write the number of writes made by the thread
+	 */
+	private void writeBlock(int index, int write) {
+		short id = (short) (write & 63);
+		short data = (short) ((write & 7) == 0 ? 1 + (write >> 3 & 15) : 0);
+		blocks.setBlock(index & MASK, index >> (SHIFT << 1), (index >> SHIFT) & MASK, id, data);
+	}
+}
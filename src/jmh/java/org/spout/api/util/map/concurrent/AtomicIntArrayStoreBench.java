@@ -0,0 +1,176 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Measures an AtomicIntArrayStore, which holds the blocks that have data in
+ * AtomicBlockStoreImpl.<br>
+ * <br>
+ * The reads use a fixed set of entries. The churn benchmark removes and adds
+ * entries, as when blocks with data are changed, and each thread only
+ * removes the entries it added.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AtomicIntArrayStoreBench {
+	private final static int MAX_ENTRIES = 16384;
+	private final static int FIXED_ENTRIES = 1024;
+	private final static int THREAD_ENTRIES = 64;
+
+	@Param({"spread", "hot"})
+	public String access;
+
+	private AtomicIntArrayStore store;
+	private int[] fixed;
+
+	@Setup
+	public void setup() {
+		store = new AtomicIntArrayStore(MAX_ENTRIES);
+		fixed = new int[FIXED_ENTRIES];
+		for (int i = 0; i < FIXED_ENTRIES; i++) {
+			fixed[i] = store.add((short) i, (short) (i + 1));
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Entries {
+		private int[] stream;
+		private int next;
+		private int[] owned;
+		private int nextOwned;
+		private AtomicIntArrayStore store;
+
+		@Setup
+		public void setup(AtomicIntArrayStoreBench bench, ThreadParams params) {
+			stream = BenchmarkAccess.getIndexes(bench.access, FIXED_ENTRIES, params.getThreadIndex(), params.getThreadCount());
+			for (int i = 0; i < stream.length; i++) {
+				stream[i] = bench.fixed[stream[i]];
+			}
+			store = bench.store;
+			owned = new int[THREAD_ENTRIES];
+			for (int i = 0; i < THREAD_ENTRIES; i++) {
+				owned[i] = store.add((short) i, (short) 1);
+			}
+		}
+
+		@TearDown
+		public void tearDown() {
+			for (int i = 0; i < THREAD_ENTRIES; i++) {
+				store.remove(owned[i]);
+			}
+		}
+
+		public int next() {
+			int index = stream[next];
+			next = (next + 1) & (BenchmarkAccess.STREAM_LENGTH - 1);
+			return index;
+		}
+	}
+
+	@Benchmark
+	public int read(Entries entries) {
+		return store.getInt(entries.next());
+	}
+
+	@Benchmark
+	public int readChecked(Entries entries) {
+		return readEntry(entries.next());
+	}
+
+	@Benchmark
+	public int churn(Entries entries) {
+		return replaceEntry(entries);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public int mixedRead(Entries entries) {
+		return readEntry(entries.next());
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public int mixedChurn(Entries entries) {
+		return replaceEntry(entries);
+	}
+
+	/**
+	 * Reads an entry and confirms that it did not change during the read, as
+	 * the block stores do
+	 *
+	 * @param index the index of the entry
+	 * @return the entry
+	 */
+	private int readEntry(int index) {
+		while (true) {
+			int sequence = store.getSequence(index);
+			int value = store.getInt(index);
+			if (store.testSequence(index, sequence)) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the oldest entry owned by a thread with a new entry
+	 *
+	 * @param entries the thread's entries
+	 * @return the index of the new entry
+	 */
+	private int replaceEntry(Entries entries) {
+		int slot = entries.nextOwned;
+		entries.nextOwned = (slot + 1) & (THREAD_ENTRIES - 1);
+		store.remove(entries.owned[slot]);
+		int index = store.add((short) slot, (short) entries.next());
+		entries.owned[slot] = index;
+		return index;
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Measures reads, writes and compare and sets on an AtomicVariableWidthArray
+ * for the widths used by block stores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AtomicVariableWidthArrayBench {
+	private final static int LENGTH = 4096;
+
+	@Param({"spread", "hot"})
+	public String access;
+
+	@Param({"4", "8", "16"})
+	public int width;
+
+	private AtomicVariableWidthArray array;
+	private int mask;
+
+	@Setup
+	public void setup() {
+		Random r = new Random(1);
+		array = new AtomicVariableWidthArray(LENGTH, width);
+		mask = array.getMaxValue();
+		for (int i = 0; i < LENGTH; i++) {
+			array.set(i, r.nextInt() & mask);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Indexes {
+		private int[] stream;
+		private int next;
+
+		@Setup
+		public void setup(AtomicVariableWidthArrayBench bench, ThreadParams params) {
+			stream = BenchmarkAccess.getIndexes(bench.access, LENGTH, params.getThreadIndex(), params.getThreadCount());
+		}
+
+		public int next() {
+			int index = stream[next];
+			next = (next + 1) & (BenchmarkAccess.STREAM_LENGTH - 1);
+			return index;
+		}
+	}
+
+	@Benchmark
+	public int read(Indexes indexes) {
+		return array.get(indexes.next());
+	}
+
+	@Benchmark
+	public void write(Indexes indexes) {
+		int index = indexes.next();
+		array.set(index, index & mask);
+	}
+
+	@Benchmark
+	public boolean compareAndSet(Indexes indexes) {
+		int index = indexes.next();
+		int value = array.get(index);
+		return array.compareAndSet(index, value, (value + 1) & mask);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public int mixedRead(Indexes indexes) {
+		return array.get(indexes.next());
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public int mixedWrite(Indexes indexes) {
+		int index = indexes.next();
+		return array.getAndSet(index, (array.get(index) + 1) & mask);
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.util.Random;
+
+/**
+ * Generates the streams of indexes used by the concurrent structure
+ * benchmarks.<br>
+ * <br>
+ * Each benchmark thread walks through its own stream, so that generating
+ * random numbers is not part of the measured work. The access pattern
+ * decides whether threads share the same entries.
+ */
+public final class BenchmarkAccess {
+	/**
+	 * The length of each stream, which is a power of 2
+	 */
+	public final static int STREAM_LENGTH = 1 << 12;
+	/**
+	 * The number of entries shared by all threads for the hot pattern
+	 */
+	public final static int HOT_ENTRIES = 16;
+
+	private BenchmarkAccess() {
+	}
+
+	/**
+	 * Gets a stream of array indexes.<br>
+	 * <br>
+	 * The spread pattern gives each thread a separate range of the array, so
+	 * the threads do not contend. The hot pattern sends every thread to the
+	 * same few entries.
+	 *
+	 * @param pattern the access pattern, "spread" or "hot"
+	 * @param length the length of the array
+	 * @param threadIndex the index of the benchmark thread
+	 * @param threadCount the number of benchmark threads
+	 * @return the stream
+	 */
+	public static int[] getIndexes(String pattern, int length, int threadIndex, int threadCount) {
+		Random r = new Random(threadIndex);
+		int[] stream = new int[STREAM_LENGTH];
+		if (pattern.equals("hot")) {
+			for (int i = 0; i < STREAM_LENGTH; i++) {
+				stream[i] = r.nextInt(Math.min(HOT_ENTRIES, length));
+			}
+		} else if (pattern.equals("spread")) {
+			int range = Math.max(1, length / threadCount);
+			int start = (threadIndex * range) % length;
+			for (int i = 0; i < STREAM_LENGTH; i++) {
+				stream[i] = start + r.nextInt(Math.min(range, length - start));
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown access pattern " + pattern);
+		}
+		return stream;
+	}
+
+	/**
+	 * Gets a stream of block indexes for a cube of blocks. The index for a
+	 * block is (y << (2 * shift)) | (z << shift) | x.<br>
+	 * <br>
+	 * The cube is split into horizontal bands, one per thread, for all
+	 * patterns except hot.<br>
+	 * <br>
+	 * random: random blocks, as for random block ticks<br>
+	 * scan: every block in order, as for lighting and generation<br>
+	 * neighbour: a random walk between adjacent blocks, as for physics<br>
+	 * hot: random blocks in a 4x4x4 region shared by all threads
+	 *
+	 * @param pattern the access pattern
+	 * @param shift the log2 of the side of the cube
+	 * @param threadIndex the index of the benchmark thread
+	 * @param threadCount the number of benchmark threads
+	 * @return the stream
+	 */
+	public static int[] getBlockIndexes(String pattern, int shift, int threadIndex, int threadCount) {
+		Random r = new Random(threadIndex);
+		int side = 1 << shift;
+		int mask = side - 1;
+		int band = Math.max(1, side / threadCount);
+		int minY = (threadIndex * band) & mask;
+		int[] stream = new int[STREAM_LENGTH];
+		int x = 0;
+		int y = minY;
+		int z = 0;
+		for (int i = 0; i < STREAM_LENGTH; i++) {
+			if (pattern.equals("random")) {
+				x = r.nextInt(side);
+				y = minY + r.nextInt(band);
+				z = r.nextInt(side);
+			} else if (pattern.equals("scan")) {
+				if (i > 0 && ++x == side) {
+					x = 0;
+					if (++z == side) {
+						z = 0;
+						if (++y == minY + band) {
+							y = minY;
+						}
+					}
+				}
+			} else if (pattern.equals("neighbour")) {
+				switch (r.nextInt(6)) {
+					case 0:
+						x = (x + 1) & mask;
+						break;
+					case 1:
+						x = (x - 1) & mask;
+						break;
+					case 2:
+						z = (z + 1) & mask;
+						break;
+					case 3:
+						z = (z - 1) & mask;
+						break;
+					case 4:
+						y = y + 1 < minY + band ? y + 1 : minY;
+						break;
+					default:
+						y = y > minY ? y - 1 : minY + band - 1;
+						break;
+				}
+			} else if (pattern.equals("hot")) {
+				x = r.nextInt(4);
+				y = r.nextInt(4);
+				z = r.nextInt(4);
+			} else {
+				throw new IllegalArgumentException("Unknown access pattern " + pattern);
+			}
+			stream[i] = (y << (shift << 1)) | (z << shift) | x;
+		}
+		return stream;
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import gnu.trove.procedure.TObjectProcedure;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.spout.api.util.hashing.Int21TripleHashed;
+
+/**
+ * Measures gets, puts and churn on the TSync hash maps.<br>
+ * <br>
+ * The long keys are packed chunk coordinates, as used by the region and
+ * chunk maps. Each map starts with KEYS entries, and the churn benchmarks
+ * remove and put back an existing key so that the size stays the same.<br>
+ * <br>
+ * The iteration benchmarks compare forEachValue with copying the values,
+ * which was the only way to iterate the maps before forEach was supported.<br>
+ * <br>
+ * The concurrent benchmarks run the same operations on a
+ * ConcurrentLongObjectHashMap, and chunkCube looks up the chunks around a
+ * chunk in a map keyed by Int21TripleHashed keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TSyncHashMapBench {
+	private final static int KEYS = 4096;
+
+	@Param({"spread", "hot"})
+	public String access;
+
+	private TSyncIntIntHashMap intIntMap;
+	private TSyncIntObjectHashMap<Integer> intObjectMap;
+	private TSyncLongObjectHashMap<Integer> longObjectMap;
+	private ConcurrentLongObjectHashMap<Integer> concurrentMap;
+	private ConcurrentLongObjectHashMap<Integer> chunkMap;
+	private int[] intKeys;
+	private long[] longKeys;
+	private Integer[] values;
+
+	@Setup
+	public void setup() {
+		intIntMap = new TSyncIntIntHashMap();
+		intObjectMap = new TSyncIntObjectHashMap<Integer>();
+		longObjectMap = new TSyncLongObjectHashMap<Integer>();
+		concurrentMap = new ConcurrentLongObjectHashMap<Integer>();
+		chunkMap = new ConcurrentLongObjectHashMap<Integer>();
+		intKeys = new int[KEYS];
+		longKeys = new long[KEYS];
+		values = new Integer[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			int x = (i & 63) - 32;
+			int z = (i >> 6) - 32;
+			intKeys[i] = i * 31;
+			longKeys[i] = ((long) x << 32) | (z & 0xFFFFFFFFL);
+			values[i] = Integer.valueOf(i);
+			intIntMap.put(intKeys[i], i);
+			intObjectMap.put(intKeys[i], values[i]);
+			longObjectMap.put(longKeys[i], values[i]);
+			concurrentMap.put(longKeys[i], values[i]);
+			chunkMap.put(Int21TripleHashed.key(x, i & 7, z), values[i]);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Keys {
+		private int[] stream;
+		private int next;
+		private final ValueSum sum = new ValueSum();
+
+		@Setup
+		public void setup(TSyncHashMapBench bench, ThreadParams params) {
+			stream = BenchmarkAccess.getIndexes(bench.access, KEYS, params.getThreadIndex(), params.getThreadCount());
+		}
+
+		public int next() {
+			int index = stream[next];
+			next = (next + 1) & (BenchmarkAccess.STREAM_LENGTH - 1);
+			return index;
+		}
+	}
+
+	@Benchmark
+	public int intIntGet(Keys keys) {
+		return intIntMap.get(intKeys[keys.next()]);
+	}
+
+	@Benchmark
+	public int intIntPut(Keys keys) {
+		int i = keys.next();
+		return intIntMap.put(intKeys[i], i);
+	}
+
+	@Benchmark
+	public int intIntChurn(Keys keys) {
+		int i = keys.next();
+		intIntMap.remove(intKeys[i]);
+		return intIntMap.putIfAbsent(intKeys[i], i);
+	}
+
+	@Benchmark
+	@Group("intIntMixed")
+	@GroupThreads(3)
+	public int intIntMixedGet(Keys keys) {
+		return intIntMap.get(intKeys[keys.next()]);
+	}
+
+	@Benchmark
+	@Group("intIntMixed")
+	@GroupThreads(1)
+	public int intIntMixedPut(Keys keys) {
+		int i = keys.next();
+		return intIntMap.put(intKeys[i], i);
+	}
+
+	@Benchmark
+	public Integer intObjectGet(Keys keys) {
+		return intObjectMap.get(intKeys[keys.next()]);
+	}
+
+	@Benchmark
+	public Integer intObjectPut(Keys keys) {
+		int i = keys.next();
+		return intObjectMap.put(intKeys[i], values[i]);
+	}
+
+	@Benchmark
+	public Integer intObjectChurn(Keys keys) {
+		int i = keys.next();
+		intObjectMap.remove(intKeys[i]);
+		return intObjectMap.putIfAbsent(intKeys[i], values[i]);
+	}
+
+	@Benchmark
+	public Integer longObjectGet(Keys keys) {
+		return longObjectMap.get(longKeys[keys.next()]);
+	}
+
+	@Benchmark
+	public Integer longObjectPut(Keys keys) {
+		int i = keys.next();
+		return longObjectMap.put(longKeys[i], values[i]);
+	}
+
+	@Benchmark
+	public Integer longObjectPutIfAbsent(Keys keys) {
+		int i = keys.next();
+		return longObjectMap.putIfAbsent(longKeys[i], values[i]);
+	}
+
+	@Benchmark
+	public Integer longObjectChurn(Keys keys) {
+		int i = keys.next();
+		longObjectMap.remove(longKeys[i]);
+		return longObjectMap.putIfAbsent(longKeys[i], values[i]);
+	}
+
+	@Benchmark
+	public int longObjectForEach(Keys keys) {
+		keys.sum.total = 0;
+		longObjectMap.forEachValue(keys.sum);
+		return keys.sum.total;
+	}
+
+	@Benchmark
+	public int longObjectValuesCopy() {
+		int total = 0;
+		for (Integer value : longObjectMap.values(new Integer[longObjectMap.size()])) {
+			total += value.intValue();
+		}
+		return total;
+	}
+
+	@Benchmark
+	@Group("longObjectMixed")
+	@GroupThreads(3)
+	public Integer longObjectMixedGet(Keys keys) {
+		return longObjectMap.get(longKeys[keys.next()]);
+	}
+
+	@Benchmark
+	@Group("longObjectMixed")
+	@GroupThreads(1)
+	public Integer longObjectMixedPut(Keys keys) {
+		int i = keys.next();
+		return longObjectMap.put(longKeys[i], values[i]);
+	}
+
+	@Benchmark
+	public Integer concurrentGet(Keys keys) {
+		return concurrentMap.get(longKeys[keys.next()]);
+	}
+
+	@Benchmark
+	public Integer concurrentPut(Keys keys) {
+		int i = keys.next();
+		return concurrentMap.put(longKeys[i], values[i]);
+	}
+
+	@Benchmark
+	public Integer concurrentChurn(Keys keys) {
+		int i = keys.next();
+		concurrentMap.remove(longKeys[i]);
+		return concurrentMap.putIfAbsent(longKeys[i], values[i]);
+	}
+
+	@Benchmark
+	public int concurrentForEach(Keys keys) {
+		keys.sum.total = 0;
+		concurrentMap.forEachValue(keys.sum);
+		return keys.sum.total;
+	}
+
+	@Benchmark
+	@Group("concurrentMixed")
+	@GroupThreads(3)
+	public Integer concurrentMixedGet(Keys keys) {
+		return concurrentMap.get(longKeys[keys.next()]);
+	}
+
+	@Benchmark
+	@Group("concurrentMixed")
+	@GroupThreads(1)
+	public Integer concurrentMixedPut(Keys keys) {
+		int i = keys.next();
+		return concurrentMap.put(longKeys[i], values[i]);
+	}
+
+	@Benchmark
+	public int chunkCube(Keys keys) {
+		int i = keys.next();
+		int x = (i & 63) - 32;
+		int z = (i >> 6) - 32;
+		return chunkMap.keysInCube(x - 2, 0, z - 2, x + 2, 7, z + 2).length;
+	}
+
+	private static class ValueSum implements TObjectProcedure<Integer> {
+		private int total;
+
+		public boolean execute(Integer value) {
+			total += value.intValue();
+			return true;
+		}
+	}
+}
@@ -0,0 +1,486 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.event;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.spout.api.exception.EventException;
+
+/**
+ * Creates the {@link EventExecutor}s for {@link EventHandler} methods.<br>
+ * <br>
+ * Where possible, a small class is generated for each method, which calls
+ * the method directly instead of through Method.invoke. The class is defined
+ * in its own class loader, whose parent is the listener's class loader, so it
+ * can be unloaded along with the listener.<br>
+ * <br>
+ * The generated class is in a different package from the listener, so the
+ * method, its declaring class and the event class must all be public.
+ * Otherwise, or if the class can not be defined, a reflective executor is
+ * used instead.
+ */
+public class EventExecutorFactory {
+	private static final String GENERATED_PACKAGE = "org/spout/api/event/generated/";
+	private static final String WRONG_EVENT_TYPE = "Wrong event type passed to registered method";
+	private static final AtomicInteger generatedCount = new AtomicInteger(0);
+
+	private EventExecutorFactory() {
+	}
+
+	/**
+	 * Creates an executor which calls a listener method, using a generated
+	 * class if possible.
+	 *
+	 * @param listener the listener
+	 * @param method the method, which has a single Event parameter
+	 * @return the executor
+	 */
+	public static EventExecutor create(Object listener, Method method) {
+		if (canGenerate(method)) {
+			try {
+				return createGenerated(listener, method);
+			} catch (LinkageError e) {
+				// The listener's class loader could not resolve the generated class, fall back to reflection
+			} catch (SecurityException e) {
+				// Defining classes is not allowed, fall back to reflection
+			}
+		}
+		return createReflective(listener, method);
+	}
+
+	/**
+	 * Checks if a direct call executor can be generated for a method
+	 *
+	 * @param method the method
+	 * @return true if the method, its class and its parameter are public
+	 */
+	public static boolean canGenerate(Method method) {
+		Class<?> declaringClass = method.getDeclaringClass();
+		Class<?>[] parameters = method.getParameterTypes();
+		return parameters.length == 1
+				&& !Modifier.isStatic(method.getModifiers())
+				&& Modifier.isPublic(method.getModifiers())
+				&& Modifier.isPublic(declaringClass.getModifiers())
+				&& Modifier.isPublic(parameters[0].getModifiers())
+				&& declaringClass.getClassLoader() != null;
+	}
+
+	/**
+	 * Creates an executor which calls a listener method through a generated
+	 * class.
+	 *
+	 * @param listener the listener
+	 * @param method the method
+	 * @return the executor
+	 * @throws IllegalArgumentException if the method is not public, or its class or parameter is not public
+	 */
+	public static EventExecutor createGenerated(Object listener, Method method) {
+		if (!canGenerate(method)) {
+			throw new IllegalArgumentException("A direct call executor can not be generated for " + method);
+		}
+		if (!method.getDeclaringClass().isInstance(listener)) {
+			throw new IllegalArgumentException("The listener is not an instance of " + method.getDeclaringClass().getName());
+		}
+		String name = GENERATED_PACKAGE + "EventExecutor" + generatedCount.incrementAndGet();
+		byte[] bytes = generate(name, method);
+		GeneratedClassLoader loader = new GeneratedClassLoader(method.getDeclaringClass().getClassLoader());
+		Class<?> executorClass = loader.define(name.replace('/', '.'), bytes);
+		try {
+			return (EventExecutor) executorClass.getConstructor(Object.class).newInstance(listener);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException("Unable to create the generated executor for " + method, e.getCause());
+		} catch (Exception e) {
+			throw new IllegalStateException("Unable to create the generated executor for " + method, e);
+		}
+	}
+
+	/**
+	 * Gets the event type of a batch handler method, which has a single
+	 * List&lt;T&gt; parameter where T is an Event.
+	 *
+	 * @param method the method
+	 * @return the event type, or null if the method is not a batch handler
+	 */
+	public static Class<? extends Event> getBatchEventType(Method method) {
+		Type[] params = method.getGenericParameterTypes();
+		if (params.length != 1 || !(params[0] instanceof ParameterizedType)) {
+			return null;
+		}
+		ParameterizedType type = (ParameterizedType) params[0];
+		if (!List.class.equals(type.getRawType())) {
+			return null;
+		}
+		Type arg = type.getActualTypeArguments()[0];
+		if (!(arg instanceof Class<?>) || !Event.class.isAssignableFrom((Class<?>) arg)) {
+			return null;
+		}
+		return ((Class<?>) arg).asSubclass(Event.class);
+	}
+
+	/**
+	 * Creates an executor which passes a list of events to a batch handler
+	 * method.
+	 *
+	 * @param listener the listener
+	 * @param method the method, which has a single List parameter
+	 * @return the executor
+	 */
+	public static BatchEventExecutor createBatch(final Object listener, final Method method) {
+		final Class<? extends Event> checkClass = getBatchEventType(method);
+		if (checkClass == null) {
+			throw new IllegalArgumentException("Method " + method + " does not take a List of events");
+		}
+		method.setAccessible(true);
+		return new BatchEventExecutor() {
+			public void execute(List<? extends Event> events) throws EventException {
+				try {
+					for (Event event : events) {
+						if (!checkClass.isAssignableFrom(event.getClass())) {
+							throw new EventException(WRONG_EVENT_TYPE);
+						}
+					}
+					method.invoke(listener, events);
+				} catch (InvocationTargetException e) {
+					if (e.getCause() instanceof EventException) {
+						throw (EventException) e.getCause();
+					}
+
+					throw new EventException(e.getCause());
+				} catch (EventException e) {
+					throw e;
+				} catch (Throwable t) {
+					throw new EventException(t);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Creates an executor which calls a listener method using reflection.
+	 *
+	 * @param listener the listener
+	 * @param method the method
+	 * @return the executor
+	 */
+	public static EventExecutor createReflective(final Object listener, final Method method) {
+		final Class<?> checkClass = method.getParameterTypes()[0];
+		method.setAccessible(true);
+		return new EventExecutor() {
+			public void execute(Event event) throws EventException {
+				try {
+					if (!checkClass.isAssignableFrom(event.getClass())) {
+						throw new EventException(WRONG_EVENT_TYPE);
+					}
+					method.invoke(listener, event);
+				} catch (InvocationTargetException e) {
+					if (e.getCause() instanceof EventException) {
+						throw (EventException) e.getCause();
+					}
+
+					throw new EventException(e.getCause());
+				} catch (Throwable t) {
+					throw new EventException(t);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Generates the class file for an executor. The class has a constructor
+	 * which takes the listener, and its execute method is equivalent to
+	 *
+	 * <pre>
+	 * if (!(event instanceof EventType)) {
+	 * 	throw new EventException(WRONG_EVENT_TYPE);
+	 * }
+	 * try {
+	 * 	((ListenerType) listener).method((EventType) event);
+	 * } catch (EventException e) {
+	 * 	throw e;
+	 * } catch (Throwable t) {
+	 * 	throw new EventException(t);
+	 * }
+	 * </pre>
+	 *
+	 * The class file version is 49, so no stack map frames are needed.
+	 *
+	 * @param name the internal name of the class
+	 * @param method the listener method
+	 * @return the class file
+	 */
+	private static byte[] generate(String name, Method method) {
+		String listenerClass = internalName(method.getDeclaringClass());
+		String eventClass = internalName(method.getParameterTypes()[0]);
+		String exceptionClass = internalName(EventException.class);
+		Class<?> returnType = method.getReturnType();
+
+		ConstantPool pool = new ConstantPool();
+		int thisClass = pool.classRef(name);
+		int superClass = pool.classRef("java/lang/Object");
+		int executorInterface = pool.classRef(internalName(EventExecutor.class));
+		int listenerField = pool.fieldRef(name, "listener", "Ljava/lang/Object;");
+		int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+		int listenerRef = pool.classRef(listenerClass);
+		int eventRef = pool.classRef(eventClass);
+		int exceptionRef = pool.classRef(exceptionClass);
+		int throwableRef = pool.classRef("java/lang/Throwable");
+		int wrongType = pool.string(WRONG_EVENT_TYPE);
+		int exceptionMessageInit = pool.methodRef(exceptionClass, "<init>", "(Ljava/lang/String;)V");
+		int exceptionCauseInit = pool.methodRef(exceptionClass, "<init>", "(Ljava/lang/Throwable;)V");
+		int target = pool.methodRef(listenerClass, method.getName(), "(L" + eventClass + ";)" + descriptor(returnType));
+		int codeName = pool.utf8("Code");
+		int initName = pool.utf8("<init>");
+		int initDescriptor = pool.utf8("(Ljava/lang/Object;)V");
+		int executeName = pool.utf8("execute");
+		int executeDescriptor = pool.utf8("(L" + internalName(Event.class) + ";)V");
+		int fieldName = pool.utf8("listener");
+		int fieldDescriptor = pool.utf8("Ljava/lang/Object;");
+
+		ByteArrayOutputStream init = new ByteArrayOutputStream();
+		init.write(0x2A); // aload_0
+		writeOp(init, 0xB7, objectInit); // invokespecial Object.<init>
+		init.write(0x2A); // aload_0
+		init.write(0x2B); // aload_1
+		writeOp(init, 0xB5, listenerField); // putfield listener
+		init.write(0xB1); // return
+
+		ByteArrayOutputStream execute = new ByteArrayOutputStream();
+		execute.write(0x2B); // 0: aload_1
+		writeOp(execute, 0xC1, eventRef); // 1: instanceof EventType
+		writeOp(execute, 0x9A, 14); // 4: ifne 18
+		writeOp(execute, 0xBB, exceptionRef); // 7: new EventException
+		execute.write(0x59); // 10: dup
+		writeOp(execute, 0x13, wrongType); // 11: ldc_w WRONG_EVENT_TYPE
+		writeOp(execute, 0xB7, exceptionMessageInit); // 14: invokespecial EventException.<init>(String)
+		execute.write(0xBF); // 17: athrow
+		int tryStart = execute.size();
+		execute.write(0x2A); // 18: aload_0
+		writeOp(execute, 0xB4, listenerField); // 19: getfield listener
+		writeOp(execute, 0xC0, listenerRef); // 22: checkcast ListenerType
+		execute.write(0x2B); // 25: aload_1
+		writeOp(execute, 0xC0, eventRef); // 26: checkcast EventType
+		writeOp(execute, 0xB6, target); // 29: invokevirtual method
+		if (returnType == long.class || returnType == double.class) {
+			execute.write(0x58); // pop2
+		} else if (returnType != void.class) {
+			execute.write(0x57); // pop
+		}
+		int tryEnd = execute.size();
+		execute.write(0xB1); // return
+		int handler = execute.size();
+		execute.write(0x4D); // astore_2
+		execute.write(0x2C); // aload_2
+		writeOp(execute, 0xC1, exceptionRef); // instanceof EventException
+		writeOp(execute, 0x99, 8); // ifeq wrap
+		execute.write(0x2C); // aload_2
+		writeOp(execute, 0xC0, exceptionRef); // checkcast EventException
+		execute.write(0xBF); // athrow
+		writeOp(execute, 0xBB, exceptionRef); // wrap: new EventException
+		execute.write(0x59); // dup
+		execute.write(0x2C); // aload_2
+		writeOp(execute, 0xB7, exceptionCauseInit); // invokespecial EventException.<init>(Throwable)
+		execute.write(0xBF); // athrow
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0); // minor version
+			out.writeShort(49); // major version
+			pool.write(out);
+			out.writeShort(0x0031); // public final super
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(executorInterface);
+
+			out.writeShort(1);
+			out.writeShort(0x0012); // private final
+			out.writeShort(fieldName);
+			out.writeShort(fieldDescriptor);
+			out.writeShort(0);
+
+			out.writeShort(2);
+			writeMethod(out, initName, initDescriptor, codeName, 2, 2, init.toByteArray(), null);
+			writeMethod(out, executeName, executeDescriptor, codeName, 3, 3, execute.toByteArray(), new int[] {tryStart, tryEnd, handler, throwableRef});
+
+			out.writeShort(0); // class attributes
+			out.flush();
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to write generated class", e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeName, int maxStack, int maxLocals, byte[] code, int[] exceptionHandler) throws IOException {
+		int handlers = exceptionHandler == null ? 0 : 1;
+		out.writeShort(0x0001); // public
+		out.writeShort(name);
+		out.writeShort(descriptor);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + code.length + handlers * 8);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		out.writeShort(handlers);
+		if (exceptionHandler != null) {
+			for (int value : exceptionHandler) {
+				out.writeShort(value);
+			}
+		}
+		out.writeShort(0); // code attributes
+	}
+
+	private static void writeOp(ByteArrayOutputStream out, int opcode, int operand) {
+		out.write(opcode);
+		out.write(operand >> 8);
+		out.write(operand);
+	}
+
+	private static String internalName(Class<?> clazz) {
+		return clazz.getName().replace('.', '/');
+	}
+
+	private static String descriptor(Class<?> clazz) {
+		if (clazz == void.class) {
+			return "V";
+		} else if (clazz == boolean.class) {
+			return "Z";
+		} else if (clazz == byte.class) {
+			return "B";
+		} else if (clazz == char.class) {
+			return "C";
+		} else if (clazz == short.class) {
+			return "S";
+		} else if (clazz == int.class) {
+			return "I";
+		} else if (clazz == long.class) {
+			return "J";
+		} else if (clazz == float.class) {
+			return "F";
+		} else if (clazz == double.class) {
+			return "D";
+		} else if (clazz.isArray()) {
+			return internalName(clazz);
+		}
+		return "L" + internalName(clazz) + ";";
+	}
+
+	/**
+	 * The constant pool of a generated class. Equal entries are only added
+	 * once.
+	 */
+	private static class ConstantPool {
+		private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+		private final List<byte[]> entries = new ArrayList<byte[]>();
+
+		public int utf8(String value) {
+			return add("U" + value, 1, value, 0, 0);
+		}
+
+		public int classRef(String internalName) {
+			return add("C" + internalName, 7, null, utf8(internalName), -1);
+		}
+
+		public int string(String value) {
+			return add("S" + value, 8, null, utf8(value), -1);
+		}
+
+		public int fieldRef(String owner, String name, String descriptor) {
+			return add("F" + owner + "." + name + descriptor, 9, null, classRef(owner), nameAndType(name, descriptor));
+		}
+
+		public int methodRef(String owner, String name, String descriptor) {
+			return add("M" + owner + "." + name + descriptor, 10, null, classRef(owner), nameAndType(name, descriptor));
+		}
+
+		private int nameAndType(String name, String descriptor) {
+			return add("N" + name + ":" + descriptor, 12, null, utf8(name), utf8(descriptor));
+		}
+
+		/**
+		 * Adds an entry, which is either a UTF-8 value or one or two
+		 * references to other entries
+		 */
+		private int add(String key, int tag, String value, int first, int second) {
+			Integer index = indexes.get(key);
+			if (index != null) {
+				return index;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			try {
+				out.writeByte(tag);
+				if (value != null) {
+					out.writeUTF(value);
+				} else {
+					out.writeShort(first);
+					if (second >= 0) {
+						out.writeShort(second);
+					}
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to write constant", e);
+			}
+			entries.add(bytes.toByteArray());
+			index = entries.size();
+			indexes.put(key, index);
+			return index;
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			out.writeShort(entries.size() + 1);
+			for (byte[] entry : entries) {
+				out.write(entry);
+			}
+		}
+	}
+
+	private static class GeneratedClassLoader extends ClassLoader {
+		public GeneratedClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		public Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
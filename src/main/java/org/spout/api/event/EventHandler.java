@@ -39,4 +39,16 @@ import java.lang.annotation.Target;
 public @interface EventHandler {
 
 	Order order() default Order.DEFAULT;
+
+	/**
+	 * If true, the handler is not called while the event is being called.
+	 * The event is queued instead, and passed to the handler after the tick
+	 * together with the other events of its type, on a scheduler thread.
+	 * The handler receives the same event object that was called, which may
+	 * still be in use on the thread that called it, so it must treat the
+	 * event as immutable and only read from it.<br>
+	 * <br>
+	 * Handlers which take a List of events are always async.
+	 */
+	boolean async() default false;
 }
@@ -26,9 +26,14 @@
  */
 package org.spout.api.event;
 
+import com.google.common.base.Supplier;
+
 public interface EventManager {
 	/**
-	 * Calls an event with the given details
+	 * Calls an event with the given details<br>
+	 * <br>
+	 * Events may be called from any thread, see {@link HandlerList} for the
+	 * guarantees given to listeners.
 	 *
 	 * @param event Event details
 	 * @return Called event
@@ -36,7 +41,27 @@ public interface EventManager {
 	public <T extends Event> T callEvent(T event);
 
 	/**
-	 * Calls an event with the given details, on the next tick
+	 * Calls an event only if something is listening for it. The event is not
+	 * created unless at least one listener is registered for the given type,
+	 * so this should be preferred for events fired very often.
+	 *
+	 * @param type Event type to call
+	 * @param supplier Creates the event when it is needed
+	 * @return Called event, or null if nothing listens for the type
+	 */
+	public <T extends Event> T callEvent(Class<T> type, Supplier<? extends T> supplier);
+
+	/**
+	 * Checks if any listeners are registered for the given event type
+	 *
+	 * @param type Event type to check
+	 * @return true if the event has at least one listener
+	 */
+	public boolean isObserved(Class<? extends Event> type);
+
+	/**
+	 * Calls an event with the given details, on the next tick. All the events
+	 * delayed during a tick are called together on the main thread.
 	 *
 	 * @param event Event details
 	 */
@@ -59,4 +84,23 @@ public interface EventManager {
 	 * @param owner Plugin to register
 	 */
 	public void registerEvent(Class<? extends Event> event, Order priority, EventExecutor executor, Object owner);
+
+	/**
+	 * Registers the specified batch executor to the given event class. The
+	 * executor is called asynchronously once per tick, with all the events of
+	 * that type called during the tick.
+	 *
+	 * @param event Event type to register
+	 * @param priority Priority to register this event at
+	 * @param executor BatchEventExecutor to register
+	 * @param owner Plugin to register
+	 */
+	public void registerBatchEvent(Class<? extends Event> event, Order priority, BatchEventExecutor executor, Object owner);
+
+	/**
+	 * Gets the profiler which times the event handlers called by this manager
+	 *
+	 * @return the profiler
+	 */
+	public EventProfiler getProfiler();
 }
@@ -0,0 +1,327 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.spout.api.exception.IllegalPluginAccessException;
+
+/**
+ * Records how long event handlers take, per registered handler.<br>
+ * <br>
+ * The profiler is disabled by default, and then costs the event manager a
+ * single volatile read per event. While enabled, handler calls are sampled:
+ * each thread picks one call in {@link #getSampleInterval()} at random and
+ * times it with System.nanoTime, and the others run untimed. Each sample is
+ * added to the {@link EventTimings} of the handler as if every call it
+ * stands for took as long, so counts and totals are estimates and the
+ * maximum is that of the sampled calls. An interval of 1 times every call.<br>
+ * <br>
+ * The timings of a handler are kept on its {@link ListenerRegistration}, so
+ * no lookup is needed to find them. The profiler only holds registrations
+ * weakly, so the timings of handlers which have been unregistered are
+ * dropped once their registrations are collected.
+ */
+public class EventProfiler {
+	/**
+	 * The default number of handler calls per sample
+	 */
+	public static final int DEFAULT_SAMPLE_INTERVAL = 16;
+
+	private static final Comparator<Summary> BY_TOTAL = new Comparator<Summary>() {
+		@Override
+		public int compare(Summary o1, Summary o2) {
+			return o1.totalNanos < o2.totalNanos ? 1 : o1.totalNanos > o2.totalNanos ? -1 : 0;
+		}
+	};
+
+	private volatile boolean enabled = false;
+	private volatile int sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+	private final Set<ListenerRegistration> registrations = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<ListenerRegistration, Boolean>()));
+	private final ThreadLocal<Sampler> samplers = new ThreadLocal<Sampler>() {
+		@Override
+		protected Sampler initialValue() {
+			return new Sampler();
+		}
+	};
+
+	/**
+	 * Ways to group timings in a {@link EventProfiler#summarize(Grouping)}
+	 */
+	public enum Grouping {
+		/**
+		 * One summary per registered handler. Handlers with the same owner,
+		 * event type and order get separate summaries with the same name.
+		 */
+		HANDLER,
+		/**
+		 * One summary per plugin
+		 */
+		PLUGIN,
+		/**
+		 * One summary per event type
+		 */
+		EVENT,
+		/**
+		 * One summary per order
+		 */
+		ORDER;
+	}
+
+	/**
+	 * Checks if handler calls are being timed
+	 *
+	 * @return true if the profiler is enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Starts or stops timing handler calls. Timings recorded so far are kept.
+	 *
+	 * @param enabled true to start timing
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Gets the average number of handler calls per timed call
+	 *
+	 * @return the sample interval
+	 */
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	/**
+	 * Sets the average number of handler calls per timed call. Larger
+	 * intervals make profiling cheaper and the timings less precise.
+	 *
+	 * @param sampleInterval the sample interval, 1 to time every call
+	 * @throws IllegalArgumentException if the interval is less than 1
+	 */
+	public void setSampleInterval(int sampleInterval) {
+		if (sampleInterval < 1) {
+			throw new IllegalArgumentException("Sample interval must be at least 1, got " + sampleInterval);
+		}
+		this.sampleInterval = sampleInterval;
+	}
+
+	/**
+	 * Sets all timings back to zero
+	 */
+	public void reset() {
+		for (EventTimings t : getTimings()) {
+			t.reset();
+		}
+	}
+
+	/**
+	 * Gets the timings of every handler that has been timed while profiling
+	 *
+	 * @return the timings
+	 */
+	public List<EventTimings> getTimings() {
+		List<EventTimings> timings = new ArrayList<EventTimings>();
+		synchronized (registrations) {
+			for (ListenerRegistration registration : registrations) {
+				timings.add(registration.getTimings());
+			}
+		}
+		return timings;
+	}
+
+	/**
+	 * Adds up the timings in the given grouping. The result is sorted by total
+	 * time, the slowest first.
+	 *
+	 * @param grouping how to group the timings
+	 * @return the summaries
+	 */
+	public List<Summary> summarize(Grouping grouping) {
+		Map<Object, Summary> summaries = new LinkedHashMap<Object, Summary>();
+		for (EventTimings t : getTimings()) {
+			if (t.getCount() == 0) {
+				continue;
+			}
+			String name;
+			switch (grouping) {
+				case PLUGIN:
+					name = t.getOwnerName();
+					break;
+				case EVENT:
+					name = t.getEventType().getSimpleName();
+					break;
+				case ORDER:
+					name = t.getOrder().name();
+					break;
+				default:
+					name = t.getOwnerName() + " " + t.getEventType().getSimpleName() + " " + t.getOrder().name();
+			}
+			Object key = grouping == Grouping.HANDLER ? t : name;
+			Summary summary = summaries.get(key);
+			if (summary == null) {
+				summary = new Summary(name);
+				summaries.put(key, summary);
+			}
+			summary.add(t);
+		}
+		List<Summary> sorted = new ArrayList<Summary>(summaries.values());
+		Collections.sort(sorted, BY_TOTAL);
+		return sorted;
+	}
+
+	/**
+	 * Formats the slowest summaries in the given grouping, one line each,
+	 * after a header line which names the columns. Times are shown in
+	 * milliseconds for the total and microseconds for the average and
+	 * maximum.
+	 *
+	 * @param grouping how to group the timings
+	 * @param lines the maximum number of summaries to include
+	 * @return the lines, or an empty list if no handlers have been timed
+	 */
+	public List<String> dump(Grouping grouping, int lines) {
+		List<Summary> summaries = summarize(grouping);
+		List<String> dump = new ArrayList<String>();
+		if (summaries.isEmpty()) {
+			return dump;
+		}
+		dump.add("Event handlers by total time (calls, total ms, average us, max us):");
+		for (int i = 0; i < summaries.size() && i < lines; i++) {
+			Summary summary = summaries.get(i);
+			dump.add(String.format(Locale.ENGLISH, "%s: %d, %.2f, %.1f, %.1f", summary.getName(), summary.getCount(), summary.getTotalNanos() / 1000000.0, summary.getTotalNanos() / 1000.0 / summary.getCount(), summary.getMaxNanos() / 1000.0));
+		}
+		return dump;
+	}
+
+	/**
+	 * Decides if the next handler call on this thread should be timed
+	 *
+	 * @return true to time the call
+	 */
+	boolean sample() {
+		int interval = sampleInterval;
+		return interval == 1 || samplers.get().next() % interval == 0;
+	}
+
+	/**
+	 * Adds the time taken by one sampled handler call
+	 *
+	 * @param listener the handler which was called
+	 * @param event the event passed to it
+	 * @param nanos the time taken, in nanoseconds
+	 */
+	void record(ListenerRegistration listener, Event event, long nanos) {
+		EventTimings t = listener.getTimings();
+		if (t == null) {
+			t = createTimings(listener, event);
+		}
+		t.record(nanos, sampleInterval);
+	}
+
+	private EventTimings createTimings(ListenerRegistration listener, Event event) {
+		synchronized (listener) {
+			EventTimings t = listener.getTimings();
+			if (t == null) {
+				Class<? extends Event> type;
+				try {
+					type = SimpleEventManager.getRegistrationClass(event.getClass());
+				} catch (IllegalPluginAccessException e) {
+					type = event.getClass();
+				}
+				t = new EventTimings(listener.getOwner(), type, listener.getOrder());
+				listener.setTimings(t);
+				registrations.add(listener);
+			}
+			return t;
+		}
+	}
+
+	/**
+	 * A xorshift random number generator, used by one thread to pick the calls
+	 * to time
+	 */
+	private static class Sampler {
+		private int seed = (int) System.nanoTime() | 1;
+
+		public int next() {
+			int x = seed;
+			x ^= x << 13;
+			x ^= x >>> 17;
+			x ^= x << 5;
+			seed = x;
+			return x & Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * The sum of several {@link EventTimings}
+	 */
+	public static class Summary {
+		private final String name;
+		private long count;
+		private long totalNanos;
+		private long maxNanos;
+
+		private Summary(String name) {
+			this.name = name;
+		}
+
+		private void add(EventTimings t) {
+			count += t.getCount();
+			totalNanos += t.getTotalNanos();
+			maxNanos = Math.max(maxNanos, t.getMaxNanos());
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+
+		public long getMaxNanos() {
+			return maxNanos;
+		}
+	}
+}
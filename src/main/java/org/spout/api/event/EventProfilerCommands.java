@@ -0,0 +1,93 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.event;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.spout.api.Spout;
+import org.spout.api.command.CommandContext;
+import org.spout.api.command.CommandSource;
+import org.spout.api.command.annotated.Command;
+import org.spout.api.command.annotated.CommandPermissions;
+import org.spout.api.event.EventProfiler.Grouping;
+import org.spout.api.exception.CommandException;
+
+/**
+ * Commands to control the {@link EventProfiler} of the engine's event
+ * manager. These can be registered with an
+ * {@link org.spout.api.command.annotated.AnnotatedCommandRegistrationFactory}
+ * and a {@link org.spout.api.command.annotated.SimpleInjector} with no
+ * arguments.
+ */
+public class EventProfilerCommands {
+	private static final int DEFAULT_LINES = 10;
+
+	@Command(aliases = {"eventprofile", "eprofile"}, usage = "<start|stop|reset|dump> [handler|plugin|event|order] [lines]", desc = "Times the event handlers of plugins", min = 1, max = 3)
+	@CommandPermissions("spout.command.eventprofile")
+	public void eventProfile(CommandContext args, CommandSource source) throws CommandException {
+		EventProfiler profiler = Spout.getEventManager().getProfiler();
+		String action = args.getString(0).toLowerCase(Locale.ENGLISH);
+		if (action.equals("start")) {
+			profiler.setEnabled(true);
+			source.sendMessage("Event profiling started");
+		} else if (action.equals("stop")) {
+			profiler.setEnabled(false);
+			source.sendMessage("Event profiling stopped");
+		} else if (action.equals("reset")) {
+			profiler.reset();
+			source.sendMessage("Event timings reset");
+		} else if (action.equals("dump")) {
+			Grouping grouping;
+			try {
+				grouping = Grouping.valueOf(args.getString(1, Grouping.HANDLER.name()).toUpperCase(Locale.ENGLISH));
+			} catch (IllegalArgumentException e) {
+				throw new CommandException("Unknown grouping " + args.getString(1) + ", expected handler, plugin, event or order");
+			}
+			int lines;
+			try {
+				lines = args.getInteger(2, DEFAULT_LINES);
+			} catch (NumberFormatException e) {
+				throw new CommandException("The number of lines must be a number");
+			}
+			dump(source, profiler, grouping, lines);
+		} else {
+			throw new CommandException("Unknown action " + action + ", expected start, stop, reset or dump");
+		}
+	}
+
+	private void dump(CommandSource source, EventProfiler profiler, Grouping grouping, int lines) {
+		List<String> dump = profiler.dump(grouping, lines);
+		if (dump.isEmpty()) {
+			source.sendMessage(profiler.isEnabled() ? "No event handlers have been called yet" : "No event timings, start the profiler first");
+			return;
+		}
+		for (String line : dump) {
+			source.sendMessage(line);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.event;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.spout.api.util.Named;
+
+/**
+ * The time spent in one registered handler, recorded by an
+ * {@link EventProfiler}. While the profiler samples calls, the count and total
+ * are estimates.
+ */
+public class EventTimings {
+	private final Object owner;
+	private final Class<? extends Event> eventType;
+	private final Order order;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	EventTimings(Object owner, Class<? extends Event> eventType, Order order) {
+		this.owner = owner;
+		this.eventType = eventType;
+		this.order = order;
+	}
+
+	/**
+	 * Gets the object which registered the handler, usually a plugin
+	 *
+	 * @return the owner
+	 */
+	public Object getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Gets the name of the owner, which is the plugin name for plugins and
+	 * the class name otherwise
+	 *
+	 * @return the owner name
+	 */
+	public String getOwnerName() {
+		if (owner instanceof Named) {
+			return ((Named) owner).getName();
+		}
+		return owner.getClass().getName();
+	}
+
+	/**
+	 * Gets the type of the events the handler is registered for
+	 *
+	 * @return the event type
+	 */
+	public Class<? extends Event> getEventType() {
+		return eventType;
+	}
+
+	/**
+	 * Gets the order the handler is registered at
+	 *
+	 * @return the order
+	 */
+	public Order getOrder() {
+		return order;
+	}
+
+	/**
+	 * Gets the number of times the handler was called. A batch handler is
+	 * called once per batch.
+	 *
+	 * @return the number of calls
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the total time spent in the handler
+	 *
+	 * @return the total time, in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	/**
+	 * Gets the time taken by the slowest timed call to the handler
+	 *
+	 * @return the longest call, in nanoseconds
+	 */
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	void record(long nanos, int calls) {
+		count.addAndGet(calls);
+		totalNanos.addAndGet(nanos * calls);
+		long max;
+		while (nanos > (max = maxNanos.get())) {
+			if (maxNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	void reset() {
+		count.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+}
@@ -31,34 +31,84 @@ import java.util.Collection;
 import java.util.EnumMap;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
- * A list of event handlers, stored per-event. Based on lahwran's fevents.
+ * A list of event handlers, stored per-event. Based on lahwran's fevents.<br>
+ * <br>
+ * Handler lists are safe to use from multiple threads. Registration changes
+ * are serialized on the list and rebuild the baked handler array, which is
+ * then published through a volatile field. Calling an event only reads that
+ * array, so events may be fired from any number of threads at once, such as
+ * from parallel region ticks, without taking a lock.<br>
+ * <br>
+ * A call sees the handlers that were registered when it read the array.
+ * Listeners registered or unregistered while an event is being called take
+ * effect from the next call. The same listener may be called for different
+ * events on different threads at the same time, so listeners for events fired
+ * outside the main thread must be thread safe themselves. A single Event
+ * object is not thread safe and should only be called on one thread.<br>
+ * <br>
+ * The exception is async handlers. An event with async handlers is passed to
+ * them on a scheduler thread after the tick, as the same object that was
+ * called, while the code which called it may still hold it. Once called, such
+ * an event must be treated as immutable: async handlers must only read it, and
+ * the caller must not change it after the call returns.
  */
 public class HandlerList {
+	private static final ListenerRegistration[] EMPTY = new ListenerRegistration[0];
+
+	/**
+	 * Number of stripes for the fired counts, the number of processors
+	 * rounded up to a power of two
+	 */
+	private static final int COUNT_STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+
+	/**
+	 * Distance between stripes in the count array. Eight longs fill a 64 byte
+	 * cache line.
+	 */
+	private static final int STRIPE_WIDTH = 8;
+
 	/**
 	 * Handler array. This field being an array is the key to this system's
-	 * speed.
+	 * speed. The array is never modified once published, it is replaced on
+	 * every registration change.
+	 */
+	private volatile ListenerRegistration[] handlers = EMPTY;
+
+	/**
+	 * Async handler array, baked the same way. These handlers are not called
+	 * with the event, they receive it after the tick.
 	 */
-	private ListenerRegistration[] handlers = null;
+	private volatile ListenerRegistration[] asyncHandlers = EMPTY;
 
 	/**
 	 * Dynamic handler lists. These are changed using register() and
-	 * unregister() and are automatically baked to the handlers array any time
-	 * they have changed.
+	 * unregister() while holding the lock on this list, and are baked to the
+	 * handlers array after every change.
 	 */
 	private final EnumMap<Order, List<ListenerRegistration>> handlerSlots;
 
+	/**
+	 * Number of times this event has been fired, and how many of those had at
+	 * least one listener registered. The counts are striped by thread, so
+	 * that threads firing the same event do not contend for one cache line,
+	 * and are added up when read. Each stripe holds the fired count followed
+	 * by the observed count, and is a cache line away from its neighbours.
+	 * The first line is left empty, away from the array header.
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray((COUNT_STRIPES + 1) * STRIPE_WIDTH);
+
 	/**
 	 * List of all HandlerLists which have been created, for use in bakeAll()
 	 */
-	private static final ArrayList<HandlerList> ALL_LISTS = new ArrayList<HandlerList>();
+	private static final List<HandlerList> ALL_LISTS = new CopyOnWriteArrayList<HandlerList>();
 
 	/**
-	 * Bake all handler lists. Best used just after all normal event
-	 * registration is complete, ie just after all plugins are loaded if you're
-	 * using fevents in a plugin system.
+	 * Bake all handler lists. Lists are baked whenever they change, so this
+	 * is only kept for compatibility.
 	 */
 	public static void bakeAll() {
 		for (HandlerList h : ALL_LISTS) {
@@ -68,10 +118,7 @@ public class HandlerList {
 
 	public static <T> void unregisterAll() {
 		for (HandlerList h : ALL_LISTS) {
-			for (List<ListenerRegistration> regs : h.handlerSlots.values()) {
-				regs.clear();
-			}
-			h.handlers = null;
+			h.clear();
 		}
 	}
 
@@ -98,17 +145,24 @@ public class HandlerList {
 	 *
 	 * @param listener listener to register
 	 */
-	public void register(ListenerRegistration listener) {
-		if (handlerSlots.get(listener.getOrder()).contains(listener)) {
-			throw new IllegalStateException("This listener is already registered to priority " + listener.getOrder().toString());
-		}
-		handlers = null;
-		handlerSlots.get(listener.getOrder()).add(listener);
+	public synchronized void register(ListenerRegistration listener) {
+		add(listener);
+		rebake();
 	}
 
-	public void registerAll(Collection<ListenerRegistration> listeners) {
-		for (ListenerRegistration listener : listeners) {
-			register(listener);
+	/**
+	 * Register several listeners in this handler list. The handler array is
+	 * only rebuilt once.
+	 *
+	 * @param listeners listeners to register
+	 */
+	public synchronized void registerAll(Collection<ListenerRegistration> listeners) {
+		try {
+			for (ListenerRegistration listener : listeners) {
+				add(listener);
+			}
+		} finally {
+			rebake();
 		}
 	}
 
@@ -117,14 +171,13 @@ public class HandlerList {
 	 *
 	 * @param listener listener to remove
 	 */
-	public void unregister(ListenerRegistration listener) {
-		if (handlerSlots.get(listener.getOrder()).contains(listener)) {
-			handlers = null;
-			handlerSlots.get(listener.getOrder()).remove(listener);
+	public synchronized void unregister(ListenerRegistration listener) {
+		if (handlerSlots.get(listener.getOrder()).remove(listener)) {
+			rebake();
 		}
 	}
 
-	public void unregister(Object plugin) {
+	public synchronized void unregister(Object plugin) {
 		boolean changed = false;
 		for (List<ListenerRegistration> list : handlerSlots.values()) {
 			for (ListIterator<ListenerRegistration> i = list.listIterator(); i.hasNext();) {
@@ -135,32 +188,139 @@ public class HandlerList {
 			}
 		}
 		if (changed) {
-			handlers = null;
+			rebake();
 		}
 	}
 
+	private synchronized void clear() {
+		for (List<ListenerRegistration> regs : handlerSlots.values()) {
+			regs.clear();
+		}
+		handlers = EMPTY;
+		asyncHandlers = EMPTY;
+	}
+
+	private void add(ListenerRegistration listener) {
+		List<ListenerRegistration> slot = handlerSlots.get(listener.getOrder());
+		if (slot.contains(listener)) {
+			throw new IllegalStateException("This listener is already registered to priority " + listener.getOrder().toString());
+		}
+		slot.add(listener);
+	}
+
 	/**
-	 * Bake HashMap and ArrayLists to 2d array - does nothing if not necessary
-	 * @return The baked array of ListenerRegistrations
+	 * Rebuilds the handler array from the order slots. Must be called while
+	 * holding the lock on this list.
 	 */
-	public ListenerRegistration[] bake() {
-		ListenerRegistration[] handlers = this.handlers;
-		if (handlers != null) {
-			return handlers; // don't re-bake when still valid
-		}
+	private void rebake() {
 		List<ListenerRegistration> entries = new ArrayList<ListenerRegistration>();
-		for (Entry<Order, List<ListenerRegistration>> entry : handlerSlots.entrySet()) {
-			entries.addAll(entry.getValue());
+		List<ListenerRegistration> asyncEntries = new ArrayList<ListenerRegistration>();
+		for (List<ListenerRegistration> slot : handlerSlots.values()) {
+			for (ListenerRegistration registration : slot) {
+				if (registration.isAsync()) {
+					asyncEntries.add(registration);
+				} else {
+					entries.add(registration);
+				}
+			}
 		}
-		this.handlers = handlers = entries.toArray(new ListenerRegistration[entries.size()]);
+		handlers = toArray(entries);
+		asyncHandlers = toArray(asyncEntries);
+	}
+
+	private static ListenerRegistration[] toArray(List<ListenerRegistration> entries) {
+		return entries.isEmpty() ? EMPTY : entries.toArray(new ListenerRegistration[entries.size()]);
+	}
+
+	/**
+	 * Gets the baked array of handlers. The array is kept up to date on every
+	 * registration change, so this never has to rebuild it.
+	 *
+	 * @return The baked array of ListenerRegistrations
+	 */
+	public ListenerRegistration[] bake() {
 		return handlers;
 	}
 
+	/**
+	 * Gets the handlers registered at the time of the call, in call order.
+	 * Async handlers are not included. The returned array must not be
+	 * modified.
+	 *
+	 * @return The baked array of ListenerRegistrations
+	 */
 	public ListenerRegistration[] getRegisteredListeners() {
-		ListenerRegistration[] handlers = this.handlers;
-		if (handlers == null) {
-			handlers = bake();
-		}
 		return handlers;
 	}
+
+	/**
+	 * Checks if any listeners are registered in this handler list. This only
+	 * reads the baked arrays, so it is cheap enough to call before creating an
+	 * event.
+	 *
+	 * @return true if at least one listener is registered
+	 */
+	public boolean hasListeners() {
+		return handlers.length != 0 || asyncHandlers.length != 0;
+	}
+
+	/**
+	 * Gets the async handlers registered at the time of the call, in call
+	 * order. The returned array must not be modified.
+	 *
+	 * @return The baked array of async ListenerRegistrations
+	 */
+	public ListenerRegistration[] getAsyncListeners() {
+		return asyncHandlers;
+	}
+
+	/**
+	 * Gets the number of times this event has been fired, whether or not
+	 * anything was listening for it.
+	 *
+	 * @return number of times fired
+	 */
+	public long getFiredCount() {
+		return sumCounts(0);
+	}
+
+	/**
+	 * Gets the number of times this event has been fired while at least one
+	 * listener was registered.
+	 *
+	 * @return number of times fired and observed
+	 */
+	public long getObservedCount() {
+		return sumCounts(1);
+	}
+
+	/**
+	 * Resets the fired and observed counts to zero.
+	 */
+	public void resetCounts() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+	}
+
+	/**
+	 * Records that this event has been fired.
+	 *
+	 * @param wasObserved true if any listener was registered at the time
+	 */
+	void recordFired(boolean wasObserved) {
+		int stripe = (((int) Thread.currentThread().getId() & (COUNT_STRIPES - 1)) + 1) * STRIPE_WIDTH;
+		counts.incrementAndGet(stripe);
+		if (wasObserved) {
+			counts.incrementAndGet(stripe + 1);
+		}
+	}
+
+	private long sumCounts(int offset) {
+		long sum = 0;
+		for (int i = STRIPE_WIDTH + offset; i < counts.length(); i += STRIPE_WIDTH) {
+			sum += counts.get(i);
+		}
+		return sum;
+	}
 }
@@ -31,8 +31,16 @@ package org.spout.api.event;
  */
 public class ListenerRegistration {
 	private final EventExecutor executor;
+	private final BatchEventExecutor batchExecutor;
 	private final Order orderSlot;
 	private final Object owner;
+	private final boolean async;
+
+	/**
+	 * Timings recorded by the event profiler, or null if the listener has not
+	 * been timed
+	 */
+	private volatile EventTimings timings;
 
 	/**
 	 * @param executor Listener this registration represents
@@ -40,20 +48,70 @@ public class ListenerRegistration {
 	 * @param owner object that created this registration
 	 */
 	public ListenerRegistration(final EventExecutor executor, final Order orderSlot, final Object owner) {
+		this(executor, orderSlot, owner, false);
+	}
+
+	/**
+	 * @param executor Listener this registration represents
+	 * @param orderSlot Order position this registration is in
+	 * @param owner object that created this registration
+	 * @param async true if events are queued and passed to the listener after
+	 *            the tick
+	 */
+	public ListenerRegistration(final EventExecutor executor, final Order orderSlot, final Object owner, final boolean async) {
 		this.executor = executor;
+		this.batchExecutor = null;
 		this.orderSlot = orderSlot;
 		this.owner = owner;
+		this.async = async;
+	}
+
+	/**
+	 * Creates an async registration which receives all the events of a tick
+	 * at once
+	 *
+	 * @param batchExecutor Listener this registration represents
+	 * @param orderSlot Order position this registration is in
+	 * @param owner object that created this registration
+	 */
+	public ListenerRegistration(final BatchEventExecutor batchExecutor, final Order orderSlot, final Object owner) {
+		this.executor = null;
+		this.batchExecutor = batchExecutor;
+		this.orderSlot = orderSlot;
+		this.owner = owner;
+		this.async = true;
 	}
 
 	/**
 	 * Gets the listener for this registration
 	 *
-	 * @return Registered Listener
+	 * @return Registered Listener, or null if this registration receives
+	 *         batches of events
 	 */
 	public EventExecutor getExecutor() {
 		return executor;
 	}
 
+	/**
+	 * Gets the batch listener for this registration
+	 *
+	 * @return Registered batch listener, or null if this registration
+	 *         receives events one at a time
+	 */
+	public BatchEventExecutor getBatchExecutor() {
+		return batchExecutor;
+	}
+
+	/**
+	 * Checks if events are queued for this registration and passed to it
+	 * after the tick, instead of while they are called
+	 *
+	 * @return true if this registration is async
+	 */
+	public boolean isAsync() {
+		return async;
+	}
+
 	/**
 	 * Gets the {@link Object} for this registration
 	 *
@@ -71,4 +129,12 @@ public class ListenerRegistration {
 	public Order getOrder() {
 		return orderSlot;
 	}
+
+	EventTimings getTimings() {
+		return timings;
+	}
+
+	void setTimings(EventTimings timings) {
+		this.timings = timings;
+	}
 }
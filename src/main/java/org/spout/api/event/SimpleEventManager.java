@@ -26,49 +26,110 @@
  */
 package org.spout.api.event;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 import org.spout.api.Spout;
 import org.spout.api.exception.EventException;
 import org.spout.api.exception.IllegalPluginAccessException;
 
+import com.google.common.base.Supplier;
+
 public class SimpleEventManager implements EventManager {
+	private final Map<Class<? extends Event>, HandlerList> handlerLists = new ConcurrentHashMap<Class<? extends Event>, HandlerList>();
+	private final EventProfiler profiler = new EventProfiler();
+
+	/**
+	 * Events passed to callDelayedEvent, which are called together on the
+	 * next tick
+	 */
+	private final Queue<Event> delayedEvents = new ConcurrentLinkedQueue<Event>();
+
+	/**
+	 * Called events which have async listeners, waiting for the next tick
+	 */
+	private final Queue<Event> asyncEvents = new ConcurrentLinkedQueue<Event>();
+
+	/**
+	 * Batches of async events, one map per tick, waiting to be delivered
+	 */
+	private final Queue<Map<HandlerList, List<Event>>> pendingBatches = new ConcurrentLinkedQueue<Map<HandlerList, List<Event>>>();
+
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final AtomicBoolean deliveryScheduled = new AtomicBoolean(false);
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	private final Runnable deliveryTask = new Runnable() {
+		public void run() {
+			deliverBatches();
+		}
+	};
+
 	public <T extends Event> void callDelayedEvent(final T event) {
-		Spout.getEngine().getScheduler().scheduleSyncDelayedTask(null, new Runnable() {
-			public void run() {
-				callEvent(event);
-			}
-		});
+		delayedEvents.add(event);
+		requestFlush();
 	}
 
 	public <T extends Event> T callEvent(T event) {
 		HandlerList handlers = event.getHandlers();
 		ListenerRegistration[] listeners = handlers.getRegisteredListeners();
+		ListenerRegistration[] asyncListeners = handlers.getAsyncListeners();
+		handlers.recordFired(listeners.length > 0 || asyncListeners.length > 0);
 
-		if (listeners != null) {
-			for (ListenerRegistration listener : listeners) {
-				try {
-					if (!event.isCancelled() || listener.getOrder().ignoresCancelled()) {
-						listener.getExecutor().execute(event);
-					}
-				} catch (Throwable ex) {
-					Spout.getEngine().getLogger().log(Level.SEVERE, "Could not pass event " + event.getEventName() + " to " + listener.getOwner().getClass().getName(), ex);
+		boolean profile = profiler.isEnabled();
+		for (ListenerRegistration listener : listeners) {
+			try {
+				if (!event.isCancelled() || listener.getOrder().ignoresCancelled()) {
+					execute(listener, event, profile);
 				}
+			} catch (Throwable ex) {
+				Spout.getEngine().getLogger().log(Level.SEVERE, "Could not pass event " + event.getEventName() + " to " + listener.getOwner().getClass().getName(), ex);
 			}
-			event.setHasBeenCalled(true);
+		}
+		event.setHasBeenCalled(true);
+
+		if (asyncListeners.length > 0) {
+			asyncEvents.add(event);
+			requestFlush();
 		}
 		return event;
 	}
 
+	public <T extends Event> T callEvent(Class<T> type, Supplier<? extends T> supplier) {
+		HandlerList handlers = getEventListeners(type);
+		if (!handlers.hasListeners()) {
+			handlers.recordFired(false);
+			return null;
+		}
+		return callEvent(supplier.get());
+	}
+
+	public EventProfiler getProfiler() {
+		return profiler;
+	}
+
+	public boolean isObserved(Class<? extends Event> type) {
+		return getEventListeners(type).hasListeners();
+	}
+
 	public void registerEvents(Listener listener, Object owner) {
 		for (Map.Entry<Class<? extends Event>, Set<ListenerRegistration>> entry : createRegisteredListeners(listener, owner).entrySet()) {
 			Class<? extends Event> delegatedClass = getRegistrationClass(entry.getKey());
@@ -84,6 +145,141 @@ public class SimpleEventManager implements EventManager {
 		getEventListeners(event).register(new ListenerRegistration(executor, priority, owner));
 	}
 
+	public void registerBatchEvent(Class<? extends Event> event, Order priority, BatchEventExecutor executor, Object owner) {
+		getEventListeners(event).register(new ListenerRegistration(executor, priority, owner));
+	}
+
+	/**
+	 * Schedules a task to run on the main thread on the next tick. This is
+	 * used to call delayed events, and to collect the async events of a tick.
+	 *
+	 * @param task the task to run
+	 */
+	protected void scheduleSync(Runnable task) {
+		Spout.getEngine().getScheduler().scheduleSyncDelayedTask(null, task);
+	}
+
+	/**
+	 * Schedules a task to run on a scheduler thread. This is used to pass
+	 * batches of events to async listeners.
+	 *
+	 * @param task the task to run
+	 */
+	protected void scheduleAsync(Runnable task) {
+		Spout.getEngine().getScheduler().scheduleAsyncTask(null, task);
+	}
+
+	private void requestFlush() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			scheduleSync(flushTask);
+		}
+	}
+
+	/**
+	 * Calls the delayed events and groups the waiting async events by type.
+	 * Only one flush is scheduled at a time, however many events are called.
+	 */
+	private void flush() {
+		flushScheduled.set(false);
+		// Events delayed by the listeners called here wait for the next flush
+		Event event;
+		for (int i = delayedEvents.size(); i > 0 && (event = delayedEvents.poll()) != null; i--) {
+			callEvent(event);
+		}
+
+		Map<HandlerList, List<Event>> batches = new LinkedHashMap<HandlerList, List<Event>>();
+		while ((event = asyncEvents.poll()) != null) {
+			List<Event> batch = batches.get(event.getHandlers());
+			if (batch == null) {
+				batch = new ArrayList<Event>();
+				batches.put(event.getHandlers(), batch);
+			}
+			batch.add(event);
+		}
+		if (!batches.isEmpty()) {
+			pendingBatches.add(batches);
+			if (deliveryScheduled.compareAndSet(false, true)) {
+				scheduleAsync(deliveryTask);
+			}
+		}
+	}
+
+	/**
+	 * Passes the waiting batches to the async listeners. Only one delivery
+	 * runs at a time, so async listeners get the batches in tick order and
+	 * are never called from two threads at once.
+	 */
+	private void deliverBatches() {
+		do {
+			Map<HandlerList, List<Event>> batches;
+			while ((batches = pendingBatches.poll()) != null) {
+				for (Map.Entry<HandlerList, List<Event>> entry : batches.entrySet()) {
+					callBatch(entry.getKey(), entry.getValue());
+				}
+			}
+			deliveryScheduled.set(false);
+		} while (!pendingBatches.isEmpty() && deliveryScheduled.compareAndSet(false, true));
+	}
+
+	private void execute(ListenerRegistration listener, Event event, boolean profile) throws EventException {
+		if (!profile || !profiler.sample()) {
+			listener.getExecutor().execute(event);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			listener.getExecutor().execute(event);
+		} finally {
+			profiler.record(listener, event, System.nanoTime() - start);
+		}
+	}
+
+	private void callBatch(HandlerList handlers, List<Event> events) {
+		boolean profile = profiler.isEnabled();
+		List<Event> all = Collections.unmodifiableList(events);
+		List<Event> uncancelled = null;
+		for (ListenerRegistration listener : handlers.getAsyncListeners()) {
+			List<Event> batch = all;
+			if (!listener.getOrder().ignoresCancelled()) {
+				if (uncancelled == null) {
+					uncancelled = new ArrayList<Event>(events.size());
+					for (Event event : events) {
+						if (!event.isCancelled()) {
+							uncancelled.add(event);
+						}
+					}
+					uncancelled = Collections.unmodifiableList(uncancelled);
+				}
+				batch = uncancelled;
+			}
+			if (batch.isEmpty()) {
+				continue;
+			}
+
+			BatchEventExecutor batchExecutor = listener.getBatchExecutor();
+			if (batchExecutor != null) {
+				boolean timed = profile && profiler.sample();
+				long start = timed ? System.nanoTime() : 0;
+				try {
+					batchExecutor.execute(batch);
+				} catch (Throwable ex) {
+					Spout.getEngine().getLogger().log(Level.SEVERE, "Could not pass " + batch.size() + " events of type " + batch.get(0).getEventName() + " to " + listener.getOwner().getClass().getName(), ex);
+				}
+				if (timed) {
+					profiler.record(listener, batch.get(0), System.nanoTime() - start);
+				}
+			} else {
+				for (Event event : batch) {
+					try {
+						execute(listener, event, profile);
+					} catch (Throwable ex) {
+						Spout.getEngine().getLogger().log(Level.SEVERE, "Could not pass event " + event.getEventName() + " to " + listener.getOwner().getClass().getName(), ex);
+					}
+				}
+			}
+		}
+	}
+
 	/**
 	 * Returns the specified event type's HandlerList
 	 *
@@ -91,16 +287,22 @@ public class SimpleEventManager implements EventManager {
 	 * @return HandlerList The list of registered handlers for the event.
 	 */
 	private HandlerList getEventListeners(Class<? extends Event> type) {
+		HandlerList handlers = handlerLists.get(type);
+		if (handlers != null) {
+			return handlers;
+		}
 		try {
 			Method method = getRegistrationClass(type).getDeclaredMethod("getHandlerList");
 			method.setAccessible(true);
-			return (HandlerList) method.invoke(null);
+			handlers = (HandlerList) method.invoke(null);
 		} catch (Exception e) {
 			throw new IllegalPluginAccessException(e.toString());
 		}
+		handlerLists.put(type, handlers);
+		return handlers;
 	}
 
-	private Class<? extends Event> getRegistrationClass(Class<? extends Event> clazz) {
+	static Class<? extends Event> getRegistrationClass(Class<? extends Event> clazz) {
 		try {
 			clazz.getDeclaredMethod("getHandlerList");
 			return clazz;
@@ -131,41 +333,27 @@ public class SimpleEventManager implements EventManager {
 			if (eh == null) {
 				continue;
 			}
-			final Class<?> checkClass = method.getParameterTypes()[0];
-			Class<? extends Event> eventClass;
-			if (!Event.class.isAssignableFrom(checkClass) || method.getParameterTypes().length != 1) {
-				Spout.getEngine().getLogger().severe("Wrong method arguments used for event type registered");
-				continue;
-			}
+			Class<? extends Event> eventClass = EventExecutorFactory.getBatchEventType(method);
+			ListenerRegistration registration;
+			if (eventClass != null) {
+				registration = new ListenerRegistration(EventExecutorFactory.createBatch(listener, method), eh.order(), plugin);
+			} else {
+				final Class<?> checkClass = method.getParameterTypes()[0];
+				if (!Event.class.isAssignableFrom(checkClass) || method.getParameterTypes().length != 1) {
+					Spout.getEngine().getLogger().severe("Wrong method arguments used for event type registered");
+					continue;
+				}
 
-			eventClass = checkClass.asSubclass(Event.class);
+				eventClass = checkClass.asSubclass(Event.class);
+				registration = new ListenerRegistration(EventExecutorFactory.create(listener, method), eh.order(), plugin, eh.async());
+			}
 
-			method.setAccessible(true);
 			Set<ListenerRegistration> eventSet = ret.get(eventClass);
 			if (eventSet == null) {
 				eventSet = new HashSet<ListenerRegistration>();
 				ret.put(eventClass, eventSet);
 			}
-			eventSet.add(new ListenerRegistration(new EventExecutor() {
-
-				public void execute(Event event) throws EventException {
-					try {
-						if (!checkClass.isAssignableFrom(event.getClass())) {
-							throw new EventException("Wrong event type passed to registered method");
-						}
-						method.invoke(listener, event);
-					} catch (InvocationTargetException e) {
-						if (e.getCause() instanceof EventException) {
-							throw (EventException)e.getCause();
-						}
-
-						throw new EventException(e.getCause());
-					} catch (Throwable t) {
-						throw new EventException(t);
-					}
-				}
-
-			}, eh.order(), plugin));
+			eventSet.add(registration);
 		}
 		return ret;
 	}
@@ -0,0 +1,252 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.bytearrayarray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of region files which are open at once across a set of BAAWrappers.<br>
+ * <br>
+ * Before a wrapper opens its file, it must acquire a handle from its manager.  If the limit has been reached, the least recently used idle file is closed to make room.  If every open file is in use, the opening thread waits until a file becomes idle or is closed.<br>
+ * <br>
+ * A file is in use while it has open block OutputStreams, so the limit should be larger than the number of threads which hold block OutputStreams of different files at the same time.
+ */
+public class BAAHandleManager {
+
+	/**
+	 * The default maximum number of open files
+	 */
+	public static final int DEFAULT_MAX_OPEN = 256;
+
+	/**
+	 * The interval at which waiting threads retry closing idle files, in ms
+	 */
+	private static final int RETRY_INTERVAL = 10;
+
+	private final static BAAHandleManager instance = new BAAHandleManager(DEFAULT_MAX_OPEN);
+
+	private final int maxOpen;
+	private final AtomicInteger open = new AtomicInteger(0);
+	private final AtomicInteger waiting = new AtomicInteger(0);
+	private final Set<BAAWrapper> wrappers = Collections.newSetFromMap(new ConcurrentHashMap<BAAWrapper, Boolean>());
+
+	private final AtomicLong opens = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
+	private final AtomicLong waits = new AtomicLong(0);
+	private final AtomicLong waitTime = new AtomicLong(0);
+
+	/**
+	 * Creates a handle manager
+	 * 
+	 * @param maxOpen the maximum number of open files
+	 */
+	public BAAHandleManager(int maxOpen) {
+		if (maxOpen < 1) {
+			throw new IllegalArgumentException("The maximum number of open files must be at least 1");
+		}
+		this.maxOpen = maxOpen;
+	}
+
+	/**
+	 * Gets the shared handle manager.  This manager is used by all BAAWrappers, unless a manager is explicitly given.
+	 * 
+	 * @return the shared manager
+	 */
+	public static BAAHandleManager getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Acquires a handle for a wrapper which is about to open its file.  This blocks until the number of open files is below the limit.
+	 * 
+	 * @param wrapper the wrapper
+	 */
+	void acquire(BAAWrapper wrapper) {
+		long start = 0;
+		boolean interrupted = false;
+		while (true) {
+			int current = open.get();
+			if (current < maxOpen) {
+				if (open.compareAndSet(current, current + 1)) {
+					break;
+				}
+				continue;
+			}
+			if (evictIdle()) {
+				continue;
+			}
+			if (start == 0) {
+				start = System.nanoTime();
+				waits.incrementAndGet();
+			}
+			// Files become idle when their streams are closed, which does not notify the manager, so waits are limited to the retry interval
+			waiting.incrementAndGet();
+			try {
+				synchronized (this) {
+					if (open.get() >= maxOpen) {
+						wait(RETRY_INTERVAL);
+					}
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} finally {
+				waiting.decrementAndGet();
+			}
+		}
+		if (start != 0) {
+			waitTime.addAndGet(System.nanoTime() - start);
+		}
+		wrappers.add(wrapper);
+		opens.incrementAndGet();
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Releases the handle of a wrapper whose file has been closed, or which failed to open its file
+	 * 
+	 * @param wrapper the wrapper
+	 */
+	void release(BAAWrapper wrapper) {
+		wrappers.remove(wrapper);
+		open.decrementAndGet();
+		if (waiting.get() > 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Closes the least recently used idle file
+	 * 
+	 * @return true if a file was closed
+	 */
+	private boolean evictIdle() {
+		// Access times are copied before sorting, since they may change during the sort
+		List<Candidate> candidates = new ArrayList<Candidate>(wrappers.size());
+		for (BAAWrapper wrapper : wrappers) {
+			candidates.add(new Candidate(wrapper));
+		}
+		Collections.sort(candidates);
+		for (Candidate candidate : candidates) {
+			if (candidate.wrapper.closeIfIdle()) {
+				evictions.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Closes all files which have timed out
+	 */
+	public void timeoutCheck() {
+		for (BAAWrapper wrapper : wrappers) {
+			wrapper.timeoutCheck();
+		}
+	}
+
+	/**
+	 * Gets the maximum number of open files
+	 * 
+	 * @return the maximum number of open files
+	 */
+	public int getMaxOpen() {
+		return maxOpen;
+	}
+
+	/**
+	 * Gets the number of files which are open, or are being opened
+	 * 
+	 * @return the number of open files
+	 */
+	public int getOpenCount() {
+		return open.get();
+	}
+
+	/**
+	 * Gets the number of times a file has been opened
+	 * 
+	 * @return the number of opens
+	 */
+	public long getOpens() {
+		return opens.get();
+	}
+
+	/**
+	 * Gets the number of idle files which were closed to make room for another file
+	 * 
+	 * @return the number of evictions
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Gets the number of times a thread had to wait because every open file was in use
+	 * 
+	 * @return the number of waits
+	 */
+	public long getWaits() {
+		return waits.get();
+	}
+
+	/**
+	 * Gets the total time threads have spent waiting for a file to become available, in ns
+	 * 
+	 * @return the total wait time
+	 */
+	public long getWaitTime() {
+		return waitTime.get();
+	}
+
+	private static class Candidate implements Comparable<Candidate> {
+
+		private final BAAWrapper wrapper;
+		private final long lastAccess;
+
+		public Candidate(BAAWrapper wrapper) {
+			this.wrapper = wrapper;
+			this.lastAccess = wrapper.getLastAccess();
+		}
+
+		@Override
+		public int compareTo(Candidate o) {
+			return lastAccess < o.lastAccess ? -1 : (lastAccess == o.lastAccess ? 0 : 1);
+		}
+
+	}
+
+}
@@ -29,6 +29,7 @@ package org.spout.api.io.bytearrayarray;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public final class BAAOpenInProgress implements ByteArrayArray {
 	
@@ -46,6 +47,24 @@ public final class BAAOpenInProgress implements ByteArrayArray {
 		return null;
 	}
 
+	@Override
+	public int read(int i, ByteBuffer dst) throws IOException {
+		return -1;
+	}
+
+	@Override
+	public int read(int i, short[] dst, int off, int len) throws IOException {
+		return -1;
+	}
+
+	@Override
+	public void readBlocks(int[] indices, BAAReadHandler handler) throws IOException {
+	}
+
+	@Override
+	public void writeBlocks(int[] indices, byte[][] data) throws IOException {
+	}
+
 	@Override
 	public DataOutputStream getOutputStream(int i) throws IOException {
 		return null;
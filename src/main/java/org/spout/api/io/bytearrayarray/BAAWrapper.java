@@ -26,12 +26,22 @@
  */
 package org.spout.api.io.bytearrayarray;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.spout.api.io.regionfile.SRFCodec;
+import org.spout.api.io.regionfile.SRFStorageType;
 import org.spout.api.io.regionfile.SimpleRegionFile;
 
 public class BAAWrapper {
@@ -44,12 +54,108 @@ public class BAAWrapper {
 	private final int segmentSize;
 	private final int entries;
 	private final int timeout;
+	private final SRFStorageType storageType;
+	private final SRFCodec codec;
+	private final boolean crashSafe;
+	private final BAAWriteQueue writeQueue;
+	private final ConcurrentHashMap<Integer, byte[]> pendingWrites = new ConcurrentHashMap<Integer, byte[]>();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final BAAHandleManager manager;
+	private final AtomicLong lastAccess = new AtomicLong(0);
+	private final Object openLock = new Object();
 	
 	public BAAWrapper(File file, int segmentSize, int entries, int timeout) {
+		this(file, segmentSize, entries, timeout, SRFStorageType.CACHED);
+	}
+	
+	/**
+	 * Creates a wrapper for a ByteArrayArray backed by a region file
+	 * 
+	 * @param file the region file
+	 * @param segmentSize log2(the segment size)
+	 * @param entries the number of blocks in the file
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param storageType the type of storage used to access the file
+	 */
+	public BAAWrapper(File file, int segmentSize, int entries, int timeout, SRFStorageType storageType) {
+		this(file, segmentSize, entries, timeout, storageType, null);
+	}
+	
+	/**
+	 * Creates a wrapper for a ByteArrayArray backed by a region file<br>
+	 * <br>
+	 * If a write queue is given, block writes are queued when the block OutputStream is closed and written to disk later by the write queue's threads.  Reads of blocks with queued writes return the queued data.
+	 * 
+	 * @param file the region file
+	 * @param segmentSize log2(the segment size)
+	 * @param entries the number of blocks in the file
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param storageType the type of storage used to access the file
+	 * @param writeQueue the queue used to write blocks to disk, or null to write blocks when their stream is closed
+	 */
+	public BAAWrapper(File file, int segmentSize, int entries, int timeout, SRFStorageType storageType, BAAWriteQueue writeQueue) {
+		this(file, segmentSize, entries, timeout, storageType, SRFCodec.getDefaultCodec(), writeQueue);
+	}
+	
+	/**
+	 * Creates a wrapper for a ByteArrayArray backed by a region file<br>
+	 * <br>
+	 * The codec is used when creating new region files.  This allows each world to select its own compression.
+	 * 
+	 * @param file the region file
+	 * @param segmentSize log2(the segment size)
+	 * @param entries the number of blocks in the file
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param storageType the type of storage used to access the file
+	 * @param codec the codec used to compress blocks in new files
+	 * @param writeQueue the queue used to write blocks to disk, or null to write blocks when their stream is closed
+	 */
+	public BAAWrapper(File file, int segmentSize, int entries, int timeout, SRFStorageType storageType, SRFCodec codec, BAAWriteQueue writeQueue) {
+		this(file, segmentSize, entries, timeout, storageType, codec, false, writeQueue);
+	}
+	
+	/**
+	 * Creates a wrapper for a ByteArrayArray backed by a region file
+	 * 
+	 * @param file the region file
+	 * @param segmentSize log2(the segment size)
+	 * @param entries the number of blocks in the file
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param storageType the type of storage used to access the file
+	 * @param codec the codec used to compress blocks in new files
+	 * @param crashSafe true to create new files in crash safe mode
+	 * @param writeQueue the queue used to write blocks to disk, or null to write blocks when their stream is closed
+	 */
+	public BAAWrapper(File file, int segmentSize, int entries, int timeout, SRFStorageType storageType, SRFCodec codec, boolean crashSafe, BAAWriteQueue writeQueue) {
+		this(file, segmentSize, entries, timeout, storageType, codec, crashSafe, writeQueue, BAAHandleManager.getInstance());
+	}
+	
+	/**
+	 * Creates a wrapper for a ByteArrayArray backed by a region file<br>
+	 * <br>
+	 * The file is only opened while the handle manager allows it.  Files which share a manager are closed in least recently used order when the manager's limit is reached.
+	 * 
+	 * @param file the region file
+	 * @param segmentSize log2(the segment size)
+	 * @param entries the number of blocks in the file
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param storageType the type of storage used to access the file
+	 * @param codec the codec used to compress blocks in new files
+	 * @param crashSafe true to create new files in crash safe mode
+	 * @param writeQueue the queue used to write blocks to disk, or null to write blocks when their stream is closed
+	 * @param manager the manager which limits the number of open files
+	 */
+	public BAAWrapper(File file, int segmentSize, int entries, int timeout, SRFStorageType storageType, SRFCodec codec, boolean crashSafe, BAAWriteQueue writeQueue, BAAHandleManager manager) {
 		this.file = file;
 		this.segmentSize = segmentSize;
 		this.entries = entries;
 		this.timeout = timeout;
+		this.storageType = storageType;
+		this.codec = codec;
+		this.crashSafe = crashSafe;
+		this.writeQueue = writeQueue;
+		this.manager = manager;
 	}
 	
 
@@ -59,14 +165,72 @@ public class BAAWrapper {
 	 * It will only close the array if no block OutputStreams are open and the last access occurred more than the timeout previously
 	 */
 	public void timeoutCheck() {
+		closeArray(true);
+	}
+	
+	/**
+	 * Closes the ByteArrayArray if it is open and no block OutputStreams are open.  This is used by the handle manager to evict idle files.
+	 * 
+	 * @return true if the array was closed
+	 */
+	boolean closeIfIdle() {
+		return closeArray(false);
+	}
+	
+	/**
+	 * Gets the time of the last access to the ByteArrayArray through this wrapper
+	 * 
+	 * @return the last access time, in ms
+	 */
+	long getLastAccess() {
+		return lastAccess.get();
+	}
+	
+	/**
+	 * Attempts to close the ByteArrayArray.  While the close is in progress, other threads wait before reopening the file, so that the file is never open twice.
+	 * 
+	 * @param timedOutOnly true to only close the array if it has timed out
+	 * @return true if the array was closed
+	 */
+	private boolean closeArray(boolean timedOutOnly) {
 		ByteArrayArray baa = baaRef.get();
-		if (baa != null) {
-			try {
-				baa.closeIfTimedOut();
-			} catch (IOException ioe) {
+		if (baa == null || baa == openInProgress || !baaRef.compareAndSet(baa, openInProgress)) {
+			return false;
+		}
+		boolean closed = false;
+		try {
+			if (!timedOutOnly || baa.isTimedOut()) {
+				baa.attemptClose();
+			}
+		} catch (IOException e) {
+			System.out.println("Error when closing file: " + file);
+		} finally {
+			closed = baa.isClosed();
+			// The handle must be released before the array is cleared, since another thread may reopen the file as soon as it is cleared
+			if (closed) {
+				manager.release(this);
+			}
+			if (!baaRef.compareAndSet(openInProgress, closed ? null : baa)) {
+				throw new IllegalStateException("chunkStore variable changed outside locking scheme");
 			}
-			if (baa.isClosed()) {
-				baaRef.compareAndSet(baa, null);
+			synchronized (openLock) {
+				openLock.notifyAll();
+			}
+		}
+		return closed;
+	}
+	
+	/**
+	 * Clears a ByteArrayArray which was found to be closed and releases its handle
+	 * 
+	 * @param baa the closed array
+	 */
+	private void closed(ByteArrayArray baa) {
+		if (baaRef.compareAndSet(baa, openInProgress)) {
+			manager.release(this);
+			baaRef.set(null);
+			synchronized (openLock) {
+				openLock.notifyAll();
 			}
 		}
 	}
@@ -74,12 +238,28 @@ public class BAAWrapper {
 	/**
 	 * Gets the DataOutputStream corresponding to a given block.<br>
 	 * <br>
-	 * WARNING: This block will be locked until the stream is closed
+	 * WARNING: This block will be locked until the stream is closed, unless the wrapper uses a write queue
 	 * 
 	 * @param i the block index
 	 * @return the DataOutputStream
 	 */
 	public OutputStream getBlockOutputStream(int i) {
+		if (writeQueue != null) {
+			if (i < 0 || i >= entries) {
+				return null;
+			}
+			return new BAAPendingOutputStream(this, i);
+		}
+		return openBlockOutputStream(i);
+	}
+	
+	/**
+	 * Opens an OutputStream which writes directly to the ByteArrayArray
+	 * 
+	 * @param i the block index
+	 * @return the OutputStream
+	 */
+	private OutputStream openBlockOutputStream(int i) {
 		while (true) {
 			ByteArrayArray baa = getByteArrayArray();
 			if (baa == null) {
@@ -106,6 +286,12 @@ public class BAAWrapper {
 	 * @return the DataInputStream
 	 */
 	public InputStream getBlockInputStream(int i) {
+		if (writeQueue != null) {
+			byte[] pending = pendingWrites.get(i);
+			if (pending != null) {
+				return new ByteArrayInputStream(pending);
+			}
+		}
 		while (true) {
 			ByteArrayArray baa = getByteArrayArray();
 			if (baa == null) {
@@ -123,51 +309,361 @@ public class BAAWrapper {
 		}
 	}
 
+	/**
+	 * Reads a block directly into a buffer, without creating any intermediate streams.<br>
+	 * <br>
+	 * The data is written starting at the position of the buffer, and the position is advanced past the end of the data.
+	 * 
+	 * @param i the block index
+	 * @param dst the buffer to read into
+	 * @return the number of bytes read, or -1 if the block is empty, could not be read or does not fit in the buffer
+	 */
+	public int readBlock(int i, ByteBuffer dst) {
+		if (writeQueue != null) {
+			byte[] pending = pendingWrites.get(i);
+			if (pending != null) {
+				if (pending.length > dst.remaining()) {
+					return -1;
+				}
+				dst.put(pending);
+				return pending.length;
+			}
+		}
+		while (true) {
+			ByteArrayArray baa = getByteArrayArray();
+			if (baa == null) {
+				return -1;
+			}
+			try {
+				return baa.read(i, dst);
+			} catch (BAAClosedException e) {
+				continue;
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Reads a block directly into a short array, without creating any intermediate streams.<br>
+	 * <br>
+	 * The block is read as a sequence of big endian shorts, as written by DataOutputStream.writeShort.
+	 * 
+	 * @param i the block index
+	 * @param dst the array to read into
+	 * @param off the offset in the array
+	 * @param len the maximum number of shorts to read
+	 * @return the number of shorts read, or -1 if the block is empty, could not be read or does not fit in the array
+	 */
+	public int readBlock(int i, short[] dst, int off, int len) {
+		if (writeQueue != null) {
+			byte[] pending = pendingWrites.get(i);
+			if (pending != null) {
+				if ((pending.length & 1) != 0 || pending.length > len << 1) {
+					return -1;
+				}
+				ByteBuffer.wrap(pending).asShortBuffer().get(dst, off, pending.length >> 1);
+				return pending.length >> 1;
+			}
+		}
+		while (true) {
+			ByteArrayArray baa = getByteArrayArray();
+			if (baa == null) {
+				return -1;
+			}
+			try {
+				return baa.read(i, dst, off, len);
+			} catch (BAAClosedException e) {
+				continue;
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Reads several blocks at once.  This method returns once all blocks have been passed to the handler.<br>
+	 * <br>
+	 * Blocks which are stored next to each other are read together, and the blocks are decompressed in parallel.  Blocks are passed to the handler as they complete, possibly from several threads at once.<br>
+	 * <br>
+	 * WARNING:  The calling thread must not hold an OutputStream for any block of this wrapper.
+	 * 
+	 * @param indices the indices of the blocks, which must be distinct
+	 * @param handler the handler which receives the blocks
+	 * @return true if all blocks were read
+	 */
+	public boolean readBlocks(int[] indices, BAAReadHandler handler) {
+		if (writeQueue != null) {
+			int[] unqueued = new int[indices.length];
+			int count = 0;
+			for (int i : indices) {
+				byte[] pending = pendingWrites.get(i);
+				if (pending != null) {
+					handler.blockRead(i, new ByteArrayInputStream(pending));
+				} else {
+					unqueued[count++] = i;
+				}
+			}
+			indices = Arrays.copyOf(unqueued, count);
+		}
+		while (true) {
+			ByteArrayArray baa = getByteArrayArray();
+			if (baa == null) {
+				return false;
+			}
+			try {
+				baa.readBlocks(indices, handler);
+				return true;
+			} catch (BAAClosedException e) {
+				continue;
+			} catch (IOException e) {
+				System.out.println("Error when reading blocks from " + file);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Reads several blocks at once.  Blocks which are stored next to each other are read together, and the blocks are decompressed in parallel.<br>
+	 * <br>
+	 * WARNING:  The calling thread must not hold an OutputStream for any block of this wrapper.
+	 * 
+	 * @param indices the indices of the blocks, which must be distinct
+	 * @return the InputStreams for the blocks, in the same order as the indices, or null on error
+	 */
+	public InputStream[] readBlocks(final int[] indices) {
+		final ConcurrentHashMap<Integer, InputStream> streams = new ConcurrentHashMap<Integer, InputStream>();
+		boolean success = readBlocks(indices, new BAAReadHandler() {
+			@Override
+			public void blockRead(int i, InputStream in) {
+				if (in != null) {
+					streams.put(i, in);
+				}
+			}
+		});
+		if (!success) {
+			return null;
+		}
+		InputStream[] result = new InputStream[indices.length];
+		for (int j = 0; j < indices.length; j++) {
+			result[j] = streams.get(indices[j]);
+		}
+		return result;
+	}
+
+	/**
+	 * Writes several blocks at once.  The blocks are compressed in parallel and then written together.<br>
+	 * <br>
+	 * If the wrapper uses a write queue, the blocks are queued instead.<br>
+	 * <br>
+	 * WARNING:  The calling thread must not hold an OutputStream for any block of this wrapper.
+	 * 
+	 * @param indices the indices of the blocks, which must be distinct
+	 * @param data the data for each block
+	 * @return true if all blocks were written
+	 */
+	public boolean writeBlocks(int[] indices, byte[][] data) {
+		if (writeQueue != null) {
+			for (int j = 0; j < indices.length; j++) {
+				if (indices[j] < 0 || indices[j] >= entries) {
+					return false;
+				}
+			}
+			for (int j = 0; j < indices.length; j++) {
+				queueWrite(indices[j], data[j].clone());
+			}
+			return true;
+		}
+		while (true) {
+			ByteArrayArray baa = getByteArrayArray();
+			if (baa == null) {
+				return false;
+			}
+			try {
+				baa.writeBlocks(indices, data);
+				return true;
+			} catch (BAAClosedException e) {
+				continue;
+			} catch (IOException e) {
+				System.out.println("Error when writing blocks to " + file);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Writes all queued block writes to disk.  This method blocks until the writes are complete.<br>
+	 * <br>
+	 * This method has no effect if the wrapper does not use a write queue.
+	 * 
+	 * @return true if all writes were successful
+	 */
+	public boolean flush() {
+		if (writeQueue == null) {
+			return true;
+		}
+		flushLock.lock();
+		try {
+			Integer[] indexes = pendingWrites.keySet().toArray(new Integer[0]);
+			ByteArrayArray baa = getByteArrayArray();
+			if (baa instanceof SimpleRegionFile) {
+				final SimpleRegionFile srf = (SimpleRegionFile) baa;
+				Arrays.sort(indexes, new Comparator<Integer>() {
+					@Override
+					public int compare(Integer a, Integer b) {
+						long posA = srf.getBlockPosition(a);
+						long posB = srf.getBlockPosition(b);
+						return posA < posB ? -1 : (posA == posB ? 0 : 1);
+					}
+				});
+			}
+			boolean success = true;
+			for (Integer i : indexes) {
+				byte[] data = pendingWrites.get(i);
+				if (data == null) {
+					continue;
+				}
+				if (writeBlock(i, data)) {
+					pendingWrites.remove(i, data);
+				} else {
+					success = false;
+				}
+			}
+			return success;
+		} finally {
+			flushLock.unlock();
+		}
+	}
+	
+	/**
+	 * Gets if there are queued block writes which have not been written to disk
+	 * 
+	 * @return true if there are pending writes
+	 */
+	public boolean hasPendingWrites() {
+		return !pendingWrites.isEmpty();
+	}
+	
+	/**
+	 * Queues a block write.  If the block already has a queued write, it is replaced.
+	 * 
+	 * @param i the block index
+	 * @param data the block data
+	 */
+	void queueWrite(int i, byte[] data) {
+		pendingWrites.put(i, data);
+		if (flushScheduled.compareAndSet(false, true)) {
+			writeQueue.schedule(this);
+		}
+	}
+	
+	/**
+	 * Called by the write queue to flush the pending writes
+	 * 
+	 * @return true if all writes were successful
+	 */
+	boolean flushPending() {
+		flushScheduled.set(false);
+		return flush();
+	}
+
+	/**
+	 * Called by the write queue when a flush of the pending writes failed, to schedule another attempt.  No attempt is scheduled if a later write has already scheduled a flush.
+	 */
+	void flushFailed() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			writeQueue.retry(this);
+		}
+	}
+	
+	/**
+	 * Writes a block directly to the ByteArrayArray
+	 * 
+	 * @param i the block index
+	 * @param data the block data
+	 * @return true on success
+	 */
+	private boolean writeBlock(int i, byte[] data) {
+		OutputStream out = openBlockOutputStream(i);
+		if (out == null) {
+			return false;
+		}
+		try {
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			return true;
+		} catch (IOException e) {
+			System.out.println("Error when writing block " + i + " to " + file);
+			return false;
+		}
+	}
+
 	private ByteArrayArray getByteArrayArray() {
-		int count = 0;
+		lastAccess.set(System.currentTimeMillis());
 		while (true) {
 			ByteArrayArray baa = baaRef.get();
 
+			if (baa == openInProgress) {
+				// Some other thread is opening or closing the file, wait for it to finish
+				waitForOpen();
+				continue;
+			}
+
 			if (baa != null) {
 				// If the baa exists and isn't closed return it
 				if (!baa.isClosed()) {
 					return baa;
 				}
-				baaRef.compareAndSet(baa, null);
+				closed(baa);
 				continue;
 			}
 
 			if (baaRef.compareAndSet(null, openInProgress)) {
 				// Successfully claimed the right to open a new file
 				// Attempt to open the file.  If an IOException is throw return null
-				//baa = null; // not needed - already null
+				manager.acquire(this);
 				try {
 					try {
-						baa = new SimpleRegionFile(file, segmentSize, entries, timeout);
+						baa = new SimpleRegionFile(file, segmentSize, entries, timeout, storageType, codec, crashSafe);
 					} catch (IOException e) {
 						System.out.println("Error when creating SimpleRegionFile object: " + file);
-						//baa = null; // not needed - already null. The assignment above comes after the potential IOException. 
 					}
 
 					return baa;
 				} finally {
+					if (baa == null) {
+						manager.release(this);
+					}
 					if (!baaRef.compareAndSet(openInProgress, baa)) {
 						throw new IllegalStateException("chunkStore variable changed outside locking scheme");
 					}
+					synchronized (openLock) {
+						openLock.notifyAll();
+					}
 				}
 			}
+		}
+	}
 
-			// Some other thread is trying to open the file
-			// Spinning lock, then yield and then sleep
-			count++;
-			if (count > 10) {
+	/**
+	 * Waits until the thread which is opening or closing the file has finished
+	 */
+	private void waitForOpen() {
+		boolean interrupted = false;
+		synchronized (openLock) {
+			while (baaRef.get() == openInProgress) {
 				try {
-					Thread.sleep(1);
+					openLock.wait();
 				} catch (InterruptedException e) {
+					interrupted = true;
 				}
-			} else if (count > 0) {
-				Thread.yield();
 			}
 		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
 	}
 }
@@ -0,0 +1,173 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.bytearrayarray;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of I/O threads which write the pending block writes of write-behind BAAWrappers to disk.<br>
+ * <br>
+ * Block writes are queued in their BAAWrapper when the block output stream is closed.  Repeated writes to the same block before it is flushed are coalesced, so only the most recent data is written.  Each flush writes all pending blocks of a file, in file order.  If a flush fails, the blocks which were not written stay pending and the flush is retried after the retry delay.
+ */
+public class BAAWriteQueue {
+
+	/**
+	 * The default delay between the first pending write to a file and the flush of that file, in ms
+	 */
+	public static final int DEFAULT_DELAY = 100;
+
+	/**
+	 * The default delay between a failed flush of a file and the next attempt, in ms
+	 */
+	public static final int DEFAULT_RETRY_DELAY = 1000;
+
+	private final static BAAWriteQueue instance = new BAAWriteQueue(2, DEFAULT_DELAY);
+
+	private final ScheduledExecutorService executor;
+	private final int delay;
+	private final int retryDelay;
+	private final Set<BAAWrapper> dirty = Collections.newSetFromMap(new ConcurrentHashMap<BAAWrapper, Boolean>());
+
+	/**
+	 * Creates a write queue
+	 * 
+	 * @param threads the number of I/O threads
+	 * @param delay the delay between the first pending write to a file and the flush of that file, in ms
+	 */
+	public BAAWriteQueue(int threads, int delay) {
+		this(threads, delay, DEFAULT_RETRY_DELAY);
+	}
+
+	/**
+	 * Creates a write queue
+	 * 
+	 * @param threads the number of I/O threads
+	 * @param delay the delay between the first pending write to a file and the flush of that file, in ms
+	 * @param retryDelay the delay between a failed flush of a file and the next attempt, in ms
+	 */
+	public BAAWriteQueue(int threads, int delay, int retryDelay) {
+		this.delay = delay;
+		this.retryDelay = retryDelay;
+		this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "BAA Write Queue Thread " + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Gets the shared write queue
+	 * 
+	 * @return the write queue
+	 */
+	public static BAAWriteQueue getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Schedules a flush of the pending writes for a wrapper
+	 * 
+	 * @param wrapper the wrapper
+	 */
+	void schedule(BAAWrapper wrapper) {
+		schedule(wrapper, delay);
+	}
+
+	/**
+	 * Schedules another attempt to flush the pending writes for a wrapper after a failed flush.  No attempt is made once the queue has been shut down.
+	 * 
+	 * @param wrapper the wrapper
+	 */
+	void retry(BAAWrapper wrapper) {
+		if (!executor.isShutdown()) {
+			schedule(wrapper, retryDelay);
+		}
+	}
+
+	private void schedule(final BAAWrapper wrapper, int delay) {
+		dirty.add(wrapper);
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (wrapper.flushPending()) {
+					dirty.remove(wrapper);
+					if (wrapper.hasPendingWrites()) {
+						dirty.add(wrapper);
+					}
+				} else {
+					wrapper.flushFailed();
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes all pending writes for all wrappers using this queue to disk.  This method blocks until the writes are complete.<br>
+	 * <br>
+	 * This should be called when saving all data and before shutting down.
+	 * 
+	 * @return true if all writes were successful
+	 */
+	public boolean flush() {
+		boolean success = true;
+		for (BAAWrapper wrapper : dirty) {
+			if (wrapper.flush()) {
+				dirty.remove(wrapper);
+				if (wrapper.hasPendingWrites()) {
+					dirty.add(wrapper);
+				}
+			} else {
+				success = false;
+			}
+		}
+		return success;
+	}
+
+	/**
+	 * Flushes all pending writes and stops the I/O threads
+	 * 
+	 * @return true if all writes were successful
+	 */
+	public boolean shutdown() {
+		boolean success = flush();
+		executor.shutdown();
+		return success;
+	}
+
+}
@@ -29,6 +29,7 @@ package org.spout.api.io.bytearrayarray;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Classes which implement this interface provide thread safe persistent storage for an array of byte arrays.<br>
@@ -49,6 +50,58 @@ public interface ByteArrayArray {
 	 * @throws IOException on error
 	 */
 	public InputStream getInputStream(int i) throws IOException;
+
+	/**
+	 * Reads a block directly into a buffer, without creating any intermediate streams.<br>
+	 * <br>
+	 * The data is written starting at the position of the buffer, and the position is advanced past the end of the data.
+	 * 
+	 * @param i the index of the block
+	 * @param dst the buffer to read into
+	 * @return the number of bytes read, or -1 if the block is empty
+	 * @throws IOException on error, or if the block does not fit in the remaining space of the buffer
+	 */
+	public int read(int i, ByteBuffer dst) throws IOException;
+
+	/**
+	 * Reads a block directly into a short array, without creating any intermediate streams.<br>
+	 * <br>
+	 * The block is read as a sequence of big endian shorts, as written by DataOutputStream.writeShort.
+	 * 
+	 * @param i the index of the block
+	 * @param dst the array to read into
+	 * @param off the offset in the array
+	 * @param len the maximum number of shorts to read
+	 * @return the number of shorts read, or -1 if the block is empty
+	 * @throws IOException on error, or if the block does not fit in the given range of the array
+	 */
+	public int read(int i, short[] dst, int off, int len) throws IOException;
+
+	/**
+	 * Reads several blocks at once.  This method returns once all blocks have been passed to the handler.<br>
+	 * <br>
+	 * Blocks which are stored next to each other are read together, and the blocks are decompressed in parallel.<br>
+	 * <br>
+	 * WARNING:  The calling thread must not hold an OutputStream for any block of the array.
+	 * 
+	 * @param indices the indices of the blocks, which must be distinct
+	 * @param handler the handler which receives the blocks
+	 * @throws IOException on error
+	 */
+	public void readBlocks(int[] indices, BAAReadHandler handler) throws IOException;
+
+	/**
+	 * Writes several blocks at once.<br>
+	 * <br>
+	 * The blocks are compressed in parallel and then written to the array together.<br>
+	 * <br>
+	 * WARNING:  The calling thread must not hold an OutputStream for any block of the array.
+	 * 
+	 * @param indices the indices of the blocks, which must be distinct
+	 * @param data the data for each block
+	 * @throws IOException on error
+	 */
+	public void writeBlocks(int[] indices, byte[][] data) throws IOException;
 	
 	/**
 	 * Gets a DataOutputStream for writing to a block.<br>
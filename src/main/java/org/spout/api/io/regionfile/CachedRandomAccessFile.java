@@ -30,15 +30,30 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.spout.api.io.regionfile.PageCache.Page;
+
+/**
+ * A random access file which caches pages of the file in a PageCache.<br>
+ * <br>
+ * Writes are applied to the cached pages and are only written to disk when the pages are evicted from the cache, or the file is flushed or closed.  If a page can not be written back when it is evicted, it stays in the cache and the error is thrown by the next call to flush, force or close.<br>
+ * <br>
+ * This class is not thread safe.  However, pages may be evicted and written back by other threads which share the same cache, so all disk access is synchronized on the underlying file.
+ */
 public class CachedRandomAccessFile {
 
+	private final File filePath;
 	private final RandomAccessFile file;
+	private volatile IOException writeBackError = null;
+	private volatile boolean closed = false;
 	private long pos = 0;
-	private boolean posDirty = false;
-	private final ArrayList<byte[]> pages = new ArrayList<byte[]>();
+	private long length = -1;
+	private final PageCache cache;
+	private final ConcurrentHashMap<Integer, Page> pages = new ConcurrentHashMap<Integer, Page>();
+	private final byte[] intBuffer = new byte[4];
 	private final int PAGE_SHIFT;
 	private final int PAGE_SIZE;
 	private final long PAGE_MASK;
@@ -53,7 +68,13 @@ public class CachedRandomAccessFile {
 	}
 
 	public CachedRandomAccessFile(File filePath, String permissions, int pageShift) throws FileNotFoundException {
+		this(filePath, permissions, pageShift, PageCache.getInstance());
+	}
+
+	public CachedRandomAccessFile(File filePath, String permissions, int pageShift, PageCache cache) throws FileNotFoundException {
+		this.filePath = filePath;
 		this.file = new RandomAccessFile(filePath, permissions);
+		this.cache = cache;
 		this.PAGE_SHIFT = pageShift;
 		PAGE_SIZE = (1 << PAGE_SHIFT);
 		PAGE_MASK = PAGE_SIZE - 1;
@@ -62,110 +83,163 @@ public class CachedRandomAccessFile {
 	public long length() throws IOException {
 		timeStart();
 		try {
-			return file.length();
+			return getLength();
 		} finally {
 			timeEnd();
 		}
 	}
 
-	public void close() throws IOException {
+	/**
+	 * Sets the length of the file.  Cached data beyond the new length is discarded.
+	 * 
+	 * @param newLength the new length
+	 * @throws IOException on error
+	 */
+	public void setLength(long newLength) throws IOException {
 		timeStart();
 		try {
-			file.close();
+			for (Page page : pages.values()) {
+				long pagePosition = ((long) page.index) << PAGE_SHIFT;
+				if (pagePosition + PAGE_SIZE <= newLength) {
+					continue;
+				}
+				synchronized (page) {
+					int keep = (int) Math.max(0, newLength - pagePosition);
+					Arrays.fill(page.data, keep, PAGE_SIZE, (byte) 0);
+					if (page.dirtyEnd > keep) {
+						page.dirtyEnd = keep;
+						if (page.dirtyEnd <= page.dirtyStart) {
+							page.dirtyStart = Integer.MAX_VALUE;
+							page.dirtyEnd = 0;
+						}
+					}
+				}
+			}
+			synchronized (file) {
+				file.setLength(newLength);
+			}
+			length = newLength;
 		} finally {
 			timeEnd();
 		}
 	}
 
-	public void writeInt(int i) throws IOException {
+	/**
+	 * Writes all dirty cached pages to disk
+	 * 
+	 * @throws IOException on error
+	 */
+	public void flush() throws IOException {
 		timeStart();
 		try {
-			writeCacheByte((byte)(i >> 24));
-			writeCacheByte((byte)(i >> 16));
-			writeCacheByte((byte)(i >> 8));
-			writeCacheByte((byte)(i >> 0));
+			for (Page page : pages.values()) {
+				synchronized (page) {
+					if (!page.evicted) {
+						cache.writeBack(page);
+					}
+				}
+			}
+			throwWriteBackError();
 		} finally {
 			timeEnd();
 		}
 	}
 
-	public int readInt() throws IOException {
+	/**
+	 * Writes all dirty cached pages to disk and forces the file to the storage device
+	 * 
+	 * @throws IOException on error
+	 */
+	public void force() throws IOException {
+		flush();
+		synchronized (file) {
+			file.getChannel().force(false);
+		}
+	}
+
+	/**
+	 * Writes all dirty pages to disk and closes the file.  The pages of the file are removed from the cache.
+	 * 
+	 * @throws IOException on error
+	 */
+	public void close() throws IOException {
 		timeStart();
 		try {
-			int i = 0;
-			i |= (readCacheByte() & 0xFF) << 24;
-			i |= (readCacheByte() & 0xFF) << 16;
-			i |= (readCacheByte() & 0xFF) << 8;
-			i |= (readCacheByte() & 0xFF) << 0;
-			return i;
+			// Every page is attempted, so one failed write does not discard the other dirty pages
+			IOException error = null;
+			for (Page page : pages.values()) {
+				try {
+					cache.evict(page);
+				} catch (IOException e) {
+					if (error == null) {
+						error = e;
+					}
+				}
+			}
+			if (error != null) {
+				throw error;
+			}
+			throwWriteBackError();
+			if (!pages.isEmpty()) {
+				throw new IOException("Unable to evict all pages when closing file");
+			}
 		} finally {
-			timeEnd();
+			try {
+				closed = true;
+				synchronized (file) {
+					file.close();
+				}
+			} finally {
+				timeEnd();
+			}
 		}
 	}
 
-	private byte[] getPage(int pageIndex) throws IOException {
-		while (pageIndex >= pages.size()) {
-			pages.add(null);
-		}
-		byte[] page = pages.get(pageIndex);
-		if (page == null) {
-			long oldPos = pos;
-			long pagePosition = pageIndex << PAGE_SHIFT;
-			file.seek(pagePosition);
-			page = new byte[PAGE_SIZE];
-			long len = Math.min(file.length() - pagePosition, page.length);
-			if (len > 0) {
-				file.readFully(page, 0, (int)len);
-			}
-			pages.set(pageIndex, page);
-			pos = oldPos;
-			posDirty = true;
-		}
-		return page;
+	public void writeInt(int i) throws IOException {
+		intBuffer[0] = (byte)(i >> 24);
+		intBuffer[1] = (byte)(i >> 16);
+		intBuffer[2] = (byte)(i >> 8);
+		intBuffer[3] = (byte)(i >> 0);
+		write(intBuffer, 0, 4);
+	}
 
+	public int readInt() throws IOException {
+		readFully(intBuffer, 0, 4);
+		int i = 0;
+		i |= (intBuffer[0] & 0xFF) << 24;
+		i |= (intBuffer[1] & 0xFF) << 16;
+		i |= (intBuffer[2] & 0xFF) << 8;
+		i |= (intBuffer[3] & 0xFF) << 0;
+		return i;
 	}
 
 	public void seek(long pos) throws IOException {
-		timeStart();
-		try {
-			file.seek(pos);
-			this.pos = pos;
-			posDirty = false;
-		} finally {
-			timeEnd();
-		}
+		this.pos = pos;
 	}
 
 	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+
+	public void readFully(byte[] b, int off, int len) throws IOException {
 		timeStart();
 		try {
-			int pageIndex = (int)(pos >> PAGE_SHIFT);
-			int offset = (int)(pos & PAGE_MASK);
-			int endPageOne = Math.min(b.length + offset, PAGE_SIZE);
-
-			byte[] page = getPage(pageIndex);
-
 			int j = 0;
-			for (int i = offset; i < endPageOne; i++) {
-				b[j++] = page[i];
-			}
-
-			while (b.length > j) {
-				pageIndex++;
-				page = getPage(pageIndex);
-				if (b.length - j > PAGE_SIZE) {
-					for (int i = 0; i < PAGE_SIZE; i++) {
-						b[j++] = page[i];
-					}
-				} else {
-					for (int i = 0; j < b.length; i++) {
-						b[j++] = page[i];
+			while (j < len) {
+				int pageIndex = (int)(pos >> PAGE_SHIFT);
+				int offset = (int)(pos & PAGE_MASK);
+				int copy = Math.min(len - j, PAGE_SIZE - offset);
+				Page page = acquirePage(pageIndex);
+				try {
+					synchronized (page) {
+						System.arraycopy(page.data, offset, b, off + j, copy);
 					}
+				} finally {
+					releasePage(page);
 				}
+				j += copy;
+				pos += copy;
 			}
-
-			pos += b.length;
-			posDirty = true;
 		} finally {
 			timeEnd();
 		}
@@ -174,63 +248,165 @@ public class CachedRandomAccessFile {
 	public void write(byte[] b, int off, int len) throws IOException {
 		timeStart();
 		try {
-			int pageIndex = (int)(pos >> PAGE_SHIFT);
-			int offset = (int)(pos & PAGE_MASK);
-			int endPageOne = Math.min(len + offset, PAGE_SIZE);
-
-			byte[] page = getPage(pageIndex);
-
 			int j = 0;
-			for (int i = offset; i < endPageOne; i++) {
-				page[i] = b[off + (j++)];
+			while (j < len) {
+				int pageIndex = (int)(pos >> PAGE_SHIFT);
+				int offset = (int)(pos & PAGE_MASK);
+				int copy = Math.min(len - j, PAGE_SIZE - offset);
+				Page page = acquirePage(pageIndex);
+				try {
+					synchronized (page) {
+						System.arraycopy(b, off + j, page.data, offset, copy);
+						page.dirtyStart = Math.min(page.dirtyStart, offset);
+						page.dirtyEnd = Math.max(page.dirtyEnd, offset + copy);
+					}
+				} finally {
+					releasePage(page);
+				}
+				j += copy;
+				pos += copy;
+			}
+			if (pos > getLength()) {
+				length = pos;
 			}
+		} finally {
+			timeEnd();
+		}
+	}
 
-			while (len > j) {
-				pageIndex++;
-				page = getPage(pageIndex);
-				if (len - j > PAGE_SIZE) {
-					for (int i = 0; i < PAGE_SIZE; i++) {
-						page[i] = b[off + (j++)];
-					}
-				} else {
-					for (int i = 0; j < len; i++) {
-						page[i] = b[off + (j++)];
-					}
+	/**
+	 * Gets the length of the file, including data which has not been written back yet
+	 * 
+	 * @return the length
+	 * @throws IOException on error
+	 */
+	private long getLength() throws IOException {
+		if (length < 0) {
+			length = file.length();
+		}
+		return length;
+	}
+
+	/**
+	 * Gets a page from the cache, loading it from disk if required.  The page is pinned until it is released.
+	 * 
+	 * @param pageIndex the index of the page
+	 * @return the page
+	 * @throws IOException on error
+	 */
+	private Page acquirePage(int pageIndex) throws IOException {
+		Integer key = pageIndex;
+		while (true) {
+			Page page = pages.get(key);
+			if (page == null) {
+				page = new Page(this, pageIndex, readPage(pageIndex));
+				Page previous = pages.putIfAbsent(key, page);
+				if (previous == null) {
+					cache.add(page);
+					return page;
+				}
+				page = previous;
+			}
+			synchronized (page) {
+				if (!page.evicted) {
+					page.pins++;
+					page.referenced = true;
+					cache.hit();
+					return page;
 				}
 			}
+		}
+	}
 
-			if (posDirty) {
-				file.seek(pos);
-				posDirty = false;
+	/**
+	 * Releases a page pinned by acquirePage
+	 * 
+	 * @param page the page
+	 */
+	private void releasePage(Page page) {
+		synchronized (page) {
+			page.pins--;
+		}
+	}
+
+	/**
+	 * Reads a page from disk.  Any part of the page that is beyond the end of the file is zero.
+	 * 
+	 * @param pageIndex the index of the page
+	 * @return the page data
+	 * @throws IOException on error
+	 */
+	private byte[] readPage(int pageIndex) throws IOException {
+		byte[] data = new byte[PAGE_SIZE];
+		long pagePosition = ((long) pageIndex) << PAGE_SHIFT;
+		synchronized (file) {
+			long len = Math.min(file.length() - pagePosition, PAGE_SIZE);
+			if (len > 0) {
+				file.seek(pagePosition);
+				file.readFully(data, 0, (int) len);
 			}
-			file.write(b, off, len);
+		}
+		return data;
+	}
 
-			pos += b.length;
-		} finally {
-			timeEnd();
+	/**
+	 * Writes the dirty part of a page to disk.  The page must be locked by the caller.
+	 * 
+	 * @param page the page
+	 * @throws IOException on error
+	 */
+	void writePage(Page page) throws IOException {
+		long pagePosition = ((long) page.index) << PAGE_SHIFT;
+		synchronized (file) {
+			file.seek(pagePosition + page.dirtyStart);
+			file.write(page.data, page.dirtyStart, page.dirtyEnd - page.dirtyStart);
+		}
+	}
+
+	/**
+	 * Records that a page could not be written back when it was evicted by the cache.  The first error is kept until it is thrown by flush or close.
+	 * 
+	 * @param e the error
+	 */
+	void writeBackFailed(IOException e) {
+		if (writeBackError == null) {
+			writeBackError = e;
 		}
 	}
 
-	private void writeCacheByte(byte b) throws IOException {
-		int pageIndex = (int)(pos >> PAGE_SHIFT);
-		int offset = (int)(pos & PAGE_MASK);
-		byte[] page = getPage(pageIndex);
-		page[offset] = b;
-		if (posDirty) {
-			file.seek(pos);
-			posDirty = false;
+	private void throwWriteBackError() throws IOException {
+		IOException e = writeBackError;
+		if (e != null) {
+			writeBackError = null;
+			throw new IOException("Unable to write back an evicted page of " + filePath, e);
 		}
-		file.writeByte(b & 0xFF);
-		pos++;
 	}
 
-	private byte readCacheByte() throws IOException {
-		int pageIndex = (int)(pos >> PAGE_SHIFT);
-		int offset = (int)(pos & PAGE_MASK);
-		byte[] page = getPage(pageIndex);
-		pos++;
-		posDirty = true;
-		return page[offset];
+	/**
+	 * Gets the path of the file
+	 * 
+	 * @return the path
+	 */
+	File getFilePath() {
+		return filePath;
+	}
+
+	/**
+	 * Gets if the file has been closed
+	 * 
+	 * @return true if closed
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Removes an evicted page from the file's page map
+	 * 
+	 * @param page the page
+	 */
+	void removePage(Page page) {
+		pages.remove(page.index, page);
 	}
 
 	private void timeStart() {
@@ -0,0 +1,296 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded page cache which can be shared by many CachedRandomAccessFiles.<br>
+ * <br>
+ * Pages are evicted using the CLOCK (second chance) algorithm once the total size of the cached pages exceeds the capacity of the cache.  Dirty pages are written back to their file when they are evicted.<br>
+ * <br>
+ * Pages are pinned while they are in use by their file, and pinned pages are never evicted.  This means that the capacity may be temporarily exceeded if all pages are pinned.
+ */
+public class PageCache {
+
+	/**
+	 * The default capacity of the shared cache, in bytes
+	 */
+	public static final long DEFAULT_CAPACITY = 64L << 20;
+
+	private static final int MIN_PURGE = 256;
+
+	private final static PageCache instance = new PageCache(DEFAULT_CAPACITY);
+
+	private final AtomicLong capacity;
+	private final AtomicLong used = new AtomicLong(0);
+	private final ConcurrentLinkedQueue<Page> clock = new ConcurrentLinkedQueue<Page>();
+	/**
+	 * The approximate number of pages in the clock, and the approximate number of those which have already been evicted.  Pages which are evicted when their file is closed stay in the clock until they are purged.
+	 */
+	private final AtomicInteger queued = new AtomicInteger(0);
+	private final AtomicInteger stale = new AtomicInteger(0);
+	private final AtomicBoolean purging = new AtomicBoolean(false);
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
+	private final AtomicLong writeBacks = new AtomicLong(0);
+
+	/**
+	 * Creates a page cache
+	 * 
+	 * @param capacity the capacity of the cache, in bytes
+	 */
+	public PageCache(long capacity) {
+		this.capacity = new AtomicLong(capacity);
+	}
+
+	/**
+	 * Gets the process-wide page cache.  This cache is used by all CachedRandomAccessFiles, unless a cache is explicitly given.
+	 * 
+	 * @return the shared cache
+	 */
+	public static PageCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Sets the capacity of the cache.  If the cache is larger than the new capacity, pages are evicted until it fits.
+	 * 
+	 * @param capacity the new capacity, in bytes
+	 */
+	public void setCapacity(long capacity) {
+		this.capacity.set(capacity);
+		evict();
+	}
+
+	/**
+	 * Gets the capacity of the cache
+	 * 
+	 * @return the capacity, in bytes
+	 */
+	public long getCapacity() {
+		return capacity.get();
+	}
+
+	/**
+	 * Gets the total size of the pages currently in the cache
+	 * 
+	 * @return the size, in bytes
+	 */
+	public long getUsed() {
+		return used.get();
+	}
+
+	/**
+	 * Gets the number of page requests which were served from the cache
+	 * 
+	 * @return the number of hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of page requests which required a page to be read from disk
+	 * 
+	 * @return the number of misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of pages which have been evicted from the cache
+	 * 
+	 * @return the number of evictions
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Gets the number of dirty pages which have been written back to disk
+	 * 
+	 * @return the number of write backs
+	 */
+	public long getWriteBacks() {
+		return writeBacks.get();
+	}
+
+	/**
+	 * Records a page request which was served from the cache
+	 */
+	void hit() {
+		hits.incrementAndGet();
+	}
+
+	/**
+	 * Adds a newly loaded page to the cache and evicts pages, if the cache is over capacity
+	 * 
+	 * @param page the page
+	 */
+	void add(Page page) {
+		misses.incrementAndGet();
+		used.addAndGet(page.data.length);
+		clock.add(page);
+		queued.incrementAndGet();
+		evict();
+		int staleCount = stale.get();
+		if (staleCount > MIN_PURGE && staleCount > queued.get() >> 1) {
+			purge();
+		}
+	}
+
+	/**
+	 * Writes a page back to its file, if it is dirty.  The page must be locked by the caller.
+	 * 
+	 * @param page the page
+	 * @throws IOException on error
+	 */
+	void writeBack(Page page) throws IOException {
+		if (page.dirtyEnd > page.dirtyStart) {
+			page.owner.writePage(page);
+			page.dirtyStart = Integer.MAX_VALUE;
+			page.dirtyEnd = 0;
+			writeBacks.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Evicts a page from the cache, writing it back if dirty.
+	 * 
+	 * @param page the page
+	 * @return true if the page was evicted by this call
+	 * @throws IOException if the page could not be written back
+	 */
+	boolean evict(Page page) throws IOException {
+		synchronized (page) {
+			if (page.evicted || page.pins > 0) {
+				return false;
+			}
+			if (!page.owner.isClosed()) {
+				writeBack(page);
+			}
+			page.evicted = true;
+			page.owner.removePage(page);
+		}
+		stale.incrementAndGet();
+		used.addAndGet(-page.data.length);
+		evictions.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Evicts pages until the cache is within capacity or no evictable pages remain
+	 */
+	private void evict() {
+		int remaining = Math.max(queued.get(), 0) << 1;
+		while (used.get() > capacity.get() && remaining-- > 0) {
+			Page page = clock.poll();
+			if (page == null) {
+				return;
+			}
+			if (page.evicted) {
+				queued.decrementAndGet();
+				stale.decrementAndGet();
+				continue;
+			}
+			if (page.referenced) {
+				page.referenced = false;
+				clock.add(page);
+				continue;
+			}
+			try {
+				evict(page);
+			} catch (IOException e) {
+				System.out.println("Error when writing back page " + page.index + " of " + page.owner.getFilePath());
+				page.owner.writeBackFailed(e);
+			}
+			if (page.evicted) {
+				queued.decrementAndGet();
+				stale.decrementAndGet();
+			} else {
+				clock.add(page);
+			}
+		}
+	}
+
+	/**
+	 * Removes evicted pages from the clock.  The page counts are reset to the counts seen by the purge, which corrects any drift due to concurrent updates.
+	 */
+	private void purge() {
+		if (!purging.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			int remaining = 0;
+			Iterator<Page> i = clock.iterator();
+			while (i.hasNext()) {
+				if (i.next().evicted) {
+					i.remove();
+				} else {
+					remaining++;
+				}
+			}
+			queued.set(remaining);
+			stale.set(0);
+		} finally {
+			purging.set(false);
+		}
+	}
+
+	/**
+	 * A cached page of a file.  New pages are created pinned by the thread which loaded them.
+	 */
+	static final class Page {
+		final CachedRandomAccessFile owner;
+		final int index;
+		final byte[] data;
+		volatile boolean referenced = true;
+		/**
+		 * The fields below are protected by the page's monitor
+		 */
+		boolean evicted = false;
+		int pins = 1;
+		int dirtyStart = Integer.MAX_VALUE;
+		int dirtyEnd = 0;
+
+		Page(CachedRandomAccessFile owner, int index, byte[] data) {
+			this.owner = owner;
+			this.index = index;
+			this.data = data;
+		}
+	}
+
+}
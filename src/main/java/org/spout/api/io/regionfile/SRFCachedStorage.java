@@ -0,0 +1,92 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * A storage backed by a CachedRandomAccessFile.<br>
+ * <br>
+ * The underlying file has a single file pointer, so all accesses are serialized on the file.
+ */
+public class SRFCachedStorage implements SRFStorage {
+
+	private final CachedRandomAccessFile file;
+
+	public SRFCachedStorage(File filePath) throws FileNotFoundException {
+		this.file = new CachedRandomAccessFile(filePath, "rw");
+	}
+
+	@Override
+	public long length() throws IOException {
+		synchronized (file) {
+			return file.length();
+		}
+	}
+
+	@Override
+	public void read(long position, byte[] b, int off, int len) throws IOException {
+		synchronized (file) {
+			file.seek(position);
+			file.readFully(b, off, len);
+		}
+	}
+
+	@Override
+	public void write(long position, byte[] b, int off, int len) throws IOException {
+		synchronized (file) {
+			file.seek(position);
+			file.write(b, off, len);
+		}
+	}
+
+	@Override
+	public void truncate(long length) throws IOException {
+		synchronized (file) {
+			if (file.length() > length) {
+				file.setLength(length);
+			}
+		}
+	}
+
+	@Override
+	public void force() throws IOException {
+		synchronized (file) {
+			file.force();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (file) {
+			file.close();
+		}
+	}
+
+}
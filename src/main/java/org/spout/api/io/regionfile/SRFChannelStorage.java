@@ -0,0 +1,163 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A storage backed by a FileChannel.<br>
+ * <br>
+ * All reads and writes use the positional FileChannel methods, so concurrent accesses to different parts of the file do not contend on a shared monitor or file pointer.<br>
+ * <br>
+ * A FileChannel is closed if a thread is interrupted while performing I/O on it.  When that happens, the channel is transparently re-opened for the other threads using the file and an InterruptedIOException is thrown to the interrupted thread.  Other threads may see the closed channel before it is re-opened, so any ClosedChannelException re-opens the channel and retries, not only the one thrown to the interrupted thread.
+ */
+public class SRFChannelStorage implements SRFStorage {
+
+	private final File filePath;
+	private volatile RandomAccessFile raf;
+	private volatile FileChannel channel;
+	private volatile boolean closed = false;
+
+	public SRFChannelStorage(File filePath) throws FileNotFoundException {
+		this.filePath = filePath;
+		this.raf = new RandomAccessFile(filePath, "rw");
+		this.channel = raf.getChannel();
+	}
+
+	@Override
+	public long length() throws IOException {
+		while (true) {
+			FileChannel c = channel;
+			try {
+				return c.size();
+			} catch (ClosedChannelException e) {
+				reopen(c, e);
+			}
+		}
+	}
+
+	@Override
+	public void read(long position, byte[] b, int off, int len) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+		while (buf.hasRemaining()) {
+			FileChannel c = channel;
+			try {
+				int read = c.read(buf, position + buf.position() - off);
+				if (read < 0) {
+					throw new EOFException("End of file reached when reading " + len + " bytes at position " + position + " of " + filePath);
+				}
+			} catch (ClosedChannelException e) {
+				reopen(c, e);
+			}
+		}
+	}
+
+	@Override
+	public void write(long position, byte[] b, int off, int len) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+		while (buf.hasRemaining()) {
+			FileChannel c = channel;
+			try {
+				c.write(buf, position + buf.position() - off);
+			} catch (ClosedChannelException e) {
+				reopen(c, e);
+			}
+		}
+	}
+
+	@Override
+	public void truncate(long length) throws IOException {
+		while (true) {
+			FileChannel c = channel;
+			try {
+				if (c.size() > length) {
+					c.truncate(length);
+				}
+				return;
+			} catch (ClosedChannelException e) {
+				reopen(c, e);
+			}
+		}
+	}
+
+	@Override
+	public void force() throws IOException {
+		while (true) {
+			FileChannel c = channel;
+			try {
+				c.force(false);
+				return;
+			} catch (ClosedChannelException e) {
+				reopen(c, e);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			raf.close();
+		}
+	}
+
+	/**
+	 * Re-opens the channel after it was closed due to a thread interrupt, unless another thread already re-opened it.<br>
+	 * <br>
+	 * If the current thread was the one interrupted, an InterruptedIOException is thrown after the channel is re-opened.
+	 * 
+	 * @param old the channel that was in use when the exception was thrown
+	 * @param e the exception
+	 * @throws IOException if the storage has been closed, or the current thread was interrupted
+	 */
+	private void reopen(FileChannel old, ClosedChannelException e) throws IOException {
+		synchronized (this) {
+			if (closed) {
+				throw new SRFClosedException("File closed", e);
+			}
+			if (channel == old) {
+				raf = new RandomAccessFile(filePath, "rw");
+				channel = raf.getChannel();
+			}
+		}
+		if (Thread.interrupted()) {
+			Thread.currentThread().interrupt();
+			InterruptedIOException ioe = new InterruptedIOException("Interrupted while accessing " + filePath);
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A compression codec for the blocks of a SimpleRegionFile.<br>
+ * <br>
+ * The codec id and parameter are stored in the region file header, so that the file can always be read with a matching codec.
+ */
+public abstract class SRFCodec {
+
+	/**
+	 * The id for deflate (zlib) compression.  All version 1 region files use this codec.
+	 */
+	public static final int DEFLATE = 0;
+	/**
+	 * The id for the fast LZ codec
+	 */
+	public static final int LZ = 1;
+
+	private static final SRFCodec[] defaults = new SRFCodec[] {new SRFDeflateCodec(), new SRFLZCodec()};
+
+	/**
+	 * Gets the default codec, deflate at the default compression level
+	 * 
+	 * @return the default codec
+	 */
+	public static SRFCodec getDefaultCodec() {
+		return defaults[DEFLATE];
+	}
+
+	/**
+	 * Gets the codec with the default settings for a given codec id
+	 * 
+	 * @param id the codec id
+	 * @return the codec, or null if the id is unknown
+	 */
+	public static SRFCodec getDefaultCodec(int id) {
+		if (id < 0 || id >= defaults.length) {
+			return null;
+		}
+		return defaults[id];
+	}
+
+	/**
+	 * Gets the id of this codec.  This is stored in the region file header.
+	 * 
+	 * @return the codec id
+	 */
+	public abstract int getId();
+
+	/**
+	 * Gets the codec parameter which is required in order to read blocks written by this codec.  This is stored in the region file header.<br>
+	 * <br>
+	 * Settings that do not affect decompression, such as the compression level, are not included.
+	 * 
+	 * @return the codec parameter
+	 */
+	public int getParameter() {
+		return 0;
+	}
+
+	/**
+	 * Gets an OutputStream which compresses data to the given stream.  Closing the returned stream closes the given stream.
+	 * 
+	 * @param out the stream to write the compressed data to
+	 * @return the compressing stream
+	 * @throws IOException on error
+	 */
+	public abstract OutputStream getOutputStream(OutputStream out) throws IOException;
+
+	/**
+	 * Gets an InputStream which returns the decompressed contents of a compressed block.<br>
+	 * <br>
+	 * The returned stream must not read from the data array, since the caller may reuse the array once this method returns.
+	 * 
+	 * @param data the array containing the compressed block
+	 * @param off the offset of the block in the array
+	 * @param len the length of the block
+	 * @return the decompressed stream
+	 * @throws IOException if the block is corrupt
+	 */
+	public abstract InputStream getInputStream(byte[] data, int off, int len) throws IOException;
+
+	/**
+	 * Decompresses a compressed block into a buffer.  The data is written starting at the position of the buffer, and the position is advanced past the end of the data.<br>
+	 * <br>
+	 * The default implementation copies the data from the stream returned by getInputStream.  Codecs should override this method to decompress without creating intermediate streams.
+	 * 
+	 * @param data the array containing the compressed block
+	 * @param off the offset of the block in the array
+	 * @param len the length of the block
+	 * @param dst the buffer to decompress into
+	 * @return the number of bytes decompressed
+	 * @throws IOException if the block is corrupt, or if the decompressed data does not fit in the remaining space of the buffer
+	 */
+	public int decompress(byte[] data, int off, int len, ByteBuffer dst) throws IOException {
+		InputStream in = getInputStream(data, off, len);
+		SRFCodecPool pool = SRFCodecPool.getInstance();
+		byte[] buf = pool.getBuffer(4096);
+		try {
+			int count = 0;
+			int read;
+			while ((read = in.read(buf, 0, buf.length)) != -1) {
+				if (read > dst.remaining()) {
+					throw new SRFException("Decompressed block does not fit in the destination buffer");
+				}
+				dst.put(buf, 0, read);
+				count += read;
+			}
+			return count;
+		} finally {
+			pool.releaseBuffer(buf);
+			in.close();
+		}
+	}
+
+}
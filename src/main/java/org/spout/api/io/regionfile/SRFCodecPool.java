@@ -0,0 +1,329 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A pool of Inflaters, Deflaters and byte buffers for use by the region file codecs.<br>
+ * <br>
+ * Inflaters and Deflaters hold native memory which is only freed when they are ended or finalized, so creating one for each block read or write puts a heavy load on both the native heap and the garbage collector.<br>
+ * <br>
+ * Buffers are pooled in power of two size classes.  Buffers which are larger than the largest size class are not pooled.<br>
+ * <br>
+ * The pool also has a set of worker threads, which are used to compress and decompress blocks in parallel during bulk reads and writes.<br>
+ * <br>
+ * Objects must not be used after they have been released to the pool.
+ */
+public class SRFCodecPool {
+
+	/**
+	 * The default maximum number of idle objects of each type held by the pool
+	 */
+	public static final int DEFAULT_MAX_IDLE = 64;
+
+	private static final int MIN_BUFFER_BITS = 12;
+	private static final int MAX_BUFFER_BITS = 20;
+
+	private final static SRFCodecPool instance = new SRFCodecPool(DEFAULT_MAX_IDLE);
+
+	private final Pool<Inflater> inflaters;
+	private final Pool<Deflater> deflaters;
+	private final List<Pool<byte[]>> buffers;
+
+	private final ExecutorService executor;
+	private final int threads;
+
+	private final AtomicLong created = new AtomicLong(0);
+	private final AtomicLong reused = new AtomicLong(0);
+
+	/**
+	 * Creates a codec pool with one worker thread per processor
+	 * 
+	 * @param maxIdle the maximum number of idle objects of each type, and of each buffer size, held by the pool
+	 */
+	public SRFCodecPool(int maxIdle) {
+		this(maxIdle, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a codec pool
+	 * 
+	 * @param maxIdle the maximum number of idle objects of each type, and of each buffer size, held by the pool
+	 * @param threads the number of worker threads
+	 */
+	public SRFCodecPool(int maxIdle, int threads) {
+		this.threads = threads;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SRF Codec Thread " + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		inflaters = new Pool<Inflater>(maxIdle);
+		deflaters = new Pool<Deflater>(maxIdle);
+		buffers = new ArrayList<Pool<byte[]>>(MAX_BUFFER_BITS - MIN_BUFFER_BITS + 1);
+		for (int i = MIN_BUFFER_BITS; i <= MAX_BUFFER_BITS; i++) {
+			buffers.add(new Pool<byte[]>(maxIdle));
+		}
+	}
+
+	/**
+	 * Gets the process-wide codec pool
+	 * 
+	 * @return the shared pool
+	 */
+	public static SRFCodecPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Gets an Inflater from the pool, or creates a new one if the pool is empty
+	 * 
+	 * @return the inflater
+	 */
+	public Inflater getInflater() {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			created.incrementAndGet();
+			return new Inflater();
+		}
+		reused.incrementAndGet();
+		return inflater;
+	}
+
+	/**
+	 * Resets an Inflater and returns it to the pool.  The inflater is ended if the pool is full.
+	 * 
+	 * @param inflater the inflater
+	 */
+	public void releaseInflater(Inflater inflater) {
+		inflater.reset();
+		if (!inflaters.offer(inflater)) {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Gets a Deflater from the pool, or creates a new one if the pool is empty
+	 * 
+	 * @param level the compression level
+	 * @return the deflater
+	 */
+	public Deflater getDeflater(int level) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			created.incrementAndGet();
+			return new Deflater(level);
+		}
+		reused.incrementAndGet();
+		deflater.setLevel(level);
+		return deflater;
+	}
+
+	/**
+	 * Resets a Deflater and returns it to the pool.  The deflater is ended if the pool is full.
+	 * 
+	 * @param deflater the deflater
+	 */
+	public void releaseDeflater(Deflater deflater) {
+		deflater.reset();
+		if (!deflaters.offer(deflater)) {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Gets a buffer of at least the given size.  The contents of the buffer are undefined.
+	 * 
+	 * @param size the minimum size of the buffer
+	 * @return the buffer
+	 */
+	public byte[] getBuffer(int size) {
+		if (size > 1 << MAX_BUFFER_BITS) {
+			created.incrementAndGet();
+			return new byte[size];
+		}
+		int bits = Math.max(MIN_BUFFER_BITS, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+		byte[] buffer = buffers.get(bits - MIN_BUFFER_BITS).poll();
+		if (buffer == null) {
+			created.incrementAndGet();
+			return new byte[1 << bits];
+		}
+		reused.incrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool.  Any buffer whose length is a power of two within the pooled size classes is pooled, whether or not it was created by the pool.  Other buffers are ignored.
+	 * 
+	 * @param buffer the buffer
+	 */
+	public void releaseBuffer(byte[] buffer) {
+		int length = buffer.length;
+		if (Integer.bitCount(length) != 1) {
+			return;
+		}
+		int bits = Integer.numberOfTrailingZeros(length);
+		if (bits >= MIN_BUFFER_BITS && bits <= MAX_BUFFER_BITS) {
+			buffers.get(bits - MIN_BUFFER_BITS).offer(buffer);
+		}
+	}
+
+	/**
+	 * Runs a set of tasks using the worker threads and waits for them to complete.<br>
+	 * <br>
+	 * The calling thread also runs tasks, so all tasks complete even if the worker threads are busy.
+	 * 
+	 * @param tasks the tasks
+	 * @throws IOException the first exception thrown by a task, once all tasks have completed
+	 */
+	public void runAll(List<? extends Callable<?>> tasks) throws IOException {
+		if (tasks.isEmpty()) {
+			return;
+		}
+		final ConcurrentLinkedQueue<Callable<?>> queue = new ConcurrentLinkedQueue<Callable<?>>(tasks);
+		final AtomicInteger remaining = new AtomicInteger(tasks.size());
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>(null);
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				Callable<?> task;
+				while ((task = queue.poll()) != null) {
+					try {
+						task.call();
+					} catch (Throwable t) {
+						error.compareAndSet(null, t);
+					} finally {
+						if (remaining.decrementAndGet() == 0) {
+							synchronized (remaining) {
+								remaining.notifyAll();
+							}
+						}
+					}
+				}
+			}
+		};
+		int helpers = Math.min(tasks.size() - 1, threads);
+		try {
+			for (int i = 0; i < helpers; i++) {
+				executor.execute(worker);
+			}
+		} catch (RejectedExecutionException e) {
+			// The calling thread runs the remaining tasks
+		}
+		worker.run();
+		boolean interrupted = false;
+		synchronized (remaining) {
+			while (remaining.get() > 0) {
+				try {
+					remaining.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		Throwable t = error.get();
+		if (t instanceof IOException) {
+			throw (IOException) t;
+		} else if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		} else if (t != null) {
+			throw new SRFException("Task failed", t);
+		}
+	}
+
+	/**
+	 * Gets the number of objects which were created because the pool was empty
+	 * 
+	 * @return the number of objects created
+	 */
+	public long getCreated() {
+		return created.get();
+	}
+
+	/**
+	 * Gets the number of objects which were taken from the pool
+	 * 
+	 * @return the number of objects reused
+	 */
+	public long getReused() {
+		return reused.get();
+	}
+
+	private static class Pool<T> {
+
+		private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<T>();
+		private final AtomicInteger size = new AtomicInteger(0);
+		private final int maxIdle;
+
+		public Pool(int maxIdle) {
+			this.maxIdle = maxIdle;
+		}
+
+		public T poll() {
+			T t = idle.poll();
+			if (t != null) {
+				size.decrementAndGet();
+			}
+			return t;
+		}
+
+		public boolean offer(T t) {
+			if (size.incrementAndGet() > maxIdle) {
+				size.decrementAndGet();
+				return false;
+			}
+			idle.offer(t);
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,355 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * A codec which compresses blocks using deflate (zlib), with a configurable compression level and an optional preset dictionary.<br>
+ * <br>
+ * A preset dictionary improves the compression of small blocks which share common content.  The same dictionary must be used to read the blocks.
+ */
+public class SRFDeflateCodec extends SRFCodec {
+
+	/**
+	 * The maximum useful size of a preset dictionary
+	 */
+	public static final int MAX_DICTIONARY_SIZE = 32768;
+
+	private static final int GRAM_LENGTH = 8;
+	private static final int SEGMENT_LENGTH = 32;
+
+	private final int level;
+	private final byte[] dictionary;
+	private final int dictionaryId;
+
+	/**
+	 * Creates a deflate codec using the default compression level
+	 */
+	public SRFDeflateCodec() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Creates a deflate codec
+	 * 
+	 * @param level the compression level, 0 - 9, or -1 for the default level
+	 */
+	public SRFDeflateCodec(int level) {
+		this(level, null);
+	}
+
+	/**
+	 * Creates a deflate codec using a preset dictionary
+	 * 
+	 * @param level the compression level, 0 - 9, or -1 for the default level
+	 * @param dictionary the preset dictionary, or null for no dictionary
+	 */
+	public SRFDeflateCodec(int level, byte[] dictionary) {
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Compression level out of range: " + level);
+		}
+		this.level = level;
+		if (dictionary == null || dictionary.length == 0) {
+			this.dictionary = null;
+			this.dictionaryId = 0;
+		} else {
+			this.dictionary = dictionary.clone();
+			Adler32 adler = new Adler32();
+			adler.update(dictionary);
+			this.dictionaryId = (int) adler.getValue();
+		}
+	}
+
+	@Override
+	public int getId() {
+		return DEFLATE;
+	}
+
+	/**
+	 * Gets the id of the preset dictionary, which is the Adler-32 checksum of the dictionary, or 0 if there is no dictionary
+	 * 
+	 * @return the dictionary id
+	 */
+	@Override
+	public int getParameter() {
+		return dictionaryId;
+	}
+
+	/**
+	 * Gets the compression level
+	 * 
+	 * @return the level
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Gets a copy of the preset dictionary
+	 * 
+	 * @return the dictionary, or null if there is no dictionary
+	 */
+	public byte[] getDictionary() {
+		return dictionary == null ? null : dictionary.clone();
+	}
+
+	@Override
+	public OutputStream getOutputStream(OutputStream out) throws IOException {
+		final SRFCodecPool pool = SRFCodecPool.getInstance();
+		final Deflater deflater = pool.getDeflater(level);
+		if (dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
+		return new BufferedOutputStream(new DeflaterOutputStream(out, deflater) {
+			private boolean released = false;
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					if (!released) {
+						released = true;
+						pool.releaseDeflater(deflater);
+					}
+				}
+			}
+		});
+	}
+
+	@Override
+	public InputStream getInputStream(byte[] data, int off, int len) throws IOException {
+		SRFCodecPool pool = SRFCodecPool.getInstance();
+		Inflater inflater = pool.getInflater();
+		try {
+			inflater.setInput(data, off, len);
+			byte[] result = new byte[Math.max(64, len << 2)];
+			int count = inflate(inflater, result, 0, result.length);
+			while (!inflater.finished()) {
+				result = Arrays.copyOf(result, result.length << 1);
+				count += inflate(inflater, result, count, result.length - count);
+			}
+			return new ByteArrayInputStream(result, 0, count);
+		} finally {
+			pool.releaseInflater(inflater);
+		}
+	}
+
+	@Override
+	public int decompress(byte[] data, int off, int len, ByteBuffer dst) throws IOException {
+		SRFCodecPool pool = SRFCodecPool.getInstance();
+		Inflater inflater = pool.getInflater();
+		try {
+			inflater.setInput(data, off, len);
+			int count = 0;
+			if (dst.hasArray()) {
+				int position = dst.position();
+				count = inflate(inflater, dst.array(), dst.arrayOffset() + position, dst.remaining());
+				dst.position(position + count);
+			}
+			if (!inflater.finished()) {
+				// Direct buffers, and the check for data beyond the end of an array backed buffer, go through a pooled buffer
+				byte[] buf = pool.getBuffer(4096);
+				try {
+					while (!inflater.finished()) {
+						int inflated = inflate(inflater, buf, 0, buf.length);
+						if (inflated > dst.remaining()) {
+							throw new SRFException("Decompressed block does not fit in the destination buffer");
+						}
+						dst.put(buf, 0, inflated);
+						count += inflated;
+					}
+				} finally {
+					pool.releaseBuffer(buf);
+				}
+			}
+			return count;
+		} finally {
+			pool.releaseInflater(inflater);
+		}
+	}
+
+	/**
+	 * Inflates data into an array until either the array range is full or the end of the compressed block is reached
+	 * 
+	 * @param inflater the inflater
+	 * @param dst the destination array
+	 * @param off the offset in the array
+	 * @param len the length of the array range
+	 * @return the number of bytes inflated
+	 * @throws SRFException if the block is corrupt
+	 */
+	private int inflate(Inflater inflater, byte[] dst, int off, int len) throws SRFException {
+		int count = 0;
+		try {
+			while (count < len && !inflater.finished()) {
+				int inflated = inflater.inflate(dst, off + count, len - count);
+				if (inflated == 0 && !inflater.finished()) {
+					if (inflater.needsDictionary()) {
+						if (dictionary == null || inflater.getAdler() != dictionaryId) {
+							throw new SRFException("Compressed block requires an unknown preset dictionary");
+						}
+						inflater.setDictionary(dictionary);
+					} else if (inflater.needsInput()) {
+						throw new SRFException("Unexpected end of compressed block");
+					}
+				}
+				count += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new SRFException("Compressed block is corrupt", e);
+		}
+		return count;
+	}
+
+	/**
+	 * Builds a preset dictionary from a set of sample blocks.<br>
+	 * <br>
+	 * The dictionary is made up of the sections of the samples which contain the byte sequences that are common to the most samples.  The most useful sections are placed at the end of the dictionary, since deflate encodes nearer matches more efficiently.
+	 * 
+	 * @param samples the sample blocks, in uncompressed form
+	 * @param size the maximum size of the dictionary
+	 * @return the dictionary
+	 */
+	public static byte[] trainDictionary(Collection<byte[]> samples, int size) {
+		size = Math.min(size, MAX_DICTIONARY_SIZE);
+
+		// Count the number of samples that contain each sequence
+		Map<Long, int[]> frequency = new HashMap<Long, int[]>();
+		Set<Long> sampleGrams = new HashSet<Long>();
+		for (byte[] sample : samples) {
+			sampleGrams.clear();
+			for (int i = 0; i + GRAM_LENGTH <= sample.length; i++) {
+				sampleGrams.add(readGram(sample, i));
+			}
+			for (Long gram : sampleGrams) {
+				int[] count = frequency.get(gram);
+				if (count == null) {
+					frequency.put(gram, new int[] {1});
+				} else {
+					count[0]++;
+				}
+			}
+		}
+
+		// Score each segment of each sample by how common its sequences are
+		List<Segment> segments = new ArrayList<Segment>();
+		for (byte[] sample : samples) {
+			for (int off = 0; off + SEGMENT_LENGTH <= sample.length; off += SEGMENT_LENGTH >> 1) {
+				long score = 0;
+				for (int i = off; i + GRAM_LENGTH <= off + SEGMENT_LENGTH; i++) {
+					int count = frequency.get(readGram(sample, i))[0];
+					if (count > 1) {
+						score += count - 1;
+					}
+				}
+				if (score > 0) {
+					segments.add(new Segment(sample, off, score));
+				}
+			}
+		}
+		Collections.sort(segments);
+
+		// Pick the best segments, skipping those mostly covered by segments already picked
+		List<Segment> picked = new ArrayList<Segment>();
+		Set<Long> covered = new HashSet<Long>();
+		int length = 0;
+		for (Segment segment : segments) {
+			if (length + SEGMENT_LENGTH > size) {
+				break;
+			}
+			int newGrams = 0;
+			for (int i = segment.off; i + GRAM_LENGTH <= segment.off + SEGMENT_LENGTH; i++) {
+				if (!covered.contains(readGram(segment.sample, i))) {
+					newGrams++;
+				}
+			}
+			if (newGrams << 1 <= SEGMENT_LENGTH - GRAM_LENGTH + 1) {
+				continue;
+			}
+			for (int i = segment.off; i + GRAM_LENGTH <= segment.off + SEGMENT_LENGTH; i++) {
+				covered.add(readGram(segment.sample, i));
+			}
+			picked.add(segment);
+			length += SEGMENT_LENGTH;
+		}
+
+		byte[] result = new byte[length];
+		int pos = length;
+		for (Segment segment : picked) {
+			pos -= SEGMENT_LENGTH;
+			System.arraycopy(segment.sample, segment.off, result, pos, SEGMENT_LENGTH);
+		}
+		return result;
+	}
+
+	private static long readGram(byte[] data, int off) {
+		long gram = 0;
+		for (int i = off; i < off + GRAM_LENGTH; i++) {
+			gram = (gram << 8) | (data[i] & 0xFF);
+		}
+		return gram;
+	}
+
+	private static class Segment implements Comparable<Segment> {
+		private final byte[] sample;
+		private final int off;
+		private final long score;
+
+		public Segment(byte[] sample, int off, long score) {
+			this.sample = sample;
+			this.off = off;
+			this.score = score;
+		}
+
+		@Override
+		public int compareTo(Segment o) {
+			return score > o.score ? -1 : (score == o.score ? 0 : 1);
+		}
+	}
+
+}
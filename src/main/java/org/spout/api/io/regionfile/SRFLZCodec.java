@@ -0,0 +1,327 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A fast codec which compresses blocks using a pure Java implementation of the LZ4 block format.<br>
+ * <br>
+ * It compresses less than deflate, but compression and decompression are several times faster.<br>
+ * <br>
+ * Each compressed block consists of the uncompressed length (int) followed by a single LZ4 block.
+ */
+public class SRFLZCodec extends SRFCodec {
+
+	private static final int MIN_MATCH = 4;
+	private static final int HASH_LOG = 12;
+	private static final int MAX_DISTANCE = 0xFFFF;
+	private static final int LAST_LITERALS = 5;
+	private static final int MATCH_FIND_LIMIT = 12;
+	private static final int SKIP_TRIGGER = 6;
+
+	@Override
+	public int getId() {
+		return LZ;
+	}
+
+	@Override
+	public OutputStream getOutputStream(final OutputStream out) throws IOException {
+		return new ByteArrayOutputStream() {
+			@Override
+			public void close() throws IOException {
+				SRFCodecPool pool = SRFCodecPool.getInstance();
+				byte[] compressed = pool.getBuffer(4 + maxCompressedLength(count));
+				try {
+					compressed[0] = (byte) (count >>> 24);
+					compressed[1] = (byte) (count >>> 16);
+					compressed[2] = (byte) (count >>> 8);
+					compressed[3] = (byte) count;
+					int length = compress(buf, count, compressed, 4);
+					out.write(compressed, 0, length);
+				} finally {
+					pool.releaseBuffer(compressed);
+					out.close();
+				}
+			}
+		};
+	}
+
+	@Override
+	public InputStream getInputStream(byte[] data, int off, int len) throws IOException {
+		byte[] result = new byte[getDecompressedLength(data, off, len)];
+		decompress(data, off + 4, off + len, result);
+		return new ByteArrayInputStream(result);
+	}
+
+	@Override
+	public int decompress(byte[] data, int off, int len, ByteBuffer dst) throws IOException {
+		int length = getDecompressedLength(data, off, len);
+		if (length > dst.remaining()) {
+			throw new SRFException("Decompressed block does not fit in the destination buffer");
+		}
+		int position = dst.position();
+		if (dst.hasArray()) {
+			decompress(data, off + 4, off + len, dst.array(), dst.arrayOffset() + position, length);
+			dst.position(position + length);
+		} else {
+			SRFCodecPool pool = SRFCodecPool.getInstance();
+			byte[] buf = pool.getBuffer(length);
+			try {
+				decompress(data, off + 4, off + len, buf, 0, length);
+				dst.put(buf, 0, length);
+			} finally {
+				pool.releaseBuffer(buf);
+			}
+		}
+		return length;
+	}
+
+	private static int getDecompressedLength(byte[] data, int off, int len) throws SRFException {
+		if (len < 4) {
+			throw new SRFException("Compressed block is too short");
+		}
+		int length = ((data[off] & 0xFF) << 24) | ((data[off + 1] & 0xFF) << 16) | ((data[off + 2] & 0xFF) << 8) | (data[off + 3] & 0xFF);
+		if (length < 0) {
+			throw new SRFException("Compressed block has a negative length");
+		}
+		return length;
+	}
+
+	/**
+	 * Gets the maximum length of the compressed form of data of a given length
+	 * 
+	 * @param length the uncompressed length
+	 * @return the maximum compressed length
+	 */
+	static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Compresses data into an LZ4 block
+	 * 
+	 * @param src the data to compress
+	 * @param srcLen the length of the data
+	 * @param dst the destination array, which must have room for maxCompressedLength(srcLen) bytes
+	 * @param dOff the offset in the destination array
+	 * @return the end of the compressed data in the destination array
+	 */
+	static int compress(byte[] src, int srcLen, byte[] dst, int dOff) {
+		int[] table = new int[1 << HASH_LOG];
+		int anchor = 0;
+		int ip = 0;
+		int limit = srcLen - MATCH_FIND_LIMIT;
+		int matchLimit = srcLen - LAST_LITERALS;
+		int searches = 1 << SKIP_TRIGGER;
+
+		while (ip < limit) {
+			int sequence = readInt(src, ip);
+			int hash = hash(sequence);
+			int ref = table[hash];
+			table[hash] = ip;
+			if (ref >= ip || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+				// Step further on each miss, so that incompressible data is skipped quickly
+				ip += searches++ >>> SKIP_TRIGGER;
+				continue;
+			}
+			searches = 1 << SKIP_TRIGGER;
+
+			while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+				ip--;
+				ref--;
+			}
+
+			int matchLength = MIN_MATCH;
+			while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+				matchLength++;
+			}
+
+			dOff = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, dOff);
+			ip += matchLength;
+			anchor = ip;
+
+			if (ip < limit) {
+				table[hash(readInt(src, ip - 2))] = ip - 2;
+			}
+		}
+
+		int literals = srcLen - anchor;
+		int token = dOff++;
+		if (literals >= 15) {
+			dst[token] = (byte) (15 << 4);
+			dOff = writeLength(literals - 15, dst, dOff);
+		} else {
+			dst[token] = (byte) (literals << 4);
+		}
+		System.arraycopy(src, anchor, dst, dOff, literals);
+		return dOff + literals;
+	}
+
+	/**
+	 * Decompresses an LZ4 block
+	 * 
+	 * @param src the array containing the compressed block
+	 * @param sOff the start of the block
+	 * @param sEnd the end of the block
+	 * @param dst the destination array, which must be exactly the uncompressed length
+	 * @throws SRFException if the block is corrupt
+	 */
+	static void decompress(byte[] src, int sOff, int sEnd, byte[] dst) throws SRFException {
+		decompress(src, sOff, sEnd, dst, 0, dst.length);
+	}
+
+	/**
+	 * Decompresses an LZ4 block into part of an array
+	 * 
+	 * @param src the array containing the compressed block
+	 * @param sOff the start of the block
+	 * @param sEnd the end of the block
+	 * @param dst the destination array
+	 * @param dStart the offset in the destination array
+	 * @param dLen the uncompressed length, which must match the block exactly
+	 * @throws SRFException if the block is corrupt
+	 */
+	static void decompress(byte[] src, int sOff, int sEnd, byte[] dst, int dStart, int dLen) throws SRFException {
+		int dOff = dStart;
+		int dEnd = dStart + dLen;
+		while (true) {
+			if (sOff >= sEnd) {
+				throw new SRFException("Unexpected end of compressed block");
+			}
+			int token = src[sOff++] & 0xFF;
+
+			int literals = token >>> 4;
+			if (literals == 15) {
+				int b;
+				do {
+					if (sOff >= sEnd) {
+						throw new SRFException("Unexpected end of compressed block");
+					}
+					b = src[sOff++] & 0xFF;
+					literals += b;
+				} while (b == 255);
+			}
+			if (literals > sEnd - sOff || literals > dEnd - dOff) {
+				throw new SRFException("Compressed block is corrupt, literal run out of bounds");
+			}
+			System.arraycopy(src, sOff, dst, dOff, literals);
+			sOff += literals;
+			dOff += literals;
+
+			if (sOff == sEnd) {
+				break;
+			}
+
+			if (sEnd - sOff < 2) {
+				throw new SRFException("Unexpected end of compressed block");
+			}
+			int offset = (src[sOff] & 0xFF) | ((src[sOff + 1] & 0xFF) << 8);
+			sOff += 2;
+			if (offset == 0 || offset > dOff - dStart) {
+				throw new SRFException("Compressed block is corrupt, match offset out of bounds");
+			}
+
+			int matchLength = token & 0x0F;
+			if (matchLength == 15) {
+				int b;
+				do {
+					if (sOff >= sEnd) {
+						throw new SRFException("Unexpected end of compressed block");
+					}
+					b = src[sOff++] & 0xFF;
+					matchLength += b;
+				} while (b == 255);
+			}
+			matchLength += MIN_MATCH;
+			if (matchLength > dEnd - dOff) {
+				throw new SRFException("Compressed block is corrupt, match out of bounds");
+			}
+
+			// Overlapping matches repeat the last offset bytes, so the copy is done in steps which double in size
+			int ref = dOff - offset;
+			int end = dOff + matchLength;
+			while (dOff < end) {
+				int length = Math.min(dOff - ref, end - dOff);
+				System.arraycopy(dst, ref, dst, dOff, length);
+				dOff += length;
+			}
+		}
+		if (dOff != dEnd) {
+			throw new SRFException("Compressed block is corrupt, decompressed length mismatch");
+		}
+	}
+
+	private static int writeSequence(byte[] src, int literalStart, int literals, int offset, int matchLength, byte[] dst, int dOff) {
+		int token = dOff++;
+		int tokenValue;
+		if (literals >= 15) {
+			tokenValue = 15 << 4;
+			dOff = writeLength(literals - 15, dst, dOff);
+		} else {
+			tokenValue = literals << 4;
+		}
+		System.arraycopy(src, literalStart, dst, dOff, literals);
+		dOff += literals;
+
+		dst[dOff++] = (byte) offset;
+		dst[dOff++] = (byte) (offset >>> 8);
+
+		int extraLength = matchLength - MIN_MATCH;
+		if (extraLength >= 15) {
+			tokenValue |= 15;
+			dOff = writeLength(extraLength - 15, dst, dOff);
+		} else {
+			tokenValue |= extraLength;
+		}
+		dst[token] = (byte) tokenValue;
+		return dOff;
+	}
+
+	private static int writeLength(int length, byte[] dst, int dOff) {
+		while (length >= 255) {
+			dst[dOff++] = (byte) 255;
+			length -= 255;
+		}
+		dst[dOff++] = (byte) length;
+		return dOff;
+	}
+
+	private static int readInt(byte[] buf, int off) {
+		return (buf[off] & 0xFF) | ((buf[off + 1] & 0xFF) << 8) | ((buf[off + 2] & 0xFF) << 16) | ((buf[off + 3] & 0xFF) << 24);
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+
+}
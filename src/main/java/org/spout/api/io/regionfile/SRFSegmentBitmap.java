@@ -0,0 +1,250 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock free bitmap which records the segments of a SimpleRegionFile which are in use.<br>
+ * <br>
+ * The bitmap is stored as chunks of 64 bit words.  It expands as required, and chunks are never copied, so that concurrent updates are never lost during expansion.  Segments beyond the end of the bitmap are free.
+ */
+public class SRFSegmentBitmap {
+
+	private static final int CHUNK_SHIFT = 10;
+	private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+	private final AtomicReference<AtomicLongArray[]> chunks = new AtomicReference<AtomicLongArray[]>(new AtomicLongArray[0]);
+
+	/**
+	 * Gets if a segment is in use
+	 * 
+	 * @param i the segment index
+	 * @return true if in use
+	 */
+	public boolean get(int i) {
+		return (getWord(i >>> 6) & (1L << i)) != 0;
+	}
+
+	/**
+	 * Reserves a group of segments.  If all segments can't be reserved, any reserved segments are immediately released.
+	 * 
+	 * @param start the index of the first segment
+	 * @param length the number of segments to reserve
+	 * @return the number of free segments from the start of the group to the first segment that was in use (this is equal to length on success)
+	 */
+	public int reserve(int start, int length) {
+		int end = start + length;
+		int i = start;
+		while (i < end) {
+			int wordIndex = i >>> 6;
+			int bits = Math.min(64 - (i & 63), end - i);
+			long mask = getMask(i, bits);
+			AtomicLongArray chunk = getChunk(wordIndex >>> CHUNK_SHIFT);
+			int index = wordIndex & CHUNK_MASK;
+			while (true) {
+				long word = chunk.get(index);
+				if ((word & mask) != 0) {
+					release(start, i - start);
+					return (wordIndex << 6) + Long.numberOfTrailingZeros(word & mask) - start;
+				}
+				if (chunk.compareAndSet(index, word, word | mask)) {
+					break;
+				}
+			}
+			i += bits;
+		}
+		return length;
+	}
+
+	/**
+	 * Releases a group of segments
+	 * 
+	 * @param start the index of the first segment
+	 * @param length the number of segments to release
+	 * @return true if all the segments were in use
+	 */
+	public boolean release(int start, int length) {
+		boolean success = true;
+		int end = start + length;
+		int i = start;
+		while (i < end) {
+			int wordIndex = i >>> 6;
+			int bits = Math.min(64 - (i & 63), end - i);
+			long mask = getMask(i, bits);
+			AtomicLongArray chunk = getChunk(wordIndex >>> CHUNK_SHIFT);
+			int index = wordIndex & CHUNK_MASK;
+			while (true) {
+				long word = chunk.get(index);
+				if (chunk.compareAndSet(index, word, word & ~mask)) {
+					success &= (word & mask) == mask;
+					break;
+				}
+			}
+			i += bits;
+		}
+		return success;
+	}
+
+	/**
+	 * Gets the index of the first free segment at or after a given segment
+	 * 
+	 * @param from the segment to start searching from
+	 * @return the index of the free segment
+	 */
+	public int nextFree(int from) {
+		int wordIndex = from >>> 6;
+		long word = ~getWord(wordIndex) & (-1L << from);
+		while (word == 0) {
+			word = ~getWord(++wordIndex);
+		}
+		return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	/**
+	 * Gets the index of the first segment in use at or after a given segment
+	 * 
+	 * @param from the segment to start searching from
+	 * @return the index of the segment, or -1 if there are no segments in use after the given segment
+	 */
+	public int nextUsed(int from) {
+		int wordIndex = from >>> 6;
+		int words = chunks.get().length << CHUNK_SHIFT;
+		if (wordIndex >= words) {
+			return -1;
+		}
+		long word = getWord(wordIndex) & (-1L << from);
+		while (word == 0) {
+			if (++wordIndex >= words) {
+				return -1;
+			}
+			word = getWord(wordIndex);
+		}
+		return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	/**
+	 * Finds the first group of free segments of a given length at or after a given segment.  The segments are not reserved.
+	 * 
+	 * @param from the segment to start searching from
+	 * @param length the number of segments required
+	 * @return the index of the first segment in the group
+	 */
+	public int findFree(int from, int length) {
+		int start = nextFree(from);
+		while (true) {
+			int used = nextUsed(start);
+			if (used < 0 || used - start >= length) {
+				return start;
+			}
+			start = nextFree(used);
+		}
+	}
+
+	/**
+	 * Gets the index of the last segment in use
+	 * 
+	 * @return the index of the segment, or -1 if no segments are in use
+	 */
+	public int lastUsed() {
+		AtomicLongArray[] localChunks = chunks.get();
+		for (int c = localChunks.length - 1; c >= 0; c--) {
+			AtomicLongArray chunk = localChunks[c];
+			for (int i = CHUNK_MASK; i >= 0; i--) {
+				long word = chunk.get(i);
+				if (word != 0) {
+					return (((c << CHUNK_SHIFT) + i) << 6) + 63 - Long.numberOfLeadingZeros(word);
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the number of segments in use
+	 * 
+	 * @return the number of segments
+	 */
+	public int count() {
+		int count = 0;
+		for (AtomicLongArray chunk : chunks.get()) {
+			for (int i = 0; i <= CHUNK_MASK; i++) {
+				count += Long.bitCount(chunk.get(i));
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Gets a word of the bitmap without expanding the bitmap
+	 * 
+	 * @param wordIndex the index of the word
+	 * @return the word, or 0 if the word is beyond the end of the bitmap
+	 */
+	private long getWord(int wordIndex) {
+		AtomicLongArray[] localChunks = chunks.get();
+		int chunkIndex = wordIndex >>> CHUNK_SHIFT;
+		if (chunkIndex >= localChunks.length) {
+			return 0;
+		}
+		return localChunks[chunkIndex].get(wordIndex & CHUNK_MASK);
+	}
+
+	/**
+	 * Gets a chunk of the bitmap, expanding the bitmap if required
+	 * 
+	 * @param chunkIndex the index of the chunk
+	 * @return the chunk
+	 */
+	private AtomicLongArray getChunk(int chunkIndex) {
+		while (true) {
+			AtomicLongArray[] oldChunks = chunks.get();
+			if (chunkIndex < oldChunks.length) {
+				return oldChunks[chunkIndex];
+			}
+			AtomicLongArray[] newChunks = new AtomicLongArray[chunkIndex + 1];
+			System.arraycopy(oldChunks, 0, newChunks, 0, oldChunks.length);
+			for (int i = oldChunks.length; i < newChunks.length; i++) {
+				newChunks[i] = new AtomicLongArray(1 << CHUNK_SHIFT);
+			}
+			chunks.compareAndSet(oldChunks, newChunks);
+		}
+	}
+
+	/**
+	 * Gets the mask for a group of bits within a word
+	 * 
+	 * @param start the index of the first segment
+	 * @param bits the number of bits, which must not extend past the end of the word
+	 * @return the mask
+	 */
+	private static long getMask(int start, int bits) {
+		return (bits == 64 ? -1L : ((1L << bits) - 1)) << start;
+	}
+
+}
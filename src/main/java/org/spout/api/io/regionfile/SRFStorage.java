@@ -0,0 +1,90 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.IOException;
+
+/**
+ * Provides positional access to the file backing a SimpleRegionFile.<br>
+ * <br>
+ * Implementations must be thread safe.  Reads and writes do not have a shared file pointer, so concurrent operations on non-overlapping regions of the file must not interfere with each other.
+ */
+public interface SRFStorage {
+
+	/**
+	 * Gets the length of the file
+	 * 
+	 * @return the length in bytes
+	 * @throws IOException on error
+	 */
+	public long length() throws IOException;
+
+	/**
+	 * Reads len bytes starting at the given position in the file
+	 * 
+	 * @param position the file position
+	 * @param b the destination buffer
+	 * @param off the offset into the buffer
+	 * @param len the number of bytes to read
+	 * @throws IOException on error, or if the end of the file is reached before len bytes are read
+	 */
+	public void read(long position, byte[] b, int off, int len) throws IOException;
+
+	/**
+	 * Writes len bytes starting at the given position in the file
+	 * 
+	 * @param position the file position
+	 * @param b the source buffer
+	 * @param off the offset into the buffer
+	 * @param len the number of bytes to write
+	 * @throws IOException on error
+	 */
+	public void write(long position, byte[] b, int off, int len) throws IOException;
+
+	/**
+	 * Truncates the file to the given length.  If the file is not longer than the given length, it is unchanged.
+	 * 
+	 * @param length the new length
+	 * @throws IOException on error
+	 */
+	public void truncate(long length) throws IOException;
+
+	/**
+	 * Forces all data written to the file to be written to the storage device
+	 * 
+	 * @throws IOException on error
+	 */
+	public void force() throws IOException;
+
+	/**
+	 * Closes the file
+	 * 
+	 * @throws IOException on error
+	 */
+	public void close() throws IOException;
+
+}
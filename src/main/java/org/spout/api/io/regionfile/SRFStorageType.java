@@ -0,0 +1,62 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The types of storage that can be used to back a SimpleRegionFile.<br>
+ * <br>
+ * All types use the same on-disk format, so a file written using one type can be opened using any other.
+ */
+public enum SRFStorageType {
+	/**
+	 * A page cached RandomAccessFile.  All file access is serialized.
+	 */
+	CACHED,
+	/**
+	 * A FileChannel using positional reads and writes.  Accesses to different blocks do not contend.
+	 */
+	CHANNEL;
+
+	/**
+	 * Opens a storage of this type
+	 * 
+	 * @param filePath the path to the file
+	 * @return the storage
+	 * @throws IOException on error
+	 */
+	public SRFStorage open(File filePath) throws IOException {
+		switch (this) {
+			case CHANNEL:
+				return new SRFChannelStorage(filePath);
+			default:
+				return new SRFCachedStorage(filePath);
+		}
+	}
+}
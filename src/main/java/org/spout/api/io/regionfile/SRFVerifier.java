@@ -0,0 +1,516 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Verifies and repairs SimpleRegionFiles offline.<br>
+ * <br>
+ * The header and FAT of each file are read directly, so that files which can not be opened as a SimpleRegionFile, such as files with overlapping blocks, can still be checked.  Every block is read and fully decompressed.<br>
+ * <br>
+ * A repaired copy contains every block which could be decompressed.  Blocks are written in index order to a new file, so the copy is also compacted.<br>
+ * <br>
+ * When a list of files is checked, the files are scanned in parallel using the threads of the SRFCodecPool.
+ */
+public class SRFVerifier {
+
+	private static final int REPAIR_BATCH = 64;
+	private static final int MAX_SEGMENT_SIZE = 30;
+
+	private final SRFCodecPool pool;
+
+	public SRFVerifier() {
+		this(SRFCodecPool.getInstance());
+	}
+
+	public SRFVerifier(SRFCodecPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Verifies a region file
+	 * 
+	 * @param file the file
+	 * @return the result
+	 */
+	public SRFVerifyResult verify(File file) {
+		return scan(file, null);
+	}
+
+	/**
+	 * Verifies a region file and writes a repaired copy.  The copy is written even if no errors are found, unless the header of the file is invalid.
+	 * 
+	 * @param file the file
+	 * @param target the path of the repaired copy, which must not exist
+	 * @return the result
+	 */
+	public SRFVerifyResult repair(File file, File target) {
+		return scan(file, target);
+	}
+
+	/**
+	 * Verifies a list of region files in parallel
+	 * 
+	 * @param files the files
+	 * @return the results, in the same order as the files
+	 * @throws IOException if the scan was interrupted
+	 */
+	public List<SRFVerifyResult> verify(List<File> files) throws IOException {
+		return scanAll(files, null);
+	}
+
+	/**
+	 * Verifies a list of region files in parallel and writes a repaired copy of each file to a directory.  The copies use the same names as the original files.
+	 * 
+	 * @param files the files
+	 * @param targetDirectory the directory for the repaired copies
+	 * @return the results, in the same order as the files
+	 * @throws IOException if the scan was interrupted
+	 */
+	public List<SRFVerifyResult> repair(List<File> files, File targetDirectory) throws IOException {
+		if (!targetDirectory.isDirectory() && !targetDirectory.mkdirs()) {
+			throw new SRFException("Unable to create directory " + targetDirectory);
+		}
+		return scanAll(files, targetDirectory);
+	}
+
+	private List<SRFVerifyResult> scanAll(List<File> files, File targetDirectory) throws IOException {
+		final SRFVerifyResult[] results = new SRFVerifyResult[files.size()];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(files.size());
+		for (int i = 0; i < results.length; i++) {
+			final int index = i;
+			final File file = files.get(i);
+			final File target = targetDirectory == null ? null : new File(targetDirectory, file.getName());
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					results[index] = scan(file, target);
+					return null;
+				}
+			});
+		}
+		pool.runAll(tasks);
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Verifies a file and optionally writes a repaired copy
+	 * 
+	 * @param file the file
+	 * @param target the repaired copy, or null to only verify the file
+	 * @return the result
+	 */
+	private SRFVerifyResult scan(File file, File target) {
+		SRFVerifyResult result = new SRFVerifyResult(file);
+		long startTime = System.nanoTime();
+		RandomAccessFile raf = null;
+		SimpleRegionFile repaired = null;
+		boolean repairFailed = false;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			int[] fat = readHeader(raf, result);
+			if (fat == null) {
+				return result;
+			}
+			if (target != null && result.getCodec() != null) {
+				if (!target.createNewFile()) {
+					result.addError("Repair target " + target + " already exists");
+				} else {
+					repaired = new SimpleRegionFile(target, result.getSegmentSize(), result.getEntries(), SimpleRegionFile.TIMEOUT, SRFStorageType.CHANNEL, result.getCodec(), result.isCrashSafe());
+				}
+			}
+			checkFAT(raf.length(), fat, result);
+			int repairedBlocks = readBlocks(raf, fat, result, repaired);
+			if (repaired != null && repairedBlocks >= 0) {
+				result.setRepaired(target, repairedBlocks);
+			}
+			repairFailed = repairedBlocks < 0;
+		} catch (IOException e) {
+			result.addError("Unable to read file: " + e.getMessage());
+			repairFailed = true;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					System.out.println("Unable to close " + file);
+				}
+			}
+			if (repaired != null) {
+				try {
+					repaired.attemptClose();
+				} catch (IOException e) {
+					result.addError("Unable to close repaired file " + target + ": " + e.getMessage());
+					repairFailed = true;
+				}
+				if (repairFailed) {
+					result.setRepaired(null, 0);
+					if (!target.delete()) {
+						System.out.println("Unable to delete incomplete repaired file " + target);
+					}
+				}
+			}
+			result.setTime(System.nanoTime() - startTime);
+		}
+		return result;
+	}
+
+	/**
+	 * Reads and checks the header of a file.  If the header is valid, the FAT is returned as pairs of segment start and length.
+	 * 
+	 * @param raf the file
+	 * @param result the result to update
+	 * @return the FAT, or null if the header is invalid
+	 * @throws IOException on error
+	 */
+	private int[] readHeader(RandomAccessFile raf, SRFVerifyResult result) throws IOException {
+		long fileLength = raf.length();
+		byte[] header = new byte[SimpleRegionFile.getFATOffset(SimpleRegionFile.VERSION)];
+		if (fileLength < SimpleRegionFile.getFATOffset(SimpleRegionFile.VERSION_1)) {
+			result.addError("File is too short to contain a header (" + fileLength + " bytes)");
+			return null;
+		}
+		raf.seek(0);
+		raf.readFully(header, 0, (int) Math.min(header.length, fileLength));
+
+		int version = SimpleRegionFile.readInt(header, 0);
+		if (version != SimpleRegionFile.VERSION && version != SimpleRegionFile.VERSION_1) {
+			result.addError("Unsupported region file version " + version);
+			return null;
+		}
+		int segmentSize = SimpleRegionFile.readInt(header, 4);
+		if (segmentSize < 0 || segmentSize > MAX_SEGMENT_SIZE) {
+			result.addError("Invalid segment size " + segmentSize);
+			return null;
+		}
+		int entries = SimpleRegionFile.readInt(header, 8);
+		long headerSize = SimpleRegionFile.getFATOffset(version) + 8L * entries;
+		if (entries <= 0 || headerSize > Integer.MAX_VALUE) {
+			result.addError("Invalid number of entries " + entries);
+			return null;
+		}
+		if (fileLength < headerSize) {
+			result.addError("File is too short to contain a header for " + entries + " entries (" + fileLength + " bytes)");
+			return null;
+		}
+
+		SRFCodec codec;
+		int flags;
+		if (version == SimpleRegionFile.VERSION_1) {
+			codec = SRFCodec.getDefaultCodec(SRFCodec.DEFLATE);
+			flags = 0;
+		} else {
+			int id = SimpleRegionFile.readInt(header, 12);
+			int parameter = SimpleRegionFile.readInt(header, 16);
+			codec = SimpleRegionFile.getCodec(id, parameter, SRFCodec.getDefaultCodec());
+			if (codec == null) {
+				result.addError("Unknown codec " + id + " (parameter " + parameter + "), blocks can not be decompressed");
+			}
+			flags = SimpleRegionFile.readInt(header, 20);
+		}
+		result.setHeader(version, segmentSize, entries, codec, (flags & SimpleRegionFile.FLAG_CHECKSUMS) != 0, (flags & SimpleRegionFile.FLAG_SHADOW_WRITES) != 0);
+
+		byte[] fatBytes = new byte[entries << 3];
+		raf.seek(SimpleRegionFile.getFATOffset(version));
+		raf.readFully(fatBytes);
+		int[] fat = new int[entries << 1];
+		for (int i = 0; i < fat.length; i++) {
+			fat[i] = SimpleRegionFile.readInt(fatBytes, i << 2);
+		}
+		return fat;
+	}
+
+	/**
+	 * Checks that every block lies within the file, after the header, and that no two blocks overlap
+	 * 
+	 * @param fileLength the length of the file
+	 * @param fat the FAT
+	 * @param result the result to update
+	 */
+	private void checkFAT(long fileLength, final int[] fat, SRFVerifyResult result) {
+		int segmentSize = result.getSegmentSize();
+		long headerSize = SimpleRegionFile.getHeaderSize(result.getVersion(), result.getEntries());
+		long headerEnd = (headerSize + (1 << segmentSize) - 1) >> segmentSize;
+		List<Integer> used = new ArrayList<Integer>();
+		for (int i = 0; i < result.getEntries(); i++) {
+			int start = fat[i << 1];
+			int length = fat[(i << 1) + 1];
+			if (length < 0) {
+				result.addError("Block " + i + " has a negative length " + length);
+			} else if (length > 0) {
+				if (start < headerEnd) {
+					result.addError("Block " + i + " overlaps the file header");
+				}
+				if ((((long) start) << segmentSize) + length > fileLength) {
+					result.addError("Block " + i + " extends past the end of the file");
+				}
+				if (result.hasChecksums() && length < 4) {
+					result.addError("Block " + i + " is too short to contain a checksum");
+				}
+				used.add(i);
+			}
+		}
+		Integer[] order = used.toArray(new Integer[used.size()]);
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int startA = fat[a << 1];
+				int startB = fat[b << 1];
+				return startA < startB ? -1 : (startA == startB ? 0 : 1);
+			}
+		});
+		long end = 0;
+		int last = -1;
+		for (int j = 0; j < order.length; j++) {
+			int i = order[j];
+			long start = ((long) fat[i << 1]) << segmentSize;
+			if (last != -1 && start < end) {
+				result.addError("Reserved segments for Block " + i + " overlap with Block " + last);
+			}
+			long blockEnd = start + (((fat[(i << 1) + 1] + (1L << segmentSize) - 1) >> segmentSize) << segmentSize);
+			if (blockEnd > end) {
+				end = blockEnd;
+				last = i;
+			}
+		}
+	}
+
+	/**
+	 * Reads and decompresses every block in a file.  If a repaired file is given, the decompressed blocks are written to it.
+	 * 
+	 * @param raf the file
+	 * @param fat the FAT
+	 * @param result the result to update
+	 * @param repaired the repaired file, or null
+	 * @return the number of blocks written to the repaired file, or -1 if the repaired file could not be written
+	 * @throws IOException if the file could not be read
+	 */
+	private int readBlocks(RandomAccessFile raf, int[] fat, SRFVerifyResult result, SimpleRegionFile repaired) throws IOException {
+		SRFCodec codec = result.getCodec();
+		long fileLength = raf.length();
+		int segmentSize = result.getSegmentSize();
+		int[] batchIndices = new int[REPAIR_BATCH];
+		byte[][] batchData = new byte[REPAIR_BATCH][];
+		int batchSize = 0;
+		int repairedBlocks = 0;
+		byte[] scratch = pool.getBuffer(4096);
+		try {
+			for (int i = 0; i < result.getEntries(); i++) {
+				int length = fat[(i << 1) + 1];
+				if (length == 0) {
+					continue;
+				}
+				long start = ((long) fat[i << 1]) << segmentSize;
+				if (length < 0 || start + length > fileLength || codec == null) {
+					result.addBadBlock(i);
+					result.addBlock(0, 0);
+					continue;
+				}
+				byte[] data = pool.getBuffer(length);
+				ByteArrayOutputStream decompressed = repaired == null ? null : new ByteArrayOutputStream(Math.min(length, 1 << 20) << 2);
+				long inflated = 0;
+				try {
+					raf.seek(start);
+					raf.readFully(data, 0, length);
+					int dataLength = length;
+					if (result.hasChecksums()) {
+						dataLength -= 4;
+						if (dataLength < 0 || SimpleRegionFile.readInt(data, dataLength) != SimpleRegionFile.getChecksum(data, 0, dataLength)) {
+							throw new SRFException("Checksum mismatch");
+						}
+					}
+					InputStream in = codec.getInputStream(data, 0, dataLength);
+					int read;
+					while ((read = in.read(scratch, 0, scratch.length)) != -1) {
+						if (decompressed != null) {
+							decompressed.write(scratch, 0, read);
+						}
+						inflated += read;
+					}
+					in.close();
+				} catch (IOException e) {
+					result.addError("Block " + i + " could not be decompressed: " + e.getMessage());
+					result.addBadBlock(i);
+					result.addBlock(0, 0);
+					continue;
+				} catch (RuntimeException e) {
+					result.addError("Block " + i + " could not be decompressed: " + e);
+					result.addBadBlock(i);
+					result.addBlock(0, 0);
+					continue;
+				} finally {
+					pool.releaseBuffer(data);
+				}
+				result.addBlock(length, inflated);
+				if (repaired != null) {
+					batchIndices[batchSize] = i;
+					batchData[batchSize++] = decompressed.toByteArray();
+					if (batchSize == REPAIR_BATCH) {
+						if (!writeBatch(repaired, batchIndices, batchData, batchSize, result)) {
+							return -1;
+						}
+						repairedBlocks += batchSize;
+						batchSize = 0;
+					}
+				}
+			}
+			if (repaired != null) {
+				if (!writeBatch(repaired, batchIndices, batchData, batchSize, result)) {
+					return -1;
+				}
+				repairedBlocks += batchSize;
+			}
+			return repairedBlocks;
+		} finally {
+			pool.releaseBuffer(scratch);
+		}
+	}
+
+	/**
+	 * Writes a batch of blocks to a repaired file
+	 * 
+	 * @param repaired the repaired file
+	 * @param indices the block indexes
+	 * @param data the block data
+	 * @param size the number of blocks in the batch
+	 * @param result the result to update
+	 * @return true on success
+	 */
+	private boolean writeBatch(SimpleRegionFile repaired, int[] indices, byte[][] data, int size, SRFVerifyResult result) {
+		if (size == 0) {
+			return true;
+		}
+		try {
+			if (size == indices.length) {
+				repaired.writeBlocks(indices, data);
+			} else {
+				repaired.writeBlocks(Arrays.copyOf(indices, size), Arrays.copyOf(data, size));
+			}
+			Arrays.fill(data, null);
+			return true;
+		} catch (IOException e) {
+			result.addError("Unable to write repaired file: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Verifies region files from the command line.<br>
+	 * <br>
+	 * Usage: SRFVerifier [-repair &lt;output directory&gt;] [-suffix &lt;file name suffix&gt;] &lt;file or directory&gt;...<br>
+	 * <br>
+	 * Directories are scanned recursively.  The exit code is 1 if any file has errors.
+	 * 
+	 * @param args the command line arguments
+	 * @throws IOException if the scan was interrupted
+	 */
+	public static void main(String[] args) throws IOException {
+		File repairDirectory = null;
+		String suffix = "";
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-repair") && i + 1 < args.length) {
+				repairDirectory = new File(args[++i]);
+			} else if (args[i].equals("-suffix") && i + 1 < args.length) {
+				suffix = args[++i];
+			} else {
+				paths.add(args[i]);
+			}
+		}
+		List<File> files = new ArrayList<File>();
+		for (String path : paths) {
+			addFiles(new File(path), suffix, files);
+		}
+		if (files.isEmpty()) {
+			System.out.println("Usage: SRFVerifier [-repair <output directory>] [-suffix <file name suffix>] <file or directory>...");
+			return;
+		}
+
+		SRFVerifier verifier = new SRFVerifier();
+		long start = System.nanoTime();
+		List<SRFVerifyResult> results = repairDirectory == null ? verifier.verify(files) : verifier.repair(files, repairDirectory);
+		long time = System.nanoTime() - start;
+
+		int invalid = 0;
+		int blocks = 0;
+		int badBlocks = 0;
+		long stored = 0;
+		long inflated = 0;
+		for (SRFVerifyResult result : results) {
+			System.out.println(result);
+			if (!result.isValid()) {
+				invalid++;
+			}
+			blocks += result.getBlocks();
+			badBlocks += result.getBadBlocks().length;
+			stored += result.getStoredBytes();
+			inflated += result.getInflatedBytes();
+		}
+		double seconds = time / 1000000000.0;
+		System.out.println(String.format("Scanned %d files, %d blocks (%d bad) in %.2f seconds", results.size(), blocks, badBlocks, seconds));
+		System.out.println(String.format("Read %.1f MB/s stored, %.1f MB/s inflated", stored / seconds / 1048576.0, inflated / seconds / 1048576.0));
+		System.out.println(invalid + " files with errors");
+		if (invalid > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Adds a file, or the files in a directory and its sub-directories, to a list
+	 * 
+	 * @param file the file or directory
+	 * @param suffix the suffix that the names of files in directories must end with
+	 * @param files the list to add to
+	 */
+	private static void addFiles(File file, String suffix, List<File> files) {
+		if (!file.isDirectory()) {
+			files.add(file);
+			return;
+		}
+		File[] children = file.listFiles();
+		if (children == null) {
+			System.out.println("Unable to list directory " + file);
+			return;
+		}
+		Arrays.sort(children);
+		for (File child : children) {
+			if (child.isDirectory() || child.getName().endsWith(suffix)) {
+				addFiles(child, suffix, files);
+			}
+		}
+	}
+}
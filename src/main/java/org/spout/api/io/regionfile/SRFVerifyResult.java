@@ -0,0 +1,265 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of verifying, and optionally repairing, a SimpleRegionFile using a SRFVerifier.
+ */
+public class SRFVerifyResult {
+
+	private final File file;
+	private final List<String> errors = new ArrayList<String>();
+	private final List<Integer> badBlocks = new ArrayList<Integer>();
+	private boolean headerValid = false;
+	private int version;
+	private int segmentSize;
+	private int entries;
+	private SRFCodec codec;
+	private boolean checksums;
+	private boolean shadowWrites;
+	private int blocks;
+	private long storedBytes;
+	private long inflatedBytes;
+	private long time;
+	private File repairedFile;
+	private int repairedBlocks;
+
+	SRFVerifyResult(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Gets the file that was verified
+	 * 
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets if the file has no errors
+	 * 
+	 * @return true if the header is valid and no errors were found
+	 */
+	public boolean isValid() {
+		return headerValid && errors.isEmpty();
+	}
+
+	/**
+	 * Gets if the file header could be read.  If the header is invalid, no blocks are checked.
+	 * 
+	 * @return true if the header is valid
+	 */
+	public boolean isHeaderValid() {
+		return headerValid;
+	}
+
+	/**
+	 * Gets a description of each error found in the file
+	 * 
+	 * @return the errors
+	 */
+	public List<String> getErrors() {
+		return Collections.unmodifiableList(errors);
+	}
+
+	/**
+	 * Gets the indexes of the blocks which could not be read.  These blocks are empty in a repaired copy.
+	 * 
+	 * @return the block indexes, in ascending order
+	 */
+	public int[] getBadBlocks() {
+		int[] indices = new int[badBlocks.size()];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = badBlocks.get(i);
+		}
+		return indices;
+	}
+
+	/**
+	 * Gets the file format version
+	 * 
+	 * @return the version
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets log2 of the segment size
+	 * 
+	 * @return the segment size
+	 */
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Gets the number of blocks (sub-files) in the file
+	 * 
+	 * @return the number of entries
+	 */
+	public int getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Gets the codec used by the file
+	 * 
+	 * @return the codec, or null if the codec is unknown
+	 */
+	public SRFCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Gets if the blocks in the file have checksums
+	 * 
+	 * @return true if the blocks have checksums
+	 */
+	public boolean hasChecksums() {
+		return checksums;
+	}
+
+	/**
+	 * Gets if the file uses shadow writes
+	 * 
+	 * @return true if the file is crash safe
+	 */
+	public boolean isCrashSafe() {
+		return shadowWrites;
+	}
+
+	/**
+	 * Gets the number of non-empty blocks in the file
+	 * 
+	 * @return the number of blocks
+	 */
+	public int getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * Gets the total stored (compressed) length of the blocks which were read
+	 * 
+	 * @return the length in bytes
+	 */
+	public long getStoredBytes() {
+		return storedBytes;
+	}
+
+	/**
+	 * Gets the total decompressed length of the blocks which were read
+	 * 
+	 * @return the length in bytes
+	 */
+	public long getInflatedBytes() {
+		return inflatedBytes;
+	}
+
+	/**
+	 * Gets the time taken to verify, and repair, the file
+	 * 
+	 * @return the time in nanoseconds
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Gets the repaired copy of the file
+	 * 
+	 * @return the repaired file, or null if no copy was written
+	 */
+	public File getRepairedFile() {
+		return repairedFile;
+	}
+
+	/**
+	 * Gets the number of blocks copied to the repaired file
+	 * 
+	 * @return the number of blocks
+	 */
+	public int getRepairedBlocks() {
+		return repairedBlocks;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(isValid() ? "OK   " : "BAD  ").append(file);
+		if (headerValid) {
+			sb.append(" (").append(blocks).append(" blocks, ").append(storedBytes).append(" bytes stored, ").append(inflatedBytes).append(" bytes inflated)");
+		}
+		if (repairedFile != null) {
+			sb.append(", ").append(repairedBlocks).append(" blocks copied to ").append(repairedFile);
+		}
+		for (String error : errors) {
+			sb.append("\n     ").append(error);
+		}
+		return sb.toString();
+	}
+
+	void addError(String error) {
+		errors.add(error);
+	}
+
+	void addBadBlock(int i) {
+		badBlocks.add(i);
+	}
+
+	void setHeader(int version, int segmentSize, int entries, SRFCodec codec, boolean checksums, boolean shadowWrites) {
+		this.headerValid = true;
+		this.version = version;
+		this.segmentSize = segmentSize;
+		this.entries = entries;
+		this.codec = codec;
+		this.checksums = checksums;
+		this.shadowWrites = shadowWrites;
+	}
+
+	void addBlock(long storedBytes, long inflatedBytes) {
+		this.blocks++;
+		this.storedBytes += storedBytes;
+		this.inflatedBytes += inflatedBytes;
+	}
+
+	void setTime(long time) {
+		this.time = time;
+	}
+
+	void setRepaired(File repairedFile, int repairedBlocks) {
+		this.repairedFile = repairedFile;
+		this.repairedBlocks = repairedBlocks;
+	}
+}
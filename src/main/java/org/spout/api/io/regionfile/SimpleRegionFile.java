@@ -26,35 +26,53 @@
  */
 package org.spout.api.io.regionfile;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
+import org.spout.api.io.bytearrayarray.BAAReadHandler;
 import org.spout.api.io.bytearrayarray.ByteArrayArray;
 
 public class SimpleRegionFile implements ByteArrayArray {
 	
-	private static final int VERSION = 1;
-	private static final int TIMEOUT = 120000; // timeout delay
+	static final int VERSION = 2;
+	static final int VERSION_1 = 1;
+	static final int TIMEOUT = 120000; // timeout delay
+	private static final int MAX_BULK_READ = 1 << 20; // largest combined read for bulk reads
 	public static final int FILE_CLOSED = -1;
+	/**
+	 * Header flag indicating that each block is followed by a CRC32 of the block data
+	 */
+	public static final int FLAG_CHECKSUMS = 1;
+	/**
+	 * Header flag indicating that blocks are always written to free segments, and the FAT entry is only updated once the data has been forced to disk
+	 */
+	public static final int FLAG_SHADOW_WRITES = 2;
 
 	private final File filePath;
-	private final CachedRandomAccessFile file;
-	@SuppressWarnings("unused")
+	private final SRFStorage file;
 	private final int version;
 	private final int timeout;
+	private final SRFCodec codec;
+	private final SRFCodecPool pool = SRFCodecPool.getInstance();
+	private final boolean checksums;
+	private final boolean shadowWrites;
 	
 	private final AtomicInteger[] blockSegmentStart;
 	private final AtomicInteger[] blockSegmentLength;
@@ -65,7 +83,13 @@ public class SimpleRegionFile implements ByteArrayArray {
 	private final AtomicBoolean closed;
 	private final AtomicLong lastAccess;
 	
-	private final AtomicReference<AtomicBoolean[]> inuse;
+	private final SRFSegmentBitmap inuse;
+	private final AtomicInteger firstFree;
+	private final ReentrantReadWriteLock sizeLock;
+	private final ConcurrentLinkedQueue<int[]> pendingRelease;
+	private final AtomicLong dataWrites;
+	private final AtomicLong dataForced;
+	private final Object forceLock;
 	private final int segmentSize;
 	private final int segmentMask;
 	private final int entries;
@@ -92,6 +116,73 @@ public class SimpleRegionFile implements ByteArrayArray {
 	 * @throws IOException on error
 	 */
 	public SimpleRegionFile(File filePath, int desiredSegmentSize, int entries, int timeout) throws IOException {
+		this(filePath, desiredSegmentSize, entries, timeout, SRFStorageType.CACHED);
+	}
+	
+	/**
+	 * Creates a SimpleRegionFile
+	 * 
+	 * @param filePath the path to the file
+	 * @param desiredSegmentSize log2(the desired segment size) 
+	 * @param entries the number of blocks (sub-files) in the RegionFile
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param storageType the type of storage used to access the file
+	 * @throws IOException on error
+	 */
+	public SimpleRegionFile(File filePath, int desiredSegmentSize, int entries, int timeout, SRFStorageType storageType) throws IOException {
+		this(filePath, desiredSegmentSize, entries, timeout, storageType, SRFCodec.getDefaultCodec());
+	}
+	
+	/**
+	 * Creates a SimpleRegionFile<br>
+	 * <br>
+	 * The codec is stored in the header when a new file is created.  Existing files are always accessed using the codec recorded in their header.  If that codec has the same id and parameter as the given codec, the given codec is used, so that its compression level is applied to new writes.
+	 * 
+	 * @param filePath the path to the file
+	 * @param desiredSegmentSize log2(the desired segment size) 
+	 * @param entries the number of blocks (sub-files) in the RegionFile
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param storageType the type of storage used to access the file
+	 * @param codec the codec used to compress blocks in new files
+	 * @throws IOException on error
+	 */
+	public SimpleRegionFile(File filePath, int desiredSegmentSize, int entries, int timeout, SRFStorageType storageType, SRFCodec codec) throws IOException {
+		this(filePath, desiredSegmentSize, entries, timeout, storageType, codec, false);
+	}
+	
+	/**
+	 * Creates a SimpleRegionFile<br>
+	 * <br>
+	 * If crash safe mode is selected, new files are created with checksums and shadow writes enabled.  Blocks are then always written to free segments, and the data is forced to disk before the FAT entry is updated, so a crash during a write leaves either the old or the new block.  The forces of concurrent writes are combined.<br>
+	 * <br>
+	 * The mode of an existing file is read from its header.  Version 1 files do not support crash safe mode.
+	 * 
+	 * @param filePath the path to the file
+	 * @param desiredSegmentSize log2(the desired segment size) 
+	 * @param entries the number of blocks (sub-files) in the RegionFile
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param storageType the type of storage used to access the file
+	 * @param codec the codec used to compress blocks in new files
+	 * @param crashSafe true to create new files in crash safe mode
+	 * @throws IOException on error
+	 */
+	public SimpleRegionFile(File filePath, int desiredSegmentSize, int entries, int timeout, SRFStorageType storageType, SRFCodec codec, boolean crashSafe) throws IOException {
+		this(filePath, openStorage(filePath, storageType), desiredSegmentSize, entries, timeout, codec, crashSafe);
+	}
+	
+	/**
+	 * Creates a SimpleRegionFile using the given storage
+	 * 
+	 * @param filePath the path to the file
+	 * @param storage the storage for the file
+	 * @param desiredSegmentSize log2(the desired segment size) 
+	 * @param entries the number of blocks (sub-files) in the RegionFile
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param codec the codec used to compress blocks in new files
+	 * @param crashSafe true to create new files in crash safe mode
+	 * @throws IOException on error
+	 */
+	SimpleRegionFile(File filePath, SRFStorage storage, int desiredSegmentSize, int entries, int timeout, SRFCodec codec, boolean crashSafe) throws IOException {
 		
 		this.filePath = filePath;
 		this.closed = new AtomicBoolean(false);
@@ -100,30 +191,44 @@ public class SimpleRegionFile implements ByteArrayArray {
 		this.lastAccess = new AtomicLong(0);
 		refreshAccess();
 		
-		try {
-			this.file = new CachedRandomAccessFile(this.filePath, "rw");
-		} catch (FileNotFoundException e) {
-			this.closed.set(true);
-			throw new SRFException("Unable to open region file " + this.filePath, e);
-		}
+		this.file = storage;
 		
-		int headerSize = getHeaderSize(entries);
+		byte[] fileHeader = new byte[getFATOffset(VERSION)];
+		long fileLength = file.length();
+		boolean newFile = fileLength < getFATOffset(VERSION_1);
+		if (!newFile) {
+			file.read(0, fileHeader, 0, getFATOffset(VERSION_1));
+			int fileVersion = readInt(fileHeader, 0);
+			if (fileVersion != VERSION && fileVersion != VERSION_1) {
+				file.close();
+				this.closed.set(true);
+				throw new SRFException("Unsupported region file version " + fileVersion + " for file " + this.filePath);
+			}
+			newFile = fileLength < getHeaderSize(fileVersion, entries);
+			if (!newFile && fileVersion == VERSION) {
+				file.read(0, fileHeader, 0, fileHeader.length);
+			}
+		}
 		
-		if (file.length() <= headerSize) {
-			file.seek(0);
-			file.writeInt(VERSION);
-			file.writeInt(desiredSegmentSize);
-			file.writeInt(entries);
-			for (int i = 0; i < entries << 1; i++) {
-				file.writeInt(0);
+		if (newFile) {
+			byte[] header = new byte[getHeaderSize(VERSION, entries)];
+			writeInt(header, 0, VERSION);
+			writeInt(header, 4, desiredSegmentSize);
+			writeInt(header, 8, entries);
+			writeInt(header, 12, codec.getId());
+			writeInt(header, 16, codec.getParameter());
+			writeInt(header, 20, crashSafe ? FLAG_CHECKSUMS | FLAG_SHADOW_WRITES : 0);
+			file.write(0, header, 0, header.length);
+			if (crashSafe) {
+				file.force();
 			}
+			System.arraycopy(header, 0, fileHeader, 0, fileHeader.length);
 		}
 		
-		file.seek(0);
-		this.version = file.readInt();
-		this.segmentSize = file.readInt();
+		this.version = readInt(fileHeader, 0);
+		this.segmentSize = readInt(fileHeader, 4);
 		this.segmentMask = (1 << this.segmentSize) - 1;
-		this.entries = file.readInt();
+		this.entries = readInt(fileHeader, 8);
 		
 		if (entries != this.entries) {
 			file.close();
@@ -131,14 +236,38 @@ public class SimpleRegionFile implements ByteArrayArray {
 			throw new SRFException("Number of entries mismatch for file " + this.filePath + ", expected " + entries + " got " + this.entries);
 		}
 		
-		inuse = new AtomicReference<AtomicBoolean[]>(new AtomicBoolean[0]);
+		if (this.version == VERSION_1) {
+			this.codec = getCodec(SRFCodec.DEFLATE, 0, codec);
+			this.checksums = false;
+			this.shadowWrites = false;
+		} else {
+			this.codec = getCodec(readInt(fileHeader, 12), readInt(fileHeader, 16), codec);
+			int flags = readInt(fileHeader, 20);
+			this.checksums = (flags & FLAG_CHECKSUMS) != 0;
+			this.shadowWrites = (flags & FLAG_SHADOW_WRITES) != 0;
+		}
+		if (this.codec == null) {
+			file.close();
+			this.closed.set(true);
+			throw new SRFException("Unknown codec " + readInt(fileHeader, 12) + " (parameter " + readInt(fileHeader, 16) + ") for file " + this.filePath);
+		}
+		
+		int headerSize = getHeaderSize(this.version, entries);
+		
+		inuse = new SRFSegmentBitmap();
+		sizeLock = new ReentrantReadWriteLock();
+		pendingRelease = new ConcurrentLinkedQueue<int[]>();
+		dataWrites = new AtomicLong(0);
+		dataForced = new AtomicLong(0);
+		forceLock = new Object();
 		
 		int headerSegments = sizeToSegments(headerSize);
 		
-		int segmentsLocked = reserveSegments(0, headerSegments);
+		int segmentsLocked = inuse.reserve(0, headerSegments);
 		if (segmentsLocked != headerSegments) {
 			throw new SRFException("Unabled to lock header segments");
 		}
+		firstFree = new AtomicInteger(headerSegments);
 		
 		blockSegmentStart = new AtomicInteger[entries];
 		blockSegmentLength = new AtomicInteger[entries];
@@ -146,12 +275,15 @@ public class SimpleRegionFile implements ByteArrayArray {
 		blockLock = new SRFReentrantReadWriteLock[entries];
 		numberBlocksLocked = new AtomicInteger(0);
 		
+		byte[] fat = new byte[entries << 3];
+		file.read(getFATOffset(this.version), fat, 0, fat.length);
+		
 		for (int i = 0; i < entries; i++) {
-			blockSegmentStart[i] = new AtomicInteger(file.readInt());
-			blockActualLength[i] = new AtomicInteger(file.readInt());
+			blockSegmentStart[i] = new AtomicInteger(readInt(fat, i << 3));
+			blockActualLength[i] = new AtomicInteger(readInt(fat, (i << 3) + 4));
 			blockSegmentLength[i] = new AtomicInteger(sizeToSegments(blockActualLength[i].get()));
 			blockLock[i] = new SRFReentrantReadWriteLock(numberBlocksLocked);
-			int length = reserveSegments(blockSegmentStart[i].get(), blockSegmentLength[i].get());
+			int length = inuse.reserve(blockSegmentStart[i].get(), blockSegmentLength[i].get());
 			if (length != blockSegmentLength[i].get()) {
 				throw new SRFException("Reserved segments for Block " + i + " overlap with another block");
 			}
@@ -176,19 +308,254 @@ public class SimpleRegionFile implements ByteArrayArray {
 				return null;
 			}
 
-			int start = blockSegmentStart[i].get() << segmentSize;
-			int actualLength = blockActualLength[i].get();
-			byte[] result = new byte[actualLength];
-			synchronized (file) {
-				file.seek(start);
-				file.readFully(result);
-			}
-			return new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(result)));
+			byte[] data = pool.getBuffer(blockActualLength[i].get());
+			try {
+				return codec.getInputStream(data, 0, readStoredData(i, data));
+			} finally {
+				pool.releaseBuffer(data);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int read(int i, ByteBuffer dst) throws IOException {
+		if (i < 0 || i >= entries) {
+			throw new SRFException("Read block index out of range");
+		}
+		refreshAccess();
+		Lock lock = blockLock[i].readLock();
+		lock.lock();
+		try {
+			if (this.isClosed()) {
+				throw new SRFClosedException("File closed");
+			}
+			if (blockActualLength[i].get() == 0) {
+				return -1;
+			}
+			byte[] data = pool.getBuffer(blockActualLength[i].get());
+			try {
+				return codec.decompress(data, 0, readStoredData(i, data), dst);
+			} finally {
+				pool.releaseBuffer(data);
+			}
 		} finally {
 			lock.unlock();
 		}
 	}
 
+	@Override
+	public int read(int i, short[] dst, int off, int len) throws IOException {
+		byte[] bytes = pool.getBuffer(len << 1);
+		try {
+			int count = read(i, ByteBuffer.wrap(bytes, 0, len << 1));
+			if (count == -1) {
+				return -1;
+			}
+			if ((count & 1) != 0) {
+				throw new SRFException("Block " + i + " of file " + filePath + " does not contain a whole number of shorts");
+			}
+			count >>= 1;
+			for (int j = 0; j < count; j++) {
+				dst[off + j] = (short) ((bytes[j << 1] << 8) | (bytes[(j << 1) + 1] & 0xFF));
+			}
+			return count;
+		} finally {
+			pool.releaseBuffer(bytes);
+		}
+	}
+
+	@Override
+	public void readBlocks(int[] indices, final BAAReadHandler handler) throws IOException {
+		int[] sorted = getSortedIndices(indices);
+		refreshAccess();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(sorted.length);
+		List<Integer> empty = new ArrayList<Integer>();
+		int locked = 0;
+		try {
+			for (; locked < sorted.length; locked++) {
+				blockLock[sorted[locked]].readLock().lock();
+			}
+			if (this.isClosed()) {
+				throw new SRFClosedException("File closed");
+			}
+			// Blocks are read in file order, and blocks in adjacent segments are read with a single read
+			Integer[] order = new Integer[sorted.length];
+			for (int j = 0; j < sorted.length; j++) {
+				order[j] = sorted[j];
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int x = blockSegmentStart[a].get();
+					int y = blockSegmentStart[b].get();
+					return x < y ? -1 : (x == y ? 0 : 1);
+				}
+			});
+			int j = 0;
+			while (j < order.length) {
+				int first = order[j];
+				if (blockActualLength[first].get() == 0) {
+					empty.add(first);
+					j++;
+					continue;
+				}
+				int start = blockSegmentStart[first].get();
+				int end = j + 1;
+				int next = start + blockSegmentLength[first].get();
+				while (end < order.length && blockSegmentStart[order[end]].get() == next && blockActualLength[order[end]].get() > 0 && (next - start) << segmentSize < MAX_BULK_READ) {
+					next += blockSegmentLength[order[end]].get();
+					end++;
+				}
+				readRun(order, j, end, start, handler, tasks);
+				j = end;
+			}
+		} finally {
+			for (int j = 0; j < locked; j++) {
+				blockLock[sorted[j]].readLock().unlock();
+			}
+		}
+		for (Integer i : empty) {
+			handler.blockRead(i, null);
+		}
+		pool.runAll(tasks);
+	}
+
+	/**
+	 * Reads a run of blocks which are stored in adjacent segments, and creates the tasks which decompress them.  The blocks must be read locked.
+	 * 
+	 * @param order the block indices in file order
+	 * @param from the position of the first block of the run
+	 * @param to the position after the last block of the run
+	 * @param start the start segment of the run
+	 * @param handler the handler which receives the blocks
+	 * @param tasks the list to add the decompression tasks to
+	 * @throws IOException on error
+	 */
+	private void readRun(Integer[] order, int from, int to, int start, final BAAReadHandler handler, List<Callable<Void>> tasks) throws IOException {
+		int last = order[to - 1];
+		int length = ((blockSegmentStart[last].get() - start) << segmentSize) + blockActualLength[last].get();
+		final byte[] data = pool.getBuffer(length);
+		file.read(((long) start) << segmentSize, data, 0, length);
+		final AtomicInteger remaining = new AtomicInteger(to - from);
+		for (int j = from; j < to; j++) {
+			final int i = order[j];
+			final int offset = (blockSegmentStart[i].get() - start) << segmentSize;
+			final int actualLength = blockActualLength[i].get();
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					try {
+						int compressedLength = actualLength;
+						if (checksums) {
+							compressedLength -= 4;
+							if (compressedLength < 0 || readInt(data, offset + compressedLength) != getChecksum(data, offset, compressedLength)) {
+								throw new SRFException("Checksum mismatch for block " + i + " of file " + filePath);
+							}
+						}
+						handler.blockRead(i, codec.getInputStream(data, offset, compressedLength));
+						return null;
+					} finally {
+						if (remaining.decrementAndGet() == 0) {
+							pool.releaseBuffer(data);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	@Override
+	public void writeBlocks(int[] indices, byte[][] data) throws IOException {
+		if (indices.length != data.length) {
+			throw new IllegalArgumentException("The number of indices and data arrays must match");
+		}
+		int[] sorted = getSortedIndices(indices);
+		refreshAccess();
+		final CompressedBlock[] compressed = new CompressedBlock[indices.length];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(indices.length);
+		for (int j = 0; j < indices.length; j++) {
+			final int position = j;
+			final byte[] blockData = data[j];
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					CompressedBlock block = new CompressedBlock(segmentMask + 1);
+					OutputStream out = codec.getOutputStream(block);
+					out.write(blockData);
+					out.close();
+					compressed[position] = block;
+					return null;
+				}
+			});
+		}
+		pool.runAll(tasks);
+
+		int locked = 0;
+		try {
+			for (; locked < sorted.length; locked++) {
+				blockLock[sorted[locked]].writeLock().lock();
+			}
+			if (this.isClosed()) {
+				throw new SRFClosedException("File closed");
+			}
+			byte[][] bufs = new byte[indices.length][];
+			int[] lengths = new int[indices.length];
+			for (int j = 0; j < indices.length; j++) {
+				bufs[j] = compressed[j].getBuffer();
+				lengths[j] = compressed[j].size();
+			}
+			write(indices, bufs, lengths);
+		} finally {
+			for (int j = 0; j < locked; j++) {
+				blockLock[sorted[j]].writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Checks that the block indices for a bulk operation are in range and distinct, and sorts them into lock order
+	 * 
+	 * @param indices the block indices
+	 * @return a sorted copy of the indices
+	 * @throws SRFException if an index is out of range or repeated
+	 */
+	private int[] getSortedIndices(int[] indices) throws SRFException {
+		int[] sorted = indices.clone();
+		Arrays.sort(sorted);
+		for (int j = 0; j < sorted.length; j++) {
+			if (sorted[j] < 0 || sorted[j] >= entries) {
+				throw new SRFException("Block index out of range");
+			}
+			if (j > 0 && sorted[j] == sorted[j - 1]) {
+				throw new SRFException("Block index " + sorted[j] + " repeated");
+			}
+		}
+		return sorted;
+	}
+
+	/**
+	 * Reads the stored data for a block into an array and verifies the checksum.  The block must be read locked and of non-zero length.
+	 * 
+	 * @param i the block index
+	 * @param data the array, which must be at least the stored length of the block
+	 * @return the length of the compressed data
+	 * @throws IOException on error
+	 */
+	private int readStoredData(int i, byte[] data) throws IOException {
+		long start = ((long) blockSegmentStart[i].get()) << segmentSize;
+		int actualLength = blockActualLength[i].get();
+		file.read(start, data, 0, actualLength);
+		if (checksums) {
+			actualLength -= 4;
+			if (actualLength < 0 || readInt(data, actualLength) != getChecksum(data, actualLength)) {
+				throw new SRFException("Checksum mismatch for block " + i + " of file " + filePath);
+			}
+		}
+		return actualLength;
+	}
+
 	@Override
 	public OutputStream getOutputStream(int i) throws IOException {
 		if (i < 0 || i > entries) {
@@ -200,7 +567,7 @@ public class SimpleRegionFile implements ByteArrayArray {
 		if (this.isClosed()) {
 			throw new SRFClosedException("File closed");
 		}
-		return new BufferedOutputStream(new DeflaterOutputStream(new SRFOutputStream(this, i, this.segmentMask + 1, lock)));
+		return codec.getOutputStream(new SRFOutputStream(this, i, this.segmentMask + 1, lock));
 	}
 	
 	/**
@@ -214,15 +581,204 @@ public class SimpleRegionFile implements ByteArrayArray {
 	 * @throws IOException
 	 */
 	void write(int i, byte[] buf, int length) throws IOException {
+		write(new int[] {i}, new byte[][] {buf}, new int[] {length});
+	}
+	
+	/**
+	 * Writes byte arrays to several blocks.  For files using shadow writes, the data for all the blocks is forced to disk with a single force, before any of the FAT entries are updated.<br>
+	 * <br>
+	 * Note: It is assumed that the blocks are locked when making these changes<br>
+	 * 
+	 * @param indices the block indices
+	 * @param bufs the buffers
+	 * @param lengths the actual block lengths
+	 * @throws IOException
+	 */
+	private void write(int[] indices, byte[][] bufs, int[] lengths) throws IOException {
+		refreshAccess();
+		int count = indices.length;
+		byte[][] checksum = new byte[count][];
+		int[] storedLength = new int[count];
+		for (int j = 0; j < count; j++) {
+			storedLength[j] = lengths[j];
+			if (checksums) {
+				checksum[j] = new byte[4];
+				writeInt(checksum[j], 0, getChecksum(bufs[j], lengths[j]));
+				storedLength[j] += 4;
+			}
+		}
+		Lock lock = sizeLock.readLock();
+		lock.lock();
+		try {
+			if (shadowWrites) {
+				int[] start = new int[count];
+				for (int j = 0; j < count; j++) {
+					start[j] = reserveFreeSegments(sizeToSegments(storedLength[j]));
+					writeData(start[j], bufs[j], lengths[j], checksum[j]);
+				}
+				forceData();
+				for (int j = 0; j < count; j++) {
+					int i = indices[j];
+					int oldStart = blockSegmentStart[i].get();
+					int oldLength = blockSegmentLength[i].get();
+					this.writeFAT(i, start[j], storedLength[j]);
+					blockSegmentStart[i].set(start[j]);
+					blockSegmentLength[i].set(sizeToSegments(storedLength[j]));
+					blockActualLength[i].set(storedLength[j]);
+					releaseSegmentsLater(oldStart, oldLength);
+				}
+			} else {
+				for (int j = 0; j < count; j++) {
+					int start = reserveBlockSegments(indices[j], storedLength[j]);
+					this.writeFAT(indices[j], start, storedLength[j]);
+					writeData(start, bufs[j], lengths[j], checksum[j]);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Forces all data and FAT updates to disk.<br>
+	 * <br>
+	 * For files using shadow writes, segments released by earlier writes are not reused until this method is called, or the FAT updates are forced to disk by a later write.
+	 * 
+	 * @throws IOException on error
+	 */
+	public void sync() throws IOException {
 		refreshAccess();
-		int start = reserveBlockSegments(i, length);
-		synchronized(file) {
-			this.writeFAT(i, start, length);
-			file.seek(start << segmentSize);
-			file.write(buf, 0, length);
+		if (!pinOpen()) {
+			throw new SRFClosedException("File closed");
+		}
+		try {
+			force(dataWrites.incrementAndGet());
+		} finally {
+			numberBlocksLocked.decrementAndGet();
 		}
 	}
 	
+	/**
+	 * Gets if the blocks of this file are followed by checksums
+	 * 
+	 * @return true if checksums are used
+	 */
+	public boolean hasChecksums() {
+		return checksums;
+	}
+	
+	/**
+	 * Gets if this file uses shadow writes, so that a crash during a write can not corrupt the file
+	 * 
+	 * @return true if shadow writes are used
+	 */
+	public boolean isCrashSafe() {
+		return shadowWrites;
+	}
+	
+	/**
+	 * Compacts the file by moving blocks into free space nearer the start of the file, and then truncating the file.<br>
+	 * <br>
+	 * Blocks are moved starting with the block nearest the start of the file.  Each block is locked while it is moved, so the file can be accessed normally during compaction.<br>
+	 * <br>
+	 * A block is never written over its own old data, so a block which only partly fits in the free space before it is first moved past its current position.
+	 * 
+	 * @return the number of blocks moved
+	 * @throws IOException on error
+	 */
+	public int compact() throws IOException {
+		refreshAccess();
+		if (!pinOpen()) {
+			throw new SRFClosedException("File closed");
+		}
+		try {
+			Integer[] blocks = new Integer[entries];
+			for (int i = 0; i < entries; i++) {
+				blocks[i] = i;
+			}
+			Arrays.sort(blocks, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int startA = blockSegmentStart[a].get();
+					int startB = blockSegmentStart[b].get();
+					return startA < startB ? -1 : (startA == startB ? 0 : 1);
+				}
+			});
+			int moved = 0;
+			for (int i : blocks) {
+				if (blockSegmentLength[i].get() == 0) {
+					continue;
+				}
+				Lock lock = blockLock[i].writeLock();
+				lock.lock();
+				try {
+					if (compactBlock(i)) {
+						moved++;
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+			if (shadowWrites) {
+				force(dataWrites.incrementAndGet());
+			}
+			truncate();
+			return moved;
+		} finally {
+			numberBlocksLocked.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Gets the fragmentation ratio of the file.  This is the fraction of the segments before the end of the file which are free.
+	 * 
+	 * @return the fragmentation ratio, between 0 and 1
+	 */
+	public double getFragmentation() {
+		int totalSegments = inuse.lastUsed() + 1;
+		if (totalSegments <= 0) {
+			return 0;
+		}
+		return (totalSegments - inuse.count()) / (double) totalSegments;
+	}
+	
+	/**
+	 * Gets the number of segments which are in use
+	 * 
+	 * @return the number of segments
+	 */
+	public int getUsedSegments() {
+		return inuse.count();
+	}
+	
+	/**
+	 * Gets the number of segments before the end of the file, including free segments
+	 * 
+	 * @return the number of segments
+	 */
+	public int getTotalSegments() {
+		return inuse.lastUsed() + 1;
+	}
+	
+	/**
+	 * Gets the position in the file of the start of a block.  This can be used to order accesses to the file.
+	 * 
+	 * @param i the block index
+	 * @return the position of the block, in bytes
+	 */
+	public long getBlockPosition(int i) {
+		return ((long) blockSegmentStart[i].get()) << segmentSize;
+	}
+	
+	/**
+	 * Gets the codec used to compress the blocks of this file
+	 * 
+	 * @return the codec
+	 */
+	public SRFCodec getCodec() {
+		return codec;
+	}
+	
 	@Override
 	public boolean isTimedOut() {
 		return this.lastAccess.get() + this.timeout < System.currentTimeMillis();
@@ -248,20 +804,60 @@ public class SimpleRegionFile implements ByteArrayArray {
 			return false;
 		}
 
-		synchronized(file) {
+		try {
+			if (shadowWrites) {
+				file.force();
+			}
+		} finally {
 			file.close();
 		}
 		return true;
 	}
 	
+	/**
+	 * Opens the storage for a region file
+	 * 
+	 * @param filePath the path to the file
+	 * @param storageType the type of storage
+	 * @return the storage
+	 * @throws IOException on error
+	 */
+	private static SRFStorage openStorage(File filePath, SRFStorageType storageType) throws IOException {
+		try {
+			return storageType.open(filePath);
+		} catch (FileNotFoundException e) {
+			throw new SRFException("Unable to open region file " + filePath, e);
+		}
+	}
+	
+	/**
+	 * Gets the codec to use for a file
+	 * 
+	 * @param id the codec id from the file header
+	 * @param parameter the codec parameter from the file header
+	 * @param requested the codec requested when opening the file
+	 * @return the codec, or null if no codec matches
+	 */
+	static SRFCodec getCodec(int id, int parameter, SRFCodec requested) {
+		if (requested.getId() == id && requested.getParameter() == parameter) {
+			return requested;
+		}
+		SRFCodec codec = SRFCodec.getDefaultCodec(id);
+		if (codec == null || codec.getParameter() != parameter) {
+			return null;
+		}
+		return codec;
+	}
+	
 	/**
 	 * Gets the size of the header in bytes
 	 * 
+	 * @param version the file version
 	 * @param entries the number of entries
 	 * @return the header size
 	 */
-	private static int getHeaderSize(int entries) {
-		int headerSize = getFATOffset();
+	static int getHeaderSize(int version, int entries) {
+		int headerSize = getFATOffset(version);
 		headerSize += 4 * entries;  // start array (int[entries])
 		headerSize += 4 * entries;  // size array (int[entries])
 		return headerSize;
@@ -270,13 +866,20 @@ public class SimpleRegionFile implements ByteArrayArray {
 	/**
 	 * Gets the FAT base position
 	 * 
+	 * @param version the file version
 	 * @return the base position
 	 */
-	private static int getFATOffset() {
+	static int getFATOffset(int version) {
 		int headerSize = 0;
 		headerSize += 4;            // Version (int)
 		headerSize += 4;            // Segment size (int)
 		headerSize += 4;            // entries (int)
+		if (version == VERSION_1) {
+			return headerSize;
+		}
+		headerSize += 4;            // codec id (int)
+		headerSize += 4;            // codec parameter (int)
+		headerSize += 4;            // flags (int)
 		return headerSize;
 	}
 	
@@ -302,48 +905,246 @@ public class SimpleRegionFile implements ByteArrayArray {
 	}
 	
 	/**
-	 * Releases a segment.
+	 * Releases a group of segments and updates the first free segment hint.
 	 * 
-	 * @param i the segment index
+	 * @param start the index of the first segment
+	 * @param length the number of segments to release
 	 * @return true on success
 	 */
-	private boolean releaseSegment(int i) {
-		boolean oldUsed = setInUse(i, false);
-		return oldUsed;
+	private boolean releaseSegments(int start, int length) {
+		if (length <= 0) {
+			return true;
+		}
+		boolean success = inuse.release(start, length);
+		while (true) {
+			int oldFirstFree = firstFree.get();
+			if (start >= oldFirstFree || firstFree.compareAndSet(oldFirstFree, start)) {
+				return success;
+			}
+		}
 	}
 	
 	/**
-	 * Reserves a segment.
+	 * Reserves the first contiguous group of free segments that is large enough.<br>
+	 * <br>
+	 * The search starts at the first free segment hint.  The hint is only updated on a best effort basis, so free segments before the hint may occasionally be missed.  These are recovered by compaction.
 	 * 
-	 * @param i the segment index
-	 * @return true on success
+	 * @param length the number of segments
+	 * @return the start segment that was reserved
 	 */
-	private boolean reserveSegment(int i) {
-		boolean oldUsed = setInUse(i, true);
-		return !oldUsed;
+	private int reserveFreeSegments(int length) {
+		while (true) {
+			int hint = firstFree.get();
+			int start = inuse.findFree(hint, length);
+			if (inuse.reserve(start, length) == length) {
+				if (start == hint) {
+					firstFree.compareAndSet(hint, inuse.nextFree(start + length));
+				}
+				return start;
+			}
+		}
 	}
 	
 	/**
-	 * Reserves a group of segments.  If all segments can't be locked, any locked segments are immediately released.
+	 * Moves a block into the first free space before its current position, if possible.  The block must be locked for writing by the caller.
 	 * 
-	 * @param start the index of the first segment
-	 * @param length the number of segments to lock
-	 * @return the number of segments locked (this is equal to length on success)
-	 * @throws IOException
+	 * @param i the block index
+	 * @return true if the block was moved
+	 * @throws IOException on error
 	 */
-	private int reserveSegments(int start, int length) throws IOException {
-		int end = start + length;
-		for (int i = start; i < end; i++) {
-			if (!reserveSegment(i)) {
-				for (int j = i - 1; j >= start; j--) {
-					if (!releaseSegment(j)) {
-						throw new SRFException("Release error when releasing a group of segments that had just been locked");
-					}
+	private boolean compactBlock(int i) throws IOException {
+		Lock lock = sizeLock.readLock();
+		lock.lock();
+		try {
+			int oldStart = blockSegmentStart[i].get();
+			int length = blockSegmentLength[i].get();
+			if (length == 0) {
+				return false;
+			}
+			int newStart = inuse.findFree(0, length);
+			if (newStart < oldStart) {
+				return moveBlock(i, newStart);
+			}
+			if (inuse.get(oldStart - 1)) {
+				return false;
+			}
+			// The free space before the block is too small, so the block is moved out of the way and then into the combined free space
+			if (!moveBlock(i, inuse.findFree(oldStart + length, length))) {
+				return false;
+			}
+			if (shadowWrites) {
+				force(dataWrites.incrementAndGet());
+			}
+			newStart = inuse.findFree(0, length);
+			return newStart < oldStart && moveBlock(i, newStart);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Moves a block to a new position.  The data is written to the new position before the FAT is updated.  The block must be locked for writing by the caller.
+	 * 
+	 * @param i the block index
+	 * @param newStart the new start segment
+	 * @return true if the block was moved, or false if the new segments could not be reserved
+	 * @throws IOException on error
+	 */
+	private boolean moveBlock(int i, int newStart) throws IOException {
+		int oldStart = blockSegmentStart[i].get();
+		int length = blockSegmentLength[i].get();
+		int actualLength = blockActualLength[i].get();
+		if (inuse.reserve(newStart, length) != length) {
+			return false;
+		}
+		byte[] data = pool.getBuffer(actualLength);
+		try {
+			file.read(((long) oldStart) << segmentSize, data, 0, actualLength);
+			file.write(((long) newStart) << segmentSize, data, 0, actualLength);
+		} finally {
+			pool.releaseBuffer(data);
+		}
+		if (shadowWrites) {
+			forceData();
+		}
+		writeFAT(i, newStart, actualLength);
+		blockSegmentStart[i].set(newStart);
+		releaseSegmentsLater(oldStart, length);
+		return true;
+	}
+	
+	/**
+	 * Writes block data, followed by its checksum if required
+	 * 
+	 * @param start the start segment
+	 * @param buf the block data
+	 * @param length the length of the block data
+	 * @param checksum the checksum, or null
+	 * @throws IOException on error
+	 */
+	private void writeData(int start, byte[] buf, int length, byte[] checksum) throws IOException {
+		long position = ((long) start) << segmentSize;
+		file.write(position, buf, 0, length);
+		if (checksum != null) {
+			file.write(position + length, checksum, 0, 4);
+		}
+	}
+	
+	/**
+	 * Forces data which has been written by the current thread to disk.  Forces are shared, so if another thread forced the file after the data was written, this method returns immediately.
+	 * 
+	 * @throws IOException on error
+	 */
+	private void forceData() throws IOException {
+		force(dataWrites.incrementAndGet());
+	}
+	
+	/**
+	 * Forces the file to disk, unless a force which covers the given write has already completed.  Segments which were waiting for earlier FAT updates to be forced are released.
+	 * 
+	 * @param write the write count which must be covered by the force
+	 * @throws IOException on error
+	 */
+	private void force(long write) throws IOException {
+		if (dataForced.get() >= write) {
+			return;
+		}
+		synchronized (forceLock) {
+			if (dataForced.get() >= write) {
+				return;
+			}
+			long target = dataWrites.get();
+			List<int[]> released = new ArrayList<int[]>();
+			int[] segments;
+			while ((segments = pendingRelease.poll()) != null) {
+				released.add(segments);
+			}
+			file.force();
+			dataForced.set(target);
+			for (int[] r : released) {
+				if (!releaseSegments(r[0], r[1])) {
+					throw new SRFException("Unable to release segments after force");
 				}
-				return i - start;
 			}
 		}
-		return length;
+	}
+	
+	/**
+	 * Releases segments which are no longer referenced by the FAT.  For files using shadow writes, the segments are not released until the FAT update has been forced to disk.
+	 * 
+	 * @param start the index of the first segment
+	 * @param length the number of segments
+	 * @throws IOException on error
+	 */
+	private void releaseSegmentsLater(int start, int length) throws IOException {
+		if (length <= 0) {
+			return;
+		}
+		if (shadowWrites) {
+			pendingRelease.add(new int[] {start, length});
+		} else if (!releaseSegments(start, length)) {
+			throw new SRFException("Unable to release segments " + start + " to " + (start + length - 1));
+		}
+	}
+	
+	/**
+	 * Gets the CRC32 of block data
+	 * 
+	 * @param buf the block data
+	 * @param length the length of the data
+	 * @return the checksum
+	 */
+	private static int getChecksum(byte[] buf, int length) {
+		return getChecksum(buf, 0, length);
+	}
+	
+	/**
+	 * Gets the CRC32 of block data which is part of a larger array
+	 * 
+	 * @param buf the array
+	 * @param off the offset of the block data in the array
+	 * @param length the length of the data
+	 * @return the checksum
+	 */
+	static int getChecksum(byte[] buf, int off, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(buf, off, length);
+		return (int) crc.getValue();
+	}
+	
+	/**
+	 * Truncates the file after the last segment in use
+	 * 
+	 * @throws IOException on error
+	 */
+	private void truncate() throws IOException {
+		Lock lock = sizeLock.writeLock();
+		lock.lock();
+		try {
+			long end = ((long) (inuse.lastUsed() + 1)) << segmentSize;
+			if (file.length() > end) {
+				file.truncate(end);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Prevents the file from being closed, by incrementing the number of locked blocks, unless the file is already closed.
+	 * 
+	 * @return false if the file is closed
+	 */
+	private boolean pinOpen() {
+		while (true) {
+			int oldValue = numberBlocksLocked.get();
+			if (oldValue == FILE_CLOSED) {
+				return false;
+			}
+			if (numberBlocksLocked.compareAndSet(oldValue, oldValue + 1)) {
+				return true;
+			}
+		}
 	}
 	
 	/**
@@ -353,7 +1154,7 @@ public class SimpleRegionFile implements ByteArrayArray {
 	 * <br>
 	 * If there is space after the current allocation so that it can be expanded to the new size, then it is expanded.<br>
 	 * <br>
-	 * Otherwise, it scans from the start until it finds a large enough group of segments.<br>
+	 * Otherwise, it searches from the first free segment until it finds a large enough group of segments.<br>
 	 * <br>
 	 * This may result in the file length needing to be increased.
 	 * 
@@ -375,10 +1176,8 @@ public class SimpleRegionFile implements ByteArrayArray {
 		int newEnd = oldStart + newLength;
 		
 		if (newLength <= oldLength) { // file has shrunk
-			for (int j = newEnd; j < oldEnd; j++) {
-				if (!this.releaseSegment(j)) {
-					throw new SRFException("Unable to unlock blocks due to file shrinking");
-				}
+			if (!this.releaseSegments(newEnd, oldEnd - newEnd)) {
+				throw new SRFException("Unable to unlock blocks due to file shrinking");
 			}
 			blockLength.set(newLength);
 			blockBytes.set(length);
@@ -386,7 +1185,7 @@ public class SimpleRegionFile implements ByteArrayArray {
 		}
 		
 		int extraLength = newLength - oldLength;
-		int lockedSegments = this.reserveSegments(oldEnd, extraLength);
+		int lockedSegments = inuse.reserve(oldEnd, extraLength);
 		
 		if (lockedSegments == extraLength) {
 			blockLength.set(newLength);
@@ -394,19 +1193,9 @@ public class SimpleRegionFile implements ByteArrayArray {
 			return oldStart;
 		}
 		
-		int newStart = 0;
-		lockedSegments = 0;
-		
-		while (lockedSegments != newLength) {
-			lockedSegments = this.reserveSegments(newStart, newLength);
-			if (lockedSegments != newLength) {
-				newStart = newStart + lockedSegments + 1;
-			}
-		}
+		int newStart = reserveFreeSegments(newLength);
 		
-		for (int j = oldStart; j < oldEnd; j++) {
-			releaseSegment(j);
-		}
+		releaseSegments(oldStart, oldLength);
 		
 		blockStart.set(newStart);
 		blockLength.set(newLength);
@@ -415,60 +1204,49 @@ public class SimpleRegionFile implements ByteArrayArray {
 	}
 	
 	private void writeFAT(int i, int start, int actualLength) throws IOException {
-		int FATEntryPosition = getFATOffset() + (i << 3);
-		synchronized(file) {
-			file.seek(FATEntryPosition);
-			file.writeInt(start);
-			file.writeInt(actualLength);
-		}
+		int FATEntryPosition = getFATOffset(version) + (i << 3);
+		byte[] entry = new byte[8];
+		writeInt(entry, 0, start);
+		writeInt(entry, 4, actualLength);
+		file.write(FATEntryPosition, entry, 0, 8);
 	}
 	
 	/**
-	 * Sets an element in the in use array and returns the old value.
+	 * Reads a big endian int from a byte array
 	 * 
-	 * @param i the segment index
-	 * @param used true if the segment should be in use
-	 * @return the old value
+	 * @param buf the array
+	 * @param off the offset of the int in the array
+	 * @return the int
 	 */
-	private boolean setInUse(int i, boolean used) {
-		AtomicBoolean[] localArray = inuse.get();
-		
-		if (localArray.length <= i) {
-			expandInUseArray(Math.max(i+1, localArray.length * 3 / 2));
-		}
-		
-		localArray = inuse.get();
-		
-		return localArray[i].getAndSet(used);
+	static int readInt(byte[] buf, int off) {
+		return ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16) | ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
 	}
 	
 	/**
-	 * Expands the in use array.  When this method returns, the in use array will be at least newSize elements long
+	 * Writes a big endian int to a byte array
 	 * 
-	 * @param newSize the desired new size
+	 * @param buf the array
+	 * @param off the offset of the int in the array
+	 * @param i the int
+	 */
+	private static void writeInt(byte[] buf, int off, int i) {
+		buf[off] = (byte) (i >> 24);
+		buf[off + 1] = (byte) (i >> 16);
+		buf[off + 2] = (byte) (i >> 8);
+		buf[off + 3] = (byte) i;
+	}
+	
+	/**
+	 * A stream which holds a compressed block for a bulk write, without copying the data when it is complete
 	 */
-	private void expandInUseArray(int newSize) {
+	private static class CompressedBlock extends ByteArrayOutputStream {
 		
-		boolean success = false;
+		public CompressedBlock(int size) {
+			super(size);
+		}
 		
-		while (!success) {
-			AtomicBoolean[] oldArray = inuse.get();
-
-			if (newSize <= oldArray.length) {
-				return;
-			}
-			
-			AtomicBoolean[] newArray = new AtomicBoolean[newSize];
-			
-			for (int i = 0; i < oldArray.length; i++) {
-				newArray[i] = oldArray[i];
-			}
-			
-			for (int i = oldArray.length; i < newSize; i++) {
-				newArray[i] = new AtomicBoolean(false);
-			}
-			
-			success = inuse.compareAndSet(oldArray, newArray);
+		public byte[] getBuffer() {
+			return buf;
 		}
 		
 	}
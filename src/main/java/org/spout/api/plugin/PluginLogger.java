@@ -30,8 +30,11 @@ import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import org.spout.api.Spout;
+import org.spout.api.event.EventManager;
 import org.spout.api.event.server.PluginLoggerEvent;
 
+import com.google.common.base.Supplier;
+
 public class PluginLogger extends Logger {
     private final String tag;
     private Plugin plugin;
@@ -45,8 +48,19 @@ public class PluginLogger extends Logger {
     }
 
     @Override
-    public void log(LogRecord logRecord) {
-        Spout.getEventManager().callEvent(new PluginLoggerEvent(plugin, logRecord));
+    public void log(final LogRecord logRecord) {
+        if (!isLoggable(logRecord.getLevel())) {
+            return;
+        }
+        EventManager manager = Spout.getEventManager();
+        if (manager.isObserved(PluginLoggerEvent.class)) {
+            manager.callEvent(PluginLoggerEvent.class, new Supplier<PluginLoggerEvent>() {
+                @Override
+                public PluginLoggerEvent get() {
+                    return new PluginLoggerEvent(plugin, logRecord);
+                }
+            });
+        }
         logRecord.setMessage(tag + logRecord.getMessage());
         super.log(logRecord);
     }
@@ -30,12 +30,31 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implements a non-reentrant optimistic lock.<br>
+ * <br>
+ * Readers do not lock. They get a sequence number from readLock() and check
+ * that it is unchanged once they have finished reading. A write sets the
+ * sequence number to UNSTABLE while the write lock is held and to a new
+ * value when it is released.<br>
+ * <br>
+ * The lock prefers writers. While a writer is waiting for the lock, readLock()
+ * waits as well, since any read started then would fail validation anyway.
+ * Threads which cannot get the lock straight away spin with exponential
+ * backoff and then yield, before blocking until the lock is released.
  */
 public class OptimisticReadWriteLock {
-
+	public final static int UNSTABLE = 1;
+	/**
+	 * The number of attempts where the thread spins, the spin length doubles
+	 * each attempt
+	 */
+	private final static int SPIN_ATTEMPTS = 6;
+	/**
+	 * The number of attempts where the thread yields, after spinning
+	 */
+	private final static int YIELD_ATTEMPTS = 4;
 	private final AtomicInteger waiting = new AtomicInteger(0);
+	private final AtomicInteger waitingWriters = new AtomicInteger(0);
 	private final AtomicInteger sequence = new AtomicInteger(0);
-	public final static int UNSTABLE = 1;
 
 	/**
 	 * Attempts to read lock the lock.
@@ -47,14 +66,18 @@ public class OptimisticReadWriteLock {
 	}
 
 	/**
-	 * Read locks the lock, and waits if necessary.
+	 * Read locks the lock, and waits if necessary. This method also waits
+	 * while there are writers waiting for the lock.
 	 *
 	 * @return the sequence number
 	 */
 	public int readLock() {
 		int seq;
-		if ((seq = tryReadLock()) != UNSTABLE) {
-			return seq;
+		for (int attempt = 0; attempt < SPIN_ATTEMPTS + YIELD_ATTEMPTS; attempt++) {
+			if ((seq = tryReadLock()) != UNSTABLE && waitingWriters.get() == 0) {
+				return seq;
+			}
+			backoff(attempt);
 		}
 
 		synchronized (this) {
@@ -62,7 +85,7 @@ public class OptimisticReadWriteLock {
 			waiting.incrementAndGet();
 			try {
 				while (true) {
-					if ((seq = tryReadLock()) != UNSTABLE) {
+					if ((seq = tryReadLock()) != UNSTABLE && waitingWriters.get() == 0) {
 						if (interrupted) {
 							Thread.currentThread().interrupt();
 						}
@@ -83,7 +106,11 @@ public class OptimisticReadWriteLock {
 	/**
 	 * Unlocks the lock after reading and returns true if no changes were made
 	 * during the read. This method has no effect on the lock and only indicates
-	 * if a write operation occurred while the read lock was locked.
+	 * if a write operation occurred while the read lock was locked.<br>
+	 * <br>
+	 * This method counts as both a volatile read and write, so it can be used
+	 * to confirm reads of non-volatile data, such as Trove maps or plain
+	 * arrays.
 	 *
 	 * @param sequence the sequence number when the lock was read locked
 	 * @return true if the sequence number has not changed and the lock is not
@@ -97,6 +124,24 @@ public class OptimisticReadWriteLock {
 		return this.sequence.compareAndSet(sequence, sequence);
 	}
 
+	/**
+	 * Checks that no write has started since the lock was read locked.<br>
+	 * <br>
+	 * Unlike readUnlock(int), this is only a volatile read of the sequence
+	 * number, so readers do not contend for the sequence number's cache line.
+	 * It is only valid when all the data read under the lock was read with
+	 * volatile reads, such as from atomic arrays or volatile fields. Plain
+	 * reads may be reordered after a volatile read, so they must be confirmed
+	 * with readUnlock(int).
+	 *
+	 * @param sequence the sequence number when the lock was read locked
+	 * @return true if the sequence number has not changed and the lock is not
+	 *         in the UNSTABLE state
+	 */
+	public boolean validate(int sequence) {
+		return sequence != UNSTABLE && this.sequence.get() == sequence;
+	}
+
 	/**
 	 * Attempts to write lock the lock.
 	 *
@@ -107,6 +152,23 @@ public class OptimisticReadWriteLock {
 		return sequence.getAndSet(UNSTABLE);
 	}
 
+	/**
+	 * Attempts to convert a read lock into a write lock. This only succeeds if
+	 * no write has happened since the lock was read locked, so the data that
+	 * was read is still valid once the write lock is held.
+	 *
+	 * @param sequence the sequence number when the lock was read locked
+	 * @return the sequence number to pass to writeUnlock(int), or
+	 *         OptimisticReadWriteLock.UNSTABLE on fail
+	 */
+	public int tryConvertToWriteLock(int sequence) {
+		if (sequence == UNSTABLE) {
+			throw new IllegalArgumentException("UNSTABLE sequence number passed to tryConvertToWriteLock");
+		}
+
+		return this.sequence.compareAndSet(sequence, UNSTABLE) ? sequence : UNSTABLE;
+	}
+
 	/**
 	 * Write locks the lock, and waits if necessary.
 	 */
@@ -116,26 +178,38 @@ public class OptimisticReadWriteLock {
 			return seq;
 		}
 
-		synchronized (this) {
-			boolean interrupted = false;
-			waiting.incrementAndGet();
-			try {
-				while (true) {
-					if ((seq = tryWriteLock()) != UNSTABLE) {
-						if (interrupted) {
-							Thread.currentThread().interrupt();
+		waitingWriters.incrementAndGet();
+		try {
+			for (int attempt = 0; attempt < SPIN_ATTEMPTS + YIELD_ATTEMPTS; attempt++) {
+				backoff(attempt);
+				if ((seq = tryWriteLock()) != UNSTABLE) {
+					return seq;
+				}
+			}
+
+			synchronized (this) {
+				boolean interrupted = false;
+				waiting.incrementAndGet();
+				try {
+					while (true) {
+						if ((seq = tryWriteLock()) != UNSTABLE) {
+							if (interrupted) {
+								Thread.currentThread().interrupt();
+							}
+							return seq;
+						}
+						try {
+							wait();
+						} catch (InterruptedException ie) {
+							interrupted = true;
 						}
-						return seq;
-					}
-					try {
-						wait();
-					} catch (InterruptedException ie) {
-						interrupted = true;
 					}
+				} finally {
+					waiting.decrementAndGet();
 				}
-			} finally {
-				waiting.decrementAndGet();
 			}
+		} finally {
+			waitingWriters.decrementAndGet();
 		}
 	}
 
@@ -150,7 +224,7 @@ public class OptimisticReadWriteLock {
 				throw new IllegalStateException("Write unlock called when the write lock was not active");
 			}
 		} finally {
-			if (!waiting.compareAndSet(0, 0)) {
+			if (waiting.get() != 0) {
 				synchronized (this) {
 					notifyAll();
 				}
@@ -158,4 +232,22 @@ public class OptimisticReadWriteLock {
 		}
 	}
 
+	/**
+	 * Waits before the next attempt to lock the lock. The first attempts spin
+	 * for twice as long as the previous attempt, or until the write lock is
+	 * released, and later attempts yield.
+	 *
+	 * @param attempt the number of failed attempts
+	 */
+	private void backoff(int attempt) {
+		if (attempt < SPIN_ATTEMPTS) {
+			for (int i = 1 << (attempt + 4); i > 0; i--) {
+				if (sequence.get() != UNSTABLE) {
+					return;
+				}
+			}
+		} else {
+			Thread.yield();
+		}
+	}
 }
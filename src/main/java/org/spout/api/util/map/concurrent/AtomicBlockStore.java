@@ -28,6 +28,7 @@ package org.spout.api.util.map.concurrent;
 
 import org.spout.api.material.source.MaterialSource;
 import org.spout.api.math.Vector3;
+import org.spout.api.util.cuboid.CuboidShortBuffer;
 
 /**
  * This store stores block data for each chunk. Each block can either store a
@@ -176,6 +177,52 @@ public interface AtomicBlockStore {
 	 */
 	public boolean compareAndSetBlock(int x, int y, int z, short expectId, short expectData, short newId, short newData);
 
+	/**
+	 * Sets every block in a cuboid to the same id and data.<br>
+	 * <br>
+	 * The corners are inclusive and are clamped to the store. Each block is
+	 * updated atomically, so no block is ever seen with the new id and the old
+	 * data, but other threads may see the cuboid partially filled while this
+	 * method is running.<br>
+	 * <br>
+	 * The cuboid is marked dirty as a region, rather than block by block.
+	 *
+	 * @param x1 the x coordinate of the first corner
+	 * @param y1 the y coordinate of the first corner
+	 * @param z1 the z coordinate of the first corner
+	 * @param x2 the x coordinate of the second corner
+	 * @param y2 the y coordinate of the second corner
+	 * @param z2 the z coordinate of the second corner
+	 * @param id the block id
+	 * @param data the block data
+	 */
+	public void fill(int x1, int y1, int z1, int x2, int y2, int z2, short id, short data);
+
+	/**
+	 * Copies the block ids from a buffer into the store. The data for the
+	 * copied blocks is set to 0.<br>
+	 * <br>
+	 * The block at (x, y, z) in the store is copied from (baseX + x, baseY +
+	 * y, baseZ + z) in the buffer. Blocks which are outside the buffer are not
+	 * changed.
+	 *
+	 * @param baseX the x coordinate of the store's origin in the buffer
+	 * @param baseY the y coordinate of the store's origin in the buffer
+	 * @param baseZ the z coordinate of the store's origin in the buffer
+	 * @param buffer the buffer containing the block ids
+	 */
+	public void setBlocks(int baseX, int baseY, int baseZ, CuboidShortBuffer buffer);
+
+	/**
+	 * Replaces the id of every block which has a given id. The data of the
+	 * replaced blocks is not changed.
+	 *
+	 * @param fromId the id to replace
+	 * @param toId the new id
+	 * @return the number of blocks which were replaced
+	 */
+	public int replaceAll(short fromId, short toId);
+
 	/**
 	 * Gets if the store would benefit from compression.<br>
 	 * <br>
@@ -190,7 +237,7 @@ public interface AtomicBlockStore {
 	 * Gets a short array containing the block ids in the store.<br>
 	 * <br>
 	 * If the store is updated while this snapshot is being taken, data tearing
-	 * could occur.
+	 * could occur. Bulk writes, such as fill, are never partially included.
 	 *
 	 * @return the array
 	 */
@@ -200,7 +247,7 @@ public interface AtomicBlockStore {
 	 * Copies the block ids in the store into an array.<br>
 	 * <br>
 	 * If the store is updated while this snapshot is being taken, data tearing
-	 * could occur.<br>
+	 * could occur. Bulk writes, such as fill, are never partially included.<br>
 	 * <br>
 	 * If the array is the wrong length or null, a new array is created.
 	 *
@@ -212,7 +259,7 @@ public interface AtomicBlockStore {
 	 * Gets a short array containing the block data for the blocks in the store.<br>
 	 * <br>
 	 * If the store is updated while this snapshot is being taken, data tearing
-	 * could occur.
+	 * could occur. Bulk writes, such as fill, are never partially included.
 	 *
 	 * @return the array
 	 */
@@ -222,7 +269,7 @@ public interface AtomicBlockStore {
 	 * Copies the block data in the store into an array.<br>
 	 * <br>
 	 * If the store is updated while this snapshot is being taken, data tearing
-	 * could occur.<br>
+	 * could occur. Bulk writes, such as fill, are never partially included.<br>
 	 * <br>
 	 * If the array is the wrong length or null, a new array is created.
 	 *
@@ -231,6 +278,17 @@ public interface AtomicBlockStore {
 	 */
 	public short[] getDataArray(short[] array);
 
+	/**
+	 * Gets if every block in the store has the same id and data, and the
+	 * store is stored as a single uniform state.<br>
+	 * <br>
+	 * The block id and data arrays for a uniform store can be created
+	 * without reading each block.
+	 *
+	 * @return true if the store is uniform
+	 */
+	public boolean isUniform();
+
 	/**
 	 * Compresses the store.<br>
 	 * <br>
@@ -242,6 +300,9 @@ public interface AtomicBlockStore {
 	/**
 	 * Gets if the dirty array has overflowed since the last reset.<br>
 	 * <br>
+	 * The array overflows once the number of distinct dirty blocks reaches
+	 * the dirty size of the store. All the dirty blocks are still available
+	 * from the dirty tracker after an overflow.
 	 *
 	 * @return true if there was an overflow
 	 */
@@ -284,5 +345,15 @@ public interface AtomicBlockStore {
 	 * @param z the z coordinate of the dirty block
 	 */
 	public void markDirty(int x, int y, int z);
+
+	/**
+	 * Gets the tracker which records the dirty blocks in the store.<br>
+	 * <br>
+	 * The tracker can be used to iterate over all the dirty blocks without
+	 * allocating, or to find the dirty sections of the store.
+	 *
+	 * @return the dirty block tracker
+	 */
+	public AtomicDirtyBlockTracker getDirtyTracker();
 	
 }
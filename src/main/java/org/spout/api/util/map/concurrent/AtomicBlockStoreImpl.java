@@ -26,30 +26,53 @@
  */
 package org.spout.api.util.map.concurrent;
 
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.spout.api.datatable.DatatableSequenceNumber;
 import org.spout.api.material.block.BlockFullState;
 import org.spout.api.material.source.MaterialSource;
 import org.spout.api.math.Vector3;
+import org.spout.api.util.cuboid.CuboidShortBuffer;
 
 /**
  * This store stores block data for each chunk. Each block can either store a
  * short id, or a short id, a short data value and a reference to a &lt;T&gt;
- * object.
+ * object.<br>
+ * <br>
+ * A store where every block has the same id and data is stored as a single
+ * uniform state, without allocating the block id array. The array is created
+ * when a block is first set to a different state.<br>
+ * <br>
+ * The auxiliary store can be compacted incrementally, while the store is in
+ * use, by calling compressIncremental(int) repeatedly.
  */
 public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 	private final int side;
 	private final int shift;
 	private final int doubleShift;
-	private final AtomicShortArray blockIds;
+	private final AtomicReference<AtomicShortArray> blockIds = new AtomicReference<AtomicShortArray>();
+	private volatile int uniformState = 0;
+	private volatile int uniformSequence = DatatableSequenceNumber.get();
+	private final AtomicInteger writeEpoch = new AtomicInteger(0);
 	private final AtomicBoolean compressing = new AtomicBoolean(false);
+	private final AtomicBoolean compacting = new AtomicBoolean(false);
+	private int compactionCursor = 0;
+	private volatile long reclaimedBytes = 0;
+	private volatile long compactionPauseTime = 0;
+	private volatile long maxCompactionPauseTime = 0;
 	private AtomicIntArrayStore auxStore;
-	private final byte[] dirtyX;
-	private final byte[] dirtyY;
-	private final byte[] dirtyZ;
-	private final AtomicInteger dirtyBlocks = new AtomicInteger(0);
+	private final int dirtySize;
+	private final AtomicDirtyBlockTracker dirty;
+
+	/**
+	 * True while the store is included in the {@link UniformStoreCounter}
+	 * counts, guarded by the lock on the block id array
+	 */
+	private boolean counted = false;
+
 	private final AtomicInteger waiting = new AtomicInteger(0);
 	private final int SPINS = 10;
 
@@ -74,12 +97,11 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 		this.shift = shift;
 		this.doubleShift = shift << 1;
 		int size = side * side * side;
-		blockIds = new AtomicShortArray(size);
 		auxStore = new AtomicIntArrayStore(size);
-		dirtyX = new byte[dirtySize];
-		dirtyY = new byte[dirtySize];
-		dirtyZ = new byte[dirtySize];
+		this.dirtySize = dirtySize;
+		this.dirty = new AtomicDirtyBlockTracker(shift);
 		if (blocks != null) {
+			uniformState = getInitialState(blocks, data, size);
 			int x = 0;
 			int z = 0;
 			int y = 0;
@@ -110,6 +132,36 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 				}
 			}
 		}
+		synchronized (blockIds) {
+			counted = true;
+			UniformStoreCounter.created(isUniform());
+		}
+	}
+
+	/**
+	 * Gets the state to use for the uniform store before the initial blocks
+	 * are set. If every initial block has the same state, the store remains
+	 * uniform after the blocks are set.
+	 *
+	 * @param blocks the initial block ids
+	 * @param data the initial block data, or null
+	 * @param size the number of blocks in the store
+	 * @return the state of all the blocks, or 0 if the blocks differ
+	 */
+	private static int getInitialState(short[] blocks, short[] data, int size) {
+		if (blocks.length == 0) {
+			return 0;
+		}
+		int state = BlockFullState.getPacked(blocks[0], data == null ? 0 : data[0]);
+		if (blocks.length < size && state != 0) {
+			return 0;
+		}
+		for (int i = 1; i < Math.min(blocks.length, size); i++) {
+			if (BlockFullState.getPacked(blocks[i], data == null ? 0 : data[i]) != state) {
+				return 0;
+			}
+		}
+		return state;
 	}
 
 	/**
@@ -139,7 +191,11 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 				}
 				checkCompressing();
 
-				int blockId = blockIds.get(index);
+				AtomicShortArray ids = blockIds.get();
+				if (ids == null) {
+					return getUniformSequence();
+				}
+				int blockId = ids.get(index);
 				if (!auxStore.isReserved(blockId)) {
 					return DatatableSequenceNumber.ATOMIC;
 				}
@@ -183,7 +239,11 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 			}
 			checkCompressing();
 
-			int blockId = blockIds.get(index);
+			AtomicShortArray ids = blockIds.get();
+			if (ids == null) {
+				return expected == uniformSequence;
+			}
+			int blockId = ids.get(index);
 			return auxStore.isReserved(blockId) && auxStore.testSequence(blockId, expected);
 		} finally {
 			if (interrupted) {
@@ -213,8 +273,12 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 				}
 				checkCompressing();
 
+				AtomicShortArray ids = blockIds.get();
+				if (ids == null) {
+					return BlockFullState.getId(uniformState) & 0x0000FFFF;
+				}
 				int seq = getSequence(x, y, z);
-				short blockId = blockIds.get(index);
+				short blockId = ids.get(index);
 				if (auxStore.isReserved(blockId)) {
 					blockId = auxStore.getId(blockId);
 					if (testSequence(x, y, z, seq)) {
@@ -252,8 +316,12 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 				}
 				checkCompressing();
 
+				AtomicShortArray ids = blockIds.get();
+				if (ids == null) {
+					return BlockFullState.getData(uniformState) & 0x0000FFFF;
+				}
 				int seq = getSequence(x, y, z);
-				short blockId = blockIds.get(index);
+				short blockId = ids.get(index);
 				if (auxStore.isReserved(blockId)) {
 					blockId = auxStore.getData(blockId);
 					if (testSequence(x, y, z, seq)) {
@@ -290,8 +358,12 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 				}
 				checkCompressing();
 
+				AtomicShortArray ids = blockIds.get();
+				if (ids == null) {
+					return uniformState;
+				}
 				int seq = getSequence(x, y, z);
-				short blockId = blockIds.get(index);
+				short blockId = ids.get(index);
 				if (auxStore.isReserved(blockId)) {
 					int state = auxStore.getInt(blockId);
 					if (testSequence(x, y, z, seq)) {
@@ -385,15 +457,23 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 				}
 				checkCompressing();
 
-				short oldBlockId = blockIds.get(index);
+				AtomicShortArray ids = blockIds.get();
+				if (ids == null) {
+					int state = uniformState;
+					if (state == BlockFullState.getPacked(id, data)) {
+						return state;
+					}
+					ids = expand();
+				}
+				short oldBlockId = ids.get(index);
 				boolean oldReserved = auxStore.isReserved(oldBlockId);
 				if (data == 0 && !auxStore.isReserved(id)) {
-					if (!blockIds.compareAndSet(index, oldBlockId, id)) {
+					if (!ids.compareAndSet(index, oldBlockId, id)) {
 						continue;
 					}
 				} else {
 					int newIndex = auxStore.add(id, data);
-					if (!blockIds.compareAndSet(index, oldBlockId, (short) newIndex)) {
+					if (!ids.compareAndSet(index, oldBlockId, (short) newIndex)) {
 						auxStore.remove(newIndex);
 						continue;
 					}
@@ -440,11 +520,23 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 				}
 				checkCompressing();
 
-				short oldBlockId = blockIds.get(index);
+				AtomicShortArray ids = blockIds.get();
+				if (ids == null) {
+					int state = uniformState;
+					if (state != BlockFullState.getPacked(expectId, expectData)) {
+						return false;
+					}
+					if (state == BlockFullState.getPacked(newId, newData)) {
+						markDirty(x, y, z);
+						return true;
+					}
+					ids = expand();
+				}
+				short oldBlockId = ids.get(index);
 				boolean oldReserved = auxStore.isReserved(oldBlockId);
 
 				if (!oldReserved) {
-					if (blockIds.get(index) != expectId || expectData != 0) {
+					if (ids.get(index) != expectId || expectData != 0) {
 						return false;
 					}
 				} else {
@@ -460,12 +552,12 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 				}
 
 				if (newData == 0 && !auxStore.isReserved(newId)) {
-					if (!blockIds.compareAndSet(index, oldBlockId, newId)) {
+					if (!ids.compareAndSet(index, oldBlockId, newId)) {
 						continue;
 					}
 				} else {
 					int newIndex = auxStore.add(newId, newData);
-					if (!blockIds.compareAndSet(index, oldBlockId, (short) newIndex)) {
+					if (!ids.compareAndSet(index, oldBlockId, (short) newIndex)) {
 						auxStore.remove(newIndex);
 						continue;
 					}
@@ -486,6 +578,187 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 		}
 	}
 
+	/**
+	 * Sets every block in a cuboid to the same id and data.<br>
+	 * <br>
+	 * The corners are inclusive and are clamped to the store. Each block is
+	 * updated atomically, but other threads may see the cuboid partially
+	 * filled while this method is running. The cuboid is marked dirty as a
+	 * region, rather than block by block.
+	 *
+	 * @param x1 the x coordinate of the first corner
+	 * @param y1 the y coordinate of the first corner
+	 * @param z1 the z coordinate of the first corner
+	 * @param x2 the x coordinate of the second corner
+	 * @param y2 the y coordinate of the second corner
+	 * @param z2 the z coordinate of the second corner
+	 * @param id the block id
+	 * @param data the block data
+	 */
+	public void fill(int x1, int y1, int z1, int x2, int y2, int z2, short id, short data) {
+		int minX = Math.max(0, Math.min(x1, x2));
+		int minY = Math.max(0, Math.min(y1, y2));
+		int minZ = Math.max(0, Math.min(z1, z2));
+		int maxX = Math.min(side - 1, Math.max(x1, x2));
+		int maxY = Math.min(side - 1, Math.max(y1, y2));
+		int maxZ = Math.min(side - 1, Math.max(z1, z2));
+		if (minX > maxX || minY > maxY || minZ > maxZ) {
+			return;
+		}
+		checkCompressing();
+		int state = BlockFullState.getPacked(id, data);
+		boolean whole = minX == 0 && minY == 0 && minZ == 0 && maxX == side - 1 && maxY == side - 1 && maxZ == side - 1;
+		synchronized (blockIds) {
+			boolean changed = false;
+			try {
+				AtomicShortArray ids = blockIds.get();
+				if (ids == null) {
+					if (uniformState == state) {
+						return;
+					}
+					if (whole) {
+						changed = beginBulkWrite(changed);
+						uniformState = state;
+						uniformSequence = DatatableSequenceNumber.get();
+						return;
+					}
+					ids = expand();
+				}
+				for (int y = minY; y <= maxY; y++) {
+					for (int z = minZ; z <= maxZ; z++) {
+						int index = getIndex(minX, y, z);
+						for (int x = minX; x <= maxX; x++, index++) {
+							if (getState(ids, index) != state) {
+								changed = beginBulkWrite(changed);
+								setBulk(ids, index, id, data);
+							}
+						}
+					}
+				}
+			} finally {
+				if (changed) {
+					writeEpoch.incrementAndGet();
+					markDirty(minX, minY, minZ, maxX, maxY, maxZ);
+					atomicNotify();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the block ids from a buffer into the store. The data for the
+	 * copied blocks is set to 0.<br>
+	 * <br>
+	 * Blocks which are outside the buffer are not changed. Each block is
+	 * updated atomically, but other threads may see the copy partially
+	 * complete while this method is running. The copied cuboid is marked
+	 * dirty as a region, rather than block by block.
+	 *
+	 * @param baseX the x coordinate of the store's origin in the buffer
+	 * @param baseY the y coordinate of the store's origin in the buffer
+	 * @param baseZ the z coordinate of the store's origin in the buffer
+	 * @param buffer the buffer containing the block ids
+	 */
+	public void setBlocks(int baseX, int baseY, int baseZ, CuboidShortBuffer buffer) {
+		Vector3 bufferBase = buffer.getBase();
+		Vector3 bufferSize = buffer.getSize();
+		int bufferX = (int) bufferBase.getX();
+		int bufferY = (int) bufferBase.getY();
+		int bufferZ = (int) bufferBase.getZ();
+		int minX = Math.max(0, bufferX - baseX);
+		int minY = Math.max(0, bufferY - baseY);
+		int minZ = Math.max(0, bufferZ - baseZ);
+		int maxX = Math.min(side, bufferX + (int) bufferSize.getX() - baseX) - 1;
+		int maxY = Math.min(side, bufferY + (int) bufferSize.getY() - baseY) - 1;
+		int maxZ = Math.min(side, bufferZ + (int) bufferSize.getZ() - baseZ) - 1;
+		if (minX > maxX || minY > maxY || minZ > maxZ) {
+			return;
+		}
+		checkCompressing();
+		synchronized (blockIds) {
+			boolean changed = false;
+			try {
+				AtomicShortArray ids = expand();
+				for (int y = minY; y <= maxY; y++) {
+					for (int z = minZ; z <= maxZ; z++) {
+						int index = getIndex(minX, y, z);
+						for (int x = minX; x <= maxX; x++, index++) {
+							short id = buffer.get(baseX + x, baseY + y, baseZ + z);
+							if (getState(ids, index) != BlockFullState.getPacked(id, (short) 0)) {
+								changed = beginBulkWrite(changed);
+								setBulk(ids, index, id, (short) 0);
+							}
+						}
+					}
+				}
+			} finally {
+				if (changed) {
+					writeEpoch.incrementAndGet();
+					markDirty(minX, minY, minZ, maxX, maxY, maxZ);
+					atomicNotify();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replaces the id of every block which has a given id. The data of the
+	 * replaced blocks is not changed.<br>
+	 * <br>
+	 * Each block is updated atomically, but other threads may see the
+	 * replacement partially complete while this method is running.
+	 *
+	 * @param fromId the id to replace
+	 * @param toId the new id
+	 * @return the number of blocks which were replaced
+	 */
+	public int replaceAll(short fromId, short toId) {
+		if (fromId == toId) {
+			return 0;
+		}
+		checkCompressing();
+		int replaced = 0;
+		synchronized (blockIds) {
+			boolean changed = false;
+			try {
+				AtomicShortArray ids = blockIds.get();
+				if (ids == null) {
+					int state = uniformState;
+					if (BlockFullState.getId(state) != fromId) {
+						return 0;
+					}
+					changed = beginBulkWrite(changed);
+					uniformState = BlockFullState.getPacked(toId, BlockFullState.getData(state));
+					uniformSequence = DatatableSequenceNumber.get();
+					replaced = side * side * side;
+					markDirty(0, 0, 0, side - 1, side - 1, side - 1);
+					return replaced;
+				}
+				int index = 0;
+				for (int y = 0; y < side; y++) {
+					for (int z = 0; z < side; z++) {
+						for (int x = 0; x < side; x++, index++) {
+							if (BlockFullState.getId(getState(ids, index)) != fromId) {
+								continue;
+							}
+							changed = beginBulkWrite(changed);
+							if (replaceBulk(ids, index, fromId, toId)) {
+								replaced++;
+								markDirty(x, y, z);
+							}
+						}
+					}
+				}
+				return replaced;
+			} finally {
+				if (changed) {
+					writeEpoch.incrementAndGet();
+					atomicNotify();
+				}
+			}
+		}
+	}
+
 	/**
 	 * Gets if the store would benefit from compression.<br>
 	 * <br>
@@ -495,16 +768,21 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 	 * @return true if compression would reduce the store size
 	 */
 	public final boolean needsCompression() {
+		AtomicShortArray ids = blockIds.get();
+		if (ids == null) {
+			return false;
+		}
 		int entries = auxStore.getEntries();
 		int size = auxStore.getSize();
-		return size > 1 && (entries << 3) / 3 < size;
+		return (size > 1 && (entries << 3) / 3 < size) || getUniformState(ids) != null;
 	}
 
 	/**
 	 * Gets a short array containing the block ids in the store.<br>
 	 * <br>
 	 * If the store is updated while this snapshot is being taken, data tearing
-	 * could occur.
+	 * could occur. The snapshot is retaken if a bulk write, such as a fill,
+	 * runs while it is being taken.
 	 *
 	 * @return the array
 	 */
@@ -516,7 +794,8 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 	 * Copies the block ids in the store into an array.<br>
 	 * <br>
 	 * If the store is updated while this snapshot is being taken, data tearing
-	 * could occur.<br>
+	 * could occur. The snapshot is retaken if a bulk write, such as a fill,
+	 * runs while it is being taken.<br>
 	 * <br>
 	 * If the array is the wrong length or null, a new array is created.
 	 *
@@ -524,27 +803,38 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 	 * @return the array
 	 */
 	public short[] getBlockIdArray(short[] array) {
-		int length = blockIds.length();
+		int length = side * side * side;
 		if (array == null || array.length != length) {
 			array = new short[length];
 		}
-		for (int i = 0; i < length; i++) {
-			short blockId = blockIds.get(i);
-			if (auxStore.isReserved(blockId)) {
-				blockId = auxStore.getId(blockId);
+		while (true) {
+			int epoch = getStableEpoch();
+			AtomicShortArray ids = blockIds.get();
+			if (ids == null) {
+				Arrays.fill(array, BlockFullState.getId(uniformState));
 			} else {
-				blockId &= 0x0000FFFF;
+				for (int i = 0; i < length; i++) {
+					short blockId = ids.get(i);
+					if (auxStore.isReserved(blockId)) {
+						blockId = auxStore.getId(blockId);
+					} else {
+						blockId &= 0x0000FFFF;
+					}
+					array[i] = blockId;
+				}
+			}
+			if (writeEpoch.get() == epoch) {
+				return array;
 			}
-			array[i] = blockId;
 		}
-		return array;
 	}
 
 	/**
 	 * Gets a short array containing the block data for the blocks in the store.<br>
 	 * <br>
 	 * If the store is updated while this snapshot is being taken, data tearing
-	 * could occur.
+	 * could occur. The snapshot is retaken if a bulk write, such as a fill,
+	 * runs while it is being taken.
 	 *
 	 * @return the array
 	 */
@@ -556,7 +846,8 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 	 * Copies the block data in the store into an array.<br>
 	 * <br>
 	 * If the store is updated while this snapshot is being taken, data tearing
-	 * could occur.<br>
+	 * could occur. The snapshot is retaken if a bulk write, such as a fill,
+	 * runs while it is being taken.<br>
 	 * <br>
 	 * If the array is the wrong length or null, a new array is created.
 	 *
@@ -564,19 +855,29 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 	 * @return the array
 	 */
 	public short[] getDataArray(short[] array) {
-		int length = blockIds.length();
+		int length = side * side * side;
 		if (array == null || array.length != length) {
 			array = new short[length];
 		}
-		for (int i = 0; i < length; i++) {
-			short blockId = blockIds.get(i);
-			if (auxStore.isReserved(blockId)) {
-				array[i] = auxStore.getData(blockId);
+		while (true) {
+			int epoch = getStableEpoch();
+			AtomicShortArray ids = blockIds.get();
+			if (ids == null) {
+				Arrays.fill(array, BlockFullState.getData(uniformState));
 			} else {
-				array[i] = 0;
+				for (int i = 0; i < length; i++) {
+					short blockId = ids.get(i);
+					if (auxStore.isReserved(blockId)) {
+						array[i] = auxStore.getData(blockId);
+					} else {
+						array[i] = 0;
+					}
+				}
+			}
+			if (writeEpoch.get() == epoch) {
+				return array;
 			}
 		}
-		return array;
 	}
 
 	/**
@@ -590,22 +891,161 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 			throw new IllegalStateException("Compression started while compression was in progress");
 		}
 		int length = side * side * side;
+		AtomicShortArray ids = blockIds.get();
+		if (ids == null) {
+			compressing.set(false);
+			return;
+		}
 		AtomicIntArrayStore newAuxStore = new AtomicIntArrayStore(length);
 		for (int i = 0; i < length; i++) {
-			short blockId = blockIds.get(i);
+			short blockId = ids.get(i);
 			if (auxStore.isReserved(blockId)) {
 				short storedId = auxStore.getId(blockId);
 				short storedData = auxStore.getData(blockId);
 				int newIndex = newAuxStore.add(storedId, storedData);
-				if (!blockIds.compareAndSet(i, blockId, (short) newIndex)) {
+				if (!ids.compareAndSet(i, blockId, (short) newIndex)) {
 					throw new IllegalStateException("Unstable block id data during compression step");
 				}
 			}
 		}
 		auxStore = newAuxStore;
+		Integer state = getUniformState(ids);
+		if (state != null) {
+			uniformState = state;
+			uniformSequence = DatatableSequenceNumber.get();
+			auxStore = new AtomicIntArrayStore(length);
+			synchronized (blockIds) {
+				blockIds.set(null);
+				if (counted) {
+					UniformStoreCounter.compressed();
+				}
+			}
+		}
 		compressing.set(false);
 	}
 
+	/**
+	 * Performs a bounded slice of an incremental compression of the auxiliary
+	 * store.<br>
+	 * <br>
+	 * Unlike compress(), this method may be called while the store is being
+	 * accessed by other threads. A compaction is started when
+	 * needsCompression() reports that the auxiliary store is sparse. Each call
+	 * then scans up to maxBlocks blocks, and relocates their auxiliary entries
+	 * to the bottom of the auxiliary arrays. The block id and data are copied
+	 * together and the sequence number of each relocated entry changes, so
+	 * readers either see the old entry or retry and see the new one.<br>
+	 * <br>
+	 * Once every block has been scanned, the auxiliary arrays are truncated.
+	 * This is the only step which may delay readers, and its duration is
+	 * recorded as the pause time.<br>
+	 * <br>
+	 * If another thread is already running a slice, this method returns
+	 * immediately.
+	 *
+	 * @param maxBlocks the maximum number of blocks to scan
+	 * @return true if the compaction is still in progress
+	 */
+	public boolean compressIncremental(int maxBlocks) {
+		checkCompressing();
+		if (!compacting.compareAndSet(false, true)) {
+			return true;
+		}
+		try {
+			AtomicShortArray ids = blockIds.get();
+			if (ids == null) {
+				return false;
+			}
+			if (!auxStore.isCompacting()) {
+				int size = auxStore.getSize();
+				if (!needsCompression() || !auxStore.startCompaction(getCompactionLength(size))) {
+					return false;
+				}
+				compactionCursor = 0;
+			}
+			int length = ids.length();
+			int end = Math.min(length, compactionCursor + maxBlocks);
+			for (int i = compactionCursor; i < end; i++) {
+				relocate(ids, i);
+			}
+			compactionCursor = end;
+			atomicNotify();
+			if (end < length) {
+				return auxStore.isCompacting();
+			}
+			compactionCursor = 0;
+			long start = System.nanoTime();
+			int released = auxStore.finishCompaction();
+			long pause = System.nanoTime() - start;
+			if (released > 0) {
+				reclaimedBytes += (long) released * AtomicIntArrayStore.SLOT_BYTES;
+				compactionPauseTime += pause;
+				maxCompactionPauseTime = Math.max(maxCompactionPauseTime, pause);
+				return false;
+			}
+			// Entries added before the compaction started may still be above
+			// the limit, so another pass is required
+			return auxStore.isCompacting();
+		} finally {
+			compacting.set(false);
+		}
+	}
+
+	/**
+	 * Gets the total number of bytes released by incremental compression
+	 *
+	 * @return the number of bytes
+	 */
+	public long getReclaimedBytes() {
+		return reclaimedBytes;
+	}
+
+	/**
+	 * Gets the total time, in nanoseconds, that incremental compression has
+	 * locked the auxiliary store
+	 *
+	 * @return the pause time
+	 */
+	public long getCompactionPauseTime() {
+		return compactionPauseTime;
+	}
+
+	/**
+	 * Gets the longest time, in nanoseconds, that a single incremental
+	 * compression has locked the auxiliary store
+	 *
+	 * @return the pause time
+	 */
+	public long getMaxCompactionPauseTime() {
+		return maxCompactionPauseTime;
+	}
+
+	/**
+	 * Removes the store from the {@link UniformStoreCounter} counts.<br>
+	 * <br>
+	 * This method should be called when the chunk is unloaded. The store can
+	 * still be used afterwards, but it is no longer counted. Releasing a store
+	 * twice has no effect.
+	 */
+	public void release() {
+		synchronized (blockIds) {
+			if (counted) {
+				counted = false;
+				UniformStoreCounter.released(blockIds.get() == null);
+			}
+		}
+	}
+
+	/**
+	 * Gets if every block in the store has the same id and data, and the
+	 * store is stored as a single uniform state.
+	 *
+	 * @return true if the store is uniform
+	 */
+	public boolean isUniform() {
+		return blockIds.get() == null;
+	}
+
 	/**
 	 * Gets the size of the internal arrays
 	 *
@@ -629,11 +1069,14 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 	/**
 	 * Gets if the dirty array has overflowed since the last reset.<br>
 	 * <br>
+	 * The array overflows once the number of distinct dirty blocks reaches
+	 * the dirty size of the store. All the dirty blocks are still available
+	 * from the dirty tracker after an overflow.
 	 *
 	 * @return true if there was an overflow
 	 */
 	public boolean isDirtyOverflow() {
-		return dirtyBlocks.get() >= dirtyX.length;
+		return dirty.getDirtyCount() >= dirtySize;
 	}
 
 	/**
@@ -643,14 +1086,14 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 	 * @return true if the store is dirty
 	 */
 	public boolean isDirty() {
-		return dirtyBlocks.get() > 0;
+		return dirty.isDirty();
 	}
 
 	/**
 	 * Resets the dirty arrays
 	 */
 	public void resetDirtyArrays() {
-		dirtyBlocks.set(0);
+		dirty.reset();
 	}
 
 	/**
@@ -667,11 +1110,24 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 	 * @return
 	 */
 	public Vector3 getDirtyBlock(int i) {
-		if (i >= dirtyBlocks.get()) {
+		int index = dirty.getDirtyBlock(i);
+		if (index == -1) {
 			return null;
 		}
 
-		return new Vector3(dirtyX[i] & 0xFF, dirtyY[i] & 0xFF, dirtyZ[i] & 0xFF);
+		return new Vector3(dirty.getX(index), dirty.getY(index), dirty.getZ(index));
+	}
+
+	/**
+	 * Gets the tracker which records the dirty blocks in the store.<br>
+	 * <br>
+	 * The tracker can be used to iterate over all the dirty blocks without
+	 * allocating, or to find the dirty sections of the store.
+	 *
+	 * @return the dirty block tracker
+	 */
+	public AtomicDirtyBlockTracker getDirtyTracker() {
+		return dirty;
 	}
 
 	private final int getIndex(int x, int y, int z) {
@@ -688,12 +1144,245 @@ public final class AtomicBlockStoreImpl implements AtomicBlockStore {
 	 * @param z the z coordinate of the dirty block
 	 */
 	public void markDirty(int x, int y, int z) {
-		int index = dirtyBlocks.getAndIncrement();
-		if (index < dirtyX.length) {
-			dirtyX[index] = (byte) x;
-			dirtyY[index] = (byte) y;
-			dirtyZ[index] = (byte) z;
+		dirty.markDirty(x, y, z);
+	}
+
+	/**
+	 * Gets the sequence number for blocks in a uniform store
+	 *
+	 * @return the sequence number, or DatatableSequenceNumber.ATOMIC if the
+	 *         uniform state would be stored as a single short
+	 */
+	private int getUniformSequence() {
+		int state = uniformState;
+		if (BlockFullState.getData(state) == 0 && !auxStore.isReserved(BlockFullState.getId(state))) {
+			return DatatableSequenceNumber.ATOMIC;
+		}
+		return uniformSequence;
+	}
+
+	/**
+	 * Gets the state shared by every block in the block id array
+	 *
+	 * @param ids the block id array
+	 * @return the state, or null if the blocks are not all the same
+	 */
+	private Integer getUniformState(AtomicShortArray ids) {
+		int state = getState(ids, 0);
+		int length = ids.length();
+		for (int i = 1; i < length; i++) {
+			if (getState(ids, i) != state) {
+				return null;
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Gets the full state of a block from the block id array
+	 *
+	 * @param ids the block id array
+	 * @param i the index of the block
+	 * @return the full state
+	 */
+	private int getState(AtomicShortArray ids, int i) {
+		short blockId = ids.get(i);
+		if (auxStore.isReserved(blockId)) {
+			return auxStore.getInt(blockId);
+		}
+		return BlockFullState.getPacked(blockId, (short) 0);
+	}
+
+	/**
+	 * Creates the block id array for a uniform store, so that blocks can be
+	 * set individually
+	 *
+	 * @return the block id array
+	 */
+	private AtomicShortArray expand() {
+		synchronized (blockIds) {
+			AtomicShortArray ids = blockIds.get();
+			if (ids != null) {
+				return ids;
+			}
+			int length = side * side * side;
+			ids = new AtomicShortArray(length);
+			short id = BlockFullState.getId(uniformState);
+			short data = BlockFullState.getData(uniformState);
+			boolean reserved = data != 0 || auxStore.isReserved(id);
+			for (int i = 0; i < length; i++) {
+				ids.set(i, reserved ? (short) auxStore.add(id, data) : id);
+			}
+			blockIds.set(ids);
+			if (counted) {
+				UniformStoreCounter.expanded();
+			}
+			return ids;
+		}
+	}
+
+	/**
+	 * Marks a cuboid of blocks as dirty
+	 *
+	 * @param minX the minimum x coordinate
+	 * @param minY the minimum y coordinate
+	 * @param minZ the minimum z coordinate
+	 * @param maxX the maximum x coordinate
+	 * @param maxY the maximum y coordinate
+	 * @param maxZ the maximum z coordinate
+	 */
+	private void markDirty(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		dirty.markDirty(minX, minY, minZ, maxX, maxY, maxZ);
+	}
+
+	/**
+	 * Starts a bulk write before its first change to the store, so that a bulk
+	 * write which changes nothing does not disturb readers or mark blocks
+	 * dirty. The caller must hold the lock on the block id array.
+	 *
+	 * @param started true if the bulk write has already been started
+	 * @return true
+	 */
+	private boolean beginBulkWrite(boolean started) {
+		if (!started) {
+			writeEpoch.incrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Sets a block in the block id array during a bulk write
+	 *
+	 * @param ids the block id array
+	 * @param index the index of the block
+	 * @param id the block id
+	 * @param data the block data
+	 */
+	private void setBulk(AtomicShortArray ids, int index, short id, short data) {
+		while (!compareAndSetBulk(ids, index, ids.get(index), id, data)) {
+		}
+	}
+
+	/**
+	 * Replaces the id of a block in the block id array during a bulk write,
+	 * if the block has the given id
+	 *
+	 * @param ids the block id array
+	 * @param index the index of the block
+	 * @param fromId the id to replace
+	 * @param toId the new id
+	 * @return true if the block was replaced
+	 */
+	private boolean replaceBulk(AtomicShortArray ids, int index, short fromId, short toId) {
+		while (true) {
+			short blockId = ids.get(index);
+			short data = 0;
+			if (!auxStore.isReserved(blockId)) {
+				if (blockId != fromId) {
+					return false;
+				}
+			} else {
+				int seq = auxStore.getSequence(blockId);
+				if (seq == DatatableSequenceNumber.UNSTABLE) {
+					continue;
+				}
+				int state = auxStore.getInt(blockId);
+				if (!auxStore.testSequence(blockId, seq)) {
+					continue;
+				}
+				if (BlockFullState.getId(state) != fromId) {
+					return false;
+				}
+				data = BlockFullState.getData(state);
+			}
+			if (compareAndSetBulk(ids, index, blockId, toId, data)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Sets a block in the block id array, if the entry in the array has not
+	 * changed. The id and data of the block are always replaced together, so
+	 * readers never see a partially written block.
+	 *
+	 * @param ids the block id array
+	 * @param index the index of the block
+	 * @param expected the expected entry in the array
+	 * @param id the block id
+	 * @param data the block data
+	 * @return true if the block was set
+	 */
+	private boolean compareAndSetBulk(AtomicShortArray ids, int index, short expected, short id, short data) {
+		if (data == 0 && !auxStore.isReserved(id)) {
+			if (!ids.compareAndSet(index, expected, id)) {
+				return false;
+			}
+		} else {
+			int newIndex = auxStore.add(id, data);
+			if (!ids.compareAndSet(index, expected, (short) newIndex)) {
+				auxStore.remove(newIndex);
+				return false;
+			}
+		}
+		if (auxStore.isReserved(expected)) {
+			auxStore.remove(expected);
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the write epoch, waiting for a bulk write in progress to complete
+	 *
+	 * @return the write epoch
+	 */
+	private int getStableEpoch() {
+		while (true) {
+			int epoch = writeEpoch.get();
+			if ((epoch & 1) == 0) {
+				return epoch;
+			}
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Gets the length to shrink the auxiliary arrays to, so that they are
+	 * between a quarter and half full
+	 *
+	 * @param size the current length of the arrays
+	 * @return the new length
+	 */
+	private int getCompactionLength(int size) {
+		int length = 1;
+		while (length < size && length < auxStore.getEntries() << 1) {
+			length <<= 1;
+		}
+		return length;
+	}
+
+	/**
+	 * Moves the auxiliary entry for a block below the compaction limit, if it
+	 * is above the limit. The block is left unchanged if it is modified by
+	 * another thread during the move.
+	 *
+	 * @param ids the block id array
+	 * @param index the index of the block
+	 */
+	private void relocate(AtomicShortArray ids, int index) {
+		short blockId = ids.get(index);
+		if (!auxStore.isReserved(blockId) || !auxStore.needsRelocation(blockId)) {
+			return;
+		}
+		int seq = auxStore.getSequence(blockId);
+		if (seq == DatatableSequenceNumber.UNSTABLE) {
+			return;
+		}
+		int state = auxStore.getInt(blockId);
+		if (!auxStore.testSequence(blockId, seq)) {
+			return;
 		}
+		compareAndSetBulk(ids, index, blockId, BlockFullState.getId(state), BlockFullState.getData(state));
 	}
 
 	private void checkCompressing() {
@@ -0,0 +1,340 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks the blocks in a cube which have been modified since the last reset.<br>
+ * <br>
+ * Each block has a bit in an AtomicLongArray, so there is no limit on the
+ * number of dirty blocks which can be recorded. The cube is also split into
+ * up to 4 x 4 x 4 sections, and a 64 bit mask records which sections contain
+ * dirty blocks, so that updates can be sent for whole sections. A second
+ * mask records which words of the bit array are in use, so iterating and
+ * resetting a tracker with a few dirty blocks only touches those words.<br>
+ * <br>
+ * The dirty blocks can be iterated without allocating any objects:
+ *
+ * <pre>
+ * for (int i = tracker.nextDirtyBlock(0); i != -1; i = tracker.nextDirtyBlock(i + 1)) {
+ * 	int x = tracker.getX(i);
+ * 	...
+ * }
+ * </pre>
+ *
+ * Marking is lock free. Resetting is not atomic with respect to concurrent
+ * marks, so it should be called at the end of the tick, when no blocks are
+ * being modified.
+ */
+public final class AtomicDirtyBlockTracker {
+	private final int shift;
+	private final int doubleShift;
+	private final int mask;
+	private final int sectionShift;
+	private final int sectionBits;
+	private final int wordShift;
+	private final AtomicLongArray bits;
+	private final AtomicLong sections = new AtomicLong(0);
+	private final AtomicLong words = new AtomicLong(0);
+	private final AtomicInteger count = new AtomicInteger(0);
+
+	public AtomicDirtyBlockTracker(int shift) {
+		this.shift = shift;
+		this.doubleShift = shift << 1;
+		this.mask = (1 << shift) - 1;
+		this.sectionBits = Math.min(shift, 2);
+		this.sectionShift = shift - sectionBits;
+		this.bits = new AtomicLongArray(Math.max(1, (1 << (shift * 3)) >> 6));
+		this.wordShift = Math.max(0, Integer.numberOfTrailingZeros(bits.length()) - 6);
+	}
+
+	/**
+	 * Marks a block as dirty
+	 *
+	 * @param x the x coordinate of the block
+	 * @param y the y coordinate of the block
+	 * @param z the z coordinate of the block
+	 * @return true if the block was not already dirty
+	 */
+	public boolean markDirty(int x, int y, int z) {
+		int index = getIndex(x, y, z);
+		int word = index >> 6;
+		long bit = 1L << index;
+		while (true) {
+			long old = bits.get(word);
+			if ((old & bit) != 0) {
+				return false;
+			}
+			if (bits.compareAndSet(word, old, old | bit)) {
+				count.incrementAndGet();
+				if (old == 0) {
+					setBit(words, word >> wordShift);
+				}
+				setBit(sections, getSection(x, y, z));
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Marks a cuboid of blocks as dirty. The coordinates are inclusive.
+	 *
+	 * @param minX the minimum x coordinate
+	 * @param minY the minimum y coordinate
+	 * @param minZ the minimum z coordinate
+	 * @param maxX the maximum x coordinate
+	 * @param maxY the maximum y coordinate
+	 * @param maxZ the maximum z coordinate
+	 */
+	public void markDirty(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		int length = maxX - minX + 1;
+		int added = 0;
+		for (int y = minY; y <= maxY; y++) {
+			for (int z = minZ; z <= maxZ; z++) {
+				added += setRange(getIndex(minX, y, z), length);
+			}
+		}
+		if (added > 0) {
+			count.addAndGet(added);
+		}
+		for (int y = minY >> sectionShift; y <= maxY >> sectionShift; y++) {
+			for (int z = minZ >> sectionShift; z <= maxZ >> sectionShift; z++) {
+				for (int x = minX >> sectionShift; x <= maxX >> sectionShift; x++) {
+					setBit(sections, getSection(x << sectionShift, y << sectionShift, z << sectionShift));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets if a block is dirty
+	 *
+	 * @param x the x coordinate of the block
+	 * @param y the y coordinate of the block
+	 * @param z the z coordinate of the block
+	 * @return true if the block is dirty
+	 */
+	public boolean isDirty(int x, int y, int z) {
+		int index = getIndex(x, y, z);
+		return (bits.get(index >> 6) & (1L << index)) != 0;
+	}
+
+	/**
+	 * Gets if any block is dirty
+	 *
+	 * @return true if a block is dirty
+	 */
+	public boolean isDirty() {
+		return count.get() > 0;
+	}
+
+	/**
+	 * Gets the number of dirty blocks
+	 *
+	 * @return the number of dirty blocks
+	 */
+	public int getDirtyCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the index of the first dirty block at or after the given index.<br>
+	 * <br>
+	 * The coordinates of the block can be read with getX(int), getY(int) and
+	 * getZ(int).
+	 *
+	 * @param from the index to start searching from
+	 * @return the index of the dirty block, or -1 if there are none
+	 */
+	public int nextDirtyBlock(int from) {
+		int word = from >> 6;
+		int length = bits.length();
+		if (from < 0 || word >= length) {
+			return -1;
+		}
+		long current = bits.get(word) & (-1L << from);
+		long used = words.get();
+		while (true) {
+			if (current != 0) {
+				return (word << 6) + Long.numberOfTrailingZeros(current);
+			}
+			// Skip to the next group of words which is in use
+			int group = (word >> wordShift) + 1;
+			word++;
+			if ((word >> wordShift) == group) {
+				if (group >= 64) {
+					return -1;
+				}
+				long remaining = used & (-1L << group);
+				if (remaining == 0) {
+					return -1;
+				}
+				word = Long.numberOfTrailingZeros(remaining) << wordShift;
+			}
+			if (word >= length) {
+				return -1;
+			}
+			current = bits.get(word);
+		}
+	}
+
+	/**
+	 * Gets the index of the nth dirty block
+	 *
+	 * @param n the number of dirty blocks to skip
+	 * @return the index of the dirty block, or -1 if there are fewer than n +
+	 *         1 dirty blocks
+	 */
+	public int getDirtyBlock(int n) {
+		int index = nextDirtyBlock(0);
+		while (n-- > 0 && index != -1) {
+			index = nextDirtyBlock(index + 1);
+		}
+		return index;
+	}
+
+	/**
+	 * Gets the x coordinate of the block at an index
+	 *
+	 * @param index the index
+	 * @return the x coordinate
+	 */
+	public int getX(int index) {
+		return index & mask;
+	}
+
+	/**
+	 * Gets the y coordinate of the block at an index
+	 *
+	 * @param index the index
+	 * @return the y coordinate
+	 */
+	public int getY(int index) {
+		return index >> doubleShift;
+	}
+
+	/**
+	 * Gets the z coordinate of the block at an index
+	 *
+	 * @param index the index
+	 * @return the z coordinate
+	 */
+	public int getZ(int index) {
+		return (index >> shift) & mask;
+	}
+
+	/**
+	 * Gets a mask of the sections which contain dirty blocks.<br>
+	 * <br>
+	 * Bit (sy << 4 | sz << 2 | sx) is set if the section at (sx, sy, sz) is
+	 * dirty, where each section is getSectionSize() blocks wide.
+	 *
+	 * @return the section mask
+	 */
+	public long getSectionMask() {
+		return sections.get();
+	}
+
+	/**
+	 * Gets the width of the sections used for the section mask
+	 *
+	 * @return the section width
+	 */
+	public int getSectionSize() {
+		return 1 << sectionShift;
+	}
+
+	/**
+	 * Clears all the dirty blocks
+	 */
+	public void reset() {
+		long used = words.getAndSet(0);
+		while (used != 0) {
+			int group = Long.numberOfTrailingZeros(used);
+			used &= used - 1;
+			int end = Math.min(bits.length(), (group + 1) << wordShift);
+			for (int i = group << wordShift; i < end; i++) {
+				bits.set(i, 0);
+			}
+		}
+		sections.set(0);
+		count.set(0);
+	}
+
+	private int getIndex(int x, int y, int z) {
+		return (y << doubleShift) | (z << shift) | x;
+	}
+
+	/**
+	 * Sets a run of bits
+	 *
+	 * @param start the index of the first bit
+	 * @param length the number of bits
+	 * @return the number of bits which were not already set
+	 */
+	private int setRange(int start, int length) {
+		int added = 0;
+		int end = start + length;
+		while (start < end) {
+			int word = start >> 6;
+			int wordEnd = Math.min(end, (word + 1) << 6);
+			long runMask = (-1L >>> (64 - (wordEnd - start))) << start;
+			while (true) {
+				long old = bits.get(word);
+				if ((old | runMask) == old) {
+					break;
+				}
+				if (bits.compareAndSet(word, old, old | runMask)) {
+					added += Long.bitCount(runMask & ~old);
+					if (old == 0) {
+						setBit(words, word >> wordShift);
+					}
+					break;
+				}
+			}
+			start = wordEnd;
+		}
+		return added;
+	}
+
+	private int getSection(int x, int y, int z) {
+		return (y >> sectionShift) << 4 | (z >> sectionShift) << 2 | (x >> sectionShift);
+	}
+
+	private static void setBit(AtomicLong mask, int bit) {
+		long value = 1L << bit;
+		while (true) {
+			long old = mask.get();
+			if ((old & value) != 0 || mask.compareAndSet(old, old | value)) {
+				return;
+			}
+		}
+	}
+}
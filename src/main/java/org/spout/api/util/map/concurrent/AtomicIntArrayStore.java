@@ -49,11 +49,21 @@ import org.spout.api.math.MathHelper;
  * A method is provided to test if an index is a reserved index, based on the
  * maximum lengths of the arrays. Only reserved indexes are used as element
  * indexes.<br>
+ * <br>
+ * The arrays can be shrunk incrementally. While a compaction is in progress,
+ * new elements are only added below the compaction limit, and the owner of
+ * the indexes relocates the elements above the limit. Once the top of the
+ * arrays is empty, they are truncated.<br>
  *
  * @param <T> the type of the Object in the {int, &lt;T&gt;} pair
  */
 public final class AtomicIntArrayStore {
 
+	/**
+	 * The approximate number of bytes used by each slot in the arrays
+	 */
+	public final static int SLOT_BYTES = 9;
+
 	private final int SPINS = 10;
 	private final int MAX_FAIL_THRESHOLD = 256;
 
@@ -61,6 +71,7 @@ public final class AtomicIntArrayStore {
 	private final AtomicInteger length = new AtomicInteger(0);
 	private final AtomicInteger entries = new AtomicInteger(0);
 	private final AtomicInteger scan = new AtomicInteger(0);
+	private final AtomicInteger compactionLimit = new AtomicInteger(0);
 	private final int reservedMask;
 
 	private final AtomicReference<boolean[]> emptyArray;
@@ -125,7 +136,12 @@ public final class AtomicIntArrayStore {
 			if (spins++ > SPINS) {
 				interrupted |= atomicWait();
 			}
-			int initialSequence = seqArray.get().get(index);
+			AtomicIntegerArray seq = seqArray.get();
+			if (index >= seq.length()) {
+				// The element was relocated and the arrays were truncated
+				return 0;
+			}
+			int initialSequence = seq.get(index);
 			if (initialSequence == DatatableSequenceNumber.UNSTABLE) {
 				continue;
 			}
@@ -153,7 +169,12 @@ public final class AtomicIntArrayStore {
 	 * @return the sequence number
 	 */
 	public int getSequence(int index) {
-		return this.seqArray.get().get(toInternal(index));
+		index = toInternal(index);
+		AtomicIntegerArray seq = seqArray.get();
+		if (index >= seq.length()) {
+			return DatatableSequenceNumber.UNSTABLE;
+		}
+		return seq.get(index);
 	}
 
 	/**
@@ -167,7 +188,9 @@ public final class AtomicIntArrayStore {
 	 * @return true if the sequence number matches expected
 	 */
 	public boolean testSequence(int index, int expected) {
-		return seqArray.get().compareAndSet(toInternal(index), expected, expected);
+		index = toInternal(index);
+		AtomicIntegerArray seq = seqArray.get();
+		return index < seq.length() && seq.compareAndSet(index, expected, expected);
 	}
 
 	/**
@@ -215,10 +238,16 @@ public final class AtomicIntArrayStore {
 		entries.incrementAndGet();
 
 		while (true) {
+			int limit = compactionLimit.get();
+			if (limit != 0 && entries.get() >= limit - (limit >> 2)) {
+				// Too full to compact, allocate from the whole array again
+				compactionLimit.compareAndSet(limit, 0);
+				continue;
+			}
 			if (needsResize()) {
 				resizeArrays();
 			}
-			int testIndex = scan.getAndIncrement() & length.get() - 1;
+			int testIndex = scan.getAndIncrement() & getAllocationLength() - 1;
 			int prevSeq = seqArray.get().getAndSet(testIndex, DatatableSequenceNumber.UNSTABLE);
 			if (prevSeq == DatatableSequenceNumber.UNSTABLE) {
 				continue;
@@ -342,6 +371,135 @@ public final class AtomicIntArrayStore {
 		atomicNotify();
 	}
 
+	/**
+	 * Starts an incremental compaction of the arrays.<br>
+	 * <br>
+	 * New elements are only added below the new length. The elements at or
+	 * above the new length must be relocated by the caller, by adding a copy
+	 * and removing the original, before finishCompaction() can truncate the
+	 * arrays.<br>
+	 * <br>
+	 * The compaction is cancelled if the store becomes too full to fit in the
+	 * new length.
+	 *
+	 * @param newLength the new length of the arrays, which must be a power of 2
+	 * @return true if the compaction was started
+	 */
+	public boolean startCompaction(int newLength) {
+		if (newLength < 1 || newLength >= length.get() || Integer.bitCount(newLength) != 1) {
+			return false;
+		}
+		if (entries.get() >= newLength - (newLength >> 2)) {
+			return false;
+		}
+		compactionLimit.set(newLength);
+		return true;
+	}
+
+	/**
+	 * Gets if a compaction is in progress
+	 *
+	 * @return true if a compaction is in progress
+	 */
+	public boolean isCompacting() {
+		return compactionLimit.get() != 0;
+	}
+
+	/**
+	 * Indicates if the element at the given index must be relocated before
+	 * the compaction in progress can be finished.
+	 *
+	 * @param index the index
+	 * @return true if the element is above the compaction limit
+	 */
+	public boolean needsRelocation(int index) {
+		int limit = compactionLimit.get();
+		return limit != 0 && toInternal(index) >= limit;
+	}
+
+	/**
+	 * Attempts to finish the compaction in progress.<br>
+	 * <br>
+	 * If all the elements above the compaction limit have been removed, the
+	 * store is locked and the arrays are truncated. Readers spin while the
+	 * store is locked, so this is the only part of the compaction which can
+	 * delay them.
+	 *
+	 * @return the number of slots that were released, or 0 if the compaction
+	 *         could not be finished
+	 */
+	public int finishCompaction() {
+		int limit = compactionLimit.get();
+		if (limit == 0 || !isEmptyFrom(limit)) {
+			return 0;
+		}
+		boolean locked = false;
+		while (compactionLimit.get() == limit && !(locked = tryLock(MAX_FAIL_THRESHOLD)))
+			;
+
+		if (!locked) {
+			return 0;
+		}
+		int lockedIndexes = length.get();
+		try {
+			int oldLength = length.get();
+			if (compactionLimit.get() != limit || !isEmptyFrom(limit)) {
+				return 0;
+			}
+
+			int[] newIntArray = new int[limit];
+			boolean[] newEmptyArray = new boolean[limit];
+			AtomicIntegerArray newSeqArray = new AtomicIntegerArray(limit);
+
+			// Copy the bottom of the current array to the new array
+			for (int i = 0; i < limit; i++) {
+				newIntArray[i] = intArray.get()[i];
+				newEmptyArray[i] = emptyArray.get()[i];
+				newSeqArray.set(i, DatatableSequenceNumber.UNSTABLE);
+			}
+
+			// Update the length first, so that it never exceeds the array length
+			length.set(limit);
+			intArray.set(newIntArray);
+			emptyArray.set(newEmptyArray);
+			seqArray.set(newSeqArray);
+			compactionLimit.set(0);
+			lockedIndexes = limit;
+			return oldLength - limit;
+		} finally {
+			unlock(lockedIndexes);
+		}
+	}
+
+	/**
+	 * Gets if every slot from the given index to the end of the arrays is
+	 * empty
+	 *
+	 * @param start the first internal index to check
+	 * @return true if the slots are empty
+	 */
+	private boolean isEmptyFrom(int start) {
+		boolean[] empty = emptyArray.get();
+		for (int i = start; i < empty.length; i++) {
+			if (!empty[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the length of the part of the arrays which new elements are added
+	 * to
+	 *
+	 * @return the allocation length
+	 */
+	private int getAllocationLength() {
+		int limit = compactionLimit.get();
+		int current = length.get();
+		return limit == 0 || limit > current ? current : limit;
+	}
+
 	/**
 	 * Resizes the arrays, if required.
 	 *
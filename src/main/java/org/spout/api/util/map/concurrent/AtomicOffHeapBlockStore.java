@@ -0,0 +1,836 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.spout.api.datatable.DatatableSequenceNumber;
+import org.spout.api.material.block.BlockFullState;
+import org.spout.api.material.source.MaterialSource;
+import org.spout.api.math.Vector3;
+import org.spout.api.util.cuboid.CuboidShortBuffer;
+
+/**
+ * This store stores block data for each chunk in off-heap memory.<br>
+ * <br>
+ * The packed id and data for each block is stored as an int in a slot from an
+ * OffHeapSlabAllocator, so only a small object and the stripe sequence numbers
+ * are on the Java heap. This keeps the block data of loaded chunks out of the
+ * garbage collector's way.<br>
+ * <br>
+ * Direct buffers do not support atomic updates, so the blocks are split into
+ * stripes, as in AtomicPaletteBlockStore. Writers lock a stripe by setting its
+ * sequence number to DatatableSequenceNumber.UNSTABLE. Readers read the
+ * sequence number, read the block and then confirm that the sequence number
+ * has not changed, so the id and data of a block are always read together.
+ * Readers take no lock of their own, but a reader which finds its stripe
+ * locked by a writer spins for a few tries and then waits until the writer
+ * unlocks it, as in AtomicBlockStoreImpl.<br>
+ * <br>
+ * The memory must be released by calling free() when the chunk is unloaded.
+ * The store may not be accessed after it is freed.
+ */
+public final class AtomicOffHeapBlockStore implements AtomicBlockStore {
+	private final static int STRIPES = 64;
+	private final int side;
+	private final int shift;
+	private final int doubleShift;
+	private final int size;
+	private final int stripeMask;
+	private final OffHeapSlabAllocator allocator;
+	private volatile ByteBuffer blocks;
+	private final AtomicIntegerArray stripeSequence;
+	private final AtomicInteger writeEpoch = new AtomicInteger(0);
+	private final int dirtySize;
+	private final AtomicDirtyBlockTracker dirty;
+	private final AtomicInteger waiting = new AtomicInteger(0);
+	private final int SPINS = 10;
+
+	public AtomicOffHeapBlockStore(int shift) {
+		this(shift, 10);
+	}
+
+	public AtomicOffHeapBlockStore(int shift, OffHeapSlabAllocator allocator) {
+		this(shift, 10, null, null, allocator);
+	}
+
+	public AtomicOffHeapBlockStore(int shift, short[] initial) {
+		this(shift, 10, initial);
+	}
+
+	public AtomicOffHeapBlockStore(int shift, int dirtySize) {
+		this(shift, dirtySize, null);
+	}
+
+	public AtomicOffHeapBlockStore(int shift, int dirtySize, short[] initial) {
+		this(shift, dirtySize, initial, null);
+	}
+
+	public AtomicOffHeapBlockStore(int shift, int dirtySize, short[] blocks, short[] data) {
+		this(shift, dirtySize, blocks, data, OffHeapSlabAllocator.getAllocator(4 << (shift * 3)));
+	}
+
+	public AtomicOffHeapBlockStore(int shift, int dirtySize, short[] blocks, short[] data, OffHeapSlabAllocator allocator) {
+		this.side = 1 << shift;
+		this.shift = shift;
+		this.doubleShift = shift << 1;
+		this.size = side * side * side;
+		if (allocator.getSlotSize() < size << 2) {
+			throw new IllegalArgumentException("Allocator slots are too small for " + size + " blocks");
+		}
+		int stripes = Math.min(STRIPES, size);
+		this.stripeMask = stripes - 1;
+		this.stripeSequence = new AtomicIntegerArray(stripes);
+		for (int i = 0; i < stripes; i++) {
+			stripeSequence.set(i, DatatableSequenceNumber.get());
+		}
+		this.dirtySize = dirtySize;
+		this.dirty = new AtomicDirtyBlockTracker(shift);
+		this.allocator = allocator;
+		ByteBuffer buffer = allocator.allocate();
+		if (blocks != null) {
+			int length = Math.min(blocks.length, size);
+			for (int i = 0; i < length; i++) {
+				buffer.putInt(i << 2, BlockFullState.getPacked(blocks[i], data == null ? 0 : data[i]));
+				markDirty(i & (side - 1), i >> doubleShift, (i >> shift) & (side - 1));
+			}
+		}
+		this.blocks = buffer;
+	}
+
+	/**
+	 * Gets the sequence number associated with a block location.<br>
+	 * <br>
+	 * If soft is true, this method counts as a volatile read. Otherwise, it is
+	 * both a volatile read and a volatile write.<br>
+	 * <br>
+	 * Soft reads should only be used for the first of the 2 step process for
+	 * confirming that data hasn't changed.
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the sequence number, or DatatableSequenceNumber.ATOMIC for a
+	 *         single short record
+	 */
+	public int getSequence(int x, int y, int z) {
+		int index = getIndex(x, y, z);
+		int stripe = index & stripeMask;
+		int spins = 0;
+		boolean interrupted = false;
+		try {
+			while (true) {
+				int sequence = stripeSequence.get(stripe);
+				if (sequence == DatatableSequenceNumber.UNSTABLE) {
+					if (spins++ > SPINS) {
+						interrupted |= atomicWait(stripe);
+					}
+					continue;
+				}
+				if (BlockFullState.getData(getFullState(index)) == 0) {
+					return DatatableSequenceNumber.ATOMIC;
+				}
+				return sequence;
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Tests if a the sequence number associated with a particular block
+	 * location has not changed.
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @param expected the expected sequence number
+	 * @return true if the sequence number has not changed and expected is not
+	 *         DatatableSequenceNumber.ATOMIC
+	 */
+	public boolean testSequence(int x, int y, int z, int expected) {
+		if (expected == DatatableSequenceNumber.ATOMIC) {
+			return false;
+		}
+		int stripe = getIndex(x, y, z) & stripeMask;
+		return stripeSequence.compareAndSet(stripe, expected, expected);
+	}
+
+	/**
+	 * Gets the block id for a block at a particular location.<br>
+	 * <br>
+	 * Block ids range from 0 to 65535.
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the block id
+	 */
+	public int getBlockId(int x, int y, int z) {
+		return BlockFullState.getId(getFullState(getIndex(x, y, z))) & 0x0000FFFF;
+	}
+
+	/**
+	 * Gets the block data for a block at a particular location.<br>
+	 * <br>
+	 * Block data ranges from 0 to 65535.
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the block data
+	 */
+	public int getData(int x, int y, int z) {
+		return BlockFullState.getData(getFullState(getIndex(x, y, z))) & 0x0000FFFF;
+	}
+
+	/**
+	 * Atomically gets the full set of data associated with the block.<br>
+	 * <br>
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the full state of the block
+	 */
+	public int getFullData(int x, int y, int z) {
+		return getFullState(getIndex(x, y, z));
+	}
+
+	/**
+	 * Sets the block id and data for the block at (x, y, z).<br>
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @param material the new material
+	 */
+	public void setBlock(int x, int y, int z, MaterialSource material) {
+		setBlock(x, y, z, material.getMaterial().getId(), material.getData());
+	}
+
+	/**
+	 * Sets the block id and data for the block at (x, y, z).<br>
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @param material the new material
+	 * @return the old full state of the block
+	 */
+	public int getAndSetBlock(int x, int y, int z, MaterialSource material) {
+		return getAndSetBlock(x, y, z, material.getMaterial().getId(), material.getData());
+	}
+
+	/**
+	 * Sets the block id and data for the block at (x, y, z).<br>
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @param id the block id
+	 * @param data the block data
+	 */
+	public void setBlock(int x, int y, int z, short id, short data) {
+		getAndSetBlock(x, y, z, id, data);
+	}
+
+	/**
+	 * Sets the block id and data for the block at (x, y, z).<br>
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @param id the block id
+	 * @param data the block data
+	 * @return the old full state of the block
+	 */
+	public int getAndSetBlock(int x, int y, int z, short id, short data) {
+		int index = getIndex(x, y, z);
+		int stripe = index & stripeMask;
+		int state = BlockFullState.getPacked(id, data);
+		ByteBuffer buffer = getBlocks();
+		int sequence = lockStripe(stripe);
+		int old = state;
+		try {
+			old = buffer.getInt(index << 2);
+			buffer.putInt(index << 2, state);
+			return old;
+		} finally {
+			unlockStripe(stripe, old != state ? DatatableSequenceNumber.get() : sequence);
+			markDirty(x, y, z);
+		}
+	}
+
+	/**
+	 * Sets the block id and data for the block at (x, y, z), if the current
+	 * data matches the expected data.<br>
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @param expectId the expected block id
+	 * @param expectData the expected block data
+	 * @param newId the new block id
+	 * @param newData the new block data
+	 * @return true if the block was set
+	 */
+	public boolean compareAndSetBlock(int x, int y, int z, short expectId, short expectData, short newId, short newData) {
+		int index = getIndex(x, y, z);
+		int stripe = index & stripeMask;
+		int expected = BlockFullState.getPacked(expectId, expectData);
+		int state = BlockFullState.getPacked(newId, newData);
+		ByteBuffer buffer = getBlocks();
+		int sequence = lockStripe(stripe);
+		boolean changed = false;
+		try {
+			if (buffer.getInt(index << 2) != expected) {
+				return false;
+			}
+			buffer.putInt(index << 2, state);
+			changed = expected != state;
+			markDirty(x, y, z);
+			return true;
+		} finally {
+			unlockStripe(stripe, changed ? DatatableSequenceNumber.get() : sequence);
+		}
+	}
+
+	/**
+	 * Sets every block in a cuboid to the same id and data.<br>
+	 * <br>
+	 * The corners are inclusive and are clamped to the store. All stripes are
+	 * locked while the cuboid is filled, so readers see either the old or the
+	 * new state of each block.
+	 *
+	 * @param x1 the x coordinate of the first corner
+	 * @param y1 the y coordinate of the first corner
+	 * @param z1 the z coordinate of the first corner
+	 * @param x2 the x coordinate of the second corner
+	 * @param y2 the y coordinate of the second corner
+	 * @param z2 the z coordinate of the second corner
+	 * @param id the block id
+	 * @param data the block data
+	 */
+	public void fill(int x1, int y1, int z1, int x2, int y2, int z2, short id, short data) {
+		int minX = Math.max(0, Math.min(x1, x2));
+		int minY = Math.max(0, Math.min(y1, y2));
+		int minZ = Math.max(0, Math.min(z1, z2));
+		int maxX = Math.min(side - 1, Math.max(x1, x2));
+		int maxY = Math.min(side - 1, Math.max(y1, y2));
+		int maxZ = Math.min(side - 1, Math.max(z1, z2));
+		if (minX > maxX || minY > maxY || minZ > maxZ) {
+			return;
+		}
+		int state = BlockFullState.getPacked(id, data);
+		ByteBuffer buffer = getBlocks();
+		int[] sequences = lockAllStripes();
+		writeEpoch.incrementAndGet();
+		try {
+			for (int y = minY; y <= maxY; y++) {
+				for (int z = minZ; z <= maxZ; z++) {
+					int index = getIndex(minX, y, z);
+					for (int x = minX; x <= maxX; x++) {
+						buffer.putInt((index++) << 2, state);
+					}
+				}
+			}
+		} finally {
+			writeEpoch.incrementAndGet();
+			unlockAllStripes(sequences, true);
+			dirty.markDirty(minX, minY, minZ, maxX, maxY, maxZ);
+		}
+	}
+
+	/**
+	 * Copies the block ids from a buffer into the store. The data for the
+	 * copied blocks is set to 0.<br>
+	 * <br>
+	 * Blocks which are outside the buffer are not changed. All stripes are
+	 * locked while the blocks are copied, so readers see either the old or the
+	 * new state of each block.
+	 *
+	 * @param baseX the x coordinate of the store's origin in the buffer
+	 * @param baseY the y coordinate of the store's origin in the buffer
+	 * @param baseZ the z coordinate of the store's origin in the buffer
+	 * @param source the buffer containing the block ids
+	 */
+	public void setBlocks(int baseX, int baseY, int baseZ, CuboidShortBuffer source) {
+		Vector3 sourceBase = source.getBase();
+		Vector3 sourceSize = source.getSize();
+		int sourceX = (int) sourceBase.getX();
+		int sourceY = (int) sourceBase.getY();
+		int sourceZ = (int) sourceBase.getZ();
+		int minX = Math.max(0, sourceX - baseX);
+		int minY = Math.max(0, sourceY - baseY);
+		int minZ = Math.max(0, sourceZ - baseZ);
+		int maxX = Math.min(side, sourceX + (int) sourceSize.getX() - baseX) - 1;
+		int maxY = Math.min(side, sourceY + (int) sourceSize.getY() - baseY) - 1;
+		int maxZ = Math.min(side, sourceZ + (int) sourceSize.getZ() - baseZ) - 1;
+		if (minX > maxX || minY > maxY || minZ > maxZ) {
+			return;
+		}
+		ByteBuffer buffer = getBlocks();
+		int[] sequences = lockAllStripes();
+		writeEpoch.incrementAndGet();
+		try {
+			for (int y = minY; y <= maxY; y++) {
+				for (int z = minZ; z <= maxZ; z++) {
+					int index = getIndex(minX, y, z);
+					for (int x = minX; x <= maxX; x++) {
+						buffer.putInt((index++) << 2, BlockFullState.getPacked(source.get(baseX + x, baseY + y, baseZ + z), (short) 0));
+					}
+				}
+			}
+		} finally {
+			writeEpoch.incrementAndGet();
+			unlockAllStripes(sequences, true);
+			dirty.markDirty(minX, minY, minZ, maxX, maxY, maxZ);
+		}
+	}
+
+	/**
+	 * Replaces the id of every block which has a given id. The data of the
+	 * replaced blocks is not changed.<br>
+	 * <br>
+	 * All stripes are locked while the blocks are replaced, so readers see
+	 * either the old or the new state of each block.
+	 *
+	 * @param fromId the id to replace
+	 * @param toId the new id
+	 * @return the number of blocks which were replaced
+	 */
+	public int replaceAll(short fromId, short toId) {
+		if (fromId == toId) {
+			return 0;
+		}
+		ByteBuffer buffer = getBlocks();
+		int replaced = 0;
+		int[] sequences = lockAllStripes();
+		writeEpoch.incrementAndGet();
+		try {
+			for (int i = 0; i < size; i++) {
+				int state = buffer.getInt(i << 2);
+				if (BlockFullState.getId(state) == fromId) {
+					buffer.putInt(i << 2, BlockFullState.getPacked(toId, BlockFullState.getData(state)));
+					replaced++;
+					markDirty(i & (side - 1), i >> doubleShift, (i >> shift) & (side - 1));
+				}
+			}
+			return replaced;
+		} finally {
+			writeEpoch.incrementAndGet();
+			unlockAllStripes(sequences, replaced > 0);
+		}
+	}
+
+	/**
+	 * Gets if the store would benefit from compression.<br>
+	 * <br>
+	 * Off-heap stores always use 4 bytes per block, so compression never
+	 * helps.
+	 *
+	 * @return false
+	 */
+	public boolean needsCompression() {
+		return false;
+	}
+
+	/**
+	 * Gets a short array containing the block ids in the store.<br>
+	 * <br>
+	 * If the store is updated while this snapshot is being taken, data tearing
+	 * could occur. The snapshot is retaken if a bulk write, such as a fill,
+	 * runs while it is being taken.
+	 *
+	 * @return the array
+	 */
+	public short[] getBlockIdArray() {
+		return getBlockIdArray(null);
+	}
+
+	/**
+	 * Copies the block ids in the store into an array.<br>
+	 * <br>
+	 * If the store is updated while this snapshot is being taken, data tearing
+	 * could occur. The snapshot is retaken if a bulk write, such as a fill,
+	 * runs while it is being taken.<br>
+	 * <br>
+	 * If the array is the wrong length or null, a new array is created.
+	 *
+	 * @param the array to place the data
+	 * @return the array
+	 */
+	public short[] getBlockIdArray(short[] array) {
+		if (array == null || array.length != size) {
+			array = new short[size];
+		}
+		ByteBuffer buffer = getBlocks();
+		int epoch;
+		do {
+			epoch = getStableEpoch();
+			for (int i = 0; i < size; i++) {
+				array[i] = BlockFullState.getId(buffer.getInt(i << 2));
+			}
+		} while (writeEpoch.get() != epoch);
+		return array;
+	}
+
+	/**
+	 * Gets a short array containing the block data for the blocks in the store.<br>
+	 * <br>
+	 * If the store is updated while this snapshot is being taken, data tearing
+	 * could occur. The snapshot is retaken if a bulk write, such as a fill,
+	 * runs while it is being taken.
+	 *
+	 * @return the array
+	 */
+	public short[] getDataArray() {
+		return getDataArray(null);
+	}
+
+	/**
+	 * Copies the block data in the store into an array.<br>
+	 * <br>
+	 * If the store is updated while this snapshot is being taken, data tearing
+	 * could occur. The snapshot is retaken if a bulk write, such as a fill,
+	 * runs while it is being taken.<br>
+	 * <br>
+	 * If the array is the wrong length or null, a new array is created.
+	 *
+	 * @param the array to place the data
+	 * @return the array
+	 */
+	public short[] getDataArray(short[] array) {
+		if (array == null || array.length != size) {
+			array = new short[size];
+		}
+		ByteBuffer buffer = getBlocks();
+		int epoch;
+		do {
+			epoch = getStableEpoch();
+			for (int i = 0; i < size; i++) {
+				array[i] = BlockFullState.getData(buffer.getInt(i << 2));
+			}
+		} while (writeEpoch.get() != epoch);
+		return array;
+	}
+
+	/**
+	 * Compresses the store.<br>
+	 * <br>
+	 * Off-heap stores have a fixed size, so this method has no effect.
+	 */
+	public void compress() {
+	}
+
+	/**
+	 * Gets if every block in the store has the same id and data, and the
+	 * store is stored as a single uniform state.<br>
+	 * <br>
+	 * Off-heap stores always store every block.
+	 *
+	 * @return false
+	 */
+	public boolean isUniform() {
+		return false;
+	}
+
+	/**
+	 * Releases the off-heap memory used by the store.<br>
+	 * <br>
+	 * This method should be called when the chunk is unloaded, and only when
+	 * the store is guaranteed not to be accessed from any other thread. Any
+	 * later access throws an IllegalStateException.
+	 */
+	public void free() {
+		ByteBuffer buffer;
+		synchronized (this) {
+			buffer = blocks;
+			if (buffer == null) {
+				throw new IllegalStateException("Off-heap block store freed twice");
+			}
+			blocks = null;
+		}
+		allocator.free(buffer);
+	}
+
+	/**
+	 * Gets if the off-heap memory used by the store has been released
+	 *
+	 * @return true if the store has been freed
+	 */
+	public boolean isFreed() {
+		return blocks == null;
+	}
+
+	/**
+	 * Gets if the dirty array has overflowed since the last reset.<br>
+	 * <br>
+	 * The array overflows once the number of distinct dirty blocks reaches
+	 * the dirty size of the store. All the dirty blocks are still available
+	 * from the dirty tracker after an overflow.
+	 *
+	 * @return true if there was an overflow
+	 */
+	public boolean isDirtyOverflow() {
+		return dirty.getDirtyCount() >= dirtySize;
+	}
+
+	/**
+	 * Gets if the store has been modified since the last reset of the dirty
+	 * arrays
+	 *
+	 * @return true if the store is dirty
+	 */
+	public boolean isDirty() {
+		return dirty.isDirty();
+	}
+
+	/**
+	 * Resets the dirty arrays
+	 */
+	public void resetDirtyArrays() {
+		dirty.reset();
+	}
+
+	/**
+	 * Gets the position of the dirty block at a given index.<br>
+	 * <br>
+	 * If there is no block at that index, then the method return null.<br>
+	 * <br>
+	 * Note: the x, y and z values returned are the chunk coordinates, not the
+	 * world coordinates and the method has no effect on the world field of the
+	 * block.<br>
+	 *
+	 * @param i
+	 * @param block
+	 * @return
+	 */
+	public Vector3 getDirtyBlock(int i) {
+		int index = dirty.getDirtyBlock(i);
+		if (index == -1) {
+			return null;
+		}
+
+		return new Vector3(dirty.getX(index), dirty.getY(index), dirty.getZ(index));
+	}
+
+	/**
+	 * Gets the tracker which records the dirty blocks in the store.<br>
+	 * <br>
+	 * The tracker can be used to iterate over all the dirty blocks without
+	 * allocating, or to find the dirty sections of the store.
+	 *
+	 * @return the dirty block tracker
+	 */
+	public AtomicDirtyBlockTracker getDirtyTracker() {
+		return dirty;
+	}
+
+	/**
+	 * Marks a block as dirty.<br>
+	 * <br>
+	 * Updates for dirty blocks will be sent at the end of the tick.<br>
+	 *
+	 * @param x the x coordinate of the dirty block
+	 * @param y the y coordinate of the dirty block
+	 * @param z the z coordinate of the dirty block
+	 */
+	public void markDirty(int x, int y, int z) {
+		dirty.markDirty(x, y, z);
+	}
+
+	private final int getIndex(int x, int y, int z) {
+		return (y << doubleShift) + (z << shift) + x;
+	}
+
+	/**
+	 * Gets the buffer containing the blocks
+	 *
+	 * @return the buffer
+	 */
+	private ByteBuffer getBlocks() {
+		ByteBuffer buffer = blocks;
+		if (buffer == null) {
+			throw new IllegalStateException("Attempting to access an off-heap block store after it was freed");
+		}
+		return buffer;
+	}
+
+	/**
+	 * Reads the full state of a block, retrying if the stripe containing the
+	 * block is modified during the read
+	 *
+	 * @param index the index of the block
+	 * @return the full state
+	 */
+	private int getFullState(int index) {
+		ByteBuffer buffer = getBlocks();
+		int stripe = index & stripeMask;
+		int spins = 0;
+		boolean interrupted = false;
+		try {
+			while (true) {
+				int sequence = stripeSequence.get(stripe);
+				if (sequence == DatatableSequenceNumber.UNSTABLE) {
+					if (spins++ > SPINS) {
+						interrupted |= atomicWait(stripe);
+					}
+					continue;
+				}
+				int state = buffer.getInt(index << 2);
+				if (stripeSequence.compareAndSet(stripe, sequence, sequence)) {
+					return state;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Gets the write epoch, waiting for a bulk write in progress to complete
+	 *
+	 * @return the write epoch
+	 */
+	private int getStableEpoch() {
+		while (true) {
+			int epoch = writeEpoch.get();
+			if ((epoch & 1) == 0) {
+				return epoch;
+			}
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Locks a stripe of blocks, by setting its sequence number to
+	 * DatatableSequenceNumber.UNSTABLE
+	 *
+	 * @param stripe the stripe
+	 * @return the previous sequence number of the stripe
+	 */
+	private int lockStripe(int stripe) {
+		int spins = 0;
+		boolean interrupted = false;
+		try {
+			while (true) {
+				int sequence = stripeSequence.getAndSet(stripe, DatatableSequenceNumber.UNSTABLE);
+				if (sequence != DatatableSequenceNumber.UNSTABLE) {
+					return sequence;
+				}
+				if (spins++ > SPINS) {
+					interrupted |= atomicWait(stripe);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Unlocks a stripe of blocks
+	 *
+	 * @param stripe the stripe
+	 * @param sequence the new sequence number of the stripe
+	 */
+	private void unlockStripe(int stripe, int sequence) {
+		stripeSequence.set(stripe, sequence);
+		atomicNotify();
+	}
+
+	/**
+	 * Locks every stripe in the store
+	 *
+	 * @return the previous sequence numbers of the stripes
+	 */
+	private int[] lockAllStripes() {
+		int stripes = stripeMask + 1;
+		int[] sequences = new int[stripes];
+		for (int i = 0; i < stripes; i++) {
+			sequences[i] = lockStripe(i);
+		}
+		return sequences;
+	}
+
+	/**
+	 * Unlocks every stripe in the store
+	 *
+	 * @param sequences the previous sequence numbers of the stripes
+	 * @param changed true if blocks were changed while the stripes were locked
+	 */
+	private void unlockAllStripes(int[] sequences, boolean changed) {
+		for (int i = 0; i < sequences.length; i++) {
+			unlockStripe(i, changed ? DatatableSequenceNumber.get() : sequences[i]);
+		}
+	}
+
+	/**
+	 * Waits until a stripe is unlocked
+	 *
+	 * @param stripe the stripe
+	 * @return true if interrupted during the wait
+	 */
+	private boolean atomicWait(int stripe) {
+		waiting.incrementAndGet();
+		try {
+			synchronized (this) {
+				if (stripeSequence.get(stripe) != DatatableSequenceNumber.UNSTABLE) {
+					return false;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return true;
+				}
+			}
+		} finally {
+			waiting.decrementAndGet();
+		}
+		return false;
+	}
+
+	/**
+	 * Notifies all waiting threads
+	 */
+	private void atomicNotify() {
+		if (waiting.get() > 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+}
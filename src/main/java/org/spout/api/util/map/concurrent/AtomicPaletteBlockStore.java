@@ -0,0 +1,1101 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.spout.api.datatable.DatatableSequenceNumber;
+import org.spout.api.material.block.BlockFullState;
+import org.spout.api.material.source.MaterialSource;
+import org.spout.api.math.MathHelper;
+import org.spout.api.math.Vector3;
+import org.spout.api.util.cuboid.CuboidShortBuffer;
+
+/**
+ * This store stores block data for each chunk using a palette.<br>
+ * <br>
+ * Each distinct id and data pair in the store is stored once in a palette, and
+ * each block stores the index of its palette entry in an
+ * AtomicVariableWidthArray. The index width starts at 1 bit and is doubled as
+ * the palette grows, so chunks which only contain a few materials need a
+ * small fraction of the memory used by AtomicBlockStoreImpl.<br>
+ * <br>
+ * The id and data of a block are always read together, so reads are lock free.
+ * Writers lock a stripe of blocks by setting the sequence number for the
+ * stripe to DatatableSequenceNumber.UNSTABLE. When the palette is full, all
+ * stripes are locked and the index array is replaced by a wider copy. Readers
+ * are never blocked by writers or by widening. Bulk writes, such as fill,
+ * lock all stripes and write the index array directly.<br>
+ * <br>
+ * As with AtomicBlockStoreImpl, blocks with a data value of 0 have a sequence
+ * number of DatatableSequenceNumber.ATOMIC.
+ */
+public final class AtomicPaletteBlockStore implements AtomicBlockStore {
+	private final static int STRIPES = 64;
+	private final int side;
+	private final int shift;
+	private final int doubleShift;
+	private final int size;
+	private final int minWidth;
+	private final int stripeMask;
+	private final AtomicReference<Palette> palette;
+	private final AtomicIntegerArray stripeSequence;
+	private final AtomicInteger writeEpoch = new AtomicInteger(0);
+	private final int dirtySize;
+	private final AtomicDirtyBlockTracker dirty;
+	private final AtomicInteger waiting = new AtomicInteger(0);
+	private final int SPINS = 10;
+
+	public AtomicPaletteBlockStore(int shift) {
+		this(shift, 10);
+	}
+
+	public AtomicPaletteBlockStore(int shift, short[] initial) {
+		this(shift, 10, initial);
+	}
+
+	public AtomicPaletteBlockStore(int shift, int dirtySize) {
+		this(shift, dirtySize, null);
+	}
+
+	public AtomicPaletteBlockStore(int shift, int dirtySize, short[] initial) {
+		this(shift, dirtySize, initial, null);
+	}
+
+	public AtomicPaletteBlockStore(int shift, int dirtySize, short[] blocks, short[] data) {
+		this.side = 1 << shift;
+		this.shift = shift;
+		this.doubleShift = shift << 1;
+		this.size = side * side * side;
+		this.minWidth = size >= 32 ? 1 : 32 / size;
+		int stripes = Math.min(STRIPES, size);
+		this.stripeMask = stripes - 1;
+		this.stripeSequence = new AtomicIntegerArray(stripes);
+		for (int i = 0; i < stripes; i++) {
+			stripeSequence.set(i, DatatableSequenceNumber.get());
+		}
+		this.dirtySize = dirtySize;
+		this.dirty = new AtomicDirtyBlockTracker(shift);
+		palette = new AtomicReference<Palette>(createPalette(blocks, data));
+	}
+
+	/**
+	 * Creates the initial palette for the store
+	 *
+	 * @param blocks the initial block ids, or null
+	 * @param data the initial block data, or null
+	 * @return the palette
+	 */
+	private Palette createPalette(short[] blocks, short[] data) {
+		if (blocks == null) {
+			Palette p = new Palette(minWidth, size);
+			p.add(0);
+			return p;
+		}
+		int length = Math.min(blocks.length, size);
+		int[] states = new int[size];
+		for (int i = 0; i < length; i++) {
+			states[i] = BlockFullState.getPacked(blocks[i], data == null ? 0 : data[i]);
+			markDirty(i & (side - 1), i >> doubleShift, (i >> shift) & (side - 1));
+		}
+		Palette p = new Palette(minWidth, size);
+		for (int i = 0; i < size; i++) {
+			int entry = p.add(states[i]);
+			if (entry == -1) {
+				p = p.copy(getWidth(p.getEntries() + 1), null);
+				entry = p.add(states[i]);
+			}
+			p.indices.set(i, entry);
+		}
+		return p;
+	}
+
+	/**
+	 * Gets the sequence number associated with a block location.<br>
+	 * <br>
+	 * If soft is true, this method counts as a volatile read. Otherwise, it is
+	 * both a volatile read and a volatile write.<br>
+	 * <br>
+	 * Soft reads should only be used for the first of the 2 step process for
+	 * confirming that data hasn't changed.
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the sequence number, or DatatableSequenceNumber.ATOMIC for a
+	 *         single short record
+	 */
+	public int getSequence(int x, int y, int z) {
+		int index = getIndex(x, y, z);
+		int stripe = index & stripeMask;
+		int spins = 0;
+		boolean interrupted = false;
+		try {
+			while (true) {
+				int sequence = stripeSequence.get(stripe);
+				if (sequence == DatatableSequenceNumber.UNSTABLE) {
+					if (spins++ > SPINS) {
+						interrupted |= atomicWait(stripe);
+					}
+					continue;
+				}
+				if (BlockFullState.getData(getFullState(index)) == 0) {
+					return DatatableSequenceNumber.ATOMIC;
+				}
+				return sequence;
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Tests if a the sequence number associated with a particular block
+	 * location has not changed.
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @param expected the expected sequence number
+	 * @return true if the sequence number has not changed and expected is not
+	 *         DatatableSequenceNumber.ATOMIC
+	 */
+	public boolean testSequence(int x, int y, int z, int expected) {
+		if (expected == DatatableSequenceNumber.ATOMIC) {
+			return false;
+		}
+		int stripe = getIndex(x, y, z) & stripeMask;
+		return stripeSequence.compareAndSet(stripe, expected, expected);
+	}
+
+	/**
+	 * Gets the block id for a block at a particular location.<br>
+	 * <br>
+	 * Block ids range from 0 to 65535.
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the block id
+	 */
+	public int getBlockId(int x, int y, int z) {
+		return BlockFullState.getId(getFullState(getIndex(x, y, z))) & 0x0000FFFF;
+	}
+
+	/**
+	 * Gets the block data for a block at a particular location.<br>
+	 * <br>
+	 * Block data ranges from 0 to 65535.
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the block data
+	 */
+	public int getData(int x, int y, int z) {
+		return BlockFullState.getData(getFullState(getIndex(x, y, z))) & 0x0000FFFF;
+	}
+
+	/**
+	 * Atomically gets the full set of data associated with the block.<br>
+	 * <br>
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the full state of the block
+	 */
+	public int getFullData(int x, int y, int z) {
+		return getFullState(getIndex(x, y, z));
+	}
+
+	/**
+	 * Sets the block id and data for the block at (x, y, z).<br>
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @param material the new material
+	 */
+	public void setBlock(int x, int y, int z, MaterialSource material) {
+		setBlock(x, y, z, material.getMaterial().getId(), material.getData());
+	}
+
+	/**
+	 * Sets the block id and data for the block at (x, y, z).<br>
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @param material the new material
+	 * @return the old full state of the block
+	 */
+	public int getAndSetBlock(int x, int y, int z, MaterialSource material) {
+		return getAndSetBlock(x, y, z, material.getMaterial().getId(), material.getData());
+	}
+
+	/**
+	 * Sets the block id and data for the block at (x, y, z).<br>
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @param id the block id
+	 * @param data the block data
+	 */
+	public void setBlock(int x, int y, int z, short id, short data) {
+		getAndSetBlockRaw(x, y, z, id, data);
+	}
+
+	/**
+	 * Sets the block id and data for the block at (x, y, z).<br>
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @param id the block id
+	 * @param data the block data
+	 * @return the old full state of the block
+	 */
+	public int getAndSetBlock(int x, int y, int z, short id, short data) {
+		return getAndSetBlockRaw(x, y, z, id, data);
+	}
+
+	private int getAndSetBlockRaw(int x, int y, int z, short id, short data) {
+		int index = getIndex(x, y, z);
+		int stripe = index & stripeMask;
+		int state = BlockFullState.getPacked(id, data);
+		try {
+			while (true) {
+				int sequence = lockStripe(stripe);
+				boolean changed = false;
+				Palette p = palette.get();
+				try {
+					int entry = p.add(state);
+					if (entry != -1) {
+						int oldEntry = p.indices.getAndSet(index, entry);
+						changed = true;
+						return p.states.get(oldEntry);
+					}
+				} finally {
+					unlockStripe(stripe, changed ? DatatableSequenceNumber.get() : sequence);
+				}
+				resize(p, 1, false);
+			}
+		} finally {
+			markDirty(x, y, z);
+		}
+	}
+
+	/**
+	 * Sets the block id and data for the block at (x, y, z), if the current
+	 * data matches the expected data.<br>
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @param expectId the expected block id
+	 * @param expectData the expected block data
+	 * @param newId the new block id
+	 * @param newData the new block data
+	 * @return true if the block was set
+	 */
+	public boolean compareAndSetBlock(int x, int y, int z, short expectId, short expectData, short newId, short newData) {
+		int index = getIndex(x, y, z);
+		int stripe = index & stripeMask;
+		int expected = BlockFullState.getPacked(expectId, expectData);
+		int state = BlockFullState.getPacked(newId, newData);
+		while (true) {
+			int sequence = lockStripe(stripe);
+			boolean changed = false;
+			Palette p = palette.get();
+			try {
+				if (p.states.get(p.indices.get(index)) != expected) {
+					return false;
+				}
+				int entry = p.add(state);
+				if (entry != -1) {
+					p.indices.set(index, entry);
+					changed = true;
+					markDirty(x, y, z);
+					return true;
+				}
+			} finally {
+				unlockStripe(stripe, changed ? DatatableSequenceNumber.get() : sequence);
+			}
+			resize(p, 1, false);
+		}
+	}
+
+	/**
+	 * Sets every block in a cuboid to the same id and data.<br>
+	 * <br>
+	 * The corners are inclusive and are clamped to the store. All stripes are
+	 * locked while the cuboid is filled, so readers see either the old or the
+	 * new state of each block. Filling the whole store replaces the palette
+	 * with a single entry palette.
+	 *
+	 * @param x1 the x coordinate of the first corner
+	 * @param y1 the y coordinate of the first corner
+	 * @param z1 the z coordinate of the first corner
+	 * @param x2 the x coordinate of the second corner
+	 * @param y2 the y coordinate of the second corner
+	 * @param z2 the z coordinate of the second corner
+	 * @param id the block id
+	 * @param data the block data
+	 */
+	public void fill(int x1, int y1, int z1, int x2, int y2, int z2, short id, short data) {
+		int minX = Math.max(0, Math.min(x1, x2));
+		int minY = Math.max(0, Math.min(y1, y2));
+		int minZ = Math.max(0, Math.min(z1, z2));
+		int maxX = Math.min(side - 1, Math.max(x1, x2));
+		int maxY = Math.min(side - 1, Math.max(y1, y2));
+		int maxZ = Math.min(side - 1, Math.max(z1, z2));
+		if (minX > maxX || minY > maxY || minZ > maxZ) {
+			return;
+		}
+		int state = BlockFullState.getPacked(id, data);
+		boolean whole = minX == 0 && minY == 0 && minZ == 0 && maxX == side - 1 && maxY == side - 1 && maxZ == side - 1;
+		int[] sequences = lockAllStripes();
+		writeEpoch.incrementAndGet();
+		try {
+			if (whole) {
+				Palette p = new Palette(minWidth, size);
+				p.add(state);
+				palette.set(p);
+				return;
+			}
+			Palette p = palette.get();
+			int entry = p.add(state);
+			if (entry == -1) {
+				p = resizeLocked(p, 1, false);
+				entry = p.add(state);
+			}
+			for (int y = minY; y <= maxY; y++) {
+				for (int z = minZ; z <= maxZ; z++) {
+					int index = getIndex(minX, y, z);
+					for (int x = minX; x <= maxX; x++) {
+						p.indices.set(index++, entry);
+					}
+				}
+			}
+		} finally {
+			writeEpoch.incrementAndGet();
+			unlockAllStripes(sequences, true);
+			markDirty(minX, minY, minZ, maxX, maxY, maxZ);
+		}
+	}
+
+	/**
+	 * Copies the block ids from a buffer into the store. The data for the
+	 * copied blocks is set to 0.<br>
+	 * <br>
+	 * Blocks which are outside the buffer are not changed. All stripes are
+	 * locked while the blocks are copied, so readers see either the old or the
+	 * new state of each block.
+	 *
+	 * @param baseX the x coordinate of the store's origin in the buffer
+	 * @param baseY the y coordinate of the store's origin in the buffer
+	 * @param baseZ the z coordinate of the store's origin in the buffer
+	 * @param buffer the buffer containing the block ids
+	 */
+	public void setBlocks(int baseX, int baseY, int baseZ, CuboidShortBuffer buffer) {
+		Vector3 bufferBase = buffer.getBase();
+		Vector3 bufferSize = buffer.getSize();
+		int bufferX = (int) bufferBase.getX();
+		int bufferY = (int) bufferBase.getY();
+		int bufferZ = (int) bufferBase.getZ();
+		int minX = Math.max(0, bufferX - baseX);
+		int minY = Math.max(0, bufferY - baseY);
+		int minZ = Math.max(0, bufferZ - baseZ);
+		int maxX = Math.min(side, bufferX + (int) bufferSize.getX() - baseX) - 1;
+		int maxY = Math.min(side, bufferY + (int) bufferSize.getY() - baseY) - 1;
+		int maxZ = Math.min(side, bufferZ + (int) bufferSize.getZ() - baseZ) - 1;
+		if (minX > maxX || minY > maxY || minZ > maxZ) {
+			return;
+		}
+		int[] sequences = lockAllStripes();
+		writeEpoch.incrementAndGet();
+		try {
+			Palette p = palette.get();
+			short lastId = 0;
+			int lastEntry = -1;
+			for (int y = minY; y <= maxY; y++) {
+				for (int z = minZ; z <= maxZ; z++) {
+					for (int x = minX; x <= maxX; x++) {
+						short id = buffer.get(baseX + x, baseY + y, baseZ + z);
+						if (lastEntry == -1 || id != lastId) {
+							int state = BlockFullState.getPacked(id, (short) 0);
+							lastEntry = p.add(state);
+							if (lastEntry == -1) {
+								p = resizeLocked(p, 1, false);
+								lastEntry = p.add(state);
+							}
+							lastId = id;
+						}
+						p.indices.set(getIndex(x, y, z), lastEntry);
+					}
+				}
+			}
+		} finally {
+			writeEpoch.incrementAndGet();
+			unlockAllStripes(sequences, true);
+			markDirty(minX, minY, minZ, maxX, maxY, maxZ);
+		}
+	}
+
+	/**
+	 * Replaces the id of every block which has a given id. The data of the
+	 * replaced blocks is not changed.<br>
+	 * <br>
+	 * All stripes are locked while the blocks are replaced, so readers see
+	 * either the old or the new state of each block.
+	 *
+	 * @param fromId the id to replace
+	 * @param toId the new id
+	 * @return the number of blocks which were replaced
+	 */
+	public int replaceAll(short fromId, short toId) {
+		if (fromId == toId) {
+			return 0;
+		}
+		int replaced = 0;
+		int[] sequences = lockAllStripes();
+		writeEpoch.incrementAndGet();
+		try {
+			Palette p = palette.get();
+			int index = 0;
+			for (int y = 0; y < side; y++) {
+				for (int z = 0; z < side; z++) {
+					for (int x = 0; x < side; x++) {
+						int state = p.states.get(p.indices.get(index));
+						if (BlockFullState.getId(state) == fromId) {
+							int newState = BlockFullState.getPacked(toId, BlockFullState.getData(state));
+							int entry = p.add(newState);
+							if (entry == -1) {
+								p = resizeLocked(p, 1, false);
+								entry = p.add(newState);
+							}
+							p.indices.set(index, entry);
+							replaced++;
+							markDirty(x, y, z);
+						}
+						index++;
+					}
+				}
+			}
+			return replaced;
+		} finally {
+			writeEpoch.incrementAndGet();
+			unlockAllStripes(sequences, replaced > 0);
+		}
+	}
+
+	/**
+	 * Gets if the store would benefit from compression.<br>
+	 * <br>
+	 * Unused palette entries are only removed when the palette is full or the
+	 * store is compressed. Compression is needed if removing them would allow
+	 * a narrower index array.<br>
+	 * <br>
+	 * If this method is called when the store is being accessed by another
+	 * thread, it may give spurious results.
+	 *
+	 * @return true if compression would reduce the store size
+	 */
+	public boolean needsCompression() {
+		Palette p = palette.get();
+		return getWidth(p.countUsed(size, null)) < p.width;
+	}
+
+	/**
+	 * Gets a short array containing the block ids in the store.<br>
+	 * <br>
+	 * If the store is updated while this snapshot is being taken, data tearing
+	 * could occur. The snapshot is retaken if a bulk write, such as a fill,
+	 * runs while it is being taken.
+	 *
+	 * @return the array
+	 */
+	public short[] getBlockIdArray() {
+		return getBlockIdArray(null);
+	}
+
+	/**
+	 * Copies the block ids in the store into an array.<br>
+	 * <br>
+	 * If the store is updated while this snapshot is being taken, data tearing
+	 * could occur. The snapshot is retaken if a bulk write, such as a fill,
+	 * runs while it is being taken.<br>
+	 * <br>
+	 * If the array is the wrong length or null, a new array is created.
+	 *
+	 * @param the array to place the data
+	 * @return the array
+	 */
+	public short[] getBlockIdArray(short[] array) {
+		if (array == null || array.length != size) {
+			array = new short[size];
+		}
+		Palette p;
+		int epoch;
+		do {
+			epoch = getStableEpoch();
+			p = palette.get();
+			if (p.getEntries() == 1) {
+				Arrays.fill(array, BlockFullState.getId(p.states.get(0)));
+				continue;
+			}
+			for (int i = 0; i < size; i++) {
+				array[i] = BlockFullState.getId(p.states.get(p.indices.get(i)));
+			}
+		} while (palette.get() != p || writeEpoch.get() != epoch);
+		return array;
+	}
+
+	/**
+	 * Gets a short array containing the block data for the blocks in the store.<br>
+	 * <br>
+	 * If the store is updated while this snapshot is being taken, data tearing
+	 * could occur. The snapshot is retaken if a bulk write, such as a fill,
+	 * runs while it is being taken.
+	 *
+	 * @return the array
+	 */
+	public short[] getDataArray() {
+		return getDataArray(null);
+	}
+
+	/**
+	 * Copies the block data in the store into an array.<br>
+	 * <br>
+	 * If the store is updated while this snapshot is being taken, data tearing
+	 * could occur. The snapshot is retaken if a bulk write, such as a fill,
+	 * runs while it is being taken.<br>
+	 * <br>
+	 * If the array is the wrong length or null, a new array is created.
+	 *
+	 * @param the array to place the data
+	 * @return the array
+	 */
+	public short[] getDataArray(short[] array) {
+		if (array == null || array.length != size) {
+			array = new short[size];
+		}
+		Palette p;
+		int epoch;
+		do {
+			epoch = getStableEpoch();
+			p = palette.get();
+			if (p.getEntries() == 1) {
+				Arrays.fill(array, BlockFullState.getData(p.states.get(0)));
+				continue;
+			}
+			for (int i = 0; i < size; i++) {
+				array[i] = BlockFullState.getData(p.states.get(p.indices.get(i)));
+			}
+		} while (palette.get() != p || writeEpoch.get() != epoch);
+		return array;
+	}
+
+	/**
+	 * Compresses the store by removing unused palette entries and narrowing the
+	 * index array, if possible.<br>
+	 * <br>
+	 * Unlike AtomicBlockStoreImpl, the store may be safely accessed by other
+	 * threads during compression.
+	 */
+	public void compress() {
+		resize(palette.get(), 0, true);
+	}
+
+	/**
+	 * Gets if every block in the store has the same id and data, and the
+	 * store is stored as a single uniform state.<br>
+	 * <br>
+	 * A palette store is uniform if its palette has a single entry.
+	 *
+	 * @return true if the store is uniform
+	 */
+	public boolean isUniform() {
+		return palette.get().getEntries() == 1;
+	}
+
+	/**
+	 * Gets the number of entries in the palette, including unused entries
+	 *
+	 * @return the palette size
+	 */
+	public int getPaletteSize() {
+		return palette.get().getEntries();
+	}
+
+	/**
+	 * Gets the number of bits used to store the palette index of each block
+	 *
+	 * @return the width, in bits
+	 */
+	public int getWidth() {
+		return palette.get().width;
+	}
+
+	/**
+	 * Gets if the dirty array has overflowed since the last reset.<br>
+	 * <br>
+	 * The array overflows once the number of distinct dirty blocks reaches
+	 * the dirty size of the store. All the dirty blocks are still available
+	 * from the dirty tracker after an overflow.
+	 *
+	 * @return true if there was an overflow
+	 */
+	public boolean isDirtyOverflow() {
+		return dirty.getDirtyCount() >= dirtySize;
+	}
+
+	/**
+	 * Gets if the store has been modified since the last reset of the dirty
+	 * arrays
+	 *
+	 * @return true if the store is dirty
+	 */
+	public boolean isDirty() {
+		return dirty.isDirty();
+	}
+
+	/**
+	 * Resets the dirty arrays
+	 */
+	public void resetDirtyArrays() {
+		dirty.reset();
+	}
+
+	/**
+	 * Gets the position of the dirty block at a given index.<br>
+	 * <br>
+	 * If there is no block at that index, then the method return null.<br>
+	 * <br>
+	 * Note: the x, y and z values returned are the chunk coordinates, not the
+	 * world coordinates and the method has no effect on the world field of the
+	 * block.<br>
+	 *
+	 * @param i
+	 * @param block
+	 * @return
+	 */
+	public Vector3 getDirtyBlock(int i) {
+		int index = dirty.getDirtyBlock(i);
+		if (index == -1) {
+			return null;
+		}
+
+		return new Vector3(dirty.getX(index), dirty.getY(index), dirty.getZ(index));
+	}
+
+	/**
+	 * Gets the tracker which records the dirty blocks in the store.<br>
+	 * <br>
+	 * The tracker can be used to iterate over all the dirty blocks without
+	 * allocating, or to find the dirty sections of the store.
+	 *
+	 * @return the dirty block tracker
+	 */
+	public AtomicDirtyBlockTracker getDirtyTracker() {
+		return dirty;
+	}
+
+	/**
+	 * Marks a block as dirty.<br>
+	 * <br>
+	 * Updates for dirty blocks will be sent at the end of the tick.<br>
+	 *
+	 * @param x the x coordinate of the dirty block
+	 * @param y the y coordinate of the dirty block
+	 * @param z the z coordinate of the dirty block
+	 */
+	public void markDirty(int x, int y, int z) {
+		dirty.markDirty(x, y, z);
+	}
+
+	private final int getIndex(int x, int y, int z) {
+		return (y << doubleShift) + (z << shift) + x;
+	}
+
+	/**
+	 * Gets the full state of the block at a given index.  The palette is
+	 * checked after the read, so that writes made to a newer palette are not
+	 * missed.
+	 *
+	 * @param index the block index
+	 * @return the full state
+	 */
+	private int getFullState(int index) {
+		while (true) {
+			Palette p = palette.get();
+			int state = p.states.get(p.indices.get(index));
+			if (palette.get() == p) {
+				return state;
+			}
+		}
+	}
+
+	/**
+	 * Gets the narrowest index width which can index a palette with the given
+	 * number of entries
+	 *
+	 * @param entries the number of entries
+	 * @return the width
+	 */
+	private int getWidth(int entries) {
+		int width = minWidth;
+		while (width < 32 && (1 << width) < entries) {
+			width <<= 1;
+		}
+		return width;
+	}
+
+	/**
+	 * Marks a cuboid of blocks as dirty
+	 *
+	 * @param minX the minimum x coordinate
+	 * @param minY the minimum y coordinate
+	 * @param minZ the minimum z coordinate
+	 * @param maxX the maximum x coordinate
+	 * @param maxY the maximum y coordinate
+	 * @param maxZ the maximum z coordinate
+	 */
+	private void markDirty(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		dirty.markDirty(minX, minY, minZ, maxX, maxY, maxZ);
+	}
+
+	/**
+	 * Gets the write epoch, waiting for a bulk write in progress to complete
+	 *
+	 * @return the write epoch
+	 */
+	private int getStableEpoch() {
+		while (true) {
+			int epoch = writeEpoch.get();
+			if ((epoch & 1) == 0) {
+				return epoch;
+			}
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Replaces the palette with a copy containing only the entries that are in
+	 * use.  The index array is widened if required, so that there is room for
+	 * the given number of new entries.<br>
+	 * <br>
+	 * All stripes are locked while the copy is made.
+	 *
+	 * @param expected the palette to replace
+	 * @param free the number of free entries required
+	 * @param shrink true if the index array may be narrowed
+	 */
+	private void resize(Palette expected, int free, boolean shrink) {
+		int[] sequences = lockAllStripes();
+		try {
+			Palette p = palette.get();
+			if (p != expected) {
+				return;
+			}
+			resizeLocked(p, free, shrink);
+		} finally {
+			unlockAllStripes(sequences, false);
+		}
+	}
+
+	/**
+	 * Replaces the palette with a copy containing only the entries that are in
+	 * use.  All stripes must be locked by the caller.
+	 *
+	 * @param p the current palette
+	 * @param free the number of free entries required
+	 * @param shrink true if the index array may be narrowed
+	 * @return the new palette
+	 */
+	private Palette resizeLocked(Palette p, int free, boolean shrink) {
+		int[] map = new int[p.getEntries()];
+		int used = p.countUsed(size, map);
+		int width = getWidth(used + free);
+		if (!shrink) {
+			width = Math.max(width, p.width);
+		}
+		Palette copy = p.copy(width, map);
+		palette.set(copy);
+		return copy;
+	}
+
+	/**
+	 * Locks every stripe in the store
+	 *
+	 * @return the previous sequence numbers of the stripes
+	 */
+	private int[] lockAllStripes() {
+		int stripes = stripeMask + 1;
+		int[] sequences = new int[stripes];
+		for (int i = 0; i < stripes; i++) {
+			sequences[i] = lockStripe(i);
+		}
+		return sequences;
+	}
+
+	/**
+	 * Unlocks every stripe in the store
+	 *
+	 * @param sequences the previous sequence numbers of the stripes
+	 * @param changed true if blocks were changed while the stripes were locked
+	 */
+	private void unlockAllStripes(int[] sequences, boolean changed) {
+		for (int i = 0; i < sequences.length; i++) {
+			unlockStripe(i, changed ? DatatableSequenceNumber.get() : sequences[i]);
+		}
+	}
+
+	/**
+	 * Locks a stripe of blocks, by setting its sequence number to
+	 * DatatableSequenceNumber.UNSTABLE
+	 *
+	 * @param stripe the stripe
+	 * @return the previous sequence number of the stripe
+	 */
+	private int lockStripe(int stripe) {
+		int spins = 0;
+		boolean interrupted = false;
+		try {
+			while (true) {
+				int sequence = stripeSequence.getAndSet(stripe, DatatableSequenceNumber.UNSTABLE);
+				if (sequence != DatatableSequenceNumber.UNSTABLE) {
+					return sequence;
+				}
+				if (spins++ > SPINS) {
+					interrupted |= atomicWait(stripe);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Unlocks a stripe of blocks
+	 *
+	 * @param stripe the stripe
+	 * @param sequence the new sequence number for the stripe
+	 */
+	private void unlockStripe(int stripe, int sequence) {
+		stripeSequence.set(stripe, sequence);
+		atomicNotify();
+	}
+
+	/**
+	 * Waits until a notify, if the stripe is locked
+	 *
+	 * @param stripe the stripe
+	 * @return true if interrupted during the wait
+	 */
+	private boolean atomicWait(int stripe) {
+		waiting.incrementAndGet();
+		try {
+			synchronized (this) {
+				if (stripeSequence.get(stripe) != DatatableSequenceNumber.UNSTABLE) {
+					return false;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return true;
+				}
+			}
+		} finally {
+			waiting.decrementAndGet();
+		}
+		return false;
+	}
+
+	/**
+	 * Notifies all waiting threads
+	 */
+	private void atomicNotify() {
+		if (waiting.get() > 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * A palette of block states and the palette index for each block.<br>
+	 * <br>
+	 * Entries are never changed or removed once added, so an index read from
+	 * the index array always refers to a valid state.
+	 */
+	private static final class Palette {
+		private final int width;
+		private final int capacity;
+		private final AtomicVariableWidthArray indices;
+		private final AtomicIntegerArray states;
+		private final AtomicIntegerArray lookup;
+		private final int lookupMask;
+		private final AtomicInteger entries = new AtomicInteger(0);
+
+		public Palette(int width, int size) {
+			this.width = width;
+			this.capacity = width == 32 ? size + 1 : Math.min(1 << width, size + 1);
+			this.indices = new AtomicVariableWidthArray(size, width);
+			this.states = new AtomicIntegerArray(capacity);
+			int lookupLength = MathHelper.roundUpPow2(capacity + (capacity >> 1));
+			this.lookup = new AtomicIntegerArray(lookupLength);
+			this.lookupMask = lookupLength - 1;
+		}
+
+		/**
+		 * Gets the number of entries in the palette
+		 *
+		 * @return the number of entries
+		 */
+		public int getEntries() {
+			return entries.get();
+		}
+
+		/**
+		 * Gets the index of a state in the palette
+		 *
+		 * @param state the state
+		 * @return the index, or -1 if the state is not in the palette
+		 */
+		public int indexOf(int state) {
+			int slot = hash(state) & lookupMask;
+			while (true) {
+				int entry = lookup.get(slot);
+				if (entry == 0) {
+					return -1;
+				}
+				if (states.get(entry - 1) == state) {
+					return entry - 1;
+				}
+				slot = (slot + 1) & lookupMask;
+			}
+		}
+
+		/**
+		 * Gets the index of a state in the palette, adding the state if it is
+		 * not already in the palette
+		 *
+		 * @param state the state
+		 * @return the index, or -1 if the palette is full
+		 */
+		public int add(int state) {
+			int index = indexOf(state);
+			if (index != -1) {
+				return index;
+			}
+			synchronized (this) {
+				index = indexOf(state);
+				if (index != -1) {
+					return index;
+				}
+				index = entries.get();
+				if (index >= capacity) {
+					return -1;
+				}
+				states.set(index, state);
+				int slot = hash(state) & lookupMask;
+				while (lookup.get(slot) != 0) {
+					slot = (slot + 1) & lookupMask;
+				}
+				lookup.set(slot, index + 1);
+				entries.set(index + 1);
+				return index;
+			}
+		}
+
+		/**
+		 * Counts the entries which are used by at least one block
+		 *
+		 * @param size the number of blocks
+		 * @param map an array to mark the used entries in, or null
+		 * @return the number of used entries
+		 */
+		public int countUsed(int size, int[] map) {
+			if (map == null) {
+				map = new int[entries.get()];
+			}
+			int used = 0;
+			for (int i = 0; i < size; i++) {
+				int entry = indices.get(i);
+				if (map[entry] == 0) {
+					map[entry] = 1;
+					used++;
+				}
+			}
+			return used;
+		}
+
+		/**
+		 * Copies the palette.  If a map of used entries is given, only those
+		 * entries are copied, and the array is updated to map old indexes to
+		 * new indexes.
+		 *
+		 * @param width the width of the new index array
+		 * @param map the used entries, or null to copy all entries
+		 * @return the new palette
+		 */
+		public Palette copy(int width, int[] map) {
+			int size = indices.length();
+			Palette p = new Palette(width, size);
+			int length = entries.get();
+			if (map == null) {
+				map = new int[length];
+				for (int i = 0; i < length; i++) {
+					map[i] = p.add(states.get(i));
+				}
+			} else {
+				for (int i = 0; i < length; i++) {
+					map[i] = map[i] == 0 ? -1 : p.add(states.get(i));
+				}
+			}
+			for (int i = 0; i < size; i++) {
+				p.indices.set(i, map[indices.get(i)]);
+			}
+			return p;
+		}
+
+		private static int hash(int state) {
+			int h = state * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+}
@@ -0,0 +1,738 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.spout.api.math.MathHelper;
+import org.spout.api.util.hashing.Int21TripleHashed;
+
+import gnu.trove.function.TObjectFunction;
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongObjectIterator;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.procedure.TLongObjectProcedure;
+import gnu.trove.procedure.TLongProcedure;
+import gnu.trove.procedure.TObjectProcedure;
+import gnu.trove.set.TLongSet;
+
+/**
+ * A concurrent long to Object map, intended as the index for objects which
+ * are keyed by {@link Int21TripleHashed packed} coordinates, such as chunks and
+ * regions.<br>
+ * <br>
+ * The map is split into segments. Each segment is an open addressing table
+ * with linear probing, where the keys are held in a long array, so no key is
+ * boxed. Reads do not lock and never wait. Writes lock the segment that the
+ * key belongs to.<br>
+ * <br>
+ * Entries are never moved within a table. A removed entry keeps its key and
+ * only has its value cleared. When a segment runs out of free slots, a new
+ * table is built for that segment and swapped in. Readers carry on using the
+ * old table until the swap and only the writers for that segment wait for the
+ * resize to complete.<br>
+ * <br>
+ * The forEach, keys and values methods are weakly consistent, they do not
+ * lock and changes made during the call may or may not be seen. Null values
+ * are not supported.
+ *
+ * @param <V> the value type
+ */
+public class ConcurrentLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
+	/**
+	 * The key used to mark free slots. Entries with this key are held
+	 * separately by their segment.
+	 */
+	private final static long FREE_KEY = 0;
+	private final static int MIN_CAPACITY = 8;
+	private final int segmentMask;
+	private final Segment<V>[] segments;
+	private final float loadFactor;
+	private final long no_entry_key;
+
+	/**
+	 * Creates a concurrent long object map
+	 */
+	public ConcurrentLongObjectHashMap() {
+		this(16);
+	}
+
+	/**
+	 * Creates a concurrent long object map
+	 *
+	 * @param segmentCount the number of segments
+	 */
+	public ConcurrentLongObjectHashMap(int segmentCount) {
+		this(segmentCount, 32);
+	}
+
+	/**
+	 * Creates a concurrent long object map
+	 *
+	 * @param segmentCount the number of segments
+	 * @param initialCapacity the initial capacity of the map
+	 */
+	public ConcurrentLongObjectHashMap(int segmentCount, int initialCapacity) {
+		this(segmentCount, initialCapacity, 0.5F);
+	}
+
+	/**
+	 * Creates a concurrent long object map
+	 *
+	 * @param segmentCount the number of segments
+	 * @param initialCapacity the initial capacity of the map
+	 * @param loadFactor the fraction of the slots in a segment which may be used before the segment is resized
+	 */
+	public ConcurrentLongObjectHashMap(int segmentCount, int initialCapacity, float loadFactor) {
+		this(segmentCount, initialCapacity, loadFactor, Constants.DEFAULT_LONG_NO_ENTRY_VALUE);
+	}
+
+	/**
+	 * Creates a concurrent long object map
+	 *
+	 * @param segmentCount the number of segments
+	 * @param initialCapacity the initial capacity of the map
+	 * @param loadFactor the fraction of the slots in a segment which may be used before the segment is resized
+	 * @param noEntryKey the key used to indicate a null key
+	 */
+	@SuppressWarnings("unchecked")
+	public ConcurrentLongObjectHashMap(int segmentCount, int initialCapacity, float loadFactor, long noEntryKey) {
+		if (segmentCount > 0x100000) {
+			throw new IllegalArgumentException("Segment count exceeds valid range");
+		}
+		if (!(loadFactor > 0F && loadFactor < 1F)) {
+			throw new IllegalArgumentException("Load factor must be between 0 and 1, got " + loadFactor);
+		}
+		segmentCount = MathHelper.roundUpPow2(segmentCount);
+		segmentMask = segmentCount - 1;
+		this.loadFactor = loadFactor;
+		this.no_entry_key = noEntryKey;
+		segments = (Segment<V>[]) new Segment<?>[segmentCount];
+		int segmentCapacity = capacityFor(Math.max(0, initialCapacity) / segmentCount, loadFactor);
+		for (int s = 0; s < segmentCount; s++) {
+			segments[s] = new Segment<V>(segmentCapacity, loadFactor);
+		}
+	}
+
+	public void clear() {
+		int capacity = capacityFor(0, loadFactor);
+		for (Segment<V> segment : segments) {
+			segment.clear(capacity);
+		}
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	public boolean containsValue(Object value) {
+		if (value == null) {
+			return false;
+		}
+		for (Segment<V> segment : segments) {
+			if (value.equals(segment.freeValue)) {
+				return true;
+			}
+			AtomicReferenceArray<V> values = segment.table.values;
+			for (int i = 0; i < values.length(); i++) {
+				if (value.equals(values.get(i))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Calls a procedure for each entry in the map.<br>
+	 * <br>
+	 * The iteration is weakly consistent and does not allocate.
+	 *
+	 * @param procedure the procedure
+	 * @return false if the procedure returned false for an entry
+	 */
+	public boolean forEachEntry(TLongObjectProcedure<? super V> procedure) {
+		for (Segment<V> segment : segments) {
+			V freeValue = segment.freeValue;
+			if (freeValue != null && !procedure.execute(FREE_KEY, freeValue)) {
+				return false;
+			}
+			Table<V> table = segment.table;
+			for (int i = 0; i < table.capacity; i++) {
+				long key = table.keys.get(i);
+				if (key != FREE_KEY) {
+					V value = table.values.get(i);
+					if (value != null && !procedure.execute(key, value)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Calls a procedure for each key in the map.<br>
+	 * <br>
+	 * The iteration is weakly consistent and does not allocate.
+	 *
+	 * @param procedure the procedure
+	 * @return false if the procedure returned false for a key
+	 */
+	public boolean forEachKey(TLongProcedure procedure) {
+		for (Segment<V> segment : segments) {
+			if (segment.freeValue != null && !procedure.execute(FREE_KEY)) {
+				return false;
+			}
+			Table<V> table = segment.table;
+			for (int i = 0; i < table.capacity; i++) {
+				long key = table.keys.get(i);
+				if (key != FREE_KEY && table.values.get(i) != null && !procedure.execute(key)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Calls a procedure for each value in the map.<br>
+	 * <br>
+	 * The iteration is weakly consistent and does not allocate.
+	 *
+	 * @param procedure the procedure
+	 * @return false if the procedure returned false for a value
+	 */
+	public boolean forEachValue(TObjectProcedure<? super V> procedure) {
+		for (Segment<V> segment : segments) {
+			V freeValue = segment.freeValue;
+			if (freeValue != null && !procedure.execute(freeValue)) {
+				return false;
+			}
+			AtomicReferenceArray<V> values = segment.table.values;
+			for (int i = 0; i < values.length(); i++) {
+				V value = values.get(i);
+				if (value != null && !procedure.execute(value)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	public V get(long key) {
+		long hash = hash(key);
+		Segment<V> segment = segments[segmentIndex(hash)];
+		if (key == FREE_KEY) {
+			return segment.freeValue;
+		}
+		Table<V> table = segment.table;
+		int mask = table.capacity - 1;
+		int i = (int) hash & mask;
+		while (true) {
+			long k = table.keys.get(i);
+			if (k == key) {
+				return table.values.get(i);
+			} else if (k == FREE_KEY) {
+				return null;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	/**
+	 * Gets the value mapped to the {@link Int21TripleHashed packed} key for the given coordinates
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the value, or null if there is no mapping
+	 */
+	public V get(int x, int y, int z) {
+		return get(Int21TripleHashed.key(x, y, z));
+	}
+
+	public long getNoEntryKey() {
+		return no_entry_key;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public TLongObjectIterator<V> iterator() {
+		throw new UnsupportedOperationException("This operation is not supported");
+	}
+
+	public TLongSet keySet() {
+		throw new UnsupportedOperationException("This operation is not supported");
+	}
+
+	public long[] keys() {
+		return keys(null);
+	}
+
+	public long[] keys(long[] dest) {
+		final TLongArrayList keys = new TLongArrayList(size());
+		forEachKey(new TLongProcedure() {
+			@Override
+			public boolean execute(long key) {
+				keys.add(key);
+				return true;
+			}
+		});
+		if (dest == null || dest.length < keys.size()) {
+			return keys.toArray();
+		}
+		keys.toArray(dest);
+		if (dest.length > keys.size()) {
+			dest[keys.size()] = no_entry_key;
+		}
+		return dest;
+	}
+
+	/**
+	 * Gets the {@link Int21TripleHashed packed} keys with coordinates inside a cube, including the bounds.
+	 *
+	 * @param minX the minimum x coordinate
+	 * @param minY the minimum y coordinate
+	 * @param minZ the minimum z coordinate
+	 * @param maxX the maximum x coordinate
+	 * @param maxY the maximum y coordinate
+	 * @param maxZ the maximum z coordinate
+	 * @return the keys
+	 */
+	public long[] keysInCube(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		final TLongArrayList keys = new TLongArrayList();
+		forEachInCube(minX, minY, minZ, maxX, maxY, maxZ, new TLongObjectProcedure<V>() {
+			@Override
+			public boolean execute(long key, V value) {
+				keys.add(key);
+				return true;
+			}
+		});
+		return keys.toArray();
+	}
+
+	/**
+	 * Calls a procedure for each entry with an {@link Int21TripleHashed packed} key inside a cube, including the bounds.<br>
+	 * <br>
+	 * Small cubes are looked up one key at a time, large cubes are found by
+	 * checking every entry in the map. The iteration is weakly consistent.
+	 *
+	 * @param minX the minimum x coordinate
+	 * @param minY the minimum y coordinate
+	 * @param minZ the minimum z coordinate
+	 * @param maxX the maximum x coordinate
+	 * @param maxY the maximum y coordinate
+	 * @param maxZ the maximum z coordinate
+	 * @param procedure the procedure
+	 * @return false if the procedure returned false for an entry
+	 */
+	public boolean forEachInCube(final int minX, final int minY, final int minZ, final int maxX, final int maxY, final int maxZ, final TLongObjectProcedure<? super V> procedure) {
+		if (minX > maxX || minY > maxY || minZ > maxZ) {
+			return true;
+		}
+		long volume = (maxX - (long) minX + 1) * (maxY - (long) minY + 1) * (maxZ - (long) minZ + 1);
+		if (volume <= size()) {
+			for (int x = minX; x <= maxX; x++) {
+				for (int y = minY; y <= maxY; y++) {
+					for (int z = minZ; z <= maxZ; z++) {
+						long key = Int21TripleHashed.key(x, y, z);
+						V value = get(key);
+						if (value != null && !procedure.execute(key, value)) {
+							return false;
+						}
+					}
+				}
+			}
+			return true;
+		}
+		return forEachEntry(new TLongObjectProcedure<V>() {
+			@Override
+			public boolean execute(long key, V value) {
+				int x = Int21TripleHashed.key1(key);
+				int y = Int21TripleHashed.key2(key);
+				int z = Int21TripleHashed.key3(key);
+				if (x < minX || x > maxX || y < minY || y > maxY || z < minZ || z > maxZ) {
+					return true;
+				}
+				return procedure.execute(key, value);
+			}
+		});
+	}
+
+	public V put(long key, V value) {
+		checkValue(value);
+		long hash = hash(key);
+		return segments[segmentIndex(hash)].put(key, hash, value, false);
+	}
+
+	/**
+	 * Maps the {@link Int21TripleHashed packed} key for the given coordinates to a value
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @param value the value
+	 * @return the previous value, or null if there was no mapping
+	 */
+	public V put(int x, int y, int z, V value) {
+		return put(Int21TripleHashed.key(x, y, z), value);
+	}
+
+	public void putAll(Map<? extends Long, ? extends V> map) {
+		for (Map.Entry<? extends Long, ? extends V> entry : map.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public void putAll(TLongObjectMap<? extends V> map) {
+		map.forEachEntry(new TLongObjectProcedure<V>() {
+			@Override
+			public boolean execute(long key, V value) {
+				put(key, value);
+				return true;
+			}
+		});
+	}
+
+	public V putIfAbsent(long key, V value) {
+		checkValue(value);
+		long hash = hash(key);
+		return segments[segmentIndex(hash)].put(key, hash, value, true);
+	}
+
+	public V remove(long key) {
+		long hash = hash(key);
+		return segments[segmentIndex(hash)].remove(key, hash, null);
+	}
+
+	/**
+	 * Removes the mapping for the {@link Int21TripleHashed packed} key for the given coordinates
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the previous value, or null if there was no mapping
+	 */
+	public V remove(int x, int y, int z) {
+		return remove(Int21TripleHashed.key(x, y, z));
+	}
+
+	public boolean remove(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Cannot remove null values");
+		}
+		long hash = hash(key);
+		return segments[segmentIndex(hash)].remove(key, hash, value) != null;
+	}
+
+	public boolean retainEntries(TLongObjectProcedure<? super V> procedure) {
+		boolean modified = false;
+		for (Segment<V> segment : segments) {
+			modified |= segment.retainEntries(procedure);
+		}
+		return modified;
+	}
+
+	public int size() {
+		long size = 0;
+		for (Segment<V> segment : segments) {
+			size += segment.size;
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	public void transformValues(TObjectFunction<V, V> function) {
+		for (Segment<V> segment : segments) {
+			segment.transformValues(function);
+		}
+	}
+
+	public Collection<V> valueCollection() {
+		return Collections.unmodifiableCollection(Arrays.asList(values()));
+	}
+
+	public V[] values() {
+		return values(null);
+	}
+
+	@SuppressWarnings("unchecked")
+	public V[] values(V[] dest) {
+		V[] values = dest;
+		if (values == null) {
+			values = (V[]) new Object[size()];
+		}
+		int position = 0;
+		for (Segment<V> segment : segments) {
+			V freeValue = segment.freeValue;
+			if (freeValue != null) {
+				if (position == values.length) {
+					values = Arrays.copyOf(values, Math.max(MIN_CAPACITY, values.length << 1));
+				}
+				values[position++] = freeValue;
+			}
+			AtomicReferenceArray<V> tableValues = segment.table.values;
+			for (int i = 0; i < tableValues.length(); i++) {
+				V value = tableValues.get(i);
+				if (value != null) {
+					if (position == values.length) {
+						values = Arrays.copyOf(values, Math.max(MIN_CAPACITY, values.length << 1));
+					}
+					values[position++] = value;
+				}
+			}
+		}
+		if (values == dest) {
+			if (position < dest.length) {
+				dest[position] = null;
+			}
+			return dest;
+		}
+		return position == values.length ? values : Arrays.copyOf(values, position);
+	}
+
+	private int segmentIndex(long hash) {
+		return (int) (hash >>> 32) & segmentMask;
+	}
+
+	private static void checkValue(Object value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Null values are not supported");
+		}
+	}
+
+	/**
+	 * Mixes the bits of a key. Packed keys only differ in a few bits, which
+	 * would give long probe sequences without mixing.
+	 *
+	 * @param key the key
+	 * @return the hash
+	 */
+	private static long hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	/**
+	 * Gets the table capacity needed to hold a number of entries
+	 *
+	 * @param entries the number of entries
+	 * @param loadFactor the load factor
+	 * @return the capacity, a power of 2
+	 */
+	private static int capacityFor(int entries, float loadFactor) {
+		return MathHelper.roundUpPow2(Math.max(MIN_CAPACITY, (int) Math.ceil((entries + 1) / loadFactor)));
+	}
+
+	private static class Table<V> {
+		private final int capacity;
+		private final int threshold;
+		private final AtomicLongArray keys;
+		private final AtomicReferenceArray<V> values;
+
+		private Table(int capacity, float loadFactor) {
+			this.capacity = capacity;
+			this.threshold = Math.min(capacity - 1, (int) (capacity * loadFactor));
+			this.keys = new AtomicLongArray(capacity);
+			this.values = new AtomicReferenceArray<V>(capacity);
+		}
+	}
+
+	private static class Segment<V> {
+		private final float loadFactor;
+		private volatile Table<V> table;
+		private volatile V freeValue;
+		private volatile int size;
+		/**
+		 * The number of slots in the table which have a key, including removed entries
+		 */
+		private int used;
+
+		private Segment(int capacity, float loadFactor) {
+			this.loadFactor = loadFactor;
+			this.table = new Table<V>(capacity, loadFactor);
+		}
+
+		private synchronized V put(long key, long hash, V value, boolean onlyIfAbsent) {
+			if (key == FREE_KEY) {
+				V previous = freeValue;
+				if (previous == null) {
+					size++;
+				}
+				if (previous == null || !onlyIfAbsent) {
+					freeValue = value;
+				}
+				return previous;
+			}
+			Table<V> table = this.table;
+			int mask = table.capacity - 1;
+			int i = (int) hash & mask;
+			long k;
+			while ((k = table.keys.get(i)) != FREE_KEY) {
+				if (k == key) {
+					V previous = table.values.get(i);
+					if (previous == null) {
+						size++;
+					}
+					if (previous == null || !onlyIfAbsent) {
+						table.values.set(i, value);
+					}
+					return previous;
+				}
+				i = (i + 1) & mask;
+			}
+			// The value must be visible before the key, since readers stop at the key
+			table.values.set(i, value);
+			table.keys.set(i, key);
+			size++;
+			if (++used > table.threshold) {
+				rehash();
+			}
+			return null;
+		}
+
+		private synchronized V remove(long key, long hash, V expected) {
+			if (key == FREE_KEY) {
+				V previous = freeValue;
+				if (previous == null || (expected != null && previous != expected)) {
+					return null;
+				}
+				freeValue = null;
+				size--;
+				return previous;
+			}
+			Table<V> table = this.table;
+			int mask = table.capacity - 1;
+			int i = (int) hash & mask;
+			long k;
+			while ((k = table.keys.get(i)) != FREE_KEY) {
+				if (k == key) {
+					V previous = table.values.get(i);
+					if (previous == null || (expected != null && previous != expected)) {
+						return null;
+					}
+					table.values.set(i, null);
+					size--;
+					return previous;
+				}
+				i = (i + 1) & mask;
+			}
+			return null;
+		}
+
+		private synchronized boolean retainEntries(TLongObjectProcedure<? super V> procedure) {
+			boolean modified = false;
+			V value = freeValue;
+			if (value != null && !procedure.execute(FREE_KEY, value)) {
+				freeValue = null;
+				size--;
+				modified = true;
+			}
+			Table<V> table = this.table;
+			for (int i = 0; i < table.capacity; i++) {
+				value = table.values.get(i);
+				if (value != null && !procedure.execute(table.keys.get(i), value)) {
+					table.values.set(i, null);
+					size--;
+					modified = true;
+				}
+			}
+			return modified;
+		}
+
+		private synchronized void transformValues(TObjectFunction<V, V> function) {
+			V value = freeValue;
+			if (value != null) {
+				freeValue = function.execute(value);
+				if (freeValue == null) {
+					size--;
+				}
+			}
+			Table<V> table = this.table;
+			for (int i = 0; i < table.capacity; i++) {
+				value = table.values.get(i);
+				if (value != null) {
+					value = function.execute(value);
+					table.values.set(i, value);
+					if (value == null) {
+						size--;
+					}
+				}
+			}
+		}
+
+		private synchronized void clear(int capacity) {
+			table = new Table<V>(capacity, loadFactor);
+			freeValue = null;
+			size = 0;
+			used = 0;
+		}
+
+		/**
+		 * Copies the live entries to a new table and publishes it. Removed
+		 * entries are dropped, so the new table may be the same size as the
+		 * old one.
+		 */
+		private void rehash() {
+			Table<V> old = table;
+			int live = 0;
+			for (int i = 0; i < old.capacity; i++) {
+				if (old.values.get(i) != null) {
+					live++;
+				}
+			}
+			Table<V> table = new Table<V>(capacityFor(live + (live >> 1), loadFactor), loadFactor);
+			int mask = table.capacity - 1;
+			for (int i = 0; i < old.capacity; i++) {
+				V value = old.values.get(i);
+				if (value != null) {
+					long key = old.keys.get(i);
+					int j = (int) hash(key) & mask;
+					while (table.keys.get(j) != FREE_KEY) {
+						j = (j + 1) & mask;
+					}
+					table.values.lazySet(j, value);
+					table.keys.lazySet(j, key);
+				}
+			}
+			used = live;
+			this.table = table;
+		}
+	}
+}
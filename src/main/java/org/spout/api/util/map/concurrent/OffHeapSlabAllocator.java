@@ -0,0 +1,160 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Allocates fixed size slots of off-heap memory from large direct
+ * ByteBuffers.<br>
+ * <br>
+ * Allocating a direct buffer for every chunk is slow, and the memory is only
+ * released when the buffer object is garbage collected. Slots are instead
+ * carved from slabs and returned to a free list when they are freed, so the
+ * memory is reused as chunks are loaded and unloaded. Slabs are never
+ * released.<br>
+ * <br>
+ * Slots are zeroed when they are allocated.
+ */
+public final class OffHeapSlabAllocator {
+	private final static int SLAB_SIZE = 1 << 20;
+	private final static Map<Integer, OffHeapSlabAllocator> allocators = new HashMap<Integer, OffHeapSlabAllocator>();
+
+	private final int slotSize;
+	private final int slotsPerSlab;
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	private ByteBuffer slab = null;
+	private int nextSlot = 0;
+	private int slabs = 0;
+	private int used = 0;
+
+	public OffHeapSlabAllocator(int slotSize) {
+		this(slotSize, Math.max(1, SLAB_SIZE / slotSize));
+	}
+
+	public OffHeapSlabAllocator(int slotSize, int slotsPerSlab) {
+		if (slotSize <= 0 || slotsPerSlab <= 0) {
+			throw new IllegalArgumentException("Slot size and slots per slab must be positive");
+		}
+		this.slotSize = slotSize;
+		this.slotsPerSlab = slotsPerSlab;
+	}
+
+	/**
+	 * Gets the shared allocator for a slot size
+	 *
+	 * @param slotSize the slot size in bytes
+	 * @return the allocator
+	 */
+	public static OffHeapSlabAllocator getAllocator(int slotSize) {
+		synchronized (allocators) {
+			OffHeapSlabAllocator allocator = allocators.get(slotSize);
+			if (allocator == null) {
+				allocator = new OffHeapSlabAllocator(slotSize);
+				allocators.put(slotSize, allocator);
+			}
+			return allocator;
+		}
+	}
+
+	/**
+	 * Allocates a zeroed slot. The buffer uses the native byte order.
+	 *
+	 * @return the slot
+	 */
+	public synchronized ByteBuffer allocate() {
+		ByteBuffer slot = free.poll();
+		if (slot == null) {
+			if (slab == null || nextSlot == slotsPerSlab) {
+				slab = ByteBuffer.allocateDirect(slotSize * slotsPerSlab);
+				nextSlot = 0;
+				slabs++;
+			}
+			ByteBuffer view = slab.duplicate();
+			view.position(nextSlot * slotSize);
+			view.limit(view.position() + slotSize);
+			slot = view.slice().order(ByteOrder.nativeOrder());
+			nextSlot++;
+		} else {
+			for (int i = 0; i + 8 <= slotSize; i += 8) {
+				slot.putLong(i, 0);
+			}
+			for (int i = slotSize & ~7; i < slotSize; i++) {
+				slot.put(i, (byte) 0);
+			}
+		}
+		used++;
+		return slot;
+	}
+
+	/**
+	 * Returns a slot to the allocator.<br>
+	 * <br>
+	 * The slot must have been allocated by this allocator, and must not be
+	 * accessed after it is freed.
+	 *
+	 * @param slot the slot
+	 */
+	public synchronized void free(ByteBuffer slot) {
+		if (slot.capacity() != slotSize) {
+			throw new IllegalArgumentException("Slot was not allocated by this allocator");
+		}
+		free.push(slot);
+		used--;
+	}
+
+	/**
+	 * Gets the size of the slots
+	 *
+	 * @return the slot size in bytes
+	 */
+	public int getSlotSize() {
+		return slotSize;
+	}
+
+	/**
+	 * Gets the number of slots that are allocated and not freed
+	 *
+	 * @return the number of slots in use
+	 */
+	public synchronized int getUsedSlots() {
+		return used;
+	}
+
+	/**
+	 * Gets the total off-heap memory reserved by the allocator
+	 *
+	 * @return the number of bytes
+	 */
+	public synchronized long getReservedBytes() {
+		return (long) slabs * slotSize * slotsPerSlab;
+	}
+}
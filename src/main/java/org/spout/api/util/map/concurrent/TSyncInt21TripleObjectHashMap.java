@@ -32,25 +32,26 @@ import org.spout.api.util.map.TInt21TripleObjectHashMap;
  * A simplistic map that supports a 3 21 bit integers for keys, using a trove
  * long Object hashmap in the backend. 1 bit is wasted.
  *
- * This map is backed by a read/write lock synchronised map.
+ * This map is backed by a {@link ConcurrentLongObjectHashMap} by default, so
+ * reads do not lock.
  *
  * @param <K> the value type
  */
 public class TSyncInt21TripleObjectHashMap<K> extends TInt21TripleObjectHashMap<K> {
 	/**
-	 * Creates a new <code>TSyncInt21TripleObjectHashMap</code> instance backend by a synchronized (thread-safe) {@see TSyncLongObjectHashMap} instance with an capacity of 100 and the default load factor.
+	 * Creates a new <code>TSyncInt21TripleObjectHashMap</code> instance backend by a concurrent (thread-safe) {@see ConcurrentLongObjectHashMap} instance with an capacity of 100 and the default load factor.
 	 */
 	public TSyncInt21TripleObjectHashMap() {
-		map = new TSyncLongObjectHashMap<K>(100);
+		map = new ConcurrentLongObjectHashMap<K>(16, 100);
 	}
 
 	/**
-	 * Creates a new <code>TSyncInt21TripleObjectHashMap</code> instance backend by a synchronized (thread-safe) {@see TSyncLongObjectHashMap} instance with a prime capacity equal to or greater than <code>capacity</code> and with the default load factor.
+	 * Creates a new <code>TSyncInt21TripleObjectHashMap</code> instance backend by a concurrent (thread-safe) {@see ConcurrentLongObjectHashMap} instance with a capacity equal to or greater than <code>capacity</code> and with the default load factor.
 	 *
 	 * @param capacity an <code>int</code> value
 	 */
 	public TSyncInt21TripleObjectHashMap(int capacity) {
-		map = new TSyncLongObjectHashMap<K>(capacity);
+		map = new ConcurrentLongObjectHashMap<K>(16, capacity);
 	}
 
 	/**
@@ -78,7 +79,7 @@ public class TSyncInt21TripleObjectHashMap<K> extends TInt21TripleObjectHashMap<
 	 */
 	public boolean remove(int x, int y, int z, K value) {
 		long key = key(x, y, z);
-		return ((TSyncLongObjectHashMap<K>) map).remove(key, value);
+		return ((TSyncLongObjectMap<K>) map).remove(key, value);
 	}
 
 	/**
@@ -93,6 +94,6 @@ public class TSyncInt21TripleObjectHashMap<K> extends TInt21TripleObjectHashMap<
 	 */
 	public K putIfAbsent(int x, int y, int z, K value) {
 		long key = key(x, y, z);
-		return ((TSyncLongObjectHashMap<K>) map).putIfAbsent(key, value);
+		return map.putIfAbsent(key, value);
 	}
 }
@@ -37,19 +37,24 @@ import gnu.trove.set.TIntSet;
 
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.spout.api.math.MathHelper;
+import org.spout.api.util.concurrent.OptimisticReadWriteLock;
 
 /**
- * This is a synchronised version of the Trove IntObjectHashMap.
+ * This is a synchronised version of the Trove IntIntHashMap.
  *
- * Read/write locks are used to synchronise access.
+ * Optimistic read/write locks are used to synchronise access. Reads do not
+ * lock the sub-map, they check that no write happened while they were
+ * reading and try again if one did.
  *
- * By default, it creates 16 sub-maps and there is a separate read/write lock
- * for each submap.
+ * By default, it creates 16 sub-maps and there is a separate lock for each
+ * submap.
+ *
+ * The forEach methods are weakly consistent. Each sub-map is copied to a
+ * per-thread buffer and the procedure is called after the copy is made, so
+ * the procedure may modify the map. Changes made during the iteration may or
+ * may not be seen.
  *
  * @param <V> the value type
  */
@@ -59,9 +64,11 @@ public class TSyncIntIntHashMap implements TSyncIntIntMap {
 	private final int hashScramble;
 	private final int noEntryKey;
 	private final int noEntryValue;
-	private final ReadWriteLock[] lockArray;
+	private final OptimisticReadWriteLock[] lockArray;
 	private final TIntIntMap[] mapArray;
 	private final AtomicInteger totalKeys = new AtomicInteger(0);
+	private final static int OPTIMISTIC_READS = 4;
+	private final static ThreadLocal<ForEachBuffer> forEachBuffers = new ThreadLocal<ForEachBuffer>();
 
 	/**
 	 * Creates a synchronised map based on the Trove int object map
@@ -130,10 +137,10 @@ public class TSyncIntIntHashMap implements TSyncIntIntMap {
 		this.mapCount = mapCount;
 		this.hashScramble = (mapCount << 8) + 1;
 		mapArray = new TIntIntHashMap[mapCount];
-		lockArray = new ReadWriteLock[mapCount];
+		lockArray = new OptimisticReadWriteLock[mapCount];
 		for (int i = 0; i < mapCount; i++) {
 			mapArray[i] = new TIntIntHashMap(initialCapacity / mapCount, loadFactor, noEntryKey, noEntryValue);
-			lockArray[i] = new ReentrantReadWriteLock();
+			lockArray[i] = new OptimisticReadWriteLock();
 		}
 		this.noEntryKey = noEntryKey;
 		this.noEntryValue = noEntryValue;
@@ -146,24 +153,40 @@ public class TSyncIntIntHashMap implements TSyncIntIntMap {
 	}
 
 	private void clear(int m) {
-		Lock lock = lockArray[m].writeLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		int sequence = lock.writeLock();
 		try {
 			totalKeys.addAndGet(-mapArray[m].size());
 			mapArray[m].clear();
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
 	public boolean containsKey(int key) {
 		int m = mapHash(key);
-		Lock lock = lockArray[m].readLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+			int sequence = lock.readLock();
+			boolean result;
+			try {
+				result = mapArray[m].containsKey(key);
+			} catch (RuntimeException e) {
+				// A read which overlaps a write may fail
+				if (lock.readUnlock(sequence)) {
+					throw e;
+				}
+				continue;
+			}
+			if (lock.readUnlock(sequence)) {
+				return result;
+			}
+		}
+		int sequence = lock.writeLock();
 		try {
 			return mapArray[m].containsKey(key);
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
@@ -177,23 +200,55 @@ public class TSyncIntIntHashMap implements TSyncIntIntMap {
 	}
 
 	private boolean containsValue(int m, int value) {
-		Lock lock = lockArray[m].readLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+			int sequence = lock.readLock();
+			boolean result;
+			try {
+				result = mapArray[m].containsValue(value);
+			} catch (RuntimeException e) {
+				// A read which overlaps a write may fail
+				if (lock.readUnlock(sequence)) {
+					throw e;
+				}
+				continue;
+			}
+			if (lock.readUnlock(sequence)) {
+				return result;
+			}
+		}
+		int sequence = lock.writeLock();
 		try {
 			return mapArray[m].containsValue(value);
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
 	public int get(int key) {
 		int m = mapHash(key);
-		Lock lock = lockArray[m].readLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+			int sequence = lock.readLock();
+			int result;
+			try {
+				result = mapArray[m].get(key);
+			} catch (RuntimeException e) {
+				// A read which overlaps a write may fail
+				if (lock.readUnlock(sequence)) {
+					throw e;
+				}
+				continue;
+			}
+			if (lock.readUnlock(sequence)) {
+				return result;
+			}
+		}
+		int sequence = lock.writeLock();
 		try {
 			return mapArray[m].get(key);
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
@@ -202,33 +257,48 @@ public class TSyncIntIntHashMap implements TSyncIntIntMap {
 	}
 
 	public int[] keys(int[] dest) {
-		for (int m = 0; m < mapCount; m++) {
-			lockArray[m].readLock().lock();
-		}
-		try {
-			int localSize = totalKeys.get();
-			int[] keys;
-			if (dest == null || dest.length < localSize) {
-				keys = new int[localSize];
-			} else {
-				keys = dest;
-			}
-			int position = 0;
-			for (int m = 0; m < mapCount; m++) {
-				int[] mapKeys = mapArray[m].keys();
-				for (int mapKey : mapKeys) {
-					keys[position++] = mapKey;
+		for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+			int[] sequences = readLockAll();
+			int[] result;
+			try {
+				result = copyKeys(dest);
+			} catch (RuntimeException e) {
+				if (readUnlockAll(sequences)) {
+					throw e;
 				}
+				continue;
 			}
-			if (position != localSize) {
-				throw new IllegalStateException("Key counter does not match actual total map size");
+			if (readUnlockAll(sequences)) {
+				return result;
 			}
-			return keys;
+		}
+		int[] sequences = writeLockAll();
+		try {
+			return copyKeys(dest);
 		} finally {
-			for (int m = 0; m < mapCount; m++) {
-				lockArray[m].readLock().unlock();
+			writeUnlockAll(sequences);
+		}
+	}
+
+	private int[] copyKeys(int[] dest) {
+		int localSize = totalKeys.get();
+		int[] keys;
+		if (dest == null || dest.length < localSize) {
+			keys = new int[localSize];
+		} else {
+			keys = dest;
+		}
+		int position = 0;
+		for (int m = 0; m < mapCount; m++) {
+			int[] mapKeys = mapArray[m].keys();
+			for (int mapKey : mapKeys) {
+				keys[position++] = mapKey;
 			}
 		}
+		if (position != localSize) {
+			throw new IllegalStateException("Key counter does not match actual total map size");
+		}
+		return keys;
 	}
 
 	public int[] keys() {
@@ -237,8 +307,8 @@ public class TSyncIntIntHashMap implements TSyncIntIntMap {
 
 	public int put(int key, int value) {
 		int m = mapHash(key);
-		Lock lock = lockArray[m].writeLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		int sequence = lock.writeLock();
 		try {
 			TIntIntMap map = mapArray[m];
 			if (!map.containsKey(key)) {
@@ -246,14 +316,14 @@ public class TSyncIntIntHashMap implements TSyncIntIntMap {
 			}
 			return map.put(key, value);
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
 	public int putIfAbsent(int key, int value) {
 		int m = mapHash(key);
-		Lock lock = lockArray[m].writeLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		int sequence = lock.writeLock();
 		try {
 			TIntIntMap map = mapArray[m];
 			if (!map.containsKey(key)) {
@@ -261,14 +331,14 @@ public class TSyncIntIntHashMap implements TSyncIntIntMap {
 			}
 			return map.putIfAbsent(key, value);
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
 	public int remove(int key) {
 		int m = mapHash(key);
-		Lock lock = lockArray[m].writeLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		int sequence = lock.writeLock();
 		try {
 			TIntIntMap map = mapArray[m];
 			if (map.containsKey(key)) {
@@ -276,14 +346,14 @@ public class TSyncIntIntHashMap implements TSyncIntIntMap {
 			}
 			return map.remove(key);
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
 	public boolean remove(int key, int value) {
 		int m = mapHash(key);
-		Lock lock = lockArray[m].writeLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		int sequence = lock.writeLock();
 		try {
 			TIntIntMap map = mapArray[m];
 			if (!map.containsKey(key) || map.get(key) != value) {
@@ -294,7 +364,7 @@ public class TSyncIntIntHashMap implements TSyncIntIntMap {
 			map.remove(key);
 			return true;
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
@@ -302,6 +372,119 @@ public class TSyncIntIntHashMap implements TSyncIntIntMap {
 		return totalKeys.get();
 	}
 
+
+	/**
+	 * Read locks all the sub-maps
+	 *
+	 * @return the sequence numbers of the sub-maps
+	 */
+	private int[] readLockAll() {
+		int[] sequences = new int[mapCount];
+		for (int m = 0; m < mapCount; m++) {
+			sequences[m] = lockArray[m].readLock();
+		}
+		return sequences;
+	}
+
+	/**
+	 * Checks that none of the sub-maps were written since they were read
+	 * locked
+	 *
+	 * @param sequences the sequence numbers returned by readLockAll
+	 * @return true if there were no writes
+	 */
+	private boolean readUnlockAll(int[] sequences) {
+		for (int m = 0; m < mapCount; m++) {
+			if (!lockArray[m].readUnlock(sequences[m])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write locks all the sub-maps, in order
+	 *
+	 * @return the sequence numbers of the sub-maps
+	 */
+	private int[] writeLockAll() {
+		int[] sequences = new int[mapCount];
+		for (int m = 0; m < mapCount; m++) {
+			sequences[m] = lockArray[m].writeLock();
+		}
+		return sequences;
+	}
+
+	/**
+	 * Write unlocks all the sub-maps
+	 *
+	 * @param sequences the sequence numbers returned by writeLockAll
+	 */
+	private void writeUnlockAll(int[] sequences) {
+		for (int m = 0; m < mapCount; m++) {
+			lockArray[m].writeUnlock(sequences[m]);
+		}
+	}
+
+	/**
+	 * Copies the entries in a sub-map to a buffer
+	 *
+	 * @param m the sub-map
+	 * @param buffer the buffer
+	 * @param keys true to copy the keys
+	 * @param values true to copy the values
+	 * @return the number of entries copied
+	 */
+	private int copyEntries(int m, ForEachBuffer buffer, boolean keys, boolean values) {
+		OptimisticReadWriteLock lock = lockArray[m];
+		TIntIntMap map = mapArray[m];
+		for (int attempt = 0; attempt <= OPTIMISTIC_READS; attempt++) {
+			boolean optimistic = attempt < OPTIMISTIC_READS;
+			int sequence = optimistic ? lock.readLock() : lock.writeLock();
+			try {
+				int size = map.size();
+				buffer.ensureCapacity(size);
+				if (keys) {
+					map.keys(buffer.keys);
+				}
+				if (values) {
+					map.values(buffer.values);
+				}
+				if (!optimistic || lock.readUnlock(sequence)) {
+					return size;
+				}
+			} catch (RuntimeException e) {
+				// A read which overlaps a write may fail
+				if (!optimistic || lock.readUnlock(sequence)) {
+					throw e;
+				}
+			} finally {
+				if (!optimistic) {
+					lock.writeUnlock(sequence);
+				}
+			}
+		}
+		throw new IllegalStateException("Sub-map was not copied");
+	}
+
+	/**
+	 * Gets the calling thread's forEach buffer. A new buffer is used if the
+	 * thread's buffer is already in use by an outer iteration.
+	 *
+	 * @return the buffer
+	 */
+	private static ForEachBuffer getForEachBuffer() {
+		ForEachBuffer buffer = forEachBuffers.get();
+		if (buffer == null) {
+			buffer = new ForEachBuffer();
+			forEachBuffers.set(buffer);
+		} else if (buffer.inUse) {
+			buffer = new ForEachBuffer();
+		}
+		buffer.inUse = true;
+		return buffer;
+	}
+
 	private int mapHash(int key) {
 		int intKey = key >> 32 ^ key;
 
@@ -348,19 +531,85 @@ public class TSyncIntIntHashMap implements TSyncIntIntMap {
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * Calls a procedure for each key in the map.<br>
+	 * <br>
+	 * The iteration is weakly consistent and does not allocate once the
+	 * thread's buffer is large enough.
+	 *
+	 * @param procedure the procedure
+	 * @return false if the procedure returned false for a key
+	 */
 	@Override
 	public boolean forEachKey(TIntProcedure procedure) {
-		throw new UnsupportedOperationException();
+		ForEachBuffer buffer = getForEachBuffer();
+		try {
+			for (int m = 0; m < mapCount; m++) {
+				int size = copyEntries(m, buffer, true, false);
+				for (int i = 0; i < size; i++) {
+					if (!procedure.execute(buffer.keys[i])) {
+						return false;
+					}
+				}
+			}
+			return true;
+		} finally {
+			buffer.inUse = false;
+		}
 	}
 
+	/**
+	 * Calls a procedure for each value in the map.<br>
+	 * <br>
+	 * The iteration is weakly consistent and does not allocate once the
+	 * thread's buffer is large enough.
+	 *
+	 * @param procedure the procedure
+	 * @return false if the procedure returned false for a value
+	 */
 	@Override
 	public boolean forEachValue(TIntProcedure procedure) {
-		throw new UnsupportedOperationException();
+		ForEachBuffer buffer = getForEachBuffer();
+		try {
+			for (int m = 0; m < mapCount; m++) {
+				int size = copyEntries(m, buffer, false, true);
+				for (int i = 0; i < size; i++) {
+					if (!procedure.execute(buffer.values[i])) {
+						return false;
+					}
+				}
+			}
+			return true;
+		} finally {
+			buffer.inUse = false;
+		}
 	}
 
+	/**
+	 * Calls a procedure for each entry in the map.<br>
+	 * <br>
+	 * The iteration is weakly consistent and does not allocate once the
+	 * thread's buffer is large enough.
+	 *
+	 * @param procedure the procedure
+	 * @return false if the procedure returned false for an entry
+	 */
 	@Override
 	public boolean forEachEntry(TIntIntProcedure procedure) {
-		throw new UnsupportedOperationException();
+		ForEachBuffer buffer = getForEachBuffer();
+		try {
+			for (int m = 0; m < mapCount; m++) {
+				int size = copyEntries(m, buffer, true, true);
+				for (int i = 0; i < size; i++) {
+					if (!procedure.execute(buffer.keys[i], buffer.values[i])) {
+						return false;
+					}
+				}
+			}
+			return true;
+		} finally {
+			buffer.inUse = false;
+		}
 	}
 
 	@Override
@@ -392,4 +641,18 @@ public class TSyncIntIntHashMap implements TSyncIntIntMap {
 	public int getNoEntryKey() {
 		return noEntryKey;
 	}
+
+	private static class ForEachBuffer {
+		private int[] keys = new int[0];
+		private int[] values = new int[0];
+		private boolean inUse;
+
+		private void ensureCapacity(int size) {
+			if (keys.length < size) {
+				int length = Math.max(size, keys.length << 1);
+				keys = new int[length];
+				values = new int[length];
+			}
+		}
+	}
 }
@@ -32,25 +32,26 @@ import org.spout.api.util.map.TIntPairObjectHashMap;
  * A simplistic map that supports 2 integers for keys, using a trove
  * long Object hashmap in the backend.
  *
- * This map is backed by a read/write lock synchronised map.
+ * This map is backed by a {@link ConcurrentLongObjectHashMap} by default, so
+ * reads do not lock.
  *
  * @param <K> the value type
  */
 public class TSyncIntPairObjectHashMap<K> extends TIntPairObjectHashMap<K> {
 	/**
-	 * Creates a new <code>TSyncIntPairObjectHashMap</code> instance backend by a synchronized (thread-safe) {@see TSyncLongObjectHashMap} instance with an capacity of 100 and the default load factor.
+	 * Creates a new <code>TSyncIntPairObjectHashMap</code> instance backend by a concurrent (thread-safe) {@see ConcurrentLongObjectHashMap} instance with an capacity of 100 and the default load factor.
 	 */
 	public TSyncIntPairObjectHashMap() {
-		map = new TSyncLongObjectHashMap<K>(100);
+		map = new ConcurrentLongObjectHashMap<K>(16, 100);
 	}
 
 	/**
-	 * Creates a new <code>TSyncIntPairObjectHashMap</code> instance backend by a synchronized (thread-safe) {@see TSyncLongObjectHashMap} instance with a prime capacity equal to or greater than <code>capacity</code> and with the default load factor.
+	 * Creates a new <code>TSyncIntPairObjectHashMap</code> instance backend by a concurrent (thread-safe) {@see ConcurrentLongObjectHashMap} instance with a capacity equal to or greater than <code>capacity</code> and with the default load factor.
 	 *
 	 * @param capacity an <code>int</code> value
 	 */
 	public TSyncIntPairObjectHashMap(int capacity) {
-		map = new TSyncLongObjectHashMap<K>(capacity);
+		map = new ConcurrentLongObjectHashMap<K>(16, capacity);
 	}
 
 	/**
@@ -76,7 +77,7 @@ public class TSyncIntPairObjectHashMap<K> extends TIntPairObjectHashMap<K> {
 	 */
 	public boolean remove(int x, int z, K value) {
 		long key = key(x, z);
-		return ((TSyncLongObjectHashMap<K>) map).remove(key, value);
+		return ((TSyncLongObjectMap<K>) map).remove(key, value);
 	}
 
 	/**
@@ -90,6 +91,6 @@ public class TSyncIntPairObjectHashMap<K> extends TIntPairObjectHashMap<K> {
 	 */
 	public K putIfAbsent(int x, int z, K value) {
 		long key = key(x, z);
-		return ((TSyncLongObjectHashMap<K>) map).putIfAbsent(key, value);
+		return map.putIfAbsent(key, value);
 	}
 }
@@ -26,16 +26,15 @@
  */
 package org.spout.api.util.map.concurrent;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.spout.api.math.MathHelper;
+import org.spout.api.util.concurrent.OptimisticReadWriteLock;
 
 import gnu.trove.function.TObjectFunction;
 import gnu.trove.impl.Constants;
@@ -50,10 +49,17 @@ import gnu.trove.set.TLongSet;
 /**
  * This is a synchronised version of the Trove LongObjectHashMap.
  *
- * Read/write locks are used to synchronise access.
+ * Optimistic read/write locks are used to synchronise access. Reads do not
+ * lock the sub-map, they check that no write happened while they were
+ * reading and try again if one did.
  *
- * By default, it creates 16 sub-maps and there is a separate read/write lock
- * for each submap.
+ * By default, it creates 16 sub-maps and there is a separate lock for each
+ * submap.
+ *
+ * The forEach methods are weakly consistent. Each sub-map is copied to a
+ * per-thread buffer and the procedure is called after the copy is made, so
+ * the procedure may modify the map. Changes made during the iteration may or
+ * may not be seen.
  *
  * @param <V> the value type
  */
@@ -61,10 +67,12 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 	private final int mapCount;
 	private final int mapMask;
 	private final int hashScramble;
-	private final ReadWriteLock[] lockArray;
+	private final OptimisticReadWriteLock[] lockArray;
 	private final TLongObjectHashMap<V>[] mapArray;
 	private final long no_entry_key;
 	private final AtomicInteger totalKeys = new AtomicInteger(0);
+	private final static int OPTIMISTIC_READS = 4;
+	private final static ThreadLocal<ForEachBuffer> forEachBuffers = new ThreadLocal<ForEachBuffer>();
 
 	/**
 	 * Creates a synchronised map based on the Trove long object map
@@ -121,10 +129,10 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 		this.mapCount = mapCount;
 		this.hashScramble = (mapCount << 8) + 1;
 		mapArray = new TLongObjectHashMap[mapCount];
-		lockArray = new ReadWriteLock[mapCount];
+		lockArray = new OptimisticReadWriteLock[mapCount];
 		for (int i = 0; i < mapCount; i++) {
 			mapArray[i] = new TLongObjectHashMap<V>(initialCapacity / mapCount, loadFactor, noEntryKey);
-			lockArray[i] = new ReentrantReadWriteLock();
+			lockArray[i] = new OptimisticReadWriteLock();
 		}
 		this.no_entry_key = noEntryKey;
 	}
@@ -136,24 +144,40 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 	}
 
 	private void clear(int m) {
-		Lock lock = lockArray[m].writeLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		int sequence = lock.writeLock();
 		try {
 			totalKeys.addAndGet(-mapArray[m].size());
 			mapArray[m].clear();
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
 	public boolean containsKey(long key) {
 		int m = mapHash(key);
-		Lock lock = lockArray[m].readLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+			int sequence = lock.readLock();
+			boolean result;
+			try {
+				result = mapArray[m].containsKey(key);
+			} catch (RuntimeException e) {
+				// A read which overlaps a write may fail
+				if (lock.readUnlock(sequence)) {
+					throw e;
+				}
+				continue;
+			}
+			if (lock.readUnlock(sequence)) {
+				return result;
+			}
+		}
+		int sequence = lock.writeLock();
 		try {
 			return mapArray[m].containsKey(key);
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
@@ -167,35 +191,143 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 	}
 
 	private boolean containsValue(int m, Object value) {
-		Lock lock = lockArray[m].readLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+			int sequence = lock.readLock();
+			boolean result;
+			try {
+				result = mapArray[m].containsValue(value);
+			} catch (RuntimeException e) {
+				// A read which overlaps a write may fail
+				if (lock.readUnlock(sequence)) {
+					throw e;
+				}
+				continue;
+			}
+			if (lock.readUnlock(sequence)) {
+				return result;
+			}
+		}
+		int sequence = lock.writeLock();
 		try {
 			return mapArray[m].containsValue(value);
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
-	public boolean forEachEntry(TLongObjectProcedure<? super V> arg0) {
-		throw new UnsupportedOperationException("This operation is not supported");
+	/**
+	 * Calls a procedure for each entry in the map.<br>
+	 * <br>
+	 * The iteration is weakly consistent and does not allocate once the
+	 * thread's buffer is large enough.
+	 *
+	 * @param procedure the procedure
+	 * @return false if the procedure returned false for an entry
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean forEachEntry(TLongObjectProcedure<? super V> procedure) {
+		ForEachBuffer buffer = getForEachBuffer();
+		try {
+			for (int m = 0; m < mapCount; m++) {
+				int size = copyEntries(m, buffer, true, true);
+				try {
+					for (int i = 0; i < size; i++) {
+						if (!procedure.execute(buffer.keys[i], (V) buffer.values[i])) {
+							return false;
+						}
+					}
+				} finally {
+					Arrays.fill(buffer.values, 0, size, null);
+				}
+			}
+			return true;
+		} finally {
+			buffer.inUse = false;
+		}
 	}
 
-	public boolean forEachKey(TLongProcedure arg0) {
-		throw new UnsupportedOperationException("This operation is not supported");
+	/**
+	 * Calls a procedure for each key in the map.<br>
+	 * <br>
+	 * The iteration is weakly consistent and does not allocate once the
+	 * thread's buffer is large enough.
+	 *
+	 * @param procedure the procedure
+	 * @return false if the procedure returned false for a key
+	 */
+	public boolean forEachKey(TLongProcedure procedure) {
+		ForEachBuffer buffer = getForEachBuffer();
+		try {
+			for (int m = 0; m < mapCount; m++) {
+				int size = copyEntries(m, buffer, true, false);
+				for (int i = 0; i < size; i++) {
+					if (!procedure.execute(buffer.keys[i])) {
+						return false;
+					}
+				}
+			}
+			return true;
+		} finally {
+			buffer.inUse = false;
+		}
 	}
 
-	public boolean forEachValue(TObjectProcedure<? super V> arg0) {
-		throw new UnsupportedOperationException("This operation is not supported");
+	/**
+	 * Calls a procedure for each value in the map.<br>
+	 * <br>
+	 * The iteration is weakly consistent and does not allocate once the
+	 * thread's buffer is large enough.
+	 *
+	 * @param procedure the procedure
+	 * @return false if the procedure returned false for a value
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean forEachValue(TObjectProcedure<? super V> procedure) {
+		ForEachBuffer buffer = getForEachBuffer();
+		try {
+			for (int m = 0; m < mapCount; m++) {
+				int size = copyEntries(m, buffer, false, true);
+				try {
+					for (int i = 0; i < size; i++) {
+						if (!procedure.execute((V) buffer.values[i])) {
+							return false;
+						}
+					}
+				} finally {
+					Arrays.fill(buffer.values, 0, size, null);
+				}
+			}
+			return true;
+		} finally {
+			buffer.inUse = false;
+		}
 	}
 
 	public V get(long key) {
 		int m = mapHash(key);
-		Lock lock = lockArray[m].readLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+			int sequence = lock.readLock();
+			V result;
+			try {
+				result = mapArray[m].get(key);
+			} catch (RuntimeException e) {
+				// A read which overlaps a write may fail
+				if (lock.readUnlock(sequence)) {
+					throw e;
+				}
+				continue;
+			}
+			if (lock.readUnlock(sequence)) {
+				return result;
+			}
+		}
+		int sequence = lock.writeLock();
 		try {
 			return mapArray[m].get(key);
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
@@ -216,33 +348,48 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 	}
 
 	public long[] keys(long[] dest) {
-		for (int m = 0; m < mapCount; m++) {
-			lockArray[m].readLock().lock();
-		}
-		try {
-			int localSize = totalKeys.get();
-			long[] keys;
-			if (dest == null || dest.length < localSize) {
-				keys = new long[localSize];
-			} else {
-				keys = dest;
-			}
-			int position = 0;
-			for (int m = 0; m < mapCount; m++) {
-				long[] mapKeys = mapArray[m].keys();
-				for (long mapKey : mapKeys) {
-					keys[position++] = mapKey;
+		for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+			int[] sequences = readLockAll();
+			long[] result;
+			try {
+				result = copyKeys(dest);
+			} catch (RuntimeException e) {
+				if (readUnlockAll(sequences)) {
+					throw e;
 				}
+				continue;
 			}
-			if (position != localSize) {
-				throw new IllegalStateException("Key counter does not match actual total map size");
+			if (readUnlockAll(sequences)) {
+				return result;
 			}
-			return keys;
+		}
+		int[] sequences = writeLockAll();
+		try {
+			return copyKeys(dest);
 		} finally {
-			for (int m = 0; m < mapCount; m++) {
-				lockArray[m].readLock().unlock();
+			writeUnlockAll(sequences);
+		}
+	}
+
+	private long[] copyKeys(long[] dest) {
+		int localSize = totalKeys.get();
+		long[] keys;
+		if (dest == null || dest.length < localSize) {
+			keys = new long[localSize];
+		} else {
+			keys = dest;
+		}
+		int position = 0;
+		for (int m = 0; m < mapCount; m++) {
+			long[] mapKeys = mapArray[m].keys();
+			for (long mapKey : mapKeys) {
+				keys[position++] = mapKey;
 			}
 		}
+		if (position != localSize) {
+			throw new IllegalStateException("Key counter does not match actual total map size");
+		}
+		return keys;
 	}
 
 	public long[] keys() {
@@ -251,8 +398,8 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 
 	public V put(long key, V value) {
 		int m = mapHash(key);
-		Lock lock = lockArray[m].writeLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		int sequence = lock.writeLock();
 		try {
 			V previous = mapArray[m].put(key, value);
 			if (previous == null && value != null) {
@@ -260,7 +407,7 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 			}
 			return previous;
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
@@ -275,8 +422,23 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 
 	public V putIfAbsent(long key, V value) {
 		int m = mapHash(key);
-		Lock lock = lockArray[m].writeLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		// The key is often already present, which only needs a read
+		int sequence = lock.readLock();
+		try {
+			V current = mapArray[m].get(key);
+			if (current != null) {
+				if (lock.readUnlock(sequence)) {
+					return current;
+				}
+				sequence = lock.writeLock();
+			} else if ((sequence = lock.tryConvertToWriteLock(sequence)) == OptimisticReadWriteLock.UNSTABLE) {
+				sequence = lock.writeLock();
+			}
+		} catch (RuntimeException e) {
+			// A read which overlaps a write may fail
+			sequence = lock.writeLock();
+		}
 		try {
 			V previous = mapArray[m].putIfAbsent(key, value);
 			if (previous == null && value != null) {
@@ -284,14 +446,14 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 			}
 			return previous;
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
 	public V remove(long key) {
 		int m = mapHash(key);
-		Lock lock = lockArray[m].writeLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		int sequence = lock.writeLock();
 		try {
 			V previous = mapArray[m].remove(key);
 			if (previous != null) {
@@ -299,7 +461,7 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 			}
 			return previous;
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
@@ -308,8 +470,8 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 			throw new IllegalArgumentException("Cannot remove null values");
 		}
 		int m = mapHash(key);
-		Lock lock = lockArray[m].writeLock();
-		lock.lock();
+		OptimisticReadWriteLock lock = lockArray[m];
+		int sequence = lock.writeLock();
 		try {
 			V current = mapArray[m].get(key);
 			if (current != value) {
@@ -320,7 +482,7 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 			mapArray[m].remove(key);
 			return true;
 		} finally {
-			lock.unlock();
+			lock.writeUnlock(sequence);
 		}
 	}
 
@@ -337,19 +499,7 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 	}
 
 	public Collection<V> valueCollection() {
-		HashSet<V> collection = new HashSet<V>();
-		for (int m = 0; m < mapCount; m++) {
-			lockArray[m].readLock().lock();
-		}
-		try {
-			for (int m = 0; m < mapCount; m++) {
-				collection.addAll(mapArray[m].valueCollection());
-			}
-		} finally {
-			for (int m = 0; m < mapCount; m++) {
-				lockArray[m].readLock().unlock();
-			}
-		}
+		HashSet<V> collection = new HashSet<V>(Arrays.asList(values()));
 		return Collections.unmodifiableCollection(collection);
 	}
 
@@ -357,35 +507,164 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 		return values(null);
 	}
 
-	@SuppressWarnings("unchecked")
 	public V[] values(V[] dest) {
-		for (int m = 0; m < mapCount; m++) {
-			lockArray[m].readLock().lock();
-		}
-		try {
-			int localSize = totalKeys.get();
-			V[] values;
-			if (dest == null || dest.length < localSize) {
-				values = (V[]) new Object[size()];
-			} else {
-				values = dest;
-			}
-			int position = 0;
-			for (int m = 0; m < mapCount; m++) {
-				V[] mapValues = mapArray[m].values();
-				for (V mapValue : mapValues) {
-					values[position++] = mapValue;
+		for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+			int[] sequences = readLockAll();
+			V[] result;
+			try {
+				result = copyValues(dest);
+			} catch (RuntimeException e) {
+				if (readUnlockAll(sequences)) {
+					throw e;
 				}
+				continue;
 			}
-			if (position != localSize) {
-				throw new IllegalStateException("Key counter does not match actual total map size");
+			if (readUnlockAll(sequences)) {
+				return result;
 			}
-			return values;
+		}
+		int[] sequences = writeLockAll();
+		try {
+			return copyValues(dest);
 		} finally {
-			for (int m = 0; m < mapCount; m++) {
-				lockArray[m].readLock().unlock();
+			writeUnlockAll(sequences);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private V[] copyValues(V[] dest) {
+		int localSize = totalKeys.get();
+		V[] values;
+		if (dest == null || dest.length < localSize) {
+			values = (V[]) new Object[size()];
+		} else {
+			values = dest;
+		}
+		int position = 0;
+		for (int m = 0; m < mapCount; m++) {
+			V[] mapValues = mapArray[m].values();
+			for (V mapValue : mapValues) {
+				values[position++] = mapValue;
 			}
 		}
+		if (position != localSize) {
+			throw new IllegalStateException("Key counter does not match actual total map size");
+		}
+		return values;
+	}
+
+
+	/**
+	 * Read locks all the sub-maps
+	 *
+	 * @return the sequence numbers of the sub-maps
+	 */
+	private int[] readLockAll() {
+		int[] sequences = new int[mapCount];
+		for (int m = 0; m < mapCount; m++) {
+			sequences[m] = lockArray[m].readLock();
+		}
+		return sequences;
+	}
+
+	/**
+	 * Checks that none of the sub-maps were written since they were read
+	 * locked
+	 *
+	 * @param sequences the sequence numbers returned by readLockAll
+	 * @return true if there were no writes
+	 */
+	private boolean readUnlockAll(int[] sequences) {
+		for (int m = 0; m < mapCount; m++) {
+			if (!lockArray[m].readUnlock(sequences[m])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write locks all the sub-maps, in order
+	 *
+	 * @return the sequence numbers of the sub-maps
+	 */
+	private int[] writeLockAll() {
+		int[] sequences = new int[mapCount];
+		for (int m = 0; m < mapCount; m++) {
+			sequences[m] = lockArray[m].writeLock();
+		}
+		return sequences;
+	}
+
+	/**
+	 * Write unlocks all the sub-maps
+	 *
+	 * @param sequences the sequence numbers returned by writeLockAll
+	 */
+	private void writeUnlockAll(int[] sequences) {
+		for (int m = 0; m < mapCount; m++) {
+			lockArray[m].writeUnlock(sequences[m]);
+		}
+	}
+
+	/**
+	 * Copies the entries in a sub-map to a buffer
+	 *
+	 * @param m the sub-map
+	 * @param buffer the buffer
+	 * @param keys true to copy the keys
+	 * @param values true to copy the values
+	 * @return the number of entries copied
+	 */
+	@SuppressWarnings("unchecked")
+	private int copyEntries(int m, ForEachBuffer buffer, boolean keys, boolean values) {
+		OptimisticReadWriteLock lock = lockArray[m];
+		TLongObjectHashMap<V> map = mapArray[m];
+		for (int attempt = 0; attempt <= OPTIMISTIC_READS; attempt++) {
+			boolean optimistic = attempt < OPTIMISTIC_READS;
+			int sequence = optimistic ? lock.readLock() : lock.writeLock();
+			try {
+				int size = map.size();
+				buffer.ensureCapacity(size);
+				if (keys) {
+					map.keys(buffer.keys);
+				}
+				if (values) {
+					map.values((V[]) buffer.values);
+				}
+				if (!optimistic || lock.readUnlock(sequence)) {
+					return size;
+				}
+			} catch (RuntimeException e) {
+				// A read which overlaps a write may fail
+				if (!optimistic || lock.readUnlock(sequence)) {
+					throw e;
+				}
+			} finally {
+				if (!optimistic) {
+					lock.writeUnlock(sequence);
+				}
+			}
+		}
+		throw new IllegalStateException("Sub-map was not copied");
+	}
+
+	/**
+	 * Gets the calling thread's forEach buffer. A new buffer is used if the
+	 * thread's buffer is already in use by an outer iteration.
+	 *
+	 * @return the buffer
+	 */
+	private static ForEachBuffer getForEachBuffer() {
+		ForEachBuffer buffer = forEachBuffers.get();
+		if (buffer == null) {
+			buffer = new ForEachBuffer();
+			forEachBuffers.set(buffer);
+		} else if (buffer.inUse) {
+			buffer = new ForEachBuffer();
+		}
+		buffer.inUse = true;
+		return buffer;
 	}
 
 	private int mapHash(long key) {
@@ -393,4 +672,18 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 
 		return (0x7FFFFFFF & intKey) % hashScramble & mapMask;
 	}
+
+	private static class ForEachBuffer {
+		private long[] keys = new long[0];
+		private Object[] values = new Object[0];
+		private boolean inUse;
+
+		private void ensureCapacity(int size) {
+			if (keys.length < size) {
+				int length = Math.max(size, keys.length << 1);
+				keys = new long[length];
+				values = new Object[length];
+			}
+		}
+	}
 }
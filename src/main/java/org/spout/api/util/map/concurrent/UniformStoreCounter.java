@@ -0,0 +1,78 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the live block stores which are stored as a single uniform id and data pair, and those which are expanded to full arrays.<br>
+ * <br>
+ * A store is counted when it is created, moves from uniform to expanded when a write differs from the uniform state, and moves back when compression finds it uniform again.  Stores are removed from the counts when they are released, which should happen when their chunk is unloaded.  A store which moves between the counts is briefly missing from one of them, so the counts are a snapshot rather than an exact total.
+ */
+public final class UniformStoreCounter {
+	private static final AtomicLong uniform = new AtomicLong(0);
+	private static final AtomicLong expanded = new AtomicLong(0);
+
+	private UniformStoreCounter() {
+	}
+
+	/**
+	 * Gets the number of live stores which are uniform
+	 *
+	 * @return the number of uniform stores
+	 */
+	public static long getUniformStores() {
+		return uniform.get();
+	}
+
+	/**
+	 * Gets the number of live stores which are expanded to full arrays
+	 *
+	 * @return the number of expanded stores
+	 */
+	public static long getExpandedStores() {
+		return expanded.get();
+	}
+
+	static void created(boolean isUniform) {
+		(isUniform ? uniform : expanded).incrementAndGet();
+	}
+
+	static void released(boolean isUniform) {
+		(isUniform ? uniform : expanded).decrementAndGet();
+	}
+
+	static void expanded() {
+		uniform.decrementAndGet();
+		expanded.incrementAndGet();
+	}
+
+	static void compressed() {
+		expanded.decrementAndGet();
+		uniform.incrementAndGet();
+	}
+}
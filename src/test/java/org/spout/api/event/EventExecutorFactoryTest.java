@@ -0,0 +1,152 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+import org.spout.api.exception.EventException;
+
+public class EventExecutorFactoryTest {
+	@Test
+	public void testGenerated() throws Exception {
+		CountingListener listener = new CountingListener();
+		Method method = CountingListener.class.getMethod("onTestEvent", TestEvent.class);
+		assertTrue("Executor can not be generated for a public method", EventExecutorFactory.canGenerate(method));
+
+		EventExecutor executor = EventExecutorFactory.create(listener, method);
+		assertNotSame("Executor was not generated", CountingListener.class.getClassLoader(), executor.getClass().getClassLoader());
+		executor.execute(new TestEvent());
+		executor.execute(new TestEvent());
+		assertEquals("Listener was not called", 2, listener.calls);
+
+		// Methods with return values must have the value popped
+		EventExecutorFactory.createGenerated(listener, CountingListener.class.getMethod("onTestEventLong", TestEvent.class)).execute(new TestEvent());
+		EventExecutorFactory.createGenerated(listener, CountingListener.class.getMethod("onTestEventObject", TestEvent.class)).execute(new TestEvent());
+		assertEquals("Listener was not called", 4, listener.calls);
+	}
+
+	@Test
+	public void testReflectiveFallback() throws Exception {
+		PrivateListener listener = new PrivateListener();
+		Method method = PrivateListener.class.getDeclaredMethod("onTestEvent", TestEvent.class);
+		assertFalse("Executor can be generated for a private class", EventExecutorFactory.canGenerate(method));
+
+		EventExecutor executor = EventExecutorFactory.create(listener, method);
+		executor.execute(new TestEvent());
+		assertEquals("Listener was not called", 1, listener.calls);
+	}
+
+	@Test
+	public void testExceptions() throws Exception {
+		Method method = CountingListener.class.getMethod("onTestEvent", TestEvent.class);
+		checkExceptions(EventExecutorFactory.createGenerated(new CountingListener(), method));
+		checkExceptions(EventExecutorFactory.createReflective(new CountingListener(), method));
+	}
+
+	private void checkExceptions(EventExecutor executor) {
+		try {
+			executor.execute(new OtherEvent());
+			fail("Wrong event type was passed to the listener");
+		} catch (EventException e) {
+		}
+
+		FailingEvent runtime = new FailingEvent(new IllegalStateException());
+		try {
+			executor.execute(runtime);
+			fail("Exception was not thrown");
+		} catch (EventException e) {
+			assertSame("Exception was not wrapped", runtime.exception, e.getCause());
+		}
+
+		FailingEvent checked = new FailingEvent(new EventException("checked"));
+		try {
+			executor.execute(checked);
+			fail("Exception was not thrown");
+		} catch (EventException e) {
+			assertSame("EventException was wrapped", checked.exception, e);
+		}
+	}
+
+	public static class CountingListener implements Listener {
+		private int calls;
+
+		@EventHandler
+		public void onTestEvent(TestEvent event) throws Exception {
+			if (event instanceof FailingEvent) {
+				throw ((FailingEvent) event).exception;
+			}
+			calls++;
+		}
+
+		public long onTestEventLong(TestEvent event) {
+			return ++calls;
+		}
+
+		public Object onTestEventObject(TestEvent event) {
+			return Integer.valueOf(++calls);
+		}
+	}
+
+	private static class PrivateListener implements Listener {
+		private int calls;
+
+		@EventHandler
+		private void onTestEvent(TestEvent event) {
+			calls++;
+		}
+	}
+
+	public static class FailingEvent extends TestEvent {
+		private final Exception exception;
+
+		public FailingEvent(Exception exception) {
+			this.exception = exception;
+		}
+	}
+
+	public static class OtherEvent extends Event {
+		private static final HandlerList handlers = new HandlerList();
+
+		@Override
+		public HandlerList getHandlers() {
+			return handlers;
+		}
+
+		public static HandlerList getHandlerList() {
+			return handlers;
+		}
+	}
+}
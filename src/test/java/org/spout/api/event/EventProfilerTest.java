@@ -0,0 +1,216 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.event;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.spout.api.event.EventProfiler.Grouping;
+import org.spout.api.event.EventProfiler.Summary;
+import org.spout.api.exception.EventException;
+
+public class EventProfilerTest {
+	private SimpleEventManager eventManager;
+	private EventProfiler profiler;
+
+	@Before
+	public void setUp() {
+		eventManager = new SimpleEventManager();
+		profiler = eventManager.getProfiler();
+		eventManager.registerEvent(ProfiledEvent.class, Order.EARLY, new SleepingExecutor(0), this);
+		eventManager.registerEvent(ProfiledEvent.class, Order.LATE, new SleepingExecutor(2), this);
+	}
+
+	@After
+	public void tearDown() {
+		HandlerList.unregisterAll(this);
+	}
+
+	@Test
+	public void testDisabled() {
+		assertFalse(profiler.isEnabled());
+		eventManager.callEvent(new ProfiledEvent());
+		assertTrue(profiler.getTimings().isEmpty());
+		assertTrue(profiler.summarize(Grouping.HANDLER).isEmpty());
+	}
+
+	@Test
+	public void testTimings() {
+		profiler.setSampleInterval(1);
+		profiler.setEnabled(true);
+		for (int i = 0; i < 3; i++) {
+			eventManager.callEvent(new ProfiledEvent());
+		}
+		profiler.setEnabled(false);
+		eventManager.callEvent(new ProfiledEvent());
+
+		List<EventTimings> timings = profiler.getTimings();
+		assertEquals(2, timings.size());
+		for (EventTimings t : timings) {
+			assertEquals(3, t.getCount());
+			assertEquals(ProfiledEvent.class, t.getEventType());
+			assertSame(this, t.getOwner());
+			assertTrue(t.getMaxNanos() <= t.getTotalNanos());
+		}
+
+		List<Summary> handlers = profiler.summarize(Grouping.HANDLER);
+		assertEquals(2, handlers.size());
+		assertTrue(handlers.get(0).getName().endsWith(Order.LATE.name()));
+		assertTrue(handlers.get(0).getMaxNanos() >= 2000000L);
+		assertTrue(handlers.get(0).getTotalNanos() >= handlers.get(1).getTotalNanos());
+
+		List<Summary> plugins = profiler.summarize(Grouping.PLUGIN);
+		assertEquals(1, plugins.size());
+		assertEquals(getClass().getName(), plugins.get(0).getName());
+		assertEquals(6, plugins.get(0).getCount());
+		assertEquals(1, profiler.summarize(Grouping.EVENT).size());
+		assertEquals(2, profiler.summarize(Grouping.ORDER).size());
+
+		profiler.reset();
+		assertTrue(profiler.summarize(Grouping.HANDLER).isEmpty());
+		assertEquals(0, profiler.getTimings().get(0).getTotalNanos());
+	}
+
+	@Test
+	public void testDump() {
+		assertTrue(profiler.dump(Grouping.HANDLER, 10).isEmpty());
+		profiler.setSampleInterval(1);
+		profiler.setEnabled(true);
+		eventManager.callEvent(new ProfiledEvent());
+
+		for (Grouping grouping : Grouping.values()) {
+			List<Summary> summaries = profiler.summarize(grouping);
+			List<String> dump = profiler.dump(grouping, 10);
+			assertEquals(summaries.size() + 1, dump.size());
+			for (int i = 0; i < summaries.size(); i++) {
+				assertTrue(dump.get(i + 1).startsWith(summaries.get(i).getName() + ": " + summaries.get(i).getCount() + ", "));
+			}
+		}
+
+		List<String> limited = profiler.dump(Grouping.HANDLER, 1);
+		assertEquals(2, limited.size());
+		assertTrue(limited.get(1).startsWith(profiler.summarize(Grouping.HANDLER).get(0).getName()));
+		assertEquals(1, profiler.dump(Grouping.HANDLER, 0).size());
+	}
+
+	@Test
+	public void testHandlerSummaries() {
+		eventManager.registerEvent(ProfiledEvent.class, Order.LATE, new SleepingExecutor(0), this);
+		profiler.setSampleInterval(1);
+		profiler.setEnabled(true);
+		eventManager.callEvent(new ProfiledEvent());
+
+		List<Summary> handlers = profiler.summarize(Grouping.HANDLER);
+		assertEquals(3, handlers.size());
+		int late = 0;
+		for (Summary summary : handlers) {
+			assertEquals(1, summary.getCount());
+			if (summary.getName().endsWith(Order.LATE.name())) {
+				late++;
+			}
+		}
+		assertEquals(2, late);
+		assertEquals(2, profiler.summarize(Grouping.ORDER).size());
+	}
+
+	@Test
+	public void testSampling() {
+		final int calls = 4000;
+		HandlerList.unregisterAll(this);
+		eventManager.registerEvent(ProfiledEvent.class, Order.DEFAULT, new SleepingExecutor(-1), this);
+		profiler.setSampleInterval(4);
+		profiler.setEnabled(true);
+		for (int i = 0; i < calls; i++) {
+			eventManager.callEvent(new ProfiledEvent());
+		}
+
+		EventTimings timings = profiler.getTimings().get(0);
+		assertEquals(0, timings.getCount() % 4);
+		assertTrue("Estimated " + timings.getCount() + " calls for " + calls, timings.getCount() > calls * 3 / 4 && timings.getCount() < calls * 5 / 4);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidSampleInterval() {
+		profiler.setSampleInterval(0);
+	}
+
+	@Test
+	public void testUnregisteredTimingsReleased() throws InterruptedException {
+		Object owner = new Object();
+		eventManager.registerEvent(ProfiledEvent.class, Order.DEFAULT, new SleepingExecutor(0), owner);
+		profiler.setSampleInterval(1);
+		profiler.setEnabled(true);
+		eventManager.callEvent(new ProfiledEvent());
+		assertEquals(3, profiler.getTimings().size());
+
+		HandlerList.unregisterAll(owner);
+		owner = null;
+		for (int i = 0; i < 50 && profiler.getTimings().size() > 2; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertEquals(2, profiler.getTimings().size());
+		assertEquals(1, profiler.summarize(Grouping.PLUGIN).size());
+	}
+
+	private static class SleepingExecutor implements EventExecutor {
+		private final long millis;
+
+		public SleepingExecutor(long millis) {
+			this.millis = millis;
+		}
+
+		public void execute(Event event) throws EventException {
+			if (millis < 0) {
+				return;
+			}
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				throw new EventException(e);
+			}
+		}
+	}
+
+	public static class ProfiledEvent extends Event {
+		private static final HandlerList handlers = new HandlerList();
+
+		@Override
+		public HandlerList getHandlers() {
+			return handlers;
+		}
+
+		public static HandlerList getHandlerList() {
+			return handlers;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.event;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import org.spout.api.exception.EventException;
+
+public class HandlerListTest {
+	private static final int DISPATCHERS = 4;
+	private static final int FILLERS = 64;
+	private static final int CHANGES = 20000;
+
+	@Test
+	public void testRegisterUnregister() {
+		HandlerList list = new HandlerList();
+		ListenerRegistration late = new ListenerRegistration(new OrderExecutor(Order.LATE), Order.LATE, this);
+		ListenerRegistration early = new ListenerRegistration(new OrderExecutor(Order.EARLY), Order.EARLY, this);
+		assertFalse(list.hasListeners());
+		assertEquals(0, list.getRegisteredListeners().length);
+
+		list.register(late);
+		list.register(early);
+		assertTrue(list.hasListeners());
+		assertArrayEquals(new ListenerRegistration[] {early, late}, list.getRegisteredListeners());
+		try {
+			list.register(early);
+			fail("Registered the same listener twice");
+		} catch (IllegalStateException expected) {
+		}
+
+		ListenerRegistration[] snapshot = list.getRegisteredListeners();
+		list.unregister(early);
+		assertArrayEquals(new ListenerRegistration[] {late}, list.getRegisteredListeners());
+		assertArrayEquals(new ListenerRegistration[] {early, late}, snapshot);
+
+		list.unregister(this);
+		assertFalse(list.hasListeners());
+	}
+
+	@Test
+	public void testConcurrentDispatch() throws InterruptedException {
+		final EventManager eventManager = new SimpleEventManager();
+		final Object permanentOwner = new Object();
+		final OrderExecutor permanent = new OrderExecutor(Order.DEFAULT);
+		eventManager.registerEvent(StressEvent.class, Order.DEFAULT, permanent, permanentOwner);
+		for (int i = 0; i < FILLERS; i++) {
+			Order order = Order.values()[i % Order.values().length];
+			eventManager.registerEvent(StressEvent.class, order, new OrderExecutor(order), permanentOwner);
+		}
+
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicInteger fired = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch started = new CountDownLatch(DISPATCHERS);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < DISPATCHERS; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						while (running.get()) {
+							StressEvent event = eventManager.callEvent(new StressEvent());
+							fired.incrementAndGet();
+							if (!event.hasBeenCalled()) {
+								throw new IllegalStateException("Event was not called");
+							}
+							for (int j = 1; j < event.orders.size(); j++) {
+								if (event.orders.get(j - 1).getIndex() > event.orders.get(j).getIndex()) {
+									throw new IllegalStateException("Listeners called out of order: " + event.orders);
+								}
+							}
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		started.await();
+		HandlerList handlers = StressEvent.getHandlerList();
+		Order[] orders = Order.values();
+		for (int i = 0; i < CHANGES && failure.get() == null; i++) {
+			Order order = orders[i % orders.length];
+			ListenerRegistration registration = new ListenerRegistration(new OrderExecutor(order), order, this);
+			handlers.register(registration);
+			if ((i & 1) == 0) {
+				handlers.unregister(registration);
+			} else {
+				handlers.unregister((Object) this);
+			}
+		}
+		running.set(false);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		assertEquals(FILLERS + 1, handlers.getRegisteredListeners().length);
+		assertEquals(fired.get(), permanent.calls.get());
+		assertEquals(fired.get(), handlers.getFiredCount());
+		handlers.unregister(permanentOwner);
+		assertFalse(eventManager.isObserved(StressEvent.class));
+	}
+
+	private static class OrderExecutor implements EventExecutor {
+		private final AtomicInteger calls = new AtomicInteger();
+		private final Order order;
+
+		public OrderExecutor(Order order) {
+			this.order = order;
+		}
+
+		public void execute(Event event) throws EventException {
+			calls.incrementAndGet();
+			if (event instanceof StressEvent) {
+				((StressEvent) event).orders.add(order);
+			}
+		}
+	}
+
+	public static class StressEvent extends Event {
+		private static final HandlerList handlers = new HandlerList();
+		private final List<Order> orders = new ArrayList<Order>();
+
+		@Override
+		public HandlerList getHandlers() {
+			return handlers;
+		}
+
+		public static HandlerList getHandlerList() {
+			return handlers;
+		}
+	}
+}
@@ -36,6 +36,8 @@ import org.junit.Test;
 
 import org.spout.api.exception.EventException;
 
+import com.google.common.base.Supplier;
+
 public class SimpleEventManagerTest {
 	protected EventManager eventManager;
 
@@ -71,4 +73,196 @@ public class SimpleEventManagerTest {
 			assertEquals(calledOrders.get(order.getIndex()), order);
 		}
 	}
+
+	@Test
+	public void testObserved() {
+		EventExecutor executor = new EventExecutor() {
+			public void execute(Event event) throws EventException {
+			}
+		};
+		assertFalse(eventManager.isObserved(LazyEvent.class));
+		assertFalse(LazyEvent.getHandlerList().hasListeners());
+		eventManager.registerEvent(LazyEvent.class, Order.DEFAULT, executor, this);
+		assertTrue(eventManager.isObserved(LazyEvent.class));
+		HandlerList.unregisterAll(this);
+		assertFalse(eventManager.isObserved(LazyEvent.class));
+		eventManager.registerEvent(LazyEvent.class, Order.EARLY, executor, this);
+		eventManager.registerEvent(LazyEvent.class, Order.LATE, executor, this);
+		LazyEvent.getHandlerList().unregister(LazyEvent.getHandlerList().getRegisteredListeners()[0]);
+		assertTrue(eventManager.isObserved(LazyEvent.class));
+		HandlerList.unregisterAll();
+		assertFalse(eventManager.isObserved(LazyEvent.class));
+	}
+
+	@Test
+	public void testLazyCall() {
+		final int[] created = new int[1];
+		Supplier<LazyEvent> supplier = new Supplier<LazyEvent>() {
+			public LazyEvent get() {
+				created[0]++;
+				return new LazyEvent();
+			}
+		};
+		HandlerList handlers = LazyEvent.getHandlerList();
+		handlers.resetCounts();
+
+		assertNull(eventManager.callEvent(LazyEvent.class, supplier));
+		assertEquals(0, created[0]);
+		assertEquals(1, handlers.getFiredCount());
+		assertEquals(0, handlers.getObservedCount());
+
+		final List<Event> called = new ArrayList<Event>();
+		eventManager.registerEvent(LazyEvent.class, Order.DEFAULT, new EventExecutor() {
+			public void execute(Event event) throws EventException {
+				called.add(event);
+			}
+		}, this);
+		LazyEvent event = eventManager.callEvent(LazyEvent.class, supplier);
+		assertNotNull(event);
+		assertTrue(event.hasBeenCalled());
+		assertEquals(1, created[0]);
+		assertEquals(1, called.size());
+		assertSame(event, called.get(0));
+
+		eventManager.callEvent(new LazyEvent());
+		assertEquals(3, handlers.getFiredCount());
+		assertEquals(2, handlers.getObservedCount());
+		HandlerList.unregisterAll(this);
+	}
+
+	public static class LazyEvent extends Event {
+		private static final HandlerList handlers = new HandlerList();
+
+		@Override
+		public HandlerList getHandlers() {
+			return handlers;
+		}
+
+		public static HandlerList getHandlerList() {
+			return handlers;
+		}
+	}
+
+	@Test
+	public void testDelayedEvents() {
+		TickingEventManager eventManager = new TickingEventManager();
+		final List<Event> called = new ArrayList<Event>();
+		eventManager.registerEvent(BatchEvent.class, Order.DEFAULT, new EventExecutor() {
+			public void execute(Event event) throws EventException {
+				called.add(event);
+			}
+		}, this);
+		List<BatchEvent> events = new ArrayList<BatchEvent>();
+		for (int i = 0; i < 100; i++) {
+			BatchEvent event = new BatchEvent();
+			events.add(event);
+			eventManager.callDelayedEvent(event);
+		}
+		assertEquals(1, eventManager.sync.size());
+		assertTrue(called.isEmpty());
+
+		eventManager.tick();
+		assertEquals(events, called);
+		assertTrue(eventManager.sync.isEmpty());
+		HandlerList.unregisterAll(this);
+	}
+
+	@Test
+	public void testAsyncEvents() {
+		TickingEventManager eventManager = new TickingEventManager();
+		BatchListener listener = new BatchListener();
+		eventManager.registerEvents(listener, this);
+		assertTrue(eventManager.isObserved(BatchEvent.class));
+
+		List<BatchEvent> events = new ArrayList<BatchEvent>();
+		for (int i = 0; i < 10; i++) {
+			BatchEvent event = eventManager.callEvent(new BatchEvent());
+			assertTrue(event.hasBeenCalled());
+			events.add(event);
+		}
+		events.get(3).setCancelled(true);
+		assertEquals(events, listener.sync);
+		assertTrue(listener.async.isEmpty());
+		assertTrue(listener.batches.isEmpty());
+		assertEquals(1, eventManager.sync.size());
+
+		eventManager.tick();
+		List<BatchEvent> uncancelled = new ArrayList<BatchEvent>(events);
+		uncancelled.remove(3);
+		assertEquals(uncancelled, listener.async);
+		assertEquals(1, listener.batches.size());
+		assertEquals(events, listener.batches.get(0));
+		assertTrue(eventManager.sync.isEmpty());
+		assertTrue(eventManager.async.isEmpty());
+
+		HandlerList.unregisterAll(this);
+		assertFalse(eventManager.isObserved(BatchEvent.class));
+	}
+
+	private static class TickingEventManager extends SimpleEventManager {
+		private final List<Runnable> sync = new ArrayList<Runnable>();
+		private final List<Runnable> async = new ArrayList<Runnable>();
+
+		@Override
+		protected void scheduleSync(Runnable task) {
+			sync.add(task);
+		}
+
+		@Override
+		protected void scheduleAsync(Runnable task) {
+			async.add(task);
+		}
+
+		public void tick() {
+			List<Runnable> tasks = new ArrayList<Runnable>(sync);
+			sync.clear();
+			for (Runnable task : tasks) {
+				task.run();
+			}
+			tasks = new ArrayList<Runnable>(async);
+			async.clear();
+			for (Runnable task : tasks) {
+				task.run();
+			}
+		}
+	}
+
+	public static class BatchListener implements Listener {
+		private final List<BatchEvent> sync = new ArrayList<BatchEvent>();
+		private final List<BatchEvent> async = new ArrayList<BatchEvent>();
+		private final List<List<BatchEvent>> batches = new ArrayList<List<BatchEvent>>();
+
+		@EventHandler
+		public void onEvent(BatchEvent event) {
+			sync.add(event);
+		}
+
+		@EventHandler(async = true)
+		public void onAsyncEvent(BatchEvent event) {
+			async.add(event);
+		}
+
+		@EventHandler(order = Order.LATEST_IGNORE_CANCELLED)
+		public void onEvents(List<BatchEvent> events) {
+			batches.add(new ArrayList<BatchEvent>(events));
+		}
+	}
+
+	public static class BatchEvent extends Event implements Cancellable {
+		private static final HandlerList handlers = new HandlerList();
+
+		@Override
+		public void setCancelled(boolean cancelled) {
+			super.setCancelled(cancelled);
+		}
+
+		@Override
+		public HandlerList getHandlers() {
+			return handlers;
+		}
+
+		public static HandlerList getHandlerList() {
+			return handlers;
+		}
+	}
 }
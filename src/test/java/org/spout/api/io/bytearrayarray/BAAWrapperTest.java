@@ -0,0 +1,306 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.bytearrayarray;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import org.spout.api.io.regionfile.SRFCodec;
+import org.spout.api.io.regionfile.SRFStorageType;
+
+public class BAAWrapperTest {
+	private static int entries = 64;
+	private static String filename = "baawrapper.dat";
+
+	@Test
+	public void testWriteQueue() throws IOException, InterruptedException {
+		File file = new File(filename);
+		if (file.exists()) {
+			file.delete();
+		}
+
+		// Long delay so that writes remain pending until flushed
+		BAAWriteQueue queue = new BAAWriteQueue(1, 60000);
+		BAAWrapper wrapper = new BAAWrapper(file, 8, entries, 0, SRFStorageType.CACHED, queue);
+
+		Random r = new Random();
+		byte[][] data = new byte[entries][];
+
+		for (int j = 0; j < 3; j++) {
+			for (int i = 0; i < entries; i++) {
+				data[i] = new byte[r.nextInt(1024) + 1];
+				r.nextBytes(data[i]);
+				writeBlock(wrapper, i, data[i]);
+			}
+		}
+
+		assertTrue("Block writes were not queued", wrapper.hasPendingWrites());
+
+		for (int i = 0; i < entries; i++) {
+			assertArrayEquals("Pending block data did not match written data", data[i], readBlock(wrapper, i, data[i].length));
+		}
+		checkBulkRead(wrapper, data);
+
+		assertTrue("Unable to flush pending writes", queue.flush());
+		assertFalse("Pending writes remain after flush", wrapper.hasPendingWrites());
+
+		Thread.sleep(5);
+		wrapper.timeoutCheck();
+
+		BAAWrapper reopened = new BAAWrapper(file, 8, entries, 0);
+		for (int i = 0; i < entries; i++) {
+			assertArrayEquals("Block data did not match written data after reopening", data[i], readBlock(reopened, i, data[i].length));
+		}
+		checkBulkRead(reopened, data);
+		for (int i = 0; i < entries; i++) {
+			data[i] = new byte[r.nextInt(1024) + 1];
+			r.nextBytes(data[i]);
+		}
+		int[] indices = new int[entries];
+		for (int i = 0; i < entries; i++) {
+			indices[i] = i;
+		}
+		assertTrue("Unable to write blocks in bulk", reopened.writeBlocks(indices, data));
+		checkBulkRead(reopened, data);
+		Thread.sleep(5);
+		reopened.timeoutCheck();
+
+		assertTrue("Unable to shut down write queue", queue.shutdown());
+
+		file.delete();
+	}
+
+	@Test
+	public void testBackgroundFlush() throws IOException, InterruptedException {
+		File file = new File(filename);
+		if (file.exists()) {
+			file.delete();
+		}
+
+		BAAWriteQueue queue = new BAAWriteQueue(2, 10);
+		BAAWrapper wrapper = new BAAWrapper(file, 8, entries, 0, SRFStorageType.CHANNEL, queue);
+
+		byte[] data = new byte[300];
+		new Random().nextBytes(data);
+		for (int i = 0; i < entries; i++) {
+			writeBlock(wrapper, i, data);
+		}
+
+		long end = System.currentTimeMillis() + 10000;
+		while (wrapper.hasPendingWrites() && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+
+		assertFalse("Pending writes were not flushed by the write queue", wrapper.hasPendingWrites());
+
+		for (int i = 0; i < entries; i++) {
+			assertArrayEquals("Block data did not match written data", data, readBlock(wrapper, i, data.length));
+		}
+
+		queue.shutdown();
+		Thread.sleep(5);
+		wrapper.timeoutCheck();
+
+		file.delete();
+	}
+
+	@Test
+	public void testBackgroundFlushRetry() throws IOException, InterruptedException {
+		File file = new File(filename);
+		if (file.exists()) {
+			file.delete();
+		}
+		// A directory in place of the file makes every flush fail
+		assertTrue("Unable to create directory", file.mkdir());
+
+		BAAWriteQueue queue = new BAAWriteQueue(1, 10, 50);
+		BAAWrapper wrapper = new BAAWrapper(file, 8, entries, 0, SRFStorageType.CHANNEL, queue);
+
+		byte[] data = new byte[300];
+		new Random().nextBytes(data);
+		for (int i = 0; i < entries; i++) {
+			writeBlock(wrapper, i, data);
+		}
+
+		Thread.sleep(200);
+		assertTrue("Pending writes were lost by a failed flush", wrapper.hasPendingWrites());
+
+		assertTrue("Unable to delete directory", file.delete());
+		long end = System.currentTimeMillis() + 10000;
+		while (wrapper.hasPendingWrites() && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+
+		assertFalse("Failed flush was not retried by the write queue", wrapper.hasPendingWrites());
+
+		for (int i = 0; i < entries; i++) {
+			assertArrayEquals("Block data did not match written data", data, readBlock(wrapper, i, data.length));
+		}
+
+		queue.shutdown();
+		Thread.sleep(5);
+		wrapper.timeoutCheck();
+
+		file.delete();
+	}
+
+	@Test
+	public void testHandleManager() throws IOException, InterruptedException {
+		final int files = 6;
+		final int maxOpen = 2;
+		final BAAHandleManager manager = new BAAHandleManager(maxOpen);
+		final BAAWrapper[] wrappers = new BAAWrapper[files];
+		final File[] fileList = new File[files];
+		for (int i = 0; i < files; i++) {
+			fileList[i] = new File(i + filename);
+			if (fileList[i].exists()) {
+				fileList[i].delete();
+			}
+			wrappers[i] = new BAAWrapper(fileList[i], 8, entries, 60000, SRFStorageType.CACHED, SRFCodec.getDefaultCodec(), false, null, manager);
+		}
+
+		System.out.println("Accessing " + files + " files from multiple threads with at most " + maxOpen + " open");
+
+		final AtomicInteger maxSeen = new AtomicInteger(0);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					try {
+						for (int j = 0; j < 200; j++) {
+							int f = r.nextInt(files);
+							int i = r.nextInt(entries);
+							byte[] data = new byte[16];
+							data[0] = (byte) f;
+							data[1] = (byte) i;
+							writeBlock(wrappers[f], i, data);
+							int open = manager.getOpenCount();
+							if (open > maxSeen.get()) {
+								maxSeen.set(open);
+							}
+							InputStream in = wrappers[f].getBlockInputStream(i);
+							if (in == null || in.read() != f) {
+								failed.set(true);
+							}
+						}
+					} catch (IOException e) {
+						failed.set(true);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertFalse("Block data did not match written data", failed.get());
+		assertTrue("More files were open than the limit", maxSeen.get() <= maxOpen);
+		assertTrue("No idle files were evicted", manager.getEvictions() > 0);
+
+		System.out.println("Waiting for a file while all open files are in use");
+
+		OutputStream out0 = wrappers[0].getBlockOutputStream(0);
+		OutputStream out1 = wrappers[1].getBlockOutputStream(0);
+		assertTrue("Open count does not match limit", manager.getOpenCount() == maxOpen);
+
+		final AtomicBoolean opened = new AtomicBoolean(false);
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				wrappers[2].getBlockInputStream(0);
+				opened.set(true);
+			}
+		};
+		long waits = manager.getWaits();
+		waiter.start();
+		Thread.sleep(100);
+		assertFalse("File was opened while all open files were in use", opened.get());
+		out0.close();
+		waiter.join(5000);
+		assertTrue("Waiting thread did not open the file after a file became idle", opened.get());
+		assertTrue("Wait was not counted", manager.getWaits() > waits && manager.getWaitTime() > 0);
+		out1.close();
+
+		for (int i = 0; i < files; i++) {
+			wrappers[i].closeIfIdle();
+			fileList[i].delete();
+		}
+		assertTrue("Files remain open", manager.getOpenCount() == 0);
+	}
+
+	private static void writeBlock(BAAWrapper wrapper, int i, byte[] data) throws IOException {
+		OutputStream out = wrapper.getBlockOutputStream(i);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void checkBulkRead(BAAWrapper wrapper, byte[][] data) throws IOException {
+		int[] indices = new int[entries];
+		for (int i = 0; i < entries; i++) {
+			indices[i] = entries - 1 - i;
+		}
+		InputStream[] streams = wrapper.readBlocks(indices);
+		assertTrue("Unable to read blocks in bulk", streams != null);
+		for (int j = 0; j < entries; j++) {
+			byte[] block = new byte[data[indices[j]].length];
+			new DataInputStream(streams[j]).readFully(block);
+			assertArrayEquals("Bulk read block data did not match written data", data[indices[j]], block);
+		}
+	}
+
+	private static byte[] readBlock(BAAWrapper wrapper, int i, int length) throws IOException {
+		InputStream in = wrapper.getBlockInputStream(i);
+		assertTrue("Unable to open block " + i, in != null);
+		byte[] data = new byte[length];
+		try {
+			new DataInputStream(in).readFully(data);
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+}
@@ -27,10 +27,14 @@
 package org.spout.api.io.regionfile;
 
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 
+import org.spout.api.io.regionfile.PageCache.Page;
+
 import org.junit.Test;
 
 public class CachedRandomAccessFileTest {
@@ -130,6 +134,143 @@ public class CachedRandomAccessFileTest {
 		}
 	}
 
+	@Test
+	public void testEviction() throws IOException {
+		File file = new File(filename);
+		if (file.exists()) {
+			file.delete();
+		}
+
+		System.out.println("Opening file with a cache of 4 pages");
+		PageCache cache = new PageCache(4 << 8);
+		CachedRandomAccessFile craf = new CachedRandomAccessFile(file, "rw", 8, cache);
+
+		byte[] buf = new byte[100];
+
+		System.out.println("Writing 32 pages");
+		for (int i = 0; i < 32 * 256 / buf.length; i++) {
+			for (int j = 0; j < buf.length; j++) {
+				buf[j] = (byte) (i + j);
+			}
+			craf.write(buf, 0, buf.length);
+		}
+
+		assertTrue("Cache exceeded its capacity", cache.getUsed() <= cache.getCapacity());
+		assertTrue("No pages were evicted", cache.getEvictions() > 0);
+		assertTrue("No dirty pages were written back", cache.getWriteBacks() > 0);
+
+		System.out.println("Checking data, including evicted pages");
+		craf.seek(0);
+		for (int i = 0; i < 32 * 256 / buf.length; i++) {
+			craf.readFully(buf);
+			for (int j = 0; j < buf.length; j++) {
+				assertTrue("Data mismatch at position " + (i * buf.length + j), buf[j] == (byte) (i + j));
+			}
+		}
+
+		assertTrue("Length does not include cached writes", craf.length() == 32 * 256 / buf.length * buf.length);
+
+		System.out.println("Closing file");
+		craf.close();
+
+		assertTrue("Pages remain in the cache after the file was closed", cache.getUsed() == 0);
+
+		System.out.println("Opening file");
+		craf = new CachedRandomAccessFile(file, "rw", 8, cache);
+		craf.seek(0);
+		for (int i = 0; i < 32 * 256 / buf.length; i++) {
+			craf.readFully(buf);
+			for (int j = 0; j < buf.length; j++) {
+				assertTrue("Data mismatch after reopen at position " + (i * buf.length + j), buf[j] == (byte) (i + j));
+			}
+		}
+		craf.close();
+
+		if (file.exists()) {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testWriteBackFailure() throws IOException {
+		File file = new File(filename);
+		if (file.exists()) {
+			file.delete();
+		}
+
+		System.out.println("Failing the write back of page 0 when it is evicted");
+		PageCache cache = new PageCache(2 << 8);
+		FailingFile craf = new FailingFile(file, cache);
+		craf.failures = 1;
+		byte[] buf = new byte[256];
+		for (int i = 0; i < 4; i++) {
+			fill(buf, i);
+			craf.write(buf, 0, buf.length);
+		}
+		assertTrue("Failed write back was not attempted", craf.failures == 0);
+		try {
+			craf.flush();
+			fail("Failed write back was not reported by flush");
+		} catch (IOException expected) {
+		}
+		craf.flush();
+
+		cache.setCapacity(4 << 8);
+		System.out.println("Failing the write back of page 0 when the file is closed");
+		for (int i = 0; i < 4; i++) {
+			fill(buf, i + 10);
+			craf.seek(i << 8);
+			craf.write(buf, 0, buf.length);
+		}
+		craf.failPage = 0;
+		craf.failures = 1;
+		try {
+			craf.close();
+			fail("Failed write back was not reported by close");
+		} catch (IOException expected) {
+		}
+
+		CachedRandomAccessFile check = new CachedRandomAccessFile(file, "rw", 8, cache);
+		for (int i = 0; i < 4; i++) {
+			check.seek(i << 8);
+			check.readFully(buf);
+			if (i == 0) {
+				assertTrue("Page which failed to write back was written", buf[0] != (byte) (i + 10));
+			} else {
+				assertTrue("Page " + i + " was not written back after another page failed", buf[0] == (byte) (i + 10) && buf[255] == (byte) (i + 10 + 255));
+			}
+		}
+		check.close();
+
+		if (file.exists()) {
+			file.delete();
+		}
+	}
+
+	private static void fill(byte[] buf, int start) {
+		for (int j = 0; j < buf.length; j++) {
+			buf[j] = (byte) (start + j);
+		}
+	}
+
+	private static class FailingFile extends CachedRandomAccessFile {
+		private int failPage = 0;
+		private int failures = 0;
+
+		public FailingFile(File filePath, PageCache cache) throws FileNotFoundException {
+			super(filePath, "rw", 8, cache);
+		}
+
+		@Override
+		void writePage(Page page) throws IOException {
+			if (page.index == failPage && failures > 0) {
+				failures--;
+				throw new IOException("Injected write back failure");
+			}
+			super.writePage(page);
+		}
+	}
+
 	private void assertArray(byte[] array, byte b) {
 		for (int i = 0; i < array.length; i++) {
 			assertTrue("Array not all " + b, array[i] == b);
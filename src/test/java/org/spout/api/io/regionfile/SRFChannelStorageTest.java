@@ -0,0 +1,122 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class SRFChannelStorageTest {
+	private static String filename = "channelstorage.dat";
+
+	@Test
+	public void testInterruptedRead() throws Exception {
+		File file = new File(filename);
+		if (file.exists()) {
+			file.delete();
+		}
+
+		final SRFChannelStorage storage = new SRFChannelStorage(file);
+		final byte[] data = new byte[4096];
+		new Random(1).nextBytes(data);
+		storage.write(0, data, 0, data.length);
+
+		final AtomicReference<Throwable> result = new AtomicReference<Throwable>();
+
+		// The interrupted thread closes the channel and re-opens it for the other threads
+		Thread interrupted = new Thread() {
+			@Override
+			public void run() {
+				Thread.currentThread().interrupt();
+				try {
+					storage.read(0, new byte[data.length], 0, data.length);
+					result.set(new AssertionError("Interrupted read did not throw"));
+				} catch (Throwable t) {
+					result.set(t);
+				}
+			}
+		};
+		interrupted.start();
+		interrupted.join();
+		assertTrue("Interrupted read threw " + result.get(), result.get() instanceof InterruptedIOException);
+		assertRead(storage, data);
+
+		// Another thread can see the closed channel before the interrupted thread has re-opened it
+		Field channelField = SRFChannelStorage.class.getDeclaredField("channel");
+		channelField.setAccessible(true);
+		FileChannel channel = (FileChannel) channelField.get(storage);
+		channel.close();
+		assertRead(storage, data);
+		byte[] extra = new byte[1];
+		channel = (FileChannel) channelField.get(storage);
+		channel.close();
+		storage.write(data.length, extra, 0, 1);
+		channel = (FileChannel) channelField.get(storage);
+		channel.close();
+		assertTrue("Length of re-opened file is wrong", storage.length() == data.length + 1);
+
+		storage.close();
+		try {
+			storage.read(0, new byte[1], 0, 1);
+			fail("Read from a closed storage");
+		} catch (SRFClosedException expected) {
+		}
+
+		file.delete();
+	}
+
+	private static void assertRead(final SRFChannelStorage storage, final byte[] data) throws InterruptedException {
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					byte[] read = new byte[data.length];
+					storage.read(0, read, 0, read.length);
+					assertArrayEquals("Data read after the channel was closed did not match", data, read);
+				} catch (Throwable t) {
+					failure.set(t);
+				}
+			}
+		};
+		reader.start();
+		reader.join();
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+	}
+}
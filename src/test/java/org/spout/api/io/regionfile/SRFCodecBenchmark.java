@@ -0,0 +1,200 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import org.spout.api.io.bytearrayarray.BAAReadHandler;
+
+/**
+ * Compares the load and save throughput and the on-disk size of region files using each codec.  Loads are measured both one block at a time and using a single bulk read of all blocks.<br>
+ * <br>
+ * Usage: SRFCodecBenchmark [corpus directory]<br>
+ * <br>
+ * Each file in the corpus directory is treated as one uncompressed chunk blob.  If no directory is given, synthetic chunk data is used.
+ */
+public class SRFCodecBenchmark {
+	private static final int ENTRIES = 4096;
+	private static final int SEGMENT_SIZE = 8;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws IOException {
+		List<byte[]> corpus = args.length > 0 ? loadCorpus(new File(args[0])) : createCorpus(ENTRIES);
+		long corpusSize = 0;
+		for (byte[] blob : corpus) {
+			corpusSize += blob.length;
+		}
+		System.out.println("Corpus: " + corpus.size() + " blobs, " + corpusSize + " bytes");
+
+		byte[] dictionary = SRFDeflateCodec.trainDictionary(corpus.subList(0, Math.min(corpus.size(), 256)), SRFDeflateCodec.MAX_DICTIONARY_SIZE);
+
+		String[] names = new String[] {"lz", "deflate-1", "deflate-default", "deflate-9", "deflate-1-dictionary", "deflate-default-dictionary"};
+		SRFCodec[] codecs = new SRFCodec[] {
+				new SRFLZCodec(),
+				new SRFDeflateCodec(Deflater.BEST_SPEED),
+				new SRFDeflateCodec(),
+				new SRFDeflateCodec(Deflater.BEST_COMPRESSION),
+				new SRFDeflateCodec(Deflater.BEST_SPEED, dictionary),
+				new SRFDeflateCodec(Deflater.DEFAULT_COMPRESSION, dictionary)};
+
+		File file = File.createTempFile("codecbenchmark", ".dat");
+		byte[] readBuffer = new byte[0];
+		for (byte[] blob : corpus) {
+			if (blob.length > readBuffer.length) {
+				readBuffer = new byte[blob.length];
+			}
+		}
+
+		for (int c = 0; c < codecs.length; c++) {
+			long saveTime = Long.MAX_VALUE;
+			long loadTime = Long.MAX_VALUE;
+			long bulkLoadTime = Long.MAX_VALUE;
+			long fileSize = 0;
+			for (int round = 0; round < ROUNDS; round++) {
+				file.delete();
+				SimpleRegionFile srf = new SimpleRegionFile(file, SEGMENT_SIZE, ENTRIES, 120000, SRFStorageType.CACHED, codecs[c]);
+				long start = System.nanoTime();
+				for (int i = 0; i < corpus.size(); i++) {
+					OutputStream out = srf.getOutputStream(i % ENTRIES);
+					out.write(corpus.get(i));
+					out.close();
+				}
+				saveTime = Math.min(saveTime, System.nanoTime() - start);
+				srf.attemptClose();
+				fileSize = file.length();
+
+				srf = new SimpleRegionFile(file, SEGMENT_SIZE, ENTRIES, 120000, SRFStorageType.CACHED, codecs[c]);
+				start = System.nanoTime();
+				for (int i = Math.max(0, corpus.size() - ENTRIES); i < corpus.size(); i++) {
+					InputStream in = srf.getInputStream(i % ENTRIES);
+					new DataInputStream(in).readFully(readBuffer, 0, corpus.get(i).length);
+					in.close();
+				}
+				loadTime = Math.min(loadTime, System.nanoTime() - start);
+				srf.attemptClose();
+
+				srf = new SimpleRegionFile(file, SEGMENT_SIZE, ENTRIES, 120000, SRFStorageType.CACHED, codecs[c]);
+				int[] indices = new int[Math.min(ENTRIES, corpus.size())];
+				for (int i = 0; i < indices.length; i++) {
+					indices[i] = i;
+				}
+				final AtomicLong bulkBytes = new AtomicLong(0);
+				start = System.nanoTime();
+				srf.readBlocks(indices, new BAAReadHandler() {
+					@Override
+					public void blockRead(int i, InputStream in) {
+						if (in != null) {
+							try {
+								bulkBytes.addAndGet(in.skip(Integer.MAX_VALUE));
+							} catch (IOException e) {
+								throw new RuntimeException(e);
+							}
+						}
+					}
+				});
+				bulkLoadTime = Math.min(bulkLoadTime, System.nanoTime() - start);
+				srf.attemptClose();
+			}
+			long loadSize = 0;
+			for (int i = Math.max(0, corpus.size() - ENTRIES); i < corpus.size(); i++) {
+				loadSize += corpus.get(i).length;
+			}
+			System.out.println(String.format("%-28s save %8.1f MB/s   load %8.1f MB/s   bulk load %8.1f MB/s   file size %10d bytes", names[c], mbPerSecond(corpusSize, saveTime), mbPerSecond(loadSize, loadTime), mbPerSecond(loadSize, bulkLoadTime), fileSize));
+		}
+		file.delete();
+	}
+
+	private static double mbPerSecond(long bytes, long nanos) {
+		return (bytes / (1024.0 * 1024.0)) / (nanos / 1000000000.0);
+	}
+
+	private static List<byte[]> loadCorpus(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			throw new IOException("Unable to list corpus directory " + dir);
+		}
+		List<byte[]> corpus = new ArrayList<byte[]>();
+		for (File f : files) {
+			if (!f.isFile()) {
+				continue;
+			}
+			byte[] blob = new byte[(int) f.length()];
+			DataInputStream in = new DataInputStream(new FileInputStream(f));
+			try {
+				in.readFully(blob);
+			} finally {
+				in.close();
+			}
+			corpus.add(blob);
+		}
+		return corpus;
+	}
+
+	/**
+	 * Creates chunk-like data: 16x16x16 short block ids and data, mostly made up of large uniform layers with some scattered ores
+	 */
+	private static List<byte[]> createCorpus(int count) {
+		Random r = new Random(1);
+		List<byte[]> corpus = new ArrayList<byte[]>();
+		for (int c = 0; c < count; c++) {
+			byte[] blob = new byte[4096 * 4];
+			int surface = r.nextInt(24) - 4;
+			for (int y = 0; y < 16; y++) {
+				for (int i = 0; i < 256; i++) {
+					int index = ((y << 8) + i) << 1;
+					short id;
+					if (y > surface) {
+						id = 0;
+					} else if (y == surface) {
+						id = 2;
+					} else if (r.nextInt(64) == 0) {
+						id = (short) (14 + r.nextInt(3));
+					} else {
+						id = (short) (y > surface - 3 ? 3 : 1);
+					}
+					blob[index] = (byte) (id >> 8);
+					blob[index + 1] = (byte) id;
+					if (r.nextInt(32) == 0) {
+						blob[8192 + index + 1] = (byte) r.nextInt(16);
+					}
+				}
+			}
+			corpus.add(blob);
+		}
+		return corpus;
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SRFCodecTest {
+
+	@Test
+	public void testLZ() throws IOException {
+		SRFCodec codec = new SRFLZCodec();
+		Random r = new Random();
+
+		System.out.println("Checking short blocks");
+
+		for (int length = 0; length < 40; length++) {
+			byte[] data = new byte[length];
+			r.nextBytes(data);
+			checkRoundTrip(codec, data);
+			checkRoundTrip(codec, new byte[length]);
+		}
+
+		System.out.println("Checking long literal runs and matches");
+
+		byte[] random = new byte[100000];
+		r.nextBytes(random);
+		checkRoundTrip(codec, random);
+		checkRoundTrip(codec, new byte[100000]);
+
+		byte[] repeating = new byte[100000];
+		for (int i = 0; i < repeating.length; i++) {
+			repeating[i] = (byte) (i % 7);
+		}
+		byte[] compressed = checkRoundTrip(codec, repeating);
+		assertTrue("Repeating data was not compressed", compressed.length < repeating.length / 50);
+
+		for (int i = 0; i < 20; i++) {
+			checkRoundTrip(codec, createFakeChunk(32768, 0.3F * r.nextFloat()));
+		}
+
+		System.out.println("Checking that corrupt blocks are detected");
+
+		byte[] data = createFakeChunk(32768, 0.1F);
+		compressed = compress(codec, data);
+		for (int i = 0; i < 200; i++) {
+			byte[] corrupt = compressed.clone();
+			corrupt[4 + r.nextInt(corrupt.length - 4)] ^= 1 + r.nextInt(255);
+			try {
+				decompress(codec, corrupt, data.length);
+			} catch (SRFException e) {
+				// expected, corruption is not always detectable
+			}
+		}
+		boolean exceptionThrown = false;
+		try {
+			decompress(codec, Arrays.copyOf(compressed, compressed.length - 1), data.length);
+		} catch (SRFException e) {
+			exceptionThrown = true;
+		}
+		assertTrue("No exception thrown for a truncated block", exceptionThrown);
+	}
+
+	@Test
+	public void testDeflateDictionary() throws IOException {
+		List<byte[]> samples = new ArrayList<byte[]>();
+		byte[] common = createFakeChunk(2048, 0.5F);
+		Random r = new Random();
+		for (int i = 0; i < 32; i++) {
+			byte[] sample = createFakeChunk(4096, 0.1F);
+			System.arraycopy(common, 0, sample, r.nextInt(2048), 2048);
+			samples.add(sample);
+		}
+
+		byte[] dictionary = SRFDeflateCodec.trainDictionary(samples, 4096);
+		assertTrue("Dictionary is larger than requested", dictionary.length <= 4096);
+
+		SRFDeflateCodec plain = new SRFDeflateCodec(6);
+		SRFDeflateCodec withDictionary = new SRFDeflateCodec(6, dictionary);
+		assertTrue("Dictionary id not set", withDictionary.getParameter() != 0);
+
+		int plainSize = 0;
+		int dictionarySize = 0;
+		for (byte[] sample : samples) {
+			plainSize += checkRoundTrip(plain, sample).length;
+			dictionarySize += checkRoundTrip(withDictionary, sample).length;
+		}
+		System.out.println("Compressed size without dictionary " + plainSize + ", with dictionary " + dictionarySize);
+		assertTrue("Dictionary did not improve compression", dictionarySize < plainSize);
+
+		boolean exceptionThrown = false;
+		try {
+			decompress(plain, compress(withDictionary, samples.get(0)), samples.get(0).length);
+		} catch (SRFException e) {
+			exceptionThrown = true;
+		}
+		assertTrue("No exception thrown when reading a block without its dictionary", exceptionThrown);
+	}
+
+	@Test
+	public void testDecompressToBuffer() throws IOException {
+		byte[] dictionary = createFakeChunk(1024, 0.5F);
+		SRFCodec[] codecs = new SRFCodec[] {new SRFDeflateCodec(), new SRFDeflateCodec(6, dictionary), new SRFLZCodec()};
+		SRFCodecPool pool = SRFCodecPool.getInstance();
+		long created = pool.getCreated();
+
+		for (SRFCodec codec : codecs) {
+			for (int length : new int[] {0, 1, 4096, 32768, 100000}) {
+				byte[] data = createFakeChunk(length, 0.2F);
+				if (length > 0) {
+					System.arraycopy(dictionary, 0, data, 0, Math.min(length, dictionary.length));
+				}
+				byte[] compressed = compress(codec, data);
+
+				ByteBuffer heap = ByteBuffer.allocate(length + 20);
+				heap.position(10);
+				ByteBuffer slice = heap.slice();
+				slice.position(3);
+				checkDecompress(codec, compressed, data, slice, 3);
+
+				ByteBuffer direct = ByteBuffer.allocateDirect(length + 20);
+				direct.position(7);
+				checkDecompress(codec, compressed, data, direct, 7);
+
+				checkDecompress(codec, compressed, data, ByteBuffer.allocate(length), 0);
+
+				if (length > 0) {
+					boolean exceptionThrown = false;
+					try {
+						codec.decompress(compressed, 0, compressed.length, ByteBuffer.allocate(length - 1));
+					} catch (SRFException e) {
+						exceptionThrown = true;
+					}
+					assertTrue("No exception thrown when the destination buffer was too small", exceptionThrown);
+				}
+			}
+		}
+
+		System.out.println("Codec pool created " + (pool.getCreated() - created) + " objects");
+		for (int i = 0; i < 10; i++) {
+			checkRoundTrip(codecs[0], createFakeChunk(4096, 0.2F));
+		}
+		assertTrue("Codec pool did not reuse inflaters and deflaters", pool.getReused() > 0);
+	}
+
+	private static void checkDecompress(SRFCodec codec, byte[] compressed, byte[] data, ByteBuffer dst, int position) throws IOException {
+		assertEquals("Incorrect decompressed length", data.length, codec.decompress(compressed, 0, compressed.length, dst));
+		assertEquals("Buffer position not advanced", position + data.length, dst.position());
+		byte[] result = new byte[data.length];
+		dst.position(position);
+		dst.get(result);
+		assertArrayEquals("Decompressed data did not match", data, result);
+	}
+
+	private static byte[] checkRoundTrip(SRFCodec codec, byte[] data) throws IOException {
+		byte[] compressed = compress(codec, data);
+		assertArrayEquals("Decompressed data did not match", data, decompress(codec, compressed, data.length));
+		return compressed;
+	}
+
+	private static byte[] compress(SRFCodec codec, byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream out = codec.getOutputStream(bytes);
+		out.write(data);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] decompress(SRFCodec codec, byte[] compressed, int length) throws IOException {
+		InputStream in = codec.getInputStream(compressed, 0, compressed.length);
+		byte[] data = new byte[length];
+		new DataInputStream(in).readFully(data);
+		assertTrue("Decompressed data was too long", in.read() == -1);
+		return data;
+	}
+
+	private static byte[] createFakeChunk(int bufferSize, float nonZero) {
+		byte[] buffer = new byte[bufferSize];
+
+		int nonZeroBytes = (int) (nonZero * bufferSize);
+
+		Random r = new Random();
+
+		for (int i = 0; i < nonZeroBytes; i++) {
+			buffer[(r.nextInt() & 0x7FFFFFFF) % bufferSize] = (byte) r.nextInt();
+		}
+
+		return buffer;
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A storage wrapper which simulates a crash after a given number of writes.<br>
+ * <br>
+ * Writes are held in memory until the storage is forced, like an operating system write cache.  When the crash occurs, each write which has not been forced is either lost, fully written or partly written, in a random order.  All later operations fail.<br>
+ * <br>
+ * Partial writes are split on sector boundaries, since a disk writes each sector atomically.
+ */
+public class SRFFaultInjectionStorage implements SRFStorage {
+
+	private static final int SECTOR_SIZE = 512;
+
+	private final SRFStorage storage;
+	private final Random random;
+	private final List<Write> unforced = new ArrayList<Write>();
+	private int writesUntilCrash;
+	private boolean crashed = false;
+	private long length;
+
+	public SRFFaultInjectionStorage(SRFStorage storage, int writesUntilCrash, Random random) throws IOException {
+		this.storage = storage;
+		this.writesUntilCrash = writesUntilCrash;
+		this.random = random;
+		this.length = storage.length();
+	}
+
+	@Override
+	public synchronized long length() throws IOException {
+		checkCrashed();
+		return length;
+	}
+
+	@Override
+	public synchronized void read(long position, byte[] b, int off, int len) throws IOException {
+		checkCrashed();
+		if (position + len > length) {
+			throw new EOFException("End of file reached");
+		}
+		for (int i = off; i < off + len; i++) {
+			b[i] = 0;
+		}
+		int stored = (int) Math.max(0, Math.min(len, storage.length() - position));
+		if (stored > 0) {
+			storage.read(position, b, off, stored);
+		}
+		for (Write write : unforced) {
+			long start = Math.max(position, write.position);
+			long end = Math.min(position + len, write.position + write.data.length);
+			for (long p = start; p < end; p++) {
+				b[(int) (off + p - position)] = write.data[(int) (p - write.position)];
+			}
+		}
+	}
+
+	@Override
+	public synchronized void write(long position, byte[] b, int off, int len) throws IOException {
+		checkCrashed();
+		if (writesUntilCrash-- <= 0) {
+			crash();
+			throw new IOException("Simulated crash");
+		}
+		byte[] data = new byte[len];
+		System.arraycopy(b, off, data, 0, len);
+		unforced.add(new Write(position, data));
+		length = Math.max(length, position + len);
+	}
+
+	@Override
+	public synchronized void force() throws IOException {
+		checkCrashed();
+		for (Write write : unforced) {
+			storage.write(write.position, write.data, 0, write.data.length);
+		}
+		unforced.clear();
+		storage.force();
+	}
+
+	@Override
+	public synchronized void truncate(long length) throws IOException {
+		force();
+		storage.truncate(length);
+		this.length = Math.min(this.length, length);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (!crashed) {
+			force();
+			storage.close();
+		}
+	}
+
+	/**
+	 * Gets if the simulated crash has occurred
+	 * 
+	 * @return true if crashed
+	 */
+	public synchronized boolean isCrashed() {
+		return crashed;
+	}
+
+	private void crash() throws IOException {
+		crashed = true;
+		Collections.shuffle(unforced, random);
+		for (Write write : unforced) {
+			switch (random.nextInt(3)) {
+				case 0:
+					break;
+				case 1:
+					storage.write(write.position, write.data, 0, write.data.length);
+					break;
+				default:
+					// Each sector of the write is either written or lost
+					int off = 0;
+					while (off < write.data.length) {
+						int len = (int) Math.min(write.data.length - off, SECTOR_SIZE - ((write.position + off) % SECTOR_SIZE));
+						if (random.nextBoolean()) {
+							storage.write(write.position + off, write.data, off, len);
+						}
+						off += len;
+					}
+			}
+		}
+		unforced.clear();
+		storage.close();
+	}
+
+	private void checkCrashed() throws IOException {
+		if (crashed) {
+			throw new IOException("Storage has crashed");
+		}
+	}
+
+	private static class Write {
+		private final long position;
+		private final byte[] data;
+
+		public Write(long position, byte[] data) {
+			this.position = position;
+			this.data = data;
+		}
+	}
+}
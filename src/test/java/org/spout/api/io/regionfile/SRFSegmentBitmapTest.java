@@ -0,0 +1,150 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SRFSegmentBitmapTest {
+
+	@Test
+	public void test() {
+		SRFSegmentBitmap bitmap = new SRFSegmentBitmap();
+		boolean[] expected = new boolean[200000];
+		Random r = new Random();
+
+		System.out.println("Randomly reserving and releasing segments");
+
+		for (int i = 0; i < 20000; i++) {
+			int start = r.nextInt(expected.length - 300);
+			int length = r.nextInt(300);
+			if (r.nextBoolean()) {
+				int reserved = bitmap.reserve(start, length);
+				int firstUsed = start;
+				while (firstUsed < start + length && !expected[firstUsed]) {
+					firstUsed++;
+				}
+				assertEquals("Reserve returned the wrong number of free segments", firstUsed - start, reserved);
+				if (reserved == length) {
+					for (int j = start; j < start + length; j++) {
+						expected[j] = true;
+					}
+				}
+			} else {
+				boolean allUsed = true;
+				for (int j = start; j < start + length; j++) {
+					allUsed &= expected[j];
+					expected[j] = false;
+				}
+				assertEquals("Release returned the wrong result", allUsed, bitmap.release(start, length));
+			}
+		}
+
+		System.out.println("Checking bitmap contents and searches");
+
+		int count = 0;
+		int last = -1;
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("Bitmap did not match expected value for segment " + i, expected[i], bitmap.get(i));
+			if (expected[i]) {
+				count++;
+				last = i;
+			}
+		}
+		assertEquals("Bitmap count mismatch", count, bitmap.count());
+		assertEquals("Last used segment mismatch", last, bitmap.lastUsed());
+
+		for (int i = 0; i < 1000; i++) {
+			int from = r.nextInt(expected.length);
+			int length = 1 + r.nextInt(20);
+			int free = bitmap.findFree(from, length);
+			assertTrue("Free group starts before the search start", free >= from);
+			for (int j = free; j < free + length; j++) {
+				assertTrue("Free group contains a used segment", j >= expected.length || !expected[j]);
+			}
+			for (int j = from; j < free; j++) {
+				int run = 0;
+				while (j + run < free && !expected[j + run]) {
+					run++;
+				}
+				assertTrue("Earlier free group was missed", run < length);
+				j += run;
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrentReserve() throws InterruptedException {
+		final SRFSegmentBitmap bitmap = new SRFSegmentBitmap();
+		final int[] owner = new int[100000];
+		final Thread[] threads = new Thread[4];
+		final boolean[] failed = new boolean[threads.length];
+
+		System.out.println("Reserving segments concurrently");
+
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t + 1;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random();
+					for (int i = 0; i < 5000; i++) {
+						int length = 1 + r.nextInt(8);
+						int start = bitmap.findFree(0, length);
+						if (start + length > owner.length) {
+							return;
+						}
+						if (bitmap.reserve(start, length) == length) {
+							for (int j = start; j < start + length; j++) {
+								if (owner[j] != 0) {
+									failed[id - 1] = true;
+								}
+								owner[j] = id;
+							}
+						}
+					}
+				}
+			};
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		for (boolean f : failed) {
+			assertTrue("Segment reserved by more than one thread", !f);
+		}
+		for (int i = 0; i < owner.length; i++) {
+			assertEquals("Reserved segment not set in bitmap", owner[i] != 0, bitmap.get(i));
+		}
+	}
+}
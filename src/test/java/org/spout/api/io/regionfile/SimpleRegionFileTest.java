@@ -28,17 +28,30 @@ package org.spout.api.io.regionfile;
 
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Collections;
 import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.junit.Test;
 
 import org.spout.api.io.bytearrayarray.BAAClosedException;
+import org.spout.api.io.bytearrayarray.BAAReadHandler;
 import org.spout.api.io.bytearrayarray.ByteArrayArray;
 
 public class SimpleRegionFileTest {
@@ -163,6 +176,569 @@ public class SimpleRegionFileTest {
 		file.delete();
 	}
 
+	@Test
+	public void testChannelStorage() throws Exception {
+		File file = new File(filename);
+		if (file.exists()) {
+			file.delete();
+		}
+
+		srf = new SimpleRegionFile(file, 9, desiredEntries, 120000, SRFStorageType.CHANNEL);
+
+		Random r = new Random();
+
+		System.out.println("Randomly reading and writing to the file using channel storage");
+
+		for (int i = 0; i < desiredEntries * 2; i++) {
+			int entry = (r.nextInt() & 0x7FFFFFFF) % desiredEntries;
+			assertTrue("Data read from channel store did not match written data", checkEntryMatch(entry));
+			entry = (r.nextInt() & 0x7FFFFFFF) % desiredEntries;
+			updateEntry(entry, createFakeChunk(chunkBlocks << 3, 0.15F * r.nextFloat()));
+		}
+
+		System.out.println("Reading and writing concurrently from multiple threads");
+
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		final Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = offset; i < desiredEntries / 2; i += threads.length) {
+							if (!checkEntryMatch(i)) {
+								failed.set(true);
+							}
+						}
+					} catch (IOException e) {
+						failed.set(true);
+					}
+				}
+			};
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (int i = 0; i < desiredEntries / 4; i++) {
+			int entry = desiredEntries / 2 + (r.nextInt() & 0x7FFFFFFF) % (desiredEntries / 2);
+			updateEntry(entry, createFakeChunk(chunkBlocks << 3, 0.15F * r.nextFloat()));
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertTrue("Concurrent read from channel store did not match written data", !failed.get());
+
+		assertTrue("Unable to close channel store", srf.attemptClose());
+
+		System.out.println("Opening file again with cached storage to check the file format is shared");
+
+		srf = new SimpleRegionFile(file, 9, desiredEntries);
+
+		for (int i = 0; i < desiredEntries; i++) {
+			assertTrue("Data written by channel store did not match data read by cached store", checkEntryMatch(i));
+		}
+
+		assertTrue("Unable to close file", srf.attemptClose());
+
+		file.delete();
+	}
+
+	@Test
+	public void testCodecs() throws IOException {
+		File file = new File(filename);
+		Random r = new Random();
+
+		byte[][] samples = new byte[16][];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = createFakeChunk(chunkBlocks << 3, 0.05F);
+		}
+		byte[] dictionary = SRFDeflateCodec.trainDictionary(Arrays.asList(samples), 4096);
+
+		SRFCodec[] codecs = new SRFCodec[] {new SRFLZCodec(), new SRFDeflateCodec(1), new SRFDeflateCodec(9, dictionary)};
+
+		for (SRFCodec codec : codecs) {
+			if (file.exists()) {
+				file.delete();
+			}
+			dataCache = new byte[desiredEntries][];
+
+			System.out.println("Randomly reading and writing to the file using codec " + codec.getClass().getSimpleName());
+
+			srf = new SimpleRegionFile(file, 9, desiredEntries, 120000, SRFStorageType.CACHED, codec);
+			for (int i = 0; i < desiredEntries * 2; i++) {
+				int entry = (r.nextInt() & 0x7FFFFFFF) % desiredEntries;
+				assertTrue("Data read from store did not match written data", checkEntryMatch(entry));
+				entry = (r.nextInt() & 0x7FFFFFFF) % desiredEntries;
+				updateEntry(entry, createFakeChunk(chunkBlocks << 3, 0.15F * r.nextFloat()));
+			}
+			assertTrue("Unable to close file", srf.attemptClose());
+
+			System.out.println("Opening file again without specifying the codec");
+
+			boolean exceptionThrown = false;
+			try {
+				srf = new SimpleRegionFile(file, 9, desiredEntries);
+			} catch (SRFException e) {
+				exceptionThrown = true;
+			}
+
+			if (codec.getParameter() != 0) {
+				assertTrue("No exception thrown when opening a file without its preset dictionary", exceptionThrown);
+				srf = new SimpleRegionFile(file, 9, desiredEntries, 120000, SRFStorageType.CACHED, new SRFDeflateCodec(1, dictionary));
+			} else {
+				assertTrue("Exception thrown when opening a file using the default codec", !exceptionThrown);
+			}
+
+			assertTrue("Codec id was not read from the header", ((SimpleRegionFile) srf).getCodec().getId() == codec.getId());
+			for (int i = 0; i < desiredEntries; i++) {
+				assertTrue("Data read after reopening did not match written data", checkEntryMatch(i));
+			}
+			assertTrue("Unable to close file", srf.attemptClose());
+		}
+
+		file.delete();
+	}
+
+	@Test
+	public void testDirectRead() throws IOException {
+		File file = new File(filename);
+		Random r = new Random();
+
+		SRFCodec[] codecs = new SRFCodec[] {new SRFLZCodec(), new SRFDeflateCodec()};
+
+		for (SRFCodec codec : codecs) {
+			if (file.exists()) {
+				file.delete();
+			}
+
+			System.out.println("Reading blocks directly into arrays using codec " + codec.getClass().getSimpleName());
+
+			SimpleRegionFile regionFile = new SimpleRegionFile(file, 9, desiredEntries, 120000, SRFStorageType.CACHED, codec, true);
+			short[][] written = new short[desiredEntries][];
+			for (int i = 0; i < desiredEntries; i += 3) {
+				short[] data = new short[chunkBlocks << 2];
+				for (int j = 0; j < data.length; j++) {
+					data[j] = r.nextInt(4) == 0 ? (short) r.nextInt() : (short) (j & 0xF);
+				}
+				DataOutputStream out = new DataOutputStream(regionFile.getOutputStream(i));
+				for (short s : data) {
+					out.writeShort(s);
+				}
+				out.close();
+				written[i] = data;
+			}
+
+			short[] shorts = new short[(chunkBlocks << 2) + 1];
+			ByteBuffer buffer = ByteBuffer.allocateDirect(chunkBlocks << 3);
+			for (int i = 0; i < desiredEntries; i++) {
+				buffer.clear();
+				if (written[i] == null) {
+					assertTrue("Empty block did not return -1", regionFile.read(i, shorts, 1, shorts.length - 1) == -1);
+					assertTrue("Empty block did not return -1", regionFile.read(i, buffer) == -1);
+					continue;
+				}
+				assertTrue("Incorrect number of shorts read", regionFile.read(i, shorts, 1, shorts.length - 1) == written[i].length);
+				assertTrue("Shorts read did not match written data", Arrays.equals(written[i], Arrays.copyOfRange(shorts, 1, shorts.length)));
+				assertTrue("Incorrect number of bytes read", regionFile.read(i, buffer) == chunkBlocks << 3);
+				buffer.flip();
+				for (short s : written[i]) {
+					assertTrue("Bytes read did not match written data", buffer.getShort() == s);
+				}
+			}
+
+			boolean exceptionThrown = false;
+			try {
+				regionFile.read(0, shorts, 0, chunkBlocks);
+			} catch (SRFException e) {
+				exceptionThrown = true;
+			}
+			assertTrue("No exception thrown when the destination array was too small", exceptionThrown);
+
+			assertTrue("Unable to close file", regionFile.attemptClose());
+		}
+
+		file.delete();
+	}
+
+	@Test
+	public void testBulkReadWrite() throws IOException {
+		File file = new File(filename);
+		Random r = new Random();
+
+		for (boolean crashSafe : new boolean[] {false, true}) {
+			if (file.exists()) {
+				file.delete();
+			}
+			dataCache = new byte[desiredEntries][];
+
+			System.out.println("Writing and reading blocks in bulk, crash safe " + crashSafe);
+
+			SimpleRegionFile regionFile = new SimpleRegionFile(file, 9, desiredEntries, 120000, SRFStorageType.CACHED, SRFCodec.getDefaultCodec(), crashSafe);
+			srf = regionFile;
+
+			List<Integer> shuffled = new ArrayList<Integer>();
+			for (int i = 0; i < desiredEntries; i++) {
+				shuffled.add(i);
+			}
+			for (int pass = 0; pass < 3; pass++) {
+				Collections.shuffle(shuffled, r);
+				int count = desiredEntries * 3 / 4;
+				int[] indices = new int[count];
+				byte[][] data = new byte[count][];
+				for (int j = 0; j < count; j++) {
+					indices[j] = shuffled.get(j);
+					data[j] = createFakeChunk(r.nextInt(chunkBlocks << 4) + 1, 0.2F * r.nextFloat());
+					dataCache[indices[j]] = data[j];
+				}
+				regionFile.writeBlocks(indices, data);
+				for (int i = 0; i < desiredEntries; i++) {
+					assertTrue("Data read from store did not match bulk written data", checkEntryMatch(i));
+				}
+			}
+
+			Collections.shuffle(shuffled, r);
+			int[] indices = new int[desiredEntries];
+			for (int j = 0; j < desiredEntries; j++) {
+				indices[j] = shuffled.get(j);
+			}
+			final AtomicReferenceArray<byte[]> read = new AtomicReferenceArray<byte[]>(desiredEntries);
+			final AtomicInteger calls = new AtomicInteger(0);
+			final AtomicBoolean failed = new AtomicBoolean(false);
+			regionFile.readBlocks(indices, new BAAReadHandler() {
+				@Override
+				public void blockRead(int i, InputStream in) {
+					calls.incrementAndGet();
+					if (in == null) {
+						return;
+					}
+					try {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						int b;
+						while ((b = in.read()) != -1) {
+							out.write(b);
+						}
+						read.set(i, out.toByteArray());
+					} catch (IOException e) {
+						failed.set(true);
+					}
+				}
+			});
+			assertTrue("Handler was not called once for each block", calls.get() == desiredEntries && !failed.get());
+			for (int i = 0; i < desiredEntries; i++) {
+				if (dataCache[i] == null) {
+					assertTrue("Data returned for an empty block", read.get(i) == null);
+				} else {
+					assertTrue("Bulk read data did not match written data", Arrays.equals(dataCache[i], read.get(i)));
+				}
+			}
+
+			boolean exceptionThrown = false;
+			try {
+				regionFile.readBlocks(new int[] {1, 2, 1}, new BAAReadHandler() {
+					@Override
+					public void blockRead(int i, InputStream in) {
+					}
+				});
+			} catch (SRFException e) {
+				exceptionThrown = true;
+			}
+			assertTrue("No exception thrown for a repeated block index", exceptionThrown);
+
+			assertTrue("Unable to close file", regionFile.attemptClose());
+		}
+
+		file.delete();
+	}
+
+	@Test
+	public void testVersion1() throws IOException {
+		File file = new File(filename);
+		if (file.exists()) {
+			file.delete();
+		}
+
+		System.out.println("Creating a version 1 file");
+
+		int segmentSize = 9;
+		int headerSegments = ((12 + (desiredEntries << 3) - 1) >> segmentSize) + 1;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.writeInt(1);
+		raf.writeInt(segmentSize);
+		raf.writeInt(desiredEntries);
+		int segment = headerSegments;
+		for (int i = 0; i < desiredEntries; i++) {
+			dataCache[i] = createFakeChunk(chunkBlocks << 3, 0.15F);
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			DeflaterOutputStream out = new DeflaterOutputStream(compressed);
+			out.write(dataCache[i]);
+			out.close();
+			byte[] block = compressed.toByteArray();
+
+			raf.seek(12 + (i << 3));
+			raf.writeInt(segment);
+			raf.writeInt(block.length);
+			raf.seek(((long) segment) << segmentSize);
+			raf.write(block);
+			segment += ((block.length - 1) >> segmentSize) + 1;
+		}
+		raf.close();
+
+		System.out.println("Reading and writing to the version 1 file");
+
+		srf = new SimpleRegionFile(file, segmentSize, desiredEntries, 120000, SRFStorageType.CACHED, new SRFLZCodec());
+		assertTrue("Version 1 file was not read using deflate", ((SimpleRegionFile) srf).getCodec().getId() == SRFCodec.DEFLATE);
+		for (int i = 0; i < desiredEntries; i++) {
+			assertTrue("Data read from version 1 file did not match written data", checkEntryMatch(i));
+		}
+		Random r = new Random();
+		for (int i = 0; i < desiredEntries; i++) {
+			int entry = (r.nextInt() & 0x7FFFFFFF) % desiredEntries;
+			updateEntry(entry, createFakeChunk(chunkBlocks << 3, 0.15F * r.nextFloat()));
+		}
+		assertTrue("Unable to close file", srf.attemptClose());
+
+		srf = new SimpleRegionFile(file, segmentSize, desiredEntries);
+		for (int i = 0; i < desiredEntries; i++) {
+			assertTrue("Data read from version 1 file after reopening did not match written data", checkEntryMatch(i));
+		}
+		assertTrue("Unable to close file", srf.attemptClose());
+
+		file.delete();
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		File file = new File(filename);
+		if (file.exists()) {
+			file.delete();
+		}
+		dataCache = new byte[desiredEntries][];
+
+		srf = new SimpleRegionFile(file, 8, desiredEntries);
+		SimpleRegionFile region = (SimpleRegionFile) srf;
+
+		System.out.println("Writing blocks with random data, so that they are not compressed");
+
+		Random r = new Random();
+		for (int i = 0; i < desiredEntries; i++) {
+			byte[] data = new byte[1000 + r.nextInt(2000)];
+			r.nextBytes(data);
+			updateEntry(i, data);
+		}
+
+		assertTrue("New file is fragmented", region.getFragmentation() == 0);
+
+		System.out.println("Shrinking every other block and growing the last blocks to fragment the file");
+
+		for (int i = 0; i < desiredEntries; i += 2) {
+			updateEntry(i, new byte[0]);
+		}
+		for (int i = desiredEntries - 8; i < desiredEntries; i++) {
+			byte[] data = new byte[5000];
+			r.nextBytes(data);
+			updateEntry(i, data);
+		}
+
+		double fragmentation = region.getFragmentation();
+		int oldSegments = region.getTotalSegments();
+		System.out.println("Fragmentation before compaction " + fragmentation + ", " + oldSegments + " segments");
+		assertTrue("File was not fragmented", fragmentation > 0.2);
+
+		System.out.println("Compacting file");
+
+		int moved = region.compact();
+		fragmentation = region.getFragmentation();
+		System.out.println("Moved " + moved + " blocks, fragmentation after compaction " + fragmentation + ", " + region.getTotalSegments() + " segments");
+
+		assertTrue("No blocks moved", moved > 0);
+		assertTrue("File still fragmented after compaction", fragmentation < 0.05);
+		for (int i = 0; i < desiredEntries; i++) {
+			assertTrue("Data read after compaction did not match written data", checkEntryMatch(i));
+		}
+		for (int i = 0; i < desiredEntries; i++) {
+			byte[] data = new byte[r.nextInt(3000)];
+			r.nextBytes(data);
+			updateEntry((r.nextInt() & 0x7FFFFFFF) % desiredEntries, data);
+		}
+		assertTrue("Unable to close file", srf.attemptClose());
+		assertTrue("File was not truncated", file.length() < ((long) oldSegments) << 8);
+
+		srf = new SimpleRegionFile(file, 8, desiredEntries);
+		for (int i = 0; i < desiredEntries; i++) {
+			assertTrue("Data read after reopening compacted file did not match written data", checkEntryMatch(i));
+		}
+		assertTrue("Unable to close file", srf.attemptClose());
+
+		file.delete();
+	}
+
+	@Test
+	public void testCrashSafety() throws IOException {
+		File file = new File(filename);
+		Random r = new Random();
+		int entries = 16;
+		int crashes = 0;
+
+		System.out.println("Simulating crashes while writing to crash safe files");
+
+		for (int trial = 0; trial < 100; trial++) {
+			if (file.exists()) {
+				file.delete();
+			}
+			assertTrue("Unable to close file", new SimpleRegionFile(file, 8, entries, 120000, SRFStorageType.CHANNEL, SRFCodec.getDefaultCodec(), true).attemptClose());
+
+			List<List<byte[]>> versions = new ArrayList<List<byte[]>>();
+			for (int i = 0; i < entries; i++) {
+				versions.add(new ArrayList<byte[]>());
+				versions.get(i).add(null);
+			}
+
+			SRFFaultInjectionStorage storage = new SRFFaultInjectionStorage(new SRFChannelStorage(file), r.nextInt(150), r);
+			SimpleRegionFile region = new SimpleRegionFile(file, storage, 8, entries, 120000, SRFCodec.getDefaultCodec(), false);
+			assertTrue("File not opened in crash safe mode", region.isCrashSafe() && region.hasChecksums());
+			try {
+				for (int i = 0; i < 100; i++) {
+					int entry = r.nextInt(entries);
+					byte[] data = new byte[r.nextInt(2000)];
+					r.nextBytes(data);
+					versions.get(entry).add(data);
+					OutputStream out = region.getOutputStream(entry);
+					try {
+						out.write(data);
+					} finally {
+						out.close();
+					}
+					if (r.nextInt(10) == 0) {
+						region.sync();
+					}
+				}
+				region.attemptClose();
+			} catch (IOException e) {
+				assertTrue("Unexpected exception: " + e.getMessage(), storage.isCrashed());
+				crashes++;
+			}
+
+			srf = new SimpleRegionFile(file, 8, entries);
+			for (int i = 0; i < entries; i++) {
+				InputStream in = srf.getInputStream(i);
+				byte[] data = null;
+				if (in != null) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					int b;
+					while ((b = in.read()) != -1) {
+						bytes.write(b);
+					}
+					data = bytes.toByteArray();
+				}
+				boolean match = false;
+				for (byte[] version : versions.get(i)) {
+					match |= version == null ? data == null : data != null && Arrays.equals(version, data);
+				}
+				assertTrue("Block " + i + " did not match any version written after a crash", match);
+			}
+			assertTrue("Unable to close file", srf.attemptClose());
+		}
+
+		System.out.println("Simulated " + crashes + " crashes");
+
+		file.delete();
+	}
+
+	@Test
+	public void testVerifyAndRepair() throws IOException {
+		File file = new File(filename);
+		File repairedFile = new File("repaired_" + filename);
+		if (file.exists()) {
+			file.delete();
+		}
+		if (repairedFile.exists()) {
+			repairedFile.delete();
+		}
+		dataCache = new byte[desiredEntries][];
+
+		System.out.println("Verifying a valid file");
+
+		srf = new SimpleRegionFile(file, 8, desiredEntries, 120000, SRFStorageType.CHANNEL, SRFCodec.getDefaultCodec(), true);
+		long inflated = 0;
+		for (int i = 0; i < desiredEntries; i++) {
+			byte[] data = createFakeChunk(1000 + 16 * i, 0.15F);
+			updateEntry(i, data);
+			inflated += data.length;
+		}
+		long corruptPosition = ((SimpleRegionFile) srf).getBlockPosition(3) + 10;
+		assertTrue("Unable to close file", srf.attemptClose());
+
+		SRFVerifier verifier = new SRFVerifier();
+		SRFVerifyResult result = verifier.verify(file);
+		System.out.println(result);
+		assertTrue("Valid file failed verification", result.isValid());
+		assertTrue("Wrong number of blocks verified", result.getBlocks() == desiredEntries);
+		assertTrue("Wrong number of bytes inflated", result.getInflatedBytes() == inflated);
+		assertTrue("File not detected as crash safe", result.isCrashSafe() && result.hasChecksums());
+
+		System.out.println("Corrupting a block and making two blocks overlap");
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(corruptPosition);
+		int b = raf.read();
+		raf.seek(corruptPosition);
+		raf.write(b ^ 0xFF);
+		int fatOffset = SimpleRegionFile.getFATOffset(SimpleRegionFile.VERSION);
+		raf.seek(fatOffset + (6 << 3));
+		int start = raf.readInt();
+		raf.seek(fatOffset + (5 << 3));
+		raf.writeInt(start);
+		raf.close();
+
+		boolean thrown = false;
+		try {
+			new SimpleRegionFile(file, 8, desiredEntries);
+		} catch (SRFException e) {
+			thrown = true;
+		}
+		assertTrue("Overlapping blocks not detected when opening file", thrown);
+
+		result = verifier.verify(file);
+		System.out.println(result);
+		assertTrue("Corrupt file passed verification", !result.isValid());
+		assertTrue("Wrong bad blocks detected", Arrays.equals(new int[] {3, 5}, result.getBadBlocks()));
+		boolean overlap = false;
+		for (String error : result.getErrors()) {
+			overlap |= error.contains("overlap");
+		}
+		assertTrue("Overlapping blocks not reported", overlap);
+
+		System.out.println("Repairing the file");
+
+		result = verifier.repair(file, repairedFile);
+		System.out.println(result);
+		assertTrue("Repaired file not written", repairedFile.equals(result.getRepairedFile()));
+		assertTrue("Wrong number of blocks repaired", result.getRepairedBlocks() == desiredEntries - 2);
+
+		result = verifier.repair(file, repairedFile);
+		assertTrue("Existing repair target was overwritten", result.getRepairedFile() == null);
+
+		List<SRFVerifyResult> results = verifier.verify(Arrays.asList(file, repairedFile));
+		assertTrue("Corrupt file passed parallel verification", !results.get(0).isValid());
+		assertTrue("Repaired file failed parallel verification", results.get(1).isValid());
+
+		srf = new SimpleRegionFile(repairedFile, 8, desiredEntries);
+		assertTrue("Repaired file is not crash safe", ((SimpleRegionFile) srf).isCrashSafe());
+		assertTrue("Repaired file is fragmented", ((SimpleRegionFile) srf).getFragmentation() == 0);
+		assertTrue("Bad block not empty in repaired file", srf.getInputStream(3) == null && srf.getInputStream(5) == null);
+		dataCache[3] = null;
+		dataCache[5] = null;
+		for (int i = 0; i < desiredEntries; i++) {
+			assertTrue("Data read from repaired file did not match written data", checkEntryMatch(i));
+		}
+		assertTrue("Unable to close file", srf.attemptClose());
+
+		file.delete();
+		repairedFile.delete();
+	}
+
 	private boolean checkEntryMatch(int entry) throws IOException {
 		byte[] expected = dataCache[entry];
 		if (expected == null) {
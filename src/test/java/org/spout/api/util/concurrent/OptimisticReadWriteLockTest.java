@@ -26,8 +26,13 @@
  */
 package org.spout.api.util.concurrent;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Test;
 
 public class OptimisticReadWriteLockTest {
@@ -81,6 +86,97 @@ public class OptimisticReadWriteLockTest {
 
 	}
 
+	@Test
+	public void testValidate() {
+		int seq = lock.readLock();
+		assertTrue("Validate failed with no write", lock.validate(seq));
+		int write = lock.writeLock();
+		assertFalse("Validate succeeded while write locked", lock.validate(seq));
+		assertFalse("Validate succeeded for UNSTABLE", lock.validate(OptimisticReadWriteLock.UNSTABLE));
+		lock.writeUnlock(write);
+		assertFalse("Validate succeeded after a write", lock.validate(seq));
+	}
+
+	@Test
+	public void testConvert() {
+		int seq = lock.readLock();
+		int write = lock.tryConvertToWriteLock(seq);
+		assertEquals("Convert failed with no write", seq, write);
+		assertEquals("Convert succeeded while write locked", OptimisticReadWriteLock.UNSTABLE, lock.tryConvertToWriteLock(seq));
+		lock.writeUnlock(write);
+		assertEquals("Convert succeeded after a write", OptimisticReadWriteLock.UNSTABLE, lock.tryConvertToWriteLock(seq));
+		assertTrue("Lock not released after convert", lock.readUnlock(lock.readLock()));
+	}
+
+	@Test
+	public void testWriterPreference() throws InterruptedException {
+		int first = lock.writeLock();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				lock.writeUnlock(lock.writeLock());
+			}
+		};
+		writer.start();
+		Thread.sleep(50);
+		// The writer is waiting, so the read lock must wait for its write
+		lock.writeUnlock(first);
+		int seq = lock.readLock();
+		writer.join();
+
+		assertEquals("Reader did not wait for the waiting writer", first + 4, seq);
+	}
+
+	@Test
+	public void testConcurrentValidate() throws InterruptedException {
+		// The writers keep a and b equal, readers must never validate a read where they differ
+		final AtomicInteger a = new AtomicInteger(0);
+		final AtomicInteger b = new AtomicInteger(0);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicInteger failures = new AtomicInteger(0);
+		Thread[] threads = new Thread[6];
+		for (int t = 0; t < threads.length; t++) {
+			if ((t & 1) == 0) {
+				threads[t] = new Thread() {
+					@Override
+					public void run() {
+						for (int i = 0; i < 10000; i++) {
+							int seq = lock.writeLock();
+							a.incrementAndGet();
+							b.incrementAndGet();
+							lock.writeUnlock(seq);
+						}
+					}
+				};
+			} else {
+				threads[t] = new Thread() {
+					@Override
+					public void run() {
+						while (!done.get()) {
+							int seq = lock.readLock();
+							int readA = a.get();
+							int readB = b.get();
+							if (lock.validate(seq) && readA != readB) {
+								failures.incrementAndGet();
+							}
+						}
+					}
+				};
+			}
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t += 2) {
+			threads[t].join();
+		}
+		done.set(true);
+		for (int t = 1; t < threads.length; t += 2) {
+			threads[t].join();
+		}
+
+		assertEquals("Validated reads saw a partial write", 0, failures.get());
+		assertEquals("Writes were lost", 30000, a.get());
+	}
+
 	private void readLock() {
 		System.out.println("Read locking lock");
 		seqRead = lock.readLock();
@@ -0,0 +1,137 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.util.Random;
+
+/**
+ * Compares the memory use and access speed of AtomicBlockStoreImpl and AtomicPaletteBlockStore.<br>
+ * <br>
+ * Memory use is measured by filling a large number of stores with the same chunk contents and measuring the change in heap usage.  This is not run as part of the unit tests.
+ */
+public class AtomicBlockStoreBenchmark {
+	private final static int SHIFT = 4;
+	private final static int SIZE = 1 << (3 * SHIFT);
+	private final static int STORES = 2000;
+	private final static int OPERATIONS = 4000000;
+
+	public static void main(String[] args) {
+		String[] names = {"empty", "terrain", "random"};
+		short[][] ids = new short[names.length][SIZE];
+		short[][] data = new short[names.length][SIZE];
+		Random r = new Random(1);
+		for (int i = 0; i < SIZE; i++) {
+			int y = i >> (2 * SHIFT);
+			// Layers of stone, dirt and grass with some ores, a few blocks with data and air above
+			if (y < 10) {
+				ids[1][i] = (short) (r.nextInt(50) == 0 ? 14 + r.nextInt(3) : 1);
+			} else if (y < 13) {
+				ids[1][i] = 3;
+			} else if (y == 13) {
+				ids[1][i] = 2;
+				data[1][i] = (short) (r.nextInt(20) == 0 ? r.nextInt(4) : 0);
+			}
+			ids[2][i] = (short) r.nextInt(4096);
+			data[2][i] = (short) (r.nextInt(4) == 0 ? r.nextInt(16) : 0);
+		}
+
+		for (int pass = 0; pass < 2; pass++) {
+			System.out.println(pass == 0 ? "Warming up" : "Results");
+			for (int c = 0; c < names.length; c++) {
+				long implMemory = measureMemory(false, ids[c], data[c]);
+				long paletteMemory = measureMemory(true, ids[c], data[c]);
+				double implSpeed = measureSpeed(new AtomicBlockStoreImpl(SHIFT, 10, ids[c], data[c]), ids[c], data[c]);
+				AtomicPaletteBlockStore palette = new AtomicPaletteBlockStore(SHIFT, 10, ids[c], data[c]);
+				double paletteSpeed = measureSpeed(palette, ids[c], data[c]);
+				if (pass == 1) {
+					System.out.println(String.format("%-8s impl %7d bytes %6.1f Mops/s   palette %7d bytes %6.1f Mops/s (width %d)", names[c], implMemory, implSpeed, paletteMemory, paletteSpeed, palette.getWidth()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Measures the average heap usage of a store
+	 *
+	 * @param palette true to measure AtomicPaletteBlockStore
+	 * @param ids the block ids
+	 * @param data the block data
+	 * @return the average size in bytes
+	 */
+	private static long measureMemory(boolean palette, short[] ids, short[] data) {
+		AtomicBlockStore[] stores = new AtomicBlockStore[STORES];
+		long before = usedMemory();
+		for (int i = 0; i < STORES; i++) {
+			stores[i] = palette ? new AtomicPaletteBlockStore(SHIFT, 10, ids, data) : new AtomicBlockStoreImpl(SHIFT, 10, ids, data);
+		}
+		long after = usedMemory();
+		if (stores[STORES - 1] == null) {
+			throw new IllegalStateException();
+		}
+		return (after - before) / STORES;
+	}
+
+	/**
+	 * Measures the speed of a mix of 90% reads and 10% writes
+	 *
+	 * @param store the store
+	 * @param ids the block ids
+	 * @param data the block data
+	 * @return the speed in million operations per second
+	 */
+	private static double measureSpeed(AtomicBlockStore store, short[] ids, short[] data) {
+		Random r = new Random(2);
+		int mask = (1 << SHIFT) - 1;
+		long start = System.nanoTime();
+		int total = 0;
+		for (int i = 0; i < OPERATIONS; i++) {
+			int index = r.nextInt(SIZE);
+			int x = index & mask;
+			int z = (index >> SHIFT) & mask;
+			int y = index >> (2 * SHIFT);
+			if ((i & 15) == 0) {
+				int source = r.nextInt(SIZE);
+				store.setBlock(x, y, z, ids[source], data[source]);
+			} else {
+				total += store.getFullData(x, y, z);
+			}
+		}
+		long time = System.nanoTime() - start;
+		if (total == 1) {
+			System.out.println();
+		}
+		return OPERATIONS * 1000.0 / time;
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -28,10 +28,14 @@ package org.spout.api.util.map.concurrent;
 
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
+import org.spout.api.datatable.DatatableSequenceNumber;
 import org.spout.api.material.block.BlockFullState;
+import org.spout.api.util.cuboid.CuboidShortBuffer;
 
 public class AtomicBlockStoreTest {
 	private final static int MAX_SIZE = 4096;
@@ -124,6 +128,248 @@ public class AtomicBlockStoreTest {
 		}
 	}
 
+	@Test
+	public void testUniform() {
+		System.out.println("-- Testing uniform stores --");
+
+		AtomicBlockStoreImpl empty = new AtomicBlockStoreImpl(4);
+		assertTrue("New store is not uniform", empty.isUniform());
+		assertTrue("Empty block has a sequence number", empty.getSequence(1, 2, 3) == DatatableSequenceNumber.ATOMIC);
+		short[] array = empty.getBlockIdArray();
+		for (int i = 0; i < MAX_SIZE; i++) {
+			assertTrue("Block id array for empty store is not empty", array[i] == 0);
+		}
+
+		short[] initialIds = new short[MAX_SIZE];
+		short[] initialData = new short[MAX_SIZE];
+		Arrays.fill(initialIds, (short) 5);
+		Arrays.fill(initialData, (short) 3);
+		store = new AtomicBlockStoreImpl(4, 10, initialIds, initialData);
+		assertTrue("Store created with identical blocks is not uniform", store.isUniform());
+		assertTrue("Uniform store has auxiliary entries", store.getEntries() == 0);
+		Arrays.fill(ids, (short) 5);
+		Arrays.fill(data, (short) 3);
+		checkStoreValues();
+
+		int sequence = store.getSequence(4, 5, 6);
+		assertTrue("Uniform block with data has an atomic sequence number", sequence != DatatableSequenceNumber.ATOMIC && store.testSequence(4, 5, 6, sequence));
+		set(4, 5, 6, 5, 3);
+		assertTrue("Setting a block to the uniform state expanded the store", store.isUniform());
+		assertTrue("Compare and set with incorrect expect was successful", !store.compareAndSetBlock(4, 5, 6, (short) 5, (short) 2, (short) 7, (short) 0));
+		assertTrue("Failed compare and set expanded the store", store.isUniform());
+
+		compareAndSet(4, 5, 6, (short) 7, (short) 0, true, null);
+		assertTrue("Store still uniform after setting a different block", !store.isUniform());
+		assertTrue("Sequence number unchanged after expanding the store", !store.testSequence(4, 5, 6, sequence));
+		checkStoreValues();
+
+		set(4, 5, 6, 5, 3);
+		assertTrue("Store with identical blocks does not need compression", store.needsCompression());
+		store.compress();
+		assertTrue("Store not uniform after compression", store.isUniform());
+		assertTrue("Uniform store has auxiliary entries after compression", store.getEntries() == 0);
+		checkStoreValues();
+		array = store.getDataArray();
+		for (int i = 0; i < MAX_SIZE; i++) {
+			assertTrue("Data array for uniform store is wrong", array[i] == 3);
+		}
+
+		store.release();
+		store.release();
+		set(4, 5, 6, 7, 0);
+		assertTrue("Released store not expanded by a write", !store.isUniform());
+		checkStoreValues();
+	}
+
+	@Test
+	public void testBulkWrites() {
+		System.out.println("-- Testing fill, setBlocks and replaceAll --");
+
+		store.fill(9, 3, 4, 2, 7, 5, (short) 12, (short) 4);
+		fill(2, 3, 4, 9, 7, 5, 12, 4);
+		assertTrue("Store still uniform after a partial fill", !store.isUniform());
+		assertTrue("Fill was not marked dirty as a region", store.isDirtyOverflow());
+		checkStoreValues();
+
+		store.fill(-5, 14, 14, 0, 20, 20, (short) 7, (short) 0);
+		fill(0, 14, 14, 0, 15, 15, 7, 0);
+		store.fill(16, 0, 0, 20, 15, 15, (short) 8, (short) 0);
+		checkStoreValues();
+
+		CuboidShortBuffer buffer = new CuboidShortBuffer(null, 4, 4, 4, 8, 8, 8);
+		for (int x = 4; x < 12; x++) {
+			for (int y = 4; y < 12; y++) {
+				for (int z = 4; z < 12; z++) {
+					buffer.set(x, y, z, (short) (x + y * 16 + z * 256));
+				}
+			}
+		}
+		store.setBlocks(2, 2, 2, buffer);
+		for (int x = 2; x < 10; x++) {
+			for (int y = 2; y < 10; y++) {
+				for (int z = 2; z < 10; z++) {
+					fill(x, y, z, x, y, z, buffer.get(x + 2, y + 2, z + 2), 0);
+				}
+			}
+		}
+		checkStoreValues();
+		checkStoreLeaks();
+
+		int expected = 0;
+		for (int i = 0; i < MAX_SIZE; i++) {
+			if (ids[i] == 12) {
+				ids[i] = 13;
+				expected++;
+			}
+		}
+		int replaced = store.replaceAll((short) 12, (short) 13);
+		assertTrue("Wrong number of blocks replaced, expected " + expected + " but got " + replaced, replaced == expected);
+		checkStoreValues();
+		checkStoreLeaks();
+
+		store.fill(0, 0, 0, 15, 15, 15, (short) 3, (short) 1);
+		fill(0, 0, 0, 15, 15, 15, 3, 1);
+		checkStoreValues();
+		store.compress();
+		assertTrue("Store not uniform after filling and compressing", store.isUniform());
+		assertTrue("Replace on a uniform store was wrong", store.replaceAll((short) 3, (short) 4) == MAX_SIZE);
+		fill(0, 0, 0, 15, 15, 15, 4, 1);
+		assertTrue("Replace expanded a uniform store", store.isUniform());
+		checkStoreValues();
+	}
+
+	@Test
+	public void testNoOpBulkWrites() {
+		System.out.println("-- Testing bulk writes which change nothing --");
+
+		store.resetDirtyArrays();
+		store.fill(0, 0, 0, 15, 15, 15, (short) 0, (short) 0);
+		assertTrue("Store still uniform after a no-op fill", store.isUniform());
+		assertTrue("Replace of an absent id on a uniform store was wrong", store.replaceAll((short) 5, (short) 6) == 0);
+		assertTrue("No-op writes on a uniform store marked blocks dirty", !store.isDirty() && !store.isDirtyOverflow());
+
+		store.fill(2, 3, 4, 9, 7, 5, (short) 12, (short) 4);
+		fill(2, 3, 4, 9, 7, 5, 12, 4);
+		store.resetDirtyArrays();
+
+		store.fill(2, 3, 4, 9, 7, 5, (short) 12, (short) 4);
+		assertTrue("Replace of an absent id was wrong", store.replaceAll((short) 5, (short) 6) == 0);
+		CuboidShortBuffer buffer = new CuboidShortBuffer(null, 0, 0, 0, 2, 16, 16);
+		store.setBlocks(0, 0, 0, buffer);
+		assertTrue("No-op bulk writes marked blocks dirty", !store.isDirty() && !store.isDirtyOverflow());
+		checkStoreValues();
+
+		store.fill(0, 0, 0, 15, 15, 15, (short) 0, (short) 0);
+		fill(0, 0, 0, 15, 15, 15, 0, 0);
+		assertTrue("Fill which changed blocks was not marked dirty", store.isDirty());
+		checkStoreValues();
+	}
+
+	@Test
+	public void testBulkWritesNotTorn() throws InterruptedException {
+		final int fills = 2000;
+		final AtomicBoolean running = new AtomicBoolean(true);
+
+		System.out.println("-- Reading blocks while the store is being filled --");
+
+		Thread filler = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 1; i <= fills; i++) {
+					store.fill(0, 0, 0, 15, 7, 15, (short) i, (short) (i & 1));
+				}
+				running.set(false);
+			}
+		};
+		filler.start();
+		Random rand = new Random();
+		short[] array = null;
+		while (running.get()) {
+			int state = store.getFullData(rand.nextInt(16), rand.nextInt(8), rand.nextInt(16));
+			assertTrue("Block read with a torn id and data", (BlockFullState.getId(state) & 1) == BlockFullState.getData(state));
+			array = store.getBlockIdArray(array);
+			for (int i = 1; i < MAX_SIZE / 2; i++) {
+				assertTrue("Snapshot contains a partial fill", array[i] == array[0]);
+			}
+		}
+		filler.join();
+		assertTrue("Last fill was lost", store.getBlockId(5, 5, 5) == fills);
+	}
+
+	@Test
+	public void testIncrementalCompression() throws InterruptedException {
+		System.out.println("-- Compressing the store incrementally while it is being read --");
+
+		Random rand = new Random();
+		for (int x = 0; x < 16; x++) {
+			for (int z = 0; z < 16; z++) {
+				for (int y = 0; y < 16; y++) {
+					set(x, y, z, rand.nextInt(1000), 1 + rand.nextInt(1000));
+				}
+			}
+		}
+		int fullSize = store.getSize();
+		for (int x = 0; x < 16; x++) {
+			for (int z = 0; z < 16; z++) {
+				for (int y = 0; y < 16; y++) {
+					if (y != 0 || (x & 3) != 0) {
+						set(x, y, z, 1, 0);
+					}
+				}
+			}
+		}
+		assertTrue("Sparse store does not need compression", store.needsCompression());
+
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		final short[] expectedIds = ids.clone();
+		final short[] expectedData = data.clone();
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				Random rand = new Random();
+				while (running.get()) {
+					int x = rand.nextInt(16);
+					int z = rand.nextInt(16);
+					int state = store.getFullData(x, 0, z);
+					int index = getIndex(x, 0, z);
+					if (state != BlockFullState.getPacked(expectedIds[index], expectedData[index])) {
+						failed.set(true);
+					}
+				}
+			}
+		};
+		reader.start();
+		int slices = 0;
+		while (store.compressIncremental(256)) {
+			slices++;
+		}
+		running.set(false);
+		reader.join();
+
+		System.out.println("Compressed from " + fullSize + " to " + store.getSize() + " in " + slices + " slices, reclaimed " + store.getReclaimedBytes() + " bytes, pause " + store.getCompactionPauseTime() + "ns");
+		assertTrue("Reader saw a wrong block during compression", !failed.get());
+		assertTrue("Auxiliary arrays were not shrunk", store.getSize() < fullSize);
+		assertTrue("Reclaimed bytes not reported", store.getReclaimedBytes() == (long) (fullSize - store.getSize()) * AtomicIntArrayStore.SLOT_BYTES);
+		checkStoreValues();
+		checkStoreLeaks();
+
+		set(3, 4, 5, 6, 7);
+		checkStoreValues();
+	}
+
+	private void fill(int x1, int y1, int z1, int x2, int y2, int z2, int id, int data) {
+		for (int x = x1; x <= x2; x++) {
+			for (int y = y1; y <= y2; y++) {
+				for (int z = z1; z <= z2; z++) {
+					int index = getIndex(x, y, z);
+					this.ids[index] = (short) id;
+					this.data[index] = (short) data;
+				}
+			}
+		}
+	}
+
 	private void set(int x, int y, int z, int id, int data) {
 		int index = getIndex(x, y, z);
 
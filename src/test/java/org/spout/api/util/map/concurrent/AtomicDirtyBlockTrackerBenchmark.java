@@ -0,0 +1,131 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares AtomicDirtyBlockTracker with the fixed size dirty arrays that it replaced, for 1, 50 and 1000 block changes per tick.<br>
+ * <br>
+ * Each tick marks the changed blocks, collects the blocks that would be sent to clients and resets the tracker.  When the fixed arrays overflow, the whole chunk has to be sent.  This is not run as part of the unit tests.
+ */
+public class AtomicDirtyBlockTrackerBenchmark {
+	private final static int SHIFT = 4;
+	private final static int SIZE = 1 << (3 * SHIFT);
+	private final static int MASK = (1 << SHIFT) - 1;
+	private final static int DIRTY_SIZE = 10;
+	private final static int TICKS = 200000;
+
+	public static void main(String[] args) {
+		int[] changes = {1, 50, 1000};
+		for (int pass = 0; pass < 2; pass++) {
+			System.out.println(pass == 0 ? "Warming up" : "Results");
+			for (int c = 0; c < changes.length; c++) {
+				int[] positions = new int[changes[c] * 64];
+				Random r = new Random(1);
+				for (int i = 0; i < positions.length; i++) {
+					positions[i] = r.nextInt(SIZE);
+				}
+				long[] arrays = measureArrays(positions, changes[c]);
+				long[] tracker = measureTracker(positions, changes[c]);
+				if (pass == 1) {
+					System.out.println(String.format("%4d changes/tick   arrays %7.1f ns/tick %6d blocks sent/tick   tracker %7.1f ns/tick %6d blocks sent/tick", changes[c], arrays[0] / (double) TICKS, arrays[1] / TICKS, tracker[0] / (double) TICKS, tracker[1] / TICKS));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Measures the tracker
+	 *
+	 * @param positions the indexes of the blocks to change
+	 * @param changes the number of changes per tick
+	 * @return the total time in nanoseconds and the total number of blocks sent
+	 */
+	private static long[] measureTracker(int[] positions, int changes) {
+		AtomicDirtyBlockTracker tracker = new AtomicDirtyBlockTracker(SHIFT);
+		long sent = 0;
+		int p = 0;
+		long start = System.nanoTime();
+		for (int tick = 0; tick < TICKS; tick++) {
+			for (int i = 0; i < changes; i++) {
+				int index = positions[p++];
+				if (p == positions.length) {
+					p = 0;
+				}
+				tracker.markDirty(index & MASK, index >> (2 * SHIFT), (index >> SHIFT) & MASK);
+			}
+			for (int i = tracker.nextDirtyBlock(0); i != -1; i = tracker.nextDirtyBlock(i + 1)) {
+				sent += tracker.getX(i) + tracker.getY(i) + tracker.getZ(i) >= 0 ? 1 : 0;
+			}
+			tracker.reset();
+		}
+		return new long[] {System.nanoTime() - start, sent};
+	}
+
+	/**
+	 * Measures the fixed size dirty arrays
+	 *
+	 * @param positions the indexes of the blocks to change
+	 * @param changes the number of changes per tick
+	 * @return the total time in nanoseconds and the total number of blocks sent
+	 */
+	private static long[] measureArrays(int[] positions, int changes) {
+		byte[] dirtyX = new byte[DIRTY_SIZE];
+		byte[] dirtyY = new byte[DIRTY_SIZE];
+		byte[] dirtyZ = new byte[DIRTY_SIZE];
+		AtomicInteger dirtyBlocks = new AtomicInteger(0);
+		long sent = 0;
+		int p = 0;
+		long start = System.nanoTime();
+		for (int tick = 0; tick < TICKS; tick++) {
+			for (int i = 0; i < changes; i++) {
+				int index = positions[p++];
+				if (p == positions.length) {
+					p = 0;
+				}
+				int dirtyIndex = dirtyBlocks.getAndIncrement();
+				if (dirtyIndex < DIRTY_SIZE) {
+					dirtyX[dirtyIndex] = (byte) (index & MASK);
+					dirtyY[dirtyIndex] = (byte) (index >> (2 * SHIFT));
+					dirtyZ[dirtyIndex] = (byte) ((index >> SHIFT) & MASK);
+				}
+			}
+			int count = dirtyBlocks.get();
+			if (count >= DIRTY_SIZE) {
+				sent += SIZE;
+			} else {
+				for (int i = 0; i < count; i++) {
+					sent += dirtyX[i] + dirtyY[i] + dirtyZ[i] >= 0 ? 1 : 0;
+				}
+			}
+			dirtyBlocks.set(0);
+		}
+		return new long[] {System.nanoTime() - start, sent};
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AtomicDirtyBlockTrackerTest {
+	private final static int SHIFT = 4;
+	private final static int SIZE = 1 << (3 * SHIFT);
+
+	@Test
+	public void testMarkAndIterate() {
+		AtomicDirtyBlockTracker tracker = new AtomicDirtyBlockTracker(SHIFT);
+		boolean[] expected = new boolean[SIZE];
+		Random rand = new Random();
+		int count = 0;
+
+		for (int i = 0; i < 1000; i++) {
+			int x = rand.nextInt(16);
+			int y = rand.nextInt(16);
+			int z = rand.nextInt(16);
+			int index = getIndex(x, y, z);
+			assertTrue("Mark returned the wrong result for " + x + ", " + y + ", " + z, tracker.markDirty(x, y, z) != expected[index]);
+			if (!expected[index]) {
+				expected[index] = true;
+				count++;
+			}
+		}
+		assertTrue("Dirty count is wrong", tracker.getDirtyCount() == count);
+
+		tracker.markDirty(3, 5, 0, 14, 6, 2);
+		for (int x = 3; x <= 14; x++) {
+			for (int y = 5; y <= 6; y++) {
+				for (int z = 0; z <= 2; z++) {
+					if (!expected[getIndex(x, y, z)]) {
+						expected[getIndex(x, y, z)] = true;
+						count++;
+					}
+				}
+			}
+		}
+		assertTrue("Dirty count is wrong after marking a region", tracker.getDirtyCount() == count);
+
+		check(tracker, expected);
+		tracker.reset();
+		assertTrue("Tracker dirty after reset", !tracker.isDirty() && tracker.nextDirtyBlock(0) == -1 && tracker.getSectionMask() == 0);
+	}
+
+	@Test
+	public void testSections() {
+		AtomicDirtyBlockTracker tracker = new AtomicDirtyBlockTracker(SHIFT);
+		assertTrue("Section size is wrong", tracker.getSectionSize() == 4);
+
+		tracker.markDirty(5, 0, 0);
+		assertTrue("Section mask is wrong after marking one block", tracker.getSectionMask() == 1L << 1);
+
+		tracker.markDirty(0, 12, 0, 15, 15, 15);
+		long mask = 1L << 1;
+		for (int i = 48; i < 64; i++) {
+			mask |= 1L << i;
+		}
+		assertTrue("Section mask is wrong after marking a region", tracker.getSectionMask() == mask);
+		assertTrue("Wrong number of blocks in the region", tracker.getDirtyCount() == 1 + 16 * 16 * 4);
+	}
+
+	@Test
+	public void testConcurrentMarks() throws InterruptedException {
+		final AtomicDirtyBlockTracker tracker = new AtomicDirtyBlockTracker(SHIFT);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Random rand = new Random();
+					for (int i = 0; i < 20000; i++) {
+						if ((i & 63) == 0) {
+							int x = rand.nextInt(16);
+							int y = rand.nextInt(16);
+							int z = rand.nextInt(16);
+							tracker.markDirty(x, y, z, Math.min(15, x + 3), y, z);
+						} else {
+							tracker.markDirty(rand.nextInt(16), rand.nextInt(16), rand.nextInt(16));
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		int count = 0;
+		for (int i = tracker.nextDirtyBlock(0); i != -1; i = tracker.nextDirtyBlock(i + 1)) {
+			count++;
+		}
+		assertTrue("Dirty count " + tracker.getDirtyCount() + " does not match the " + count + " dirty blocks", count == tracker.getDirtyCount());
+	}
+
+	private void check(AtomicDirtyBlockTracker tracker, boolean[] expected) {
+		int last = -1;
+		int found = 0;
+		for (int i = tracker.nextDirtyBlock(0); i != -1; i = tracker.nextDirtyBlock(i + 1)) {
+			assertTrue("Dirty blocks not iterated in order", i > last);
+			int x = tracker.getX(i);
+			int y = tracker.getY(i);
+			int z = tracker.getZ(i);
+			assertTrue("Block " + x + ", " + y + ", " + z + " is not dirty", expected[getIndex(x, y, z)] && tracker.isDirty(x, y, z));
+			found++;
+			last = i;
+		}
+		int count = 0;
+		for (int i = 0; i < SIZE; i++) {
+			if (expected[i]) {
+				count++;
+			}
+		}
+		assertTrue("Wrong number of dirty blocks iterated", found == count);
+		assertTrue("Wrong nth dirty block", tracker.getDirtyBlock(count - 1) == last && tracker.getDirtyBlock(count) == -1);
+	}
+
+	private static int getIndex(int x, int y, int z) {
+		return (y << 8) | (z << 4) | x;
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the garbage collection pauses caused by loaded chunks stored on the heap by AtomicBlockStoreImpl and off the heap by AtomicOffHeapBlockStore.<br>
+ * <br>
+ * Each run loads the given number of chunks with random block data, then times a number of full collections and reports the heap in use.  The stores are kept reachable throughout, as loaded chunks would be.  Run each store type in a fresh JVM, for example with -Xmx1g.  This is not run as part of the unit tests.
+ */
+public class AtomicOffHeapBlockStoreBenchmark {
+	private final static int SHIFT = 4;
+	private final static int SIZE = 1 << (3 * SHIFT);
+	private final static int COLLECTIONS = 10;
+
+	public static void main(String[] args) {
+		boolean offHeap = args.length > 0 && args[0].equals("offheap");
+		int chunks = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+		List<AtomicBlockStore> stores = new ArrayList<AtomicBlockStore>(chunks);
+		Random r = new Random(1);
+		short[] ids = new short[SIZE];
+		short[] data = new short[SIZE];
+		for (int c = 0; c < chunks; c++) {
+			for (int i = 0; i < SIZE; i++) {
+				ids[i] = (short) r.nextInt(64);
+				data[i] = (short) (r.nextInt(8) == 0 ? r.nextInt(16) : 0);
+			}
+			if (offHeap) {
+				stores.add(new AtomicOffHeapBlockStore(SHIFT, 10, ids, data));
+			} else {
+				stores.add(new AtomicBlockStoreImpl(SHIFT, 10, ids, data));
+			}
+		}
+
+		System.gc();
+		long gcTime = getCollectionTime();
+		long gcCount = getCollectionCount();
+		long max = 0;
+		long total = 0;
+		for (int i = 0; i < COLLECTIONS; i++) {
+			long start = System.nanoTime();
+			System.gc();
+			long pause = System.nanoTime() - start;
+			total += pause;
+			max = Math.max(max, pause);
+		}
+		gcTime = getCollectionTime() - gcTime;
+		gcCount = getCollectionCount() - gcCount;
+
+		Runtime runtime = Runtime.getRuntime();
+		long heap = runtime.totalMemory() - runtime.freeMemory();
+		System.out.println(String.format("%s store, %d chunks", offHeap ? "Off-heap" : "Heap", chunks));
+		System.out.println(String.format("  heap in use %.1f MB", heap / 1048576.0));
+		if (offHeap) {
+			OffHeapSlabAllocator allocator = OffHeapSlabAllocator.getAllocator(4 * SIZE);
+			System.out.println(String.format("  off-heap reserved %.1f MB", allocator.getReservedBytes() / 1048576.0));
+		}
+		System.out.println(String.format("  full gc average %.2f ms, max %.2f ms", total / (COLLECTIONS * 1000000.0), max / 1000000.0));
+		System.out.println(String.format("  collector reported %d collections, %d ms", gcCount, gcTime));
+
+		int check = 0;
+		for (AtomicBlockStore store : stores) {
+			check += store.getBlockId(0, 0, 0);
+		}
+		System.out.println("  checksum " + check);
+	}
+
+	private static long getCollectionTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, bean.getCollectionTime());
+		}
+		return time;
+	}
+
+	private static long getCollectionCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, bean.getCollectionCount());
+		}
+		return count;
+	}
+}
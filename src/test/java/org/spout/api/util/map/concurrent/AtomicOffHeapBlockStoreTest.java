@@ -0,0 +1,180 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.spout.api.datatable.DatatableSequenceNumber;
+import org.spout.api.material.block.BlockFullState;
+
+public class AtomicOffHeapBlockStoreTest {
+	private final static int MAX_SIZE = 4096;
+
+	private short[] ids = new short[MAX_SIZE];
+	private short[] data = new short[MAX_SIZE];
+
+	@Test
+	public void testArray() {
+		Random rand = new Random();
+		AtomicOffHeapBlockStore store = new AtomicOffHeapBlockStore(4, new OffHeapSlabAllocator(MAX_SIZE << 2, 4));
+
+		assertTrue("Empty block has a sequence number", store.getSequence(0, 0, 0) == DatatableSequenceNumber.ATOMIC);
+
+		for (int i = 0; i < 32768; i++) {
+			short id = (short) rand.nextInt();
+			short d = (short) (((rand.nextInt() & 0x3) != 0) ? 0 : rand.nextInt());
+			int x = rand.nextInt() & 0xF;
+			int y = rand.nextInt() & 0xF;
+			int z = rand.nextInt() & 0xF;
+			int index = getIndex(x, y, z);
+			if (rand.nextBoolean()) {
+				int old = store.getAndSetBlock(x, y, z, id, d);
+				assertEquals("Old state mismatch", BlockFullState.getPacked(ids[index], data[index]), old);
+				ids[index] = id;
+				data[index] = d;
+			} else {
+				boolean match = rand.nextBoolean();
+				short expectId = match ? ids[index] : (short) (ids[index] + 1);
+				boolean success = store.compareAndSetBlock(x, y, z, expectId, data[index], id, d);
+				assertEquals("Compare and set result mismatch", match, success);
+				if (success) {
+					ids[index] = id;
+					data[index] = d;
+				}
+			}
+			assertEquals("Block id mismatch", ids[index] & 0xFFFF, store.getBlockId(x, y, z));
+			assertEquals("Block data mismatch", data[index] & 0xFFFF, store.getData(x, y, z));
+			if (data[index] == 0) {
+				assertEquals("Block with no data has a sequence number", DatatableSequenceNumber.ATOMIC, store.getSequence(x, y, z));
+			}
+		}
+
+		short[] idArray = store.getBlockIdArray();
+		short[] dataArray = store.getDataArray();
+		for (int i = 0; i < MAX_SIZE; i++) {
+			assertEquals("Block id array mismatch", ids[i], idArray[i]);
+			assertEquals("Data array mismatch", data[i], dataArray[i]);
+		}
+
+		store.fill(2, 2, 2, 5, 5, 5, (short) 7, (short) 1);
+		assertEquals("Fill changed block outside cuboid", ids[getIndex(1, 2, 2)] & 0xFFFF, store.getBlockId(1, 2, 2));
+		assertEquals("Fill did not set block", 7, store.getBlockId(5, 5, 5));
+		assertEquals("Fill did not set data", 1, store.getData(2, 2, 2));
+		assertEquals("Replace count mismatch", 64, store.replaceAll((short) 7, (short) 8) - countOutside((short) 7, 2, 5));
+		assertEquals("Replace did not keep data", 1, store.getData(3, 3, 3));
+		assertTrue("Fill did not mark blocks dirty", store.isDirty());
+		store.free();
+	}
+
+	@Test
+	public void testConcurrentIncrements() throws InterruptedException {
+		final AtomicOffHeapBlockStore store = new AtomicOffHeapBlockStore(4, new OffHeapSlabAllocator(MAX_SIZE << 2, 4));
+		final int threads = 4;
+		final int increments = 20000;
+		final AtomicInteger torn = new AtomicInteger(0);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < increments; i++) {
+						int x = i & 0x3;
+						while (true) {
+							int state = store.getFullData(x, 1, 1);
+							short id = BlockFullState.getId(state);
+							short d = BlockFullState.getData(state);
+							if (id != d) {
+								torn.incrementAndGet();
+							}
+							if (store.compareAndSetBlock(x, 1, 1, id, d, (short) (id + 1), (short) (d + 1))) {
+								break;
+							}
+						}
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		assertEquals("Block read with mismatched id and data", 0, torn.get());
+		int total = 0;
+		for (int x = 0; x < 4; x++) {
+			total += store.getBlockId(x, 1, 1);
+		}
+		assertEquals("Lost compare and set updates", threads * increments, total);
+		store.free();
+	}
+
+	@Test
+	public void testFree() {
+		OffHeapSlabAllocator allocator = new OffHeapSlabAllocator(MAX_SIZE << 2, 2);
+		AtomicOffHeapBlockStore first = new AtomicOffHeapBlockStore(4, allocator);
+		first.setBlock(1, 2, 3, (short) 5, (short) 6);
+		assertEquals("Allocator slot count mismatch", 1, allocator.getUsedSlots());
+
+		first.free();
+		assertTrue("Store not marked as freed", first.isFreed());
+		assertEquals("Slot not returned to allocator", 0, allocator.getUsedSlots());
+		try {
+			first.getBlockId(1, 2, 3);
+			fail("Freed store could be read");
+		} catch (IllegalStateException e) {
+		}
+
+		AtomicOffHeapBlockStore second = new AtomicOffHeapBlockStore(4, allocator);
+		assertEquals("Reused slot was not cleared", 0, second.getFullData(1, 2, 3));
+		new AtomicOffHeapBlockStore(4, allocator);
+		new AtomicOffHeapBlockStore(4, allocator);
+		assertEquals("Slab count mismatch", 2L * 2 * (MAX_SIZE << 2), allocator.getReservedBytes());
+	}
+
+	private int countOutside(short id, int min, int max) {
+		int count = 0;
+		for (int x = 0; x < 16; x++) {
+			for (int y = 0; y < 16; y++) {
+				for (int z = 0; z < 16; z++) {
+					boolean inside = x >= min && x <= max && y >= min && y <= max && z >= min && z <= max;
+					if (!inside && ids[getIndex(x, y, z)] == id) {
+						count++;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	private static int getIndex(int x, int y, int z) {
+		return (y << 8) + (z << 4) + x;
+	}
+}
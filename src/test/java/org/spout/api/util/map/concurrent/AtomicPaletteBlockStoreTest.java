@@ -0,0 +1,301 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.spout.api.datatable.DatatableSequenceNumber;
+import org.spout.api.material.block.BlockFullState;
+import org.spout.api.util.cuboid.CuboidShortBuffer;
+
+public class AtomicPaletteBlockStoreTest {
+	private final static int MAX_SIZE = 4096;
+
+	private AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(4);
+
+	private short[] ids = new short[MAX_SIZE];
+	private short[] data = new short[MAX_SIZE];
+
+	@Test
+	public void testArray() {
+		Random rand = new Random();
+
+		System.out.println("-- Filling store with a few materials --");
+
+		assertTrue("Empty store has more than one palette entry", store.getPaletteSize() == 1 && store.getWidth() == 1);
+		assertTrue("Empty block has a sequence number", store.getSequence(0, 0, 0) == DatatableSequenceNumber.ATOMIC);
+
+		for (int x = 0; x < 16; x++) {
+			for (int z = 0; z < 16; z++) {
+				for (int y = 0; y < 16; y++) {
+					set(x, y, z, rand.nextInt(3), 0);
+				}
+			}
+		}
+		checkStoreValues();
+		System.out.println("Palette size " + store.getPaletteSize() + ", width " + store.getWidth());
+		assertTrue("Index width too large for 3 materials", store.getWidth() == 2);
+
+		System.out.println("-- Starting random access --");
+
+		for (int i = 0; i < 32768; i++) {
+			short id = (short) (rand.nextInt());
+			short data = (short) (((rand.nextInt() & 0x3) != 0) ? (0) : (rand.nextInt()));
+			int x = rand.nextInt() & 0xF;
+			int y = rand.nextInt() & 0xF;
+			int z = rand.nextInt() & 0xF;
+			if (rand.nextBoolean()) {
+				set(x, y, z, id, data);
+			} else {
+				compareAndSet(x, y, z, id, data, rand.nextBoolean(), rand);
+			}
+			check(x, y, z);
+		}
+		checkStoreValues();
+		System.out.println("Palette size " + store.getPaletteSize() + ", width " + store.getWidth());
+		assertTrue("Index width not widened for random data", store.getWidth() == 16);
+
+		System.out.println("-- Clearing most of the store --");
+
+		for (int x = 0; x < 16; x++) {
+			for (int z = 0; z < 16; z++) {
+				for (int y = 0; y < 16; y++) {
+					if (y > 0) {
+						set(x, y, z, 0, 0);
+					} else {
+						set(x, y, z, 1, rand.nextInt(4));
+					}
+				}
+			}
+		}
+		checkStoreValues();
+
+		assertTrue("Compression not needed after clearing store", store.needsCompression());
+		store.compress();
+		System.out.println("Palette size after compression " + store.getPaletteSize() + ", width " + store.getWidth());
+		assertTrue("Compression did not narrow the index array", store.getWidth() == 4 && !store.needsCompression());
+		checkStoreValues();
+
+		short[] idArray = store.getBlockIdArray();
+		short[] dataArray = store.getDataArray();
+		for (int i = 0; i < MAX_SIZE; i++) {
+			int x = i & 0xF;
+			int z = (i >> 4) & 0xF;
+			int y = i >> 8;
+			int index = getIndex(x, y, z);
+			assertTrue("Block id array mismatch", idArray[i] == ids[index]);
+			assertTrue("Data array mismatch", dataArray[i] == data[index]);
+		}
+
+		AtomicPaletteBlockStore copy = new AtomicPaletteBlockStore(4, 10, idArray, dataArray);
+		assertTrue("Store created from arrays has wrong width", copy.getWidth() == store.getWidth());
+		store = copy;
+		checkStoreValues();
+	}
+
+	@Test
+	public void testConcurrentUpdates() throws InterruptedException {
+		final int threadCount = 4;
+		final int updates = 50000;
+		final AtomicInteger successes = new AtomicInteger(0);
+
+		System.out.println("-- Incrementing block data from " + threadCount + " threads --");
+
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Random rand = new Random();
+					for (int i = 0; i < updates; i++) {
+						int x = rand.nextInt(16);
+						int y = rand.nextInt(16);
+						int z = rand.nextInt(16);
+						int state = store.getFullData(x, y, z);
+						short id = BlockFullState.getId(state);
+						short data = BlockFullState.getData(state);
+						// The id changes randomly so that the palette is widened while other threads are writing
+						if (store.compareAndSetBlock(x, y, z, id, data, (short) rand.nextInt(600), (short) (data + 1))) {
+							successes.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		int total = 0;
+		for (int x = 0; x < 16; x++) {
+			for (int z = 0; z < 16; z++) {
+				for (int y = 0; y < 16; y++) {
+					total += store.getData(x, y, z);
+				}
+			}
+		}
+		System.out.println(successes.get() + " successful updates, palette size " + store.getPaletteSize() + ", width " + store.getWidth());
+		assertTrue("Updates were lost, expected " + successes.get() + " but the data total was " + total, total == successes.get());
+	}
+
+	@Test
+	public void testBulkWrites() {
+		System.out.println("-- Testing fill, setBlocks and replaceAll --");
+
+		store.fill(2, 3, 4, 9, 7, 5, (short) 12, (short) 4);
+		fill(2, 3, 4, 9, 7, 5, 12, 4);
+		assertTrue("Fill was not marked dirty as a region", store.isDirtyOverflow());
+		checkStoreValues();
+
+		CuboidShortBuffer buffer = new CuboidShortBuffer(null, 0, 0, 0, 16, 16, 16);
+		Random rand = new Random();
+		for (int x = 0; x < 16; x++) {
+			for (int y = 0; y < 16; y++) {
+				for (int z = 0; z < 16; z++) {
+					buffer.set(x, y, z, (short) rand.nextInt(300));
+				}
+			}
+		}
+		store.setBlocks(8, 8, 8, buffer);
+		for (int x = 0; x < 8; x++) {
+			for (int y = 0; y < 8; y++) {
+				for (int z = 0; z < 8; z++) {
+					fill(x, y, z, x, y, z, buffer.get(x + 8, y + 8, z + 8), 0);
+				}
+			}
+		}
+		assertTrue("Palette not widened by setBlocks", store.getWidth() >= 8);
+		checkStoreValues();
+
+		int expected = 0;
+		for (int i = 0; i < MAX_SIZE; i++) {
+			if (ids[i] == 12) {
+				ids[i] = 400;
+				expected++;
+			}
+		}
+		int replaced = store.replaceAll((short) 12, (short) 400);
+		assertTrue("Wrong number of blocks replaced, expected " + expected + " but got " + replaced, replaced == expected);
+		checkStoreValues();
+
+		store.fill(0, 0, 0, 15, 15, 15, (short) 3, (short) 1);
+		fill(0, 0, 0, 15, 15, 15, 3, 1);
+		assertTrue("Store not uniform after filling the whole store", store.isUniform());
+		checkStoreValues();
+	}
+
+	private void fill(int x1, int y1, int z1, int x2, int y2, int z2, int id, int data) {
+		for (int x = x1; x <= x2; x++) {
+			for (int y = y1; y <= y2; y++) {
+				for (int z = z1; z <= z2; z++) {
+					int index = getIndex(x, y, z);
+					this.ids[index] = (short) id;
+					this.data[index] = (short) data;
+				}
+			}
+		}
+	}
+
+	private void set(int x, int y, int z, int id, int data) {
+		int index = getIndex(x, y, z);
+
+		int old = store.getAndSetBlock(x, y, z, (short) id, (short) data);
+		assertTrue("Old state returned by getAndSetBlock was wrong", old == BlockFullState.getPacked(this.ids[index], this.data[index]));
+
+		this.ids[index] = (short) id;
+		this.data[index] = (short) data;
+	}
+
+	private void compareAndSet(int x, int y, int z, short id, short data, boolean useCorrectExpect, Random rand) {
+		int index = getIndex(x, y, z);
+
+		short expectId = this.ids[index];
+		short expectData = this.data[index];
+
+		if (!useCorrectExpect) {
+			switch (rand.nextInt(2)) {
+				case 0: expectId++;
+					break;
+				case 1: expectData++;
+					break;
+			}
+		}
+
+		int sequence = store.getSequence(x, y, z);
+		assertTrue("Sequence number was unstable", sequence != DatatableSequenceNumber.UNSTABLE);
+		assertTrue("Block with data has an atomic sequence number", (sequence == DatatableSequenceNumber.ATOMIC) == (this.data[index] == 0));
+
+		boolean success = store.compareAndSetBlock(x, y, z, expectId, expectData, id, data);
+
+		if (useCorrectExpect) {
+			assertTrue("Compare and set with correct expect was unsuccessful", success);
+			assertTrue("Sequence number did not change after compare and set", !store.testSequence(x, y, z, sequence));
+			this.ids[index] = id;
+			this.data[index] = data;
+		} else {
+			assertTrue("Compare and set with incorrect expect was successful", !success);
+			assertTrue("Sequence number changed after failed compare and set", sequence == DatatableSequenceNumber.ATOMIC || store.testSequence(x, y, z, sequence));
+		}
+	}
+
+	private void check(int x, int y, int z) {
+		int index = getIndex(x, y, z);
+
+		int packedData = store.getFullData(x, y, z);
+		short id = BlockFullState.getId(packedData);
+		short d = BlockFullState.getData(packedData);
+		assertTrue("Record read at " + x + ", " + y + ", " + z + " has wrong short data", d == data[index]);
+		assertTrue("Record read at " + x + ", " + y + ", " + z + " has wrong short id", id == ids[index]);
+		assertTrue("Block id read at " + x + ", " + y + ", " + z + " is wrong", store.getBlockId(x, y, z) == (ids[index] & 0xFFFF));
+		assertTrue("Block data read at " + x + ", " + y + ", " + z + " is wrong", store.getData(x, y, z) == (data[index] & 0xFFFF));
+	}
+
+	private void checkStoreValues() {
+		for (int x = 0; x < 16; x++) {
+			for (int z = 0; z < 16; z++) {
+				for (int y = 0; y < 16; y++) {
+					check(x, y, z);
+				}
+			}
+		}
+		System.out.println("Value check test passed");
+		System.out.println();
+	}
+
+	private final static int getIndex(int x, int y, int z) {
+		int index = 0;
+		index = (index << 4) | (x & 0xF);
+		index = (index << 4) | (z & 0xF);
+		index = (index << 4) | (y & 0xF);
+		return index;
+	}
+}
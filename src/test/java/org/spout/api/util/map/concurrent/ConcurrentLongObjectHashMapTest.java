@@ -0,0 +1,191 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, SpoutDev <http://www.spout.org/>
+ * SpoutAPI is licensed under the SpoutDev License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the SpoutDev License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the SpoutDev License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://www.spout.org/SpoutDevLicenseV1.txt> for the full license,
+ * including the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.procedure.TLongObjectProcedure;
+
+import org.junit.Test;
+import org.spout.api.util.hashing.Int21TripleHashed;
+
+public class ConcurrentLongObjectHashMapTest {
+	private final static int LENGTH = 20000;
+	private final static int READERS = 4;
+
+	@Test
+	public void testAgainstReference() {
+		ConcurrentLongObjectHashMap<Integer> map = new ConcurrentLongObjectHashMap<Integer>(4, 8);
+		TLongObjectHashMap<Integer> reference = new TLongObjectHashMap<Integer>();
+		Random rand = new Random(1);
+
+		for (int i = 0; i < LENGTH * 10; i++) {
+			// A small key range so that keys are removed and put back often
+			long key = rand.nextInt(LENGTH) - LENGTH / 2;
+			Integer value = Integer.valueOf(rand.nextInt());
+			switch (rand.nextInt(4)) {
+				case 0:
+					assertEquals("Put returned the wrong value", reference.put(key, value), map.put(key, value));
+					break;
+				case 1:
+					assertEquals("Put if absent returned the wrong value", reference.putIfAbsent(key, value), map.putIfAbsent(key, value));
+					break;
+				case 2:
+					assertEquals("Remove returned the wrong value", reference.remove(key), map.remove(key));
+					break;
+				default:
+					assertEquals("Get returned the wrong value", reference.get(key), map.get(key));
+					assertEquals("Contains key returned the wrong value", reference.containsKey(key), map.containsKey(key));
+			}
+			assertEquals("Size mismatch", reference.size(), map.size());
+		}
+
+		long[] keys = map.keys();
+		long[] referenceKeys = reference.keys();
+		Arrays.sort(keys);
+		Arrays.sort(referenceKeys);
+		assertArrayEquals("Key mismatch", referenceKeys, keys);
+		assertEquals("Value count mismatch", reference.size(), map.values(new Integer[map.size()]).length);
+
+		for (long key : referenceKeys) {
+			assertEquals("Value mismatch for key " + key, reference.get(key), map.get(key));
+		}
+
+		map.clear();
+		assertTrue("Map not empty after clear", map.isEmpty());
+		assertNull("Key found after clear", map.get(referenceKeys[0]));
+	}
+
+	@Test
+	public void testZeroKey() {
+		ConcurrentLongObjectHashMap<String> map = new ConcurrentLongObjectHashMap<String>();
+		assertNull(map.put(0L, "zero"));
+		assertEquals("zero", map.get(0L));
+		assertEquals("zero", map.get(0, 0, 0));
+		assertEquals(1, map.size());
+		assertEquals("zero", map.putIfAbsent(0L, "other"));
+		assertFalse("Removed with the wrong value", map.remove(0L, "other"));
+		assertTrue("Not removed with the right value", map.remove(0L, "zero"));
+		assertNull(map.get(0L));
+		assertEquals(0, map.size());
+	}
+
+	@Test
+	public void testCube() {
+		ConcurrentLongObjectHashMap<String> map = new ConcurrentLongObjectHashMap<String>();
+		for (int x = -8; x < 8; x++) {
+			for (int y = -2; y < 2; y++) {
+				for (int z = -8; z < 8; z++) {
+					map.put(x, y, z, x + "," + y + "," + z);
+				}
+			}
+		}
+
+		// Small cubes use key lookups and large cubes scan the map, check both
+		checkCube(map, 0, 0, 0, 1, 1, 1);
+		checkCube(map, -3, -1, -3, 2, 0, 2);
+		checkCube(map, -100, -100, -100, 100, 100, 100);
+		checkCube(map, 7, -2, -8, 20, -2, -8);
+		assertEquals("Empty cube returned keys", 0, map.keysInCube(1, 1, 1, 0, 0, 0).length);
+	}
+
+	private void checkCube(ConcurrentLongObjectHashMap<String> map, final int minX, final int minY, final int minZ, final int maxX, final int maxY, final int maxZ) {
+		final AtomicInteger count = new AtomicInteger(0);
+		map.forEachInCube(minX, minY, minZ, maxX, maxY, maxZ, new TLongObjectProcedure<String>() {
+			public boolean execute(long key, String value) {
+				int x = Int21TripleHashed.key1(key);
+				int y = Int21TripleHashed.key2(key);
+				int z = Int21TripleHashed.key3(key);
+				assertTrue("Key outside of the cube", x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ);
+				assertEquals("Value does not match key", x + "," + y + "," + z, value);
+				count.incrementAndGet();
+				return true;
+			}
+		});
+		int expected = overlap(minX, maxX, -8, 7) * overlap(minY, maxY, -2, 1) * overlap(minZ, maxZ, -8, 7);
+		assertEquals("Wrong number of entries in cube", expected, count.get());
+		assertEquals("Wrong number of keys in cube", expected, map.keysInCube(minX, minY, minZ, maxX, maxY, maxZ).length);
+	}
+
+	private static int overlap(int min, int max, int rangeMin, int rangeMax) {
+		return Math.max(0, Math.min(max, rangeMax) - Math.max(min, rangeMin) + 1);
+	}
+
+	@Test
+	public void testConcurrentReads() throws InterruptedException {
+		final ConcurrentLongObjectHashMap<Long> map = new ConcurrentLongObjectHashMap<Long>(2, 8);
+		final int stable = 1000;
+		for (int i = 0; i < stable; i++) {
+			map.put(i * 2, Long.valueOf(i * 2));
+		}
+
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicInteger failures = new AtomicInteger(0);
+		Thread[] readers = new Thread[READERS];
+		for (int t = 0; t < READERS; t++) {
+			readers[t] = new Thread() {
+				@Override
+				public void run() {
+					while (!done.get()) {
+						for (int i = 0; i < stable; i++) {
+							long key = i * 2;
+							if (!Long.valueOf(key).equals(map.get(key))) {
+								failures.incrementAndGet();
+							}
+						}
+					}
+				}
+			};
+			readers[t].start();
+		}
+
+		// Odd keys come and go, which forces the segments to be resized and cleaned
+		Random rand = new Random(2);
+		for (int i = 0; i < LENGTH * 10; i++) {
+			long key = rand.nextInt(LENGTH) * 2 + 1;
+			if (map.remove(key) == null) {
+				map.put(key, Long.valueOf(key));
+			}
+		}
+		done.set(true);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+
+		assertEquals("Stable keys were missed during resizing", 0, failures.get());
+	}
+}
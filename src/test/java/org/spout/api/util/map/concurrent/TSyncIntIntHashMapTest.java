@@ -26,12 +26,17 @@
  */
 package org.spout.api.util.map.concurrent;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
+import gnu.trove.procedure.TIntIntProcedure;
+import gnu.trove.procedure.TIntProcedure;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -102,6 +107,85 @@ public class TSyncIntIntHashMapTest {
 		}
 	}
 
+	@Test
+	public void testForEach() throws InterruptedException {
+		final TSyncIntIntHashMap map = new TSyncIntIntHashMap();
+		final int stable = 1000;
+		for (int i = 0; i < stable; i++) {
+			map.put(i, i * 3);
+		}
+
+		final AtomicInteger count = new AtomicInteger(0);
+		assertTrue("Iteration stopped early", map.forEachEntry(new TIntIntProcedure() {
+			public boolean execute(int key, int value) {
+				assertEquals("Value does not match key", key * 3, value);
+				count.incrementAndGet();
+				return true;
+			}
+		}));
+		assertEquals("Entry count mismatch", stable, count.get());
+
+		final AtomicInteger valueSum = new AtomicInteger(0);
+		map.forEachValue(new TIntProcedure() {
+			public boolean execute(int value) {
+				valueSum.addAndGet(value);
+				return true;
+			}
+		});
+		assertEquals("Value sum mismatch", 3 * stable * (stable - 1) / 2, valueSum.get());
+
+		count.set(0);
+		assertFalse("Iteration did not stop", map.forEachKey(new TIntProcedure() {
+			public boolean execute(int key) {
+				return count.incrementAndGet() < 10;
+			}
+		}));
+		assertEquals("Iteration did not stop at the first false", 10, count.get());
+
+		// Entries which are not modified are always seen exactly once
+		final AtomicInteger errors = new AtomicInteger(0);
+		final AtomicInteger running = new AtomicInteger(1);
+		Thread writer = new Thread() {
+			public void run() {
+				Random r = new Random(1);
+				while (running.get() != 0) {
+					int key = stable + r.nextInt(stable);
+					if (r.nextBoolean()) {
+						map.put(key, key * 3);
+					} else {
+						map.remove(key);
+					}
+				}
+			}
+		};
+		writer.start();
+		try {
+			for (int pass = 0; pass < 200; pass++) {
+				final int[] seen = new int[stable];
+				map.forEachEntry(new TIntIntProcedure() {
+					public boolean execute(int key, int value) {
+						if (key < stable) {
+							seen[key]++;
+						}
+						if (value != key * 3) {
+							errors.incrementAndGet();
+						}
+						return true;
+					}
+				});
+				for (int i = 0; i < stable; i++) {
+					if (seen[i] != 1) {
+						errors.incrementAndGet();
+					}
+				}
+			}
+		} finally {
+			running.set(0);
+			writer.join();
+		}
+		assertEquals("Stable entries were missed, repeated or torn", 0, errors.get());
+	}
+
 	private static long runJoin(Thread[] threads, String name) {
 		long startTime = System.nanoTime();
 		for (int t = 0; t < THREADS; t++) {
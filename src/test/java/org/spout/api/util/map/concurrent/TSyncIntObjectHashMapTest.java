@@ -26,6 +26,8 @@
  */
 package org.spout.api.util.map.concurrent;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Random;
@@ -35,6 +37,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import gnu.trove.TCollections;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.procedure.TIntObjectProcedure;
+import gnu.trove.procedure.TIntProcedure;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -112,6 +116,101 @@ public class TSyncIntObjectHashMapTest {
 		}
 	}
 
+	@Test
+	public void testForEach() throws InterruptedException {
+		final TSyncIntObjectHashMap<Integer> map = new TSyncIntObjectHashMap<Integer>();
+		final int stable = 1000;
+		for (int i = 0; i < stable; i++) {
+			map.put(i, Integer.valueOf(i));
+		}
+
+		final AtomicInteger count = new AtomicInteger(0);
+		final AtomicInteger keySum = new AtomicInteger(0);
+		assertTrue("Iteration stopped early", map.forEachEntry(new TIntObjectProcedure<Integer>() {
+			public boolean execute(int key, Integer value) {
+				assertEquals("Value does not match key", Integer.valueOf(key), value);
+				count.incrementAndGet();
+				keySum.addAndGet(key);
+				return true;
+			}
+		}));
+		assertEquals("Entry count mismatch", stable, count.get());
+		assertEquals("Key sum mismatch", stable * (stable - 1) / 2, keySum.get());
+
+		count.set(0);
+		assertFalse("Iteration did not stop", map.forEachKey(new TIntProcedure() {
+			public boolean execute(int key) {
+				return count.incrementAndGet() < 10;
+			}
+		}));
+		assertEquals("Iteration did not stop at the first false", 10, count.get());
+
+		// The procedure may modify the map and iterate it again
+		count.set(0);
+		map.forEachKey(new TIntProcedure() {
+			public boolean execute(int key) {
+				if (key < 10) {
+					map.put(key + stable, Integer.valueOf(key + stable));
+					map.forEachKey(new TIntProcedure() {
+						public boolean execute(int key) {
+							count.incrementAndGet();
+							return true;
+						}
+					});
+				}
+				return true;
+			}
+		});
+		assertEquals("Map size mismatch after modification", stable + 10, map.size());
+		assertTrue("Nested iteration did not see the map", count.get() >= 10 * stable);
+		for (int i = 0; i < 10; i++) {
+			map.remove(i + stable);
+		}
+
+		// Entries which are not modified are always seen exactly once
+		final AtomicInteger errors = new AtomicInteger(0);
+		final AtomicInteger running = new AtomicInteger(1);
+		Thread writer = new Thread() {
+			public void run() {
+				Random r = new Random(1);
+				while (running.get() != 0) {
+					int key = stable + r.nextInt(stable);
+					if (r.nextBoolean()) {
+						map.put(key, Integer.valueOf(key));
+					} else {
+						map.remove(key);
+					}
+				}
+			}
+		};
+		writer.start();
+		try {
+			for (int pass = 0; pass < 200; pass++) {
+				final int[] seen = new int[stable];
+				map.forEachEntry(new TIntObjectProcedure<Integer>() {
+					public boolean execute(int key, Integer value) {
+						if (key < stable) {
+							seen[key]++;
+						}
+						if (!Integer.valueOf(key).equals(value)) {
+							errors.incrementAndGet();
+						}
+						return true;
+					}
+				});
+				for (int i = 0; i < stable; i++) {
+					if (seen[i] != 1) {
+						errors.incrementAndGet();
+					}
+				}
+			}
+		} finally {
+			running.set(0);
+			writer.join();
+		}
+		assertEquals("Stable entries were missed, repeated or torn", 0, errors.get());
+	}
+
 	private static long runJoin(Thread[] threads, String name) {
 		long startTime = System.nanoTime();
 		for (int t = 0; t < THREADS; t++) {